@@ -0,0 +1,63 @@
+package com.clicktracker.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clicktracker.AdminServlet;
+import com.clicktracker.CampaignIndex;
+import com.clicktracker.Utilities;
+import com.clicktracker.model.Campaign;
+
+// AdminServletBenchmark measures filtering of the admin campaign listing by
+// platforms (/api/v1/admin/campaign/all?platforms=...): scan of loaded
+// campaigns (filterCampaigns) and lookup in campaign index (CampaignIndex),
+// which includes reading index rows from the datastore.
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdminServletBenchmark extends DatastoreState {
+    @Param({ "100", "10000" })
+    public int numOfCampaigns;
+
+    @Param({ "android", "mixed" })
+    public String platformMix;
+
+    @Param({ "android", "iphone,android" })
+    public String platforms;
+
+    private final AdminServlet servlet = new AdminServlet();
+    private List<Campaign> campaigns;
+    private List<Long> platformIDs;
+
+    @Override
+    protected void setUp() throws IOException {
+        campaigns = createCampaigns(numOfCampaigns, platformMix);
+        platformIDs = Utilities.getPlatforms(platforms);
+        CampaignIndex.rebuild();
+    }
+
+    @Benchmark
+    public List<Campaign> filterCampaigns() throws IOException {
+        return servlet.filterCampaigns(campaigns, platforms);
+    }
+
+    @Benchmark
+    public long[] campaignIndex() {
+        return CampaignIndex.find(platformIDs, true);
+    }
+}
@@ -0,0 +1,83 @@
+package com.clicktracker.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+// BenchmarkRequest is minimal request used in benchmarks. Mockito mocks
+// record every invocation, which would show up in the measured time and
+// allocation rate, so only the methods servlets actually use are implemented.
+// Everything else fails loudly.
+public class BenchmarkRequest extends HttpServletRequestWrapper {
+    private String pathInfo;
+    private String remoteAddr = "127.0.0.1";
+    private HttpSession session = null;
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private final Map<String, String> parameters = new HashMap<String, String>();
+
+    public BenchmarkRequest() {
+        super(unsupported(HttpServletRequest.class));
+    }
+
+    public void setPathInfo(String pathInfo) {
+        this.pathInfo = pathInfo;
+    }
+
+    public void setHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    public void setParameter(String name, String value) {
+        parameters.put(name, value);
+    }
+
+    public void setSession(HttpSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public String getPathInfo() {
+        return pathInfo;
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public String getParameter(String name) {
+        return parameters.get(name);
+    }
+
+    @Override
+    public String getRemoteAddr() {
+        return remoteAddr;
+    }
+
+    @Override
+    public HttpSession getSession(boolean create) {
+        return session;
+    }
+
+    @Override
+    public HttpSession getSession() {
+        return session;
+    }
+
+    // unsupported returns proxy which throws on every call
+    @SuppressWarnings("unchecked")
+    static <T> T unsupported(final Class<T> type) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+            }
+        });
+    }
+}
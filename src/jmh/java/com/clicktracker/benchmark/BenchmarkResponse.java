@@ -0,0 +1,95 @@
+package com.clicktracker.benchmark;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+// BenchmarkResponse is minimal response used in benchmarks, response body is
+// discarded (only number of written bytes/chars is kept), that way the
+// benchmark measures the servlet and not the buffering of the response.
+public class BenchmarkResponse extends HttpServletResponseWrapper {
+    private int status;
+    private String redirect;
+    private long written;
+
+    private final ServletOutputStream outputStream = new ServletOutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            written += len;
+        }
+    };
+
+    private final PrintWriter writer = new PrintWriter(new Writer() {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            written += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    });
+
+    public BenchmarkResponse() {
+        super(BenchmarkRequest.unsupported(HttpServletResponse.class));
+    }
+
+    // written returns number of bytes/chars written since creation, should be
+    // consumed by the benchmark (Blackhole), so the response is not optimized away
+    public long written() {
+        return written;
+    }
+
+    public int status() {
+        return status;
+    }
+
+    public String redirect() {
+        return redirect;
+    }
+
+    @Override
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    @Override
+    public void sendRedirect(String location) {
+        this.redirect = location;
+    }
+
+    @Override
+    public void setContentType(String type) {
+    }
+
+    @Override
+    public void setContentLength(int len) {
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        return writer;
+    }
+}
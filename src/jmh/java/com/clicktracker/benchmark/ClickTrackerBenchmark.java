@@ -0,0 +1,94 @@
+package com.clicktracker.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clicktracker.ClickDeduplicator;
+import com.clicktracker.ClickTrackerServlet;
+import com.clicktracker.model.Campaign;
+
+// ClickTrackerBenchmark measures tracker redirect (GET) and click (POST)
+// requests on existing and missing campaigns. Campaigns are requested round
+// robin, so with large numOfCampaigns the campaign cache is exercised as well.
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClickTrackerBenchmark extends DatastoreState {
+    @Param({ "100", "10000" })
+    public int numOfCampaigns;
+
+    @Param({ "mixed" })
+    public String platformMix;
+
+    // every request comes from the same visitor, with DROP all but the first
+    // click per campaign are suppressed as duplicates (see ClickDeduplicator)
+    @Param({ "OFF", "DROP" })
+    public String dedupMode;
+
+    private final ClickTrackerServlet servlet = new ClickTrackerServlet();
+    private final BenchmarkResponse response = new BenchmarkResponse();
+    private BenchmarkRequest[] requests;
+    private BenchmarkRequest missingRequest;
+    private int next = 0;
+
+    @Override
+    protected void setUp() {
+        ClickDeduplicator.setMode(ClickDeduplicator.Mode.valueOf(dedupMode));
+        List<Campaign> campaigns = createCampaigns(numOfCampaigns, platformMix);
+        requests = new BenchmarkRequest[campaigns.size()];
+        for (int i = 0; i < campaigns.size(); i++) {
+            BenchmarkRequest req = new BenchmarkRequest();
+            req.setPathInfo("/" + campaigns.get(i).id);
+            req.setHeader("User-Agent", "Mozilla/5.0 (Linux; Android 7.0; SM-G930V Build/NRD90M)");
+            req.setHeader("X-Forwarded-For", "203.0.113.7, 10.0.0.1");
+            requests[i] = req;
+        }
+        missingRequest = new BenchmarkRequest();
+        missingRequest.setPathInfo("/1");
+    }
+
+    private BenchmarkRequest nextRequest() {
+        BenchmarkRequest req = requests[next];
+        next = next + 1 == requests.length ? 0 : next + 1;
+        return req;
+    }
+
+    @Benchmark
+    public long doGet() throws IOException {
+        servlet.doGet(nextRequest(), response);
+        return response.status();
+    }
+
+    @Benchmark
+    public long doPost() throws IOException {
+        servlet.doPost(nextRequest(), response);
+        return response.written();
+    }
+
+    @Benchmark
+    public long doGet_missingCampaign() throws IOException {
+        servlet.doGet(missingRequest, response);
+        return response.status();
+    }
+
+    @Benchmark
+    public long doPost_missingCampaign() throws IOException {
+        servlet.doPost(missingRequest, response);
+        return response.written();
+    }
+}
@@ -0,0 +1,114 @@
+package com.clicktracker.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.clicktracker.CampaignCache;
+import com.clicktracker.ClickDeduplicator;
+import com.clicktracker.ClickQueue;
+import com.clicktracker.CounterAggregator;
+import com.clicktracker.OfyHelper;
+import com.clicktracker.PlatformClassifier;
+import com.clicktracker.PlatformRegistry;
+import com.clicktracker.ShardedCounter;
+import com.clicktracker.model.Campaign;
+import com.clicktracker.model.Platform;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+// DatastoreState sets up local datastore stubs (the same ones used in unit
+// tests, see SetupUtils) for benchmarks. Stubs are bound to the thread that
+// called setUp, so benchmarks extending this state have to use Scope.Thread.
+//
+// Benchmarks prepare their data in setUp, which is called after the stubs
+// are ready (JMH does not guarantee order of @Setup methods of a class and
+// its superclass).
+public abstract class DatastoreState {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    private Closeable session;
+
+    protected Platform android;
+    protected Platform iphone;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        setUpDatastore();
+        setUp();
+    }
+
+    // setUp prepares benchmark data (campaigns, requests...)
+    protected void setUp() throws IOException {
+    }
+
+    private void setUpDatastore() {
+        helper.setUp();
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        OfyHelper.registerEntities();
+        session = ObjectifyService.begin();
+
+        android = new Platform("android");
+        iphone = new Platform("iphone");
+        ObjectifyService.ofy().save().entities(android, iphone).now();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownDatastore() {
+        CampaignCache.invalidateAll();
+        ClickQueue.clear();
+        CounterAggregator.clear();
+        ClickDeduplicator.clear();
+        ShardedCounter.clearCache();
+        PlatformClassifier.clear();
+        PlatformRegistry.clear();
+        AsyncCacheFilter.complete();
+        session.close();
+        helper.tearDown();
+    }
+
+    // createCampaigns creates numOfCampaigns campaigns, platforms of the
+    // campaigns are picked round robin from platformMix:
+    // - "android", "iphone": all campaigns are on one platform
+    // - "mixed": android only, iphone only, both
+    protected List<Campaign> createCampaigns(int numOfCampaigns, String platformMix) {
+        List<List<Long>> mix = new ArrayList<List<Long>>();
+        if (platformMix.equals("android")) {
+            mix.add(platforms(android));
+        } else if (platformMix.equals("iphone")) {
+            mix.add(platforms(iphone));
+        } else {
+            mix.add(platforms(android));
+            mix.add(platforms(iphone));
+            mix.add(platforms(android, iphone));
+        }
+
+        List<Campaign> campaigns = new ArrayList<Campaign>();
+        for (int i = 0; i < numOfCampaigns; i++) {
+            String name = "Campaign " + i;
+            String url = "http://www.campaign" + i + ".com";
+            campaigns.add(new Campaign(name, url, mix.get(i % mix.size()), i % 10 != 0, new Date()));
+        }
+        // save in chunks, datastore batch puts are limited to 500 entities
+        for (int i = 0; i < campaigns.size(); i += 500) {
+            ObjectifyService.ofy().save().entities(campaigns.subList(i, Math.min(i + 500, campaigns.size()))).now();
+        }
+        return campaigns;
+    }
+
+    private static List<Long> platforms(Platform... platforms) {
+        List<Long> ids = new ArrayList<Long>();
+        for (Platform p : platforms) {
+            ids.add(p.id);
+        }
+        return ids;
+    }
+}
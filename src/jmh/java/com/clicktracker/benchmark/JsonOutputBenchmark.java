@@ -0,0 +1,133 @@
+package com.clicktracker.benchmark;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clicktracker.JsonOutput;
+import com.clicktracker.model.Campaign;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+// JsonOutputBenchmark compares json responses written by shared writers
+// (see JsonOutput) with the previous per-request Gson serialization: new Gson
+// instances, reflection, JsonElement tree and String of the whole response.
+//
+// Responses are written into a writer which discards the output, so only
+// serialization is measured. Allocations per operation are reported by the
+// gc profiler (gc.alloc.rate.norm), see benchmarks profile in pom.xml.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonOutputBenchmark {
+    // number of campaigns in the listing
+    @Param({ "1", "100" })
+    public int numOfCampaigns;
+
+    private List<Campaign> campaigns;
+    private PrintWriter out;
+
+    @Setup
+    public void setUp() {
+        campaigns = new ArrayList<Campaign>();
+        for (int i = 0; i < numOfCampaigns; i++) {
+            Campaign c = new Campaign("campaign-" + i, "http://example.com/landing?campaign=" + i + "&src=ads",
+                    Arrays.asList(5629499534213120L, 5066549580791808L), i % 2 == 0, new Date());
+            c.id = 4785074604081152L + i;
+            campaigns.add(c);
+        }
+        out = new PrintWriter(new DiscardingWriter());
+    }
+
+    // campaign listing as it was written before
+    @Benchmark
+    public void listingGson() {
+        JsonArray camp = new Gson().toJsonTree(campaigns).getAsJsonArray();
+        JsonObject wrapper = new JsonObject();
+        wrapper.add("campaigns:", camp);
+        String json = new Gson().toJson(wrapper);
+        out.print(json);
+        out.flush();
+    }
+
+    @Benchmark
+    public void listingAdapters() throws IOException {
+        JsonWriter writer = JsonOutput.newWriter(out);
+        writer.beginObject();
+        writer.name("campaigns:");
+        writer.beginArray();
+        for (Campaign c : campaigns) {
+            JsonOutput.CAMPAIGN.write(writer, c);
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+    }
+
+    // single campaign (campaign update response)
+    @Benchmark
+    public void campaignGson() {
+        out.print(new Gson().toJson(campaigns.get(0)));
+        out.flush();
+    }
+
+    @Benchmark
+    public void campaignAdapters() throws IOException {
+        JsonOutput.writeCampaign(out, campaigns.get(0));
+    }
+
+    // error envelope (every rejected admin request)
+    @Benchmark
+    public void messageGson() {
+        Gson gson = new Gson();
+        JsonObject msg = new JsonObject();
+        msg.add("message", gson.toJsonTree("This campaign does not exist"));
+        out.print(new Gson().toJson(msg));
+        out.flush();
+    }
+
+    @Benchmark
+    public void messageAdapters() throws IOException {
+        JsonOutput.writeMessage(out, "This campaign does not exist");
+    }
+
+    private static class DiscardingWriter extends Writer {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
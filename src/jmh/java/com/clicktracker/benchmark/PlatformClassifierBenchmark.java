@@ -0,0 +1,90 @@
+package com.clicktracker.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clicktracker.PlatformClassifier;
+
+// PlatformClassifierBenchmark measures user-agent classification done on
+// every tracker request: cached lookup (repeated user agents), classification
+// without the cache (new user agents) and, for comparison, a chain of regexes.
+//
+// User agents are fresh String copies, like headers of real requests, so
+// their hash codes are not cached.
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlatformClassifierBenchmark extends DatastoreState {
+    private static final String[] USER_AGENTS = {
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 11_0 like Mac OS X) AppleWebKit/604.1.38 (KHTML, like Gecko) "
+                    + "Version/11.0 Mobile/15A372 Safari/604.1",
+            "Mozilla/5.0 (Linux; Android 7.0; SM-G930V Build/NRD90M) AppleWebKit/537.36 (KHTML, like Gecko) "
+                    + "Chrome/59.0.3071.125 Mobile Safari/537.36",
+            "Mozilla/5.0 (iPad; CPU OS 10_3_3 like Mac OS X) AppleWebKit/603.3.8 (KHTML, like Gecko) "
+                    + "Version/10.0 Mobile/14G60 Safari/602.1",
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) "
+                    + "Chrome/61.0.3163.100 Safari/537.36",
+            "Mozilla/5.0 (Mobile; Windows Phone 8.1; Android 4.0; ARM; Trident/7.0; Touch; rv:11.0; IEMobile/11.0; "
+                    + "NOKIA; Lumia 635) like iPhone OS 7_0_3 Mac OS X AppleWebKit/537 (KHTML, like Gecko) "
+                    + "Mobile Safari/537" };
+
+    private static final Pattern[] REGEXES = { Pattern.compile("(?i).*windows phone.*"),
+            Pattern.compile("(?i).*(iphone|ipod|ipad).*"), Pattern.compile("(?i).*android.*") };
+
+    // number of distinct user agents requested round robin
+    @Param({ "5" })
+    public int numOfUserAgents;
+
+    private String[] userAgents;
+    private int next = 0;
+
+    @Override
+    protected void setUp() {
+        PlatformClassifier.refresh();
+        userAgents = new String[numOfUserAgents];
+        for (int i = 0; i < numOfUserAgents; i++) {
+            userAgents[i] = USER_AGENTS[i % USER_AGENTS.length];
+        }
+    }
+
+    private String nextUserAgent() {
+        String ua = userAgents[next];
+        next = next + 1 == userAgents.length ? 0 : next + 1;
+        return new String(ua.toCharArray());
+    }
+
+    @Benchmark
+    public Long platformID() {
+        return PlatformClassifier.platformID(nextUserAgent());
+    }
+
+    @Benchmark
+    public Long classify() {
+        return PlatformClassifier.classify(nextUserAgent());
+    }
+
+    @Benchmark
+    public int regexChain() {
+        String ua = nextUserAgent();
+        for (int i = 0; i < REGEXES.length; i++) {
+            if (REGEXES[i].matcher(ua).matches()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
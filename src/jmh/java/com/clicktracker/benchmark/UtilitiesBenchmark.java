@@ -0,0 +1,52 @@
+package com.clicktracker.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clicktracker.Utilities;
+
+// UtilitiesBenchmark measures url parsing done on every tracker request and
+// platform parsing done on campaign create/update and filtered listings.
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilitiesBenchmark extends DatastoreState {
+    // comma separated platform names or ids (ids are resolved in setUp)
+    @Param({ "android", "iphone,android", "ids" })
+    public String platforms;
+
+    private BenchmarkRequest request;
+    private String platformsString;
+
+    @Override
+    protected void setUp() {
+        request = new BenchmarkRequest();
+        request.setPathInfo("/5066549580791808");
+        platformsString = platforms.equals("ids") ? android.id + "," + iphone.id : platforms;
+    }
+
+    @Benchmark
+    public Long getCampaignID() throws IOException {
+        return Utilities.getCampaignID(request);
+    }
+
+    @Benchmark
+    public List<Long> getPlatforms() throws IOException {
+        return Utilities.getPlatforms(platformsString);
+    }
+}
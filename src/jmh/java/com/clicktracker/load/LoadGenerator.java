@@ -0,0 +1,345 @@
+package com.clicktracker.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+// LoadGenerator drives tracker and admin endpoints of locally running app
+// (mvn appengine:devserver_start) with traffic described by Scenario.
+//
+// Load is open loop: request i is due at start + i / requestsPerSecond, no
+// matter if previous requests finished. Latency is measured from the time the
+// request was due (not from the time it was sent), so requests waiting for a
+// free connection are counted as slow instead of hidden (coordinated
+// omission). Latencies are recorded into HdrHistograms per operation and
+// reported every reportIntervalSeconds and at the end of the run.
+//
+// usage: LoadGenerator <scenario.properties> [key=value ...]
+public class LoadGenerator {
+    private static final PrintStream out = System.out;
+
+    enum Operation {
+        REDIRECT, CLICK, MISSING, ADMIN
+    }
+
+    // OperationStats holds latencies (in microseconds) and error count of
+    // one operation type
+    static class OperationStats {
+        final Operation op;
+        final Recorder recorder = new Recorder(3);
+        final Histogram total = new Histogram(3);
+        final AtomicLong errors = new AtomicLong();
+        long reportedErrors = 0;
+
+        OperationStats(Operation op) {
+            this.op = op;
+        }
+    }
+
+    private final Scenario scenario;
+    private final ZipfDistribution zipf;
+    private final List<Long> campaignIDs = new ArrayList<Long>();
+    private final OperationStats[] stats = new OperationStats[Operation.values().length];
+    private final Operation[] mix;
+    private String sessionCookie;
+
+    public LoadGenerator(Scenario scenario) {
+        this.scenario = scenario;
+        this.zipf = new ZipfDistribution(scenario.campaigns, scenario.zipfExponent);
+        for (Operation op : Operation.values()) {
+            stats[op.ordinal()] = new OperationStats(op);
+        }
+
+        // operations are picked from array of 100 slots, weights are
+        // normalised to slot counts
+        int sum = scenario.redirectWeight + scenario.clickWeight + scenario.missingWeight + scenario.adminWeight;
+        mix = new Operation[100];
+        int[] weights = { scenario.redirectWeight, scenario.clickWeight, scenario.missingWeight,
+                scenario.adminWeight };
+        int slot = 0;
+        double cumulative = 0;
+        for (Operation op : Operation.values()) {
+            cumulative += weights[op.ordinal()];
+            int end = (int) Math.round(cumulative * 100 / sum);
+            for (; slot < end; slot++) {
+                mix[slot] = op;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: LoadGenerator <scenario.properties> [key=value ...]");
+            System.exit(2);
+        }
+        Scenario scenario = Scenario.load(args[0], Arrays.copyOfRange(args, 1, args.length));
+        LoadGenerator generator = new LoadGenerator(scenario);
+        generator.login();
+        generator.prepareCampaigns();
+        generator.run();
+    }
+
+    // login logs admin in and remembers session cookie
+    void login() throws IOException {
+        String body = "name=" + URLEncoder.encode(scenario.adminName, "UTF-8") + "&password="
+                + URLEncoder.encode(scenario.adminPassword, "UTF-8");
+        HttpURLConnection conn = open("POST", "/api/v1/admin/auth/login", body);
+        int status = conn.getResponseCode();
+        discard(conn);
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("admin login failed with status " + status);
+        }
+        String cookie = conn.getHeaderField("Set-Cookie");
+        if (cookie == null) {
+            throw new IOException("admin login did not return session cookie");
+        }
+        sessionCookie = cookie.split(";", 2)[0];
+    }
+
+    // prepareCampaigns loads ids of existing campaigns and creates missing
+    // ones, so the scenario has `campaigns` campaigns to pick from
+    void prepareCampaigns() throws IOException {
+        // campaigns are listed in pages, follow cursors until there is enough
+        String cursor = null;
+        HttpURLConnection conn;
+        do {
+            String path = "/api/v1/admin/campaign/all?limit=1000"
+                    + (cursor == null ? "" : "&cursor=" + URLEncoder.encode(cursor, "UTF-8"));
+            conn = open("GET", path, null);
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                discard(conn);
+                break;
+            }
+            try (Reader reader = new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8)) {
+                JsonObject json = new JsonParser().parse(reader).getAsJsonObject();
+                JsonArray campaigns = json.getAsJsonArray("campaigns:");
+                for (JsonElement c : campaigns) {
+                    if (campaignIDs.size() < scenario.campaigns) {
+                        campaignIDs.add(c.getAsJsonObject().get("id").getAsLong());
+                    }
+                }
+                cursor = json.has("cursor") ? json.get("cursor").getAsString() : null;
+            }
+        } while (cursor != null && campaignIDs.size() < scenario.campaigns);
+
+        if (campaignIDs.size() < scenario.campaigns && scenario.createCampaigns) {
+            out.printf("creating %d campaigns%n", scenario.campaigns - campaignIDs.size());
+        }
+        while (campaignIDs.size() < scenario.campaigns && scenario.createCampaigns) {
+            int i = campaignIDs.size();
+            String platforms = i % 3 == 0 ? "android,iphone" : i % 3 == 1 ? "android" : "iphone";
+            String body = "name=load-" + i + "&redirectURL=" + URLEncoder.encode("http://example.com/" + i, "UTF-8")
+                    + "&active=true&platforms=" + URLEncoder.encode(platforms, "UTF-8");
+            conn = open("POST", "/api/v1/admin/campaign", body);
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_CREATED) {
+                throw new IOException("campaign could not be created, status " + conn.getResponseCode());
+            }
+            try (Reader reader = new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8)) {
+                campaignIDs.add(new JsonParser().parse(reader).getAsJsonObject().get("id").getAsLong());
+            }
+        }
+
+        if (campaignIDs.isEmpty()) {
+            throw new IOException("there are no campaigns, enable createCampaigns in scenario");
+        }
+        out.printf("using %d campaigns%n", campaignIDs.size());
+    }
+
+    // run drives the load for warmup + duration seconds
+    void run() throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(scenario.threads);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / scenario.requestsPerSecond;
+        long start = System.nanoTime();
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(scenario.warmupSeconds);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(scenario.durationSeconds);
+        long reportInterval = TimeUnit.SECONDS.toNanos(scenario.reportIntervalSeconds);
+        long nextReport = warmupEnd + reportInterval;
+        boolean warmedUp = scenario.warmupSeconds == 0;
+        Random random = new Random();
+
+        out.printf("scenario %s: %d req/s for %ds (+%ds warmup) against %s%n", scenario.name,
+                scenario.requestsPerSecond, scenario.durationSeconds, scenario.warmupSeconds, scenario.baseURL);
+        for (long i = 0;; i++) {
+            final long due = start + i * intervalNanos;
+            if (due >= end) {
+                break;
+            }
+            long now = System.nanoTime();
+            if (due > now) {
+                LockSupport.parkNanos(due - now);
+            }
+
+            if (!warmedUp && due >= warmupEnd) {
+                // drop latencies recorded during warmup
+                for (OperationStats s : stats) {
+                    s.recorder.reset();
+                    s.errors.set(0);
+                }
+                warmedUp = true;
+            }
+            if (warmedUp && due >= nextReport) {
+                report(false);
+                nextReport += reportInterval;
+            }
+
+            final Operation op = mix[random.nextInt(mix.length)];
+            final long campaignID = campaignIDs.get(zipf.sample(random) % campaignIDs.size());
+            workers.execute(new Runnable() {
+                public void run() {
+                    execute(op, campaignID, due);
+                }
+            });
+        }
+
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+        report(true);
+    }
+
+    // execute sends one request and records its latency
+    private void execute(Operation op, long campaignID, long due) {
+        OperationStats s = stats[op.ordinal()];
+        boolean ok;
+        try {
+            ok = send(op, campaignID);
+        } catch (IOException ex) {
+            ok = false;
+        }
+        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due);
+        s.recorder.recordValue(Math.max(latencyMicros, 0));
+        if (!ok) {
+            s.errors.incrementAndGet();
+        }
+    }
+
+    // send sends request of chosen operation
+    // returns: true if response status was the expected one
+    private boolean send(Operation op, long campaignID) throws IOException {
+        HttpURLConnection conn;
+        int expected;
+        switch (op) {
+        case CLICK:
+            conn = open("POST", "/api/v1/campaign/" + campaignID, "");
+            expected = HttpURLConnection.HTTP_OK;
+            break;
+        case MISSING:
+            // datastore ids are much larger, so these campaigns do not exist
+            long missingID = 1 + ThreadLocalRandom.current().nextLong(1000000000L);
+            conn = open("GET", "/api/v1/campaign/" + missingID, null);
+            expected = HttpURLConnection.HTTP_MOVED_TEMP;
+            break;
+        case ADMIN:
+            conn = open("GET", "/api/v1/admin/campaign/all?platforms="
+                    + URLEncoder.encode(scenario.adminPlatforms, "UTF-8"), null);
+            expected = HttpURLConnection.HTTP_OK;
+            break;
+        default: // REDIRECT
+            conn = open("GET", "/api/v1/campaign/" + campaignID, null);
+            expected = HttpURLConnection.HTTP_MOVED_TEMP;
+        }
+        int status = conn.getResponseCode();
+        discard(conn);
+        return status == expected;
+    }
+
+    private HttpURLConnection open(String method, String path, String formBody) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(scenario.baseURL + path).openConnection();
+        conn.setInstanceFollowRedirects(false);
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(10000);
+        conn.setReadTimeout(60000);
+        conn.setRequestProperty("User-Agent", "clicktracker-load/1.0 (Linux; Android 7.0)");
+        if (sessionCookie != null && path.startsWith("/api/v1/admin/")) {
+            conn.setRequestProperty("Cookie", sessionCookie);
+        }
+        if (formBody != null) {
+            byte[] body = formBody.getBytes(StandardCharsets.UTF_8);
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            conn.setFixedLengthStreamingMode(body.length);
+            try (OutputStream os = conn.getOutputStream()) {
+                os.write(body);
+            }
+        }
+        return conn;
+    }
+
+    // discard reads the whole response body, that way the connection could
+    // be reused (keep-alive)
+    private static void discard(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getErrorStream();
+        if (in == null) {
+            try {
+                in = conn.getInputStream();
+            } catch (IOException ex) {
+                return;
+            }
+        }
+        try {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+                // skip
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // report prints latency percentiles of the last interval, or of the whole
+    // run when final is true
+    private void report(boolean isFinal) {
+        out.println(isFinal ? "=== total ===" : "--- interval ---");
+        out.printf("%-9s %9s %9s %10s %10s %10s %10s %10s%n", "operation", "requests", "errors", "req/s",
+                "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (OperationStats s : stats) {
+            long errors;
+            Histogram h;
+            double seconds;
+            if (isFinal) {
+                s.total.add(s.recorder.getIntervalHistogram());
+                h = s.total;
+                errors = s.errors.get();
+                seconds = scenario.durationSeconds;
+            } else {
+                h = s.recorder.getIntervalHistogram();
+                s.total.add(h);
+                long allErrors = s.errors.get();
+                errors = allErrors - s.reportedErrors;
+                s.reportedErrors = allErrors;
+                seconds = scenario.reportIntervalSeconds;
+            }
+            if (h.getTotalCount() == 0) {
+                continue;
+            }
+            out.printf("%-9s %9d %9d %10.1f %10.2f %10.2f %10.2f %10.2f%n", s.op.name().toLowerCase(),
+                    h.getTotalCount(), errors, h.getTotalCount() / seconds, h.getValueAtPercentile(50) / 1000.0,
+                    h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0,
+                    h.getMaxValue() / 1000.0);
+        }
+    }
+}
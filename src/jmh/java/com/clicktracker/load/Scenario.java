@@ -0,0 +1,108 @@
+package com.clicktracker.load;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+// Scenario describes traffic shape driven by LoadGenerator. Scenarios are
+// stored as properties files (see src/jmh/scenarios), missing values fall
+// back to defaults below.
+//
+// Operation mix is given in weights (they do not have to sum up to 100):
+//      mix.redirect    GET  /api/v1/campaign/{id}
+//      mix.click       POST /api/v1/campaign/{id}
+//      mix.missing     GET  /api/v1/campaign/{id} on campaign that does not exist
+//      mix.admin       GET  /api/v1/admin/campaign/all?platforms=...
+public class Scenario {
+    public final String name;
+    public final String baseURL;
+
+    // open loop: requests are started at fixed rate, no matter how long the
+    // previous requests took
+    public final int requestsPerSecond;
+    public final int durationSeconds;
+    public final int warmupSeconds;
+    public final int reportIntervalSeconds;
+    // max number of requests in flight
+    public final int threads;
+
+    // campaigns are picked with zipf distribution, campaign with rank k is
+    // picked with probability proportional to 1 / k^zipfExponent
+    public final int campaigns;
+    public final double zipfExponent;
+    // missing campaigns are created when the app has less than `campaigns`
+    public final boolean createCampaigns;
+
+    public final int redirectWeight;
+    public final int clickWeight;
+    public final int missingWeight;
+    public final int adminWeight;
+    public final String adminPlatforms;
+
+    public final String adminName;
+    public final String adminPassword;
+
+    public Scenario(Properties p) {
+        name = p.getProperty("name", "default");
+        baseURL = stripSlash(p.getProperty("baseURL", "http://localhost:8080"));
+        requestsPerSecond = intProperty(p, "requestsPerSecond", 100);
+        durationSeconds = intProperty(p, "durationSeconds", 60);
+        warmupSeconds = intProperty(p, "warmupSeconds", 10);
+        reportIntervalSeconds = intProperty(p, "reportIntervalSeconds", 10);
+        threads = intProperty(p, "threads", 64);
+
+        campaigns = intProperty(p, "campaigns", 1000);
+        zipfExponent = Double.parseDouble(p.getProperty("zipfExponent", "1.0"));
+        createCampaigns = Boolean.parseBoolean(p.getProperty("createCampaigns", "true"));
+
+        redirectWeight = intProperty(p, "mix.redirect", 95);
+        clickWeight = intProperty(p, "mix.click", 0);
+        missingWeight = intProperty(p, "mix.missing", 0);
+        adminWeight = intProperty(p, "mix.admin", 5);
+        adminPlatforms = p.getProperty("admin.platforms", "android");
+
+        adminName = p.getProperty("admin.name");
+        adminPassword = p.getProperty("admin.password");
+
+        if (requestsPerSecond < 1 || threads < 1 || campaigns < 1) {
+            throw new IllegalArgumentException("requestsPerSecond, threads and campaigns should be positive");
+        }
+        if (redirectWeight + clickWeight + missingWeight + adminWeight < 1) {
+            throw new IllegalArgumentException("at least one mix.* weight should be positive");
+        }
+        // admin session is needed for listing and creating campaigns
+        if (adminName == null || adminPassword == null) {
+            throw new IllegalArgumentException("admin.name and admin.password should be provided");
+        }
+    }
+
+    // load reads scenario from properties file, overrides (key=value) replace
+    // values from the file (ex. requestsPerSecond=1000)
+    public static Scenario load(String path, String... overrides) throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(path)) {
+            p.load(in);
+        }
+        for (String override : overrides) {
+            String[] kv = override.split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("override should be key=value: " + override);
+            }
+            p.setProperty(kv[0].trim(), kv[1].trim());
+        }
+        return new Scenario(p);
+    }
+
+    private static int intProperty(Properties p, String key, int defaultValue) {
+        String value = p.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    private static String stripSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+}
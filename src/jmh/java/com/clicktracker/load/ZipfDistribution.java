@@ -0,0 +1,32 @@
+package com.clicktracker.load;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// ZipfDistribution picks ranks 0..n-1, rank k is picked with probability
+// proportional to 1 / (k + 1)^exponent. Cumulative probabilities are computed
+// once, sampling is binary search over them.
+public class ZipfDistribution {
+    private final double[] cdf;
+
+    public ZipfDistribution(int n, double exponent) {
+        cdf = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1.0 / Math.pow(k + 1, exponent);
+            cdf[k] = sum;
+        }
+        for (int k = 0; k < n; k++) {
+            cdf[k] /= sum;
+        }
+    }
+
+    public int sample(Random random) {
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        // binarySearch returns -(insertion point) - 1 when value is not found
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return Math.min(i, cdf.length - 1);
+    }
+}
@@ -11,19 +11,22 @@ import com.googlecode.objectify.ObjectifyService;
 import java.io.PrintWriter;
 import java.io.IOException;
 import com.clicktracker.model.Admin;
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import org.mindrot.jbcrypt.BCrypt;
+import com.google.gson.stream.JsonWriter;
 
 // AdminAuthServlet is taking care of authenticating admin client
 // which happens via post request on:
 //
 // /api/v1/admin/auth/{login/logout}
 //
+// In token auth mode login returns signed token instead of creating session
+// and logout revokes the token sent in Authorization header (see AdminTokens).
+//
 // NOTE: login/logout is handled directly inside method, since there is not
 // that much code for handling that. In case of longer functions we could
 // separate that in separate functions / classes.
 public class AdminAuthServlet extends HttpServlet {
+    // missing in servlet api 2.5
+    private static final int SC_TOO_MANY_REQUESTS = 429;
 
     @Override
     public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -34,11 +37,29 @@ public class AdminAuthServlet extends HttpServlet {
         // handling login
         if (url.equals("login")) {
             Credentials credentials = credentialsCheck(req, resp);
+            if (credentials.throttled) {
+                handleTooManyRequests(resp);
+                return;
+            }
             if (!credentials.ok) {
                 handleBadRequest(resp);
                 return;
             }
 
+            // token mode: signed token instead of session (see AdminTokens)
+            if (AdminTokens.enabled()) {
+                AdminTokens.Token token = AdminTokens.issue(credentials.adminId);
+                resp.setStatus(HttpServletResponse.SC_OK);
+                JsonWriter writer = new JsonWriter(out);
+                writer.beginObject();
+                writer.name("message").value("Successfully logged in");
+                writer.name("token").value(token.value);
+                writer.name("expiresAt").value(token.expiresAt.getTime());
+                writer.endObject();
+                writer.flush();
+                return;
+            }
+
             HttpSession session = req.getSession(true);
             Object adminID = session.getAttribute("adminID");
             if (adminID == null) { // adminID does not exist
@@ -48,15 +69,23 @@ public class AdminAuthServlet extends HttpServlet {
 
             // return success msg to client
             resp.setStatus(HttpServletResponse.SC_OK);
-            JsonObject json = new JsonObject();
-            json.add("message", new Gson().toJsonTree("Successfully logged in"));
-            out.print(json);
-            out.flush();
+            JsonOutput.writeMessage(out, "Successfully logged in");
             return;
 
             // handling logout
         } else if (url.equals("logout")) {
             resp.setContentType("application/json");
+            // token mode: token is revoked on all instances
+            if (AdminTokens.enabled()) {
+                if (!AdminTokens.revoke(AdminTokens.fromHeader(req.getHeader("Authorization")))) {
+                    handleBadRequest(resp);
+                    return;
+                }
+                resp.setStatus(HttpServletResponse.SC_OK);
+                JsonOutput.writeMessage(out, "Successfully logged out");
+                return;
+            }
+
             HttpSession session = req.getSession(false);
             if (session == null) {
                 handleBadRequest(resp);
@@ -65,10 +94,7 @@ public class AdminAuthServlet extends HttpServlet {
 
             session.invalidate();
             resp.setStatus(HttpServletResponse.SC_OK);
-            JsonObject json = new JsonObject();
-            json.add("message", new Gson().toJsonTree("Successfully logged out"));
-            out.print(json);
-            out.flush();
+            JsonOutput.writeMessage(out, "Successfully logged out");
             return;
         }
     }
@@ -77,6 +103,9 @@ public class AdminAuthServlet extends HttpServlet {
     public class Credentials {
         public Long adminId;
         public Boolean ok;
+        // attempt was rejected before credentials were checked (see
+        // LoginGuard), client should try again later
+        public boolean throttled;
 
         public Credentials(Long adminId, Boolean ok) {
             this.adminId = adminId;
@@ -97,6 +126,15 @@ public class AdminAuthServlet extends HttpServlet {
             return credentialsFail;
         }
 
+        // too many attempts from this client or for this admin, rejected
+        // before any datastore or BCrypt work. X-Forwarded-For is not used,
+        // client could send any address there.
+        if (!LoginGuard.allow(req.getRemoteAddr(), name)) {
+            Credentials throttled = new Credentials(0L, false);
+            throttled.throttled = true;
+            return throttled;
+        }
+
         // name and password are present, check in db for match
         Admin admin = ObjectifyService.ofy().load().type(Admin.class).filter("name", name).first().now();
         if (admin == null) { // admin does not exist
@@ -109,7 +147,15 @@ public class AdminAuthServlet extends HttpServlet {
             return credentialsFail;
         }
 
-        Boolean passHash = BCrypt.checkpw(pass, admin.password);
+        // BCrypt runs on login executor, not on the request thread
+        Boolean passHash;
+        try {
+            passHash = LoginGuard.checkPassword(pass, admin.password);
+        } catch (LoginGuard.Busy ex) {
+            Credentials busy = new Credentials(0L, false);
+            busy.throttled = true;
+            return busy;
+        }
         if (!passHash) { // passwords do not match
             return credentialsFail;
         }
@@ -118,6 +164,15 @@ public class AdminAuthServlet extends HttpServlet {
         return new Credentials(admin.id, true);
     }
 
+    // handleTooManyRequests tells the client to retry the login later
+    private void handleTooManyRequests(HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json");
+        resp.setStatus(SC_TOO_MANY_REQUESTS);
+        resp.setHeader("Retry-After", "60");
+
+        JsonOutput.writeMessage(resp.getWriter(), "Too many login attempts, try again later");
+    }
+
     // handleBadRequest is helper function that returns bad request in json object
     // I am specifically returning generic error messages, so the potential attacker
     // do not know which admin username is active
@@ -125,11 +180,6 @@ public class AdminAuthServlet extends HttpServlet {
         resp.setContentType("application/json");
         resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 
-        PrintWriter out = resp.getWriter();
-        Gson gson = new Gson();
-        JsonObject json = new JsonObject();
-        json.add("message", gson.toJsonTree("Bad request"));
-        out.print(json);
-        out.flush();
+        JsonOutput.writeMessage(resp.getWriter(), "Bad request");
     }
 }
\ No newline at end of file
@@ -6,22 +6,43 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
 
 // custom imports
 import java.io.PrintWriter;
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+import java.text.SimpleDateFormat;
 
 import com.clicktracker.model.Campaign;
 import com.clicktracker.model.Admin;
 import com.clicktracker.model.Platform;
-import com.clicktracker.model.Counter;
+import com.clicktracker.model.MigrationState;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
+import com.google.common.io.BaseEncoding;
+import com.google.common.cache.CacheStats;
 
 // AdminServlet handles admin pages => adding, deleting, updating and getting
 // info about campaigns.
@@ -30,19 +51,42 @@ import com.google.gson.JsonElement;
 //
 //      /api/v1/admin/campaign/all?active=true&platforms=android
 //
+// Campaign statistics: /api/v1/admin/campaign/{campaignID}/uniques?from=&to=
+//                      /api/v1/admin/campaign/{campaignID}/stats?from=&to=&granularity=
+//
+// Instance statistics: /api/v1/admin/campaign/{cache/queue/metrics/startup}
+//
 // Actions are executed depending on the type of request:
 // GET: get additional info about campaign/campaigns
 // POST: create new campaign
 // PUT: update existing campaign
+//      (both accept platformRedirects={"iphone": url, "android": url}, see
+//      parsePlatformRedirects)
 // DELETE: delete campaign
 //
 public class AdminServlet extends HttpServlet {
+    // upper limit for number of counter shards per campaign, reading the
+    // counter loads all shards
+    private static final int MAX_COUNTER_SHARDS = 1000;
+
+    // page size of campaign and platform listings
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    // clicks per export query and time budget of the export request (GAE
+    // request deadline is 60s), see exportClicks
+    private static final int EXPORT_CHUNK_SIZE = Integer.getInteger("clicktracker.clickExport.chunkSize", 1000);
+    private static final long EXPORT_SECONDS = Long.getLong("clicktracker.clickExport.maxSeconds", 40L);
+    // kinds of listing cursors (see encodeCursor)
+    private static final char QUERY_CURSOR = 'q';
+    private static final char ID_CURSOR = 'i';
+
+    private static final String PLATFORM_REDIRECTS_ERROR = "platformRedirects should be json object of existing "
+            + "platform => url, ex. {\"iphone\": \"https://itunes.apple.com/app/id123\"}";
 
     // Get request on admin pages returns informations about that campaign
     @Override
     public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         resp.setContentType("application/json");
-        PrintWriter out = resp.getWriter();
 
         // check if admin is logged in
         Boolean ok = checkCredentials(req);
@@ -59,6 +103,31 @@ public class AdminServlet extends HttpServlet {
         } else if (url.equals("platforms")) { // display all platforms
             displayAllPlatforms(req, resp);
             return;
+        } else if (url.equals("cache")) { // display campaign cache statistics
+            displayCacheStats(req, resp);
+            return;
+        } else if (url.equals("queue")) { // display click ingestion statistics
+            displayQueueStats(req, resp);
+            return;
+        } else if (url.equals("metrics")) { // display latency metrics
+            displayMetrics(req, resp);
+            return;
+        } else if (url.equals("startup")) { // display startup timings
+            displayStartup(req, resp);
+            return;
+        }
+
+        // campaign statistics: /api/v1/admin/campaign/{campaignID}/{uniques/stats/clicks}
+        String[] parts = Utilities.getURLParts(req);
+        if (parts.length == 2 && parts[1].equals("uniques")) {
+            displayUniques(req, resp, Utilities.stringToLong(parts[0]));
+            return;
+        } else if (parts.length == 2 && parts[1].equals("stats")) {
+            displayStats(req, resp, Utilities.stringToLong(parts[0]));
+            return;
+        } else if (parts.length == 2 && parts[1].equals("clicks")) {
+            exportClicks(req, resp, Utilities.stringToLong(parts[0]));
+            return;
         }
 
         // fetch data about campaign with id parsed from url
@@ -79,63 +148,241 @@ public class AdminServlet extends HttpServlet {
             return;
         }
 
-        Counter counter = ObjectifyService.ofy().load().type(Counter.class).filter("campaignID", id).first().now();
-        Long clicks = 0L;
-        if (counter != null) {
-            clicks = counter.numOfClicks;
+        // all counters of the campaign are loaded at once: clicks,
+        // repeated clicks of the same visitors (see ClickDeduplicator) and
+        // clicks per platform recognized from user-agent (see PlatformClassifier)
+        List<Platform> platforms = PlatformRegistry.all();
+        List<String> counters = new ArrayList<String>();
+        counters.add(ShardedCounter.campaignCounter(id));
+        counters.add(ShardedCounter.duplicatesCounter(id));
+        for (Platform p : platforms) {
+            counters.add(ShardedCounter.platformCounter(id, p.id));
+        }
+        counters.add(ShardedCounter.platformCounter(id, null));
+        Map<String, Long> counts = ShardedCounter.getCounts(counters);
+
+        // legacy Counter row (if it was not migrated yet) holds clicks
+        // counted before sharded counters
+        Long clicks = counts.get(ShardedCounter.campaignCounter(id)) + CounterMigration.legacyClicks(id);
+        Long duplicateClicks = counts.get(ShardedCounter.duplicatesCounter(id));
+        Map<String, Long> platformClicks = new LinkedHashMap<String, Long>();
+        for (Platform p : platforms) {
+            platformClicks.put(p.name, counts.get(ShardedCounter.platformCounter(id, p.id)));
         }
+        platformClicks.put("other", counts.get(ShardedCounter.platformCounter(id, null)));
 
         // campaign with such id exist, display informations about campaign to admin
         resp.setStatus(HttpServletResponse.SC_OK);
-        Gson gson = new Gson();
-        JsonElement jsonEl = gson.toJsonTree(campaign);
-        jsonEl.getAsJsonObject().addProperty("clicks", clicks);
-        out.print(gson.toJson(jsonEl));
-        out.flush();
+        JsonWriter writer = JsonOutput.newWriter(resp.getWriter());
+        writer.beginObject();
+        JsonOutput.writeCampaignFields(writer, campaign);
+        writer.name("clicks").value(clicks);
+        writer.name("duplicateClicks").value(duplicateClicks);
+        writer.name("platformClicks");
+        writer.beginObject();
+        for (Map.Entry<String, Long> p : platformClicks.entrySet()) {
+            writer.name(String.valueOf(p.getKey())).value(p.getValue());
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.flush();
     }
 
     // displayAllCampaigns is used to display all campaigns for admin users
-    //url: /api/v1/admin/campaigns/all
+    //url: /api/v1/admin/campaigns/all?active=true&platforms=android&limit=100&cursor=...
+    //
+    // Campaigns are displayed in pages of at most limit campaigns (ordered by
+    // id), response contains cursor of the next page unless it's the last
+    // page. Campaigns are written to the response one by one while they are
+    // loaded, so memory used by the request depends on page size only.
+    //
+    // Without platforms parameter campaigns are paged with datastore query
+    // cursors, with platforms parameter ids of matching campaigns are found
+    // in the index (see CampaignIndex) and only one page of them is loaded.
+    // While the index is being rebuilt campaigns are scanned instead.
     //
     // This could be handled in separate file
     public void displayAllCampaigns(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-        PrintWriter out = resp.getWriter();
-        List<Campaign> campaigns = null;
-
+        // active parameter filters active/non active campaigns, all campaigns
+        // are displayed without it
         String activeParam = req.getParameter("active");
-        if (activeParam == null) {
-            campaigns = ObjectifyService.ofy().load().type(Campaign.class).list();
-        } else {
-            Boolean active = Boolean.parseBoolean(activeParam);
-            // active parameter exist, filter our campaigns
-            if (active != null) {
-                campaigns = ObjectifyService.ofy().load().type(Campaign.class).filter("active", active).list();
+        Boolean active = activeParam == null ? null : Boolean.parseBoolean(activeParam);
+
+        List<Long> platforms = null;
+        String platformsString = req.getParameter("platforms");
+        if (platformsString != null) {
+            platforms = Utilities.getPlatforms(platformsString);
+            // such platforms do not exist
+            if (platforms == null) {
+                handleNotFound(resp, "Campaigns with such conditions could not be found");
+                return;
             }
         }
 
-        // if campaigns list does not exist display blank
-        if (campaigns == null) {
-            handleNotFound(resp, "Campaigns could not be found");
+        Integer limit = parseLimit(req);
+        if (limit == null) {
+            handleBadRequest(resp, "limit should be number between 1 and " + MAX_PAGE_SIZE);
             return;
         }
-
-        String platformsString = req.getParameter("platforms");
-        List<Campaign> allCampaigns = filterCampaigns(campaigns, platformsString);
-        // such campaigns do not exist
-        if (allCampaigns == null) {
-            handleNotFound(resp, "Campaigns with such conditions could not be found");
+        String cursor = req.getParameter("cursor");
+        String position = cursor == null ? null : decodeCursor(cursor, platforms == null ? QUERY_CURSOR : ID_CURSOR);
+        if (cursor != null && position == null) {
+            handleBadRequest(resp, "cursor is not valid");
             return;
         }
 
         // push json array to client
         resp.setStatus(HttpServletResponse.SC_OK);
-        JsonArray camp = new Gson().toJsonTree(allCampaigns).getAsJsonArray();
-        JsonObject wrapper = new JsonObject();
-        wrapper.add("campaigns:", camp);
-        String json = new Gson().toJson(wrapper);
-        out.print(json);
-        out.flush();
-        return;
+        JsonWriter writer = JsonOutput.newWriter(resp.getWriter());
+        writer.beginObject();
+        writer.name("campaigns:");
+        writer.beginArray();
+        String next;
+        if (platforms == null) {
+            Query<Campaign> query = ObjectifyService.ofy().load().type(Campaign.class);
+            if (active != null) {
+                query = query.filter("active", active);
+            }
+            next = writeQueryPage(writer, query, JsonOutput.CAMPAIGN, limit, position);
+        } else {
+            long[] ids = CampaignIndex.find(platforms, active);
+            next = ids == null ? writeScanPage(writer, platforms, active, limit, position)
+                    : writeIndexPage(writer, ids, limit, position);
+        }
+        writer.endArray();
+        if (next != null) {
+            writer.name("cursor").value(next);
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    // writeQueryPage writes page of limit entities returned by the query,
+    // starting at websafe datastore cursor (null => first page)
+    //
+    // returns: cursor of the next page, null if this is the last page
+    private <T> String writeQueryPage(JsonWriter writer, Query<T> query, JsonOutput.EntityWriter<T> entityWriter,
+            int limit, String start) throws IOException {
+        // one more entity is fetched to find out if there is next page
+        query = query.limit(limit + 1);
+        if (start != null) {
+            query = query.startAt(Cursor.fromWebSafeString(start));
+        }
+        QueryResultIterator<T> iterator = query.iterator();
+        for (int i = 0; i < limit && iterator.hasNext(); i++) {
+            entityWriter.write(writer, iterator.next());
+        }
+        Cursor cursor = iterator.getCursor();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        return encodeCursor(QUERY_CURSOR, cursor.toWebSafeString());
+    }
+
+    // writeIndexPage loads and writes page of limit campaigns out of sorted
+    // campaign ids, starting after campaign with id start (null => first page)
+    //
+    // returns: cursor of the next page, null if this is the last page
+    private String writeIndexPage(JsonWriter writer, long[] ids, int limit, String start) throws IOException {
+        int from = 0;
+        if (start != null) {
+            // position of the first id bigger than start
+            int i = Arrays.binarySearch(ids, Long.parseLong(start));
+            from = i >= 0 ? i + 1 : -i - 1;
+        }
+        int to = Math.min(ids.length, from + limit);
+
+        List<Long> page = new ArrayList<Long>(to - from);
+        for (int i = from; i < to; i++) {
+            page.add(ids[i]);
+        }
+        // campaigns deleted meanwhile are skipped
+        for (Campaign c : ObjectifyService.ofy().load().type(Campaign.class).ids(page).values()) {
+            JsonOutput.CAMPAIGN.write(writer, c);
+        }
+        if (to == ids.length) {
+            return null;
+        }
+        return encodeCursor(ID_CURSOR, String.valueOf(ids[to - 1]));
+    }
+
+    // writeScanPage writes page of limit campaigns on all chosen platforms,
+    // campaigns are scanned in id order starting after campaign with id start
+    // (null => first page) and filtered in memory. Used only while campaign
+    // index is missing, cursor is the same as the one of writeIndexPage, so
+    // paging continues with the index once it's rebuilt.
+    //
+    // returns: cursor of the next page, null if this is the last page
+    private String writeScanPage(JsonWriter writer, List<Long> platforms, Boolean active, int limit, String start)
+            throws IOException {
+        Query<Campaign> query = ObjectifyService.ofy().load().type(Campaign.class).orderKey(false);
+        if (active != null) {
+            query = query.filter("active", active);
+        }
+        if (start != null) {
+            query = query.filterKey(">", Key.create(Campaign.class, Long.parseLong(start)));
+        }
+        Long last = null;
+        int written = 0;
+        for (Campaign c : query.chunk(MAX_PAGE_SIZE)) {
+            if (c.platforms == null || !c.platforms.containsAll(platforms)) {
+                continue;
+            }
+            // one more campaign matches, there is next page
+            if (written == limit) {
+                return encodeCursor(ID_CURSOR, String.valueOf(last));
+            }
+            JsonOutput.CAMPAIGN.write(writer, c);
+            last = c.id;
+            written++;
+        }
+        return null;
+    }
+
+    // parseLimit returns page size from limit parameter (DEFAULT_PAGE_SIZE if
+    // the parameter is missing)
+    // returns: null if limit is not valid
+    private Integer parseLimit(HttpServletRequest req) throws IOException {
+        String limitParam = req.getParameter("limit");
+        if (limitParam == null) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        Long limit = Utilities.stringToLong(limitParam);
+        if (limit == null || limit < 1 || limit > MAX_PAGE_SIZE) {
+            return null;
+        }
+        return limit.intValue();
+    }
+
+    // encodeCursor encodes position in listing as opaque cursor, kind tells
+    // if the position is datastore cursor or campaign id
+    private static String encodeCursor(char kind, String position) {
+        return BaseEncoding.base64Url().omitPadding().encode((kind + position).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // decodeCursor decodes cursor created by encodeCursor
+    // returns: position, null if cursor is not valid or it's not of expected kind
+    private static String decodeCursor(String cursor, char kind) {
+        String decoded;
+        try {
+            decoded = new String(BaseEncoding.base64Url().omitPadding().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        if (decoded.length() < 2 || decoded.charAt(0) != kind) {
+            return null;
+        }
+        String position = decoded.substring(1);
+        try {
+            if (kind == ID_CURSOR) {
+                Long.parseLong(position);
+            } else {
+                Cursor.fromWebSafeString(position);
+            }
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        return position;
     }
 
     // filterCampaigns is helper function for filtering list of campaigns that contains
@@ -145,7 +392,7 @@ public class AdminServlet extends HttpServlet {
     // we cannot filter that via Google datastore, since platforms field in our
     // case is a list. We cannot compare list<Long> to just Long value, that's
     // why we are filtering after the intial load of all campaigns.
-    // NOTE: this might be inefficient O(n*m)?;
+    // NOTE: this is O(n*m), campaign listing uses CampaignIndex instead
     public List<Campaign> filterCampaigns(List<Campaign> campaigns, String platformsString) throws IOException {
         // check if campaigns exist
         if (campaigns == null) {
@@ -183,25 +430,314 @@ public class AdminServlet extends HttpServlet {
         return allCampaigns;
     }
 
-    // displayAllPlatforms is displaying data about all platforms
+    // displayUniques is displaying estimated number of unique visitors of the
+    // campaign in chosen date range (UTC days, both inclusive). Unique
+    // visitors are merged from daily sketches (see UniqueVisitorCounter),
+    // clicks are not read.
+    //url: /api/v1/admin/campaign/{campaignID}/uniques?from=2017-10-01&to=2017-10-31
+    //
+    // make sure to authenticate admin in outer function
+    public void displayUniques(HttpServletRequest req, HttpServletResponse resp, Long campaignID)
+            throws IOException {
+        if (campaignID == null) {
+            handleBadRequest(resp, "campaign id could not be parsed from url");
+            return;
+        }
+        Date from = Utilities.parseDay(req.getParameter("from"));
+        Date to = Utilities.parseDay(req.getParameter("to"));
+        if (from == null || to == null) {
+            handleBadRequest(resp, "from and to parameters should be days in yyyy-MM-dd format");
+            return;
+        }
+        long days = (to.getTime() - from.getTime()) / (24 * 60 * 60 * 1000) + 1;
+        if (days < 1 || days > UniqueVisitorCounter.MAX_DAYS) {
+            handleBadRequest(resp,
+                    "from should not be after to and range should be at most " + UniqueVisitorCounter.MAX_DAYS
+                            + " days");
+            return;
+        }
+
+        Campaign campaign = ObjectifyService.ofy().load().type(Campaign.class).id(campaignID).now();
+        if (campaign == null) {
+            handleNotFound(resp, "This campaign does not exist");
+            return;
+        }
+
+        long uniques = UniqueVisitorCounter.count(campaignID, from, to);
+        resp.setStatus(HttpServletResponse.SC_OK);
+        JsonWriter writer = JsonOutput.newPlainWriter(resp.getWriter());
+        writer.beginObject();
+        writer.name("id").value(campaignID);
+        writer.name("from").value(req.getParameter("from"));
+        writer.name("to").value(req.getParameter("to"));
+        writer.name("uniques").value(uniques);
+        writer.endObject();
+        writer.flush();
+    }
+
+    // displayStats is displaying number of clicks of the campaign per minute,
+    // hour or day in chosen date range (UTC days, both inclusive). Clicks are
+    // read from rollups (see ClickRollups), one row per day of hours, hour of
+    // minutes or 30 days.
+    //url: /api/v1/admin/campaign/{campaignID}/stats?from=2017-10-01&to=2017-10-31&granularity=day
+    //
+    // make sure to authenticate admin in outer function
+    public void displayStats(HttpServletRequest req, HttpServletResponse resp, Long campaignID)
+            throws IOException {
+        if (campaignID == null) {
+            handleBadRequest(resp, "campaign id could not be parsed from url");
+            return;
+        }
+        Date from = Utilities.parseDay(req.getParameter("from"));
+        Date to = Utilities.parseDay(req.getParameter("to"));
+        if (from == null || to == null) {
+            handleBadRequest(resp, "from and to parameters should be days in yyyy-MM-dd format");
+            return;
+        }
+        if (from.after(to)) {
+            handleBadRequest(resp, "from should not be after to");
+            return;
+        }
+        String granularityParam = req.getParameter("granularity");
+        ClickRollups.Granularity granularity = granularityParam == null ? ClickRollups.Granularity.DAY
+                : ClickRollups.Granularity.parse(granularityParam);
+        if (granularity == null) {
+            handleBadRequest(resp, "granularity should be minute, hour or day");
+            return;
+        }
+        // to is inclusive, range ends at the end of that day
+        Date end = new Date(to.getTime() + ClickRollups.Granularity.DAY.millis - 1);
+        long buckets = (end.getTime() - from.getTime()) / granularity.millis + 1;
+        if (buckets > ClickRollups.MAX_BUCKETS) {
+            handleBadRequest(resp, "range should have at most " + ClickRollups.MAX_BUCKETS + " buckets, use "
+                    + "shorter range or larger granularity");
+            return;
+        }
+
+        Campaign campaign = ObjectifyService.ofy().load().type(Campaign.class).id(campaignID).now();
+        if (campaign == null) {
+            handleNotFound(resp, "This campaign does not exist");
+            return;
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        List<ClickRollups.Bucket> stats = ClickRollups.stats(campaignID, from, end, granularity);
+        long total = 0;
+        for (ClickRollups.Bucket b : stats) {
+            total += b.clicks;
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        JsonWriter writer = JsonOutput.newPlainWriter(resp.getWriter());
+        writer.beginObject();
+        writer.name("id").value(campaignID);
+        writer.name("from").value(req.getParameter("from"));
+        writer.name("to").value(req.getParameter("to"));
+        writer.name("granularity").value(granularity.name().toLowerCase());
+        writer.name("clicks").value(total);
+        writer.name("buckets");
+        writer.beginArray();
+        for (ClickRollups.Bucket b : stats) {
+            writer.beginObject();
+            writer.name("start").value(format.format(b.start));
+            writer.name("clicks").value(b.clicks);
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+    }
+
+    // exportClicks streams raw clicks of the campaign in chosen date range
+    // (UTC days, both inclusive) as NDJSON or CSV, see ClickExport. Response
+    // is gzipped when client accepts it. Export ends with done marker, when
+    // time budget of the request is used it ends with checkpoint instead and
+    // the client should continue with ?cursor= of the last checkpoint (the
+    // same applies to dropped connections).
+    //url: /api/v1/admin/campaign/{campaignID}/clicks?from=2017-10-01&to=2017-10-31&format=csv&cursor=...
+    //
+    // make sure to authenticate admin in outer function
+    public void exportClicks(HttpServletRequest req, HttpServletResponse resp, Long campaignID)
+            throws IOException {
+        if (campaignID == null) {
+            handleBadRequest(resp, "campaign id could not be parsed from url");
+            return;
+        }
+        Date from = Utilities.parseDay(req.getParameter("from"));
+        Date to = Utilities.parseDay(req.getParameter("to"));
+        if (from == null || to == null) {
+            handleBadRequest(resp, "from and to parameters should be days in yyyy-MM-dd format");
+            return;
+        }
+        if (from.after(to)) {
+            handleBadRequest(resp, "from should not be after to");
+            return;
+        }
+        String formatParam = req.getParameter("format");
+        ClickExport.Format format;
+        if (formatParam == null || formatParam.equalsIgnoreCase("ndjson")) {
+            format = ClickExport.Format.NDJSON;
+        } else if (formatParam.equalsIgnoreCase("csv")) {
+            format = ClickExport.Format.CSV;
+        } else {
+            handleBadRequest(resp, "format should be ndjson or csv");
+            return;
+        }
+        String cursor = req.getParameter("cursor");
+        if (cursor != null && !ClickExport.validCursor(cursor)) {
+            handleBadRequest(resp, "cursor is not valid");
+            return;
+        }
+
+        Campaign campaign = ObjectifyService.ofy().load().type(Campaign.class).id(campaignID).now();
+        if (campaign == null) {
+            handleNotFound(resp, "This campaign does not exist");
+            return;
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        String extension = format == ClickExport.Format.CSV ? "csv" : "ndjson";
+        resp.setContentType(format == ClickExport.Format.CSV ? "text/csv; charset=utf-8"
+                : "application/x-ndjson; charset=utf-8");
+        resp.setHeader("Content-Disposition", "attachment; filename=clicks-" + campaignID + "." + extension);
+        OutputStream stream = resp.getOutputStream();
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            resp.setHeader("Content-Encoding", "gzip");
+            // sync flush, every chunk reaches the client when it's flushed
+            stream = new GZIPOutputStream(stream, 64 * 1024, true);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 64 * 1024);
+        // to is inclusive, range ends at the end of that day
+        Date end = new Date(to.getTime() + 24 * 60 * 60 * 1000);
+        ClickExport.export(out, format, campaignID, from, end, cursor, EXPORT_CHUNK_SIZE,
+                System.currentTimeMillis() + EXPORT_SECONDS * 1000);
+        out.close();
+    }
+
+    // displayAllPlatforms is displaying data about all platforms, platforms
+    // are paged the same way as campaigns (see displayAllCampaigns)
+    //url: /api/v1/admin/campaign/platforms?limit=100&cursor=...
+    //
     // make sure to authenticate admin in outer function
     public void displayAllPlatforms(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         resp.setContentType("application/json");
-        PrintWriter out = resp.getWriter();
-        List<Platform> platforms = ObjectifyService.ofy().load().type(Platform.class).list();
-        if (platforms == null) {
-            resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
-            out.print(new Gson().toJson(""));
-            out.flush();
+        Integer limit = parseLimit(req);
+        if (limit == null) {
+            handleBadRequest(resp, "limit should be number between 1 and " + MAX_PAGE_SIZE);
             return;
         }
+        String cursor = req.getParameter("cursor");
+        String position = cursor == null ? null : decodeCursor(cursor, QUERY_CURSOR);
+        if (cursor != null && position == null) {
+            handleBadRequest(resp, "cursor is not valid");
+            return;
+        }
+
         resp.setStatus(HttpServletResponse.SC_OK);
-        JsonArray platf = new Gson().toJsonTree(platforms).getAsJsonArray();
-        JsonObject wrapper = new JsonObject();
-        wrapper.add("platforms:", platf);
-        out.print(wrapper);
+        JsonWriter writer = JsonOutput.newWriter(resp.getWriter());
+        writer.beginObject();
+        writer.name("platforms:");
+        writer.beginArray();
+        String next = writeQueryPage(writer, ObjectifyService.ofy().load().type(Platform.class),
+                JsonOutput.PLATFORM, limit, position);
+        writer.endArray();
+        if (next != null) {
+            writer.name("cursor").value(next);
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    // displayCacheStats is displaying hit/miss counters of the in-process
+    // campaign cache and user-agent cache (see CampaignCache,
+    // PlatformClassifier) of the instance that served the request.
+    // make sure to authenticate admin in outer function
+    public void displayCacheStats(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json");
+        CacheStats stats = CampaignCache.stats();
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        JsonWriter writer = JsonOutput.newPlainWriter(resp.getWriter());
+        writer.beginObject();
+        writer.name("size").value(CampaignCache.size());
+        writer.name("hits").value(stats.hitCount());
+        writer.name("misses").value(stats.missCount());
+        writer.name("hitRate").value(stats.hitRate());
+        writer.name("evictions").value(stats.evictionCount());
+        writer.name("negativeHits").value(CampaignCache.negativeHits());
+        writer.name("bloomRejects").value(CampaignCache.bloomRejects());
+
+        CacheStats userAgentStats = PlatformClassifier.stats();
+        writer.name("userAgents");
+        writer.beginObject();
+        writer.name("hits").value(userAgentStats.hitCount());
+        writer.name("misses").value(userAgentStats.missCount());
+        writer.name("hitRate").value(userAgentStats.hitRate());
+        writer.name("evictions").value(userAgentStats.evictionCount());
+        writer.endObject();
+        writer.endObject();
+        writer.flush();
+    }
+
+    // displayQueueStats is displaying counters of the click ingestion queue,
+    // duplicate suppression and counter aggregation (see ClickQueue,
+    // ClickDeduplicator, CounterAggregator) of the instance that served the request.
+    // make sure to authenticate admin in outer function
+    public void displayQueueStats(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json");
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        JsonWriter writer = JsonOutput.newPlainWriter(resp.getWriter());
+        writer.beginObject();
+        writer.name("queued").value(ClickQueue.size());
+        writer.name("accepted").value(ClickQueue.accepted());
+        writer.name("flushed").value(ClickQueue.flushed());
+        writer.name("spilled").value(ClickQueue.spilled());
+        writer.name("dropped").value(ClickQueue.dropped());
+        writer.name("failed").value(ClickQueue.failed());
+        writer.name("handedOff").value(ClickQueue.handedOff());
+        writer.name("duplicates").value(ClickDeduplicator.suppressed());
+        writer.name("pendingCounterClicks").value(CounterAggregator.pendingClicks());
+        writer.name("counterFlushes").value(CounterAggregator.flushes());
+        writer.name("counterWrites").value(CounterAggregator.writes());
+        writer.name("counterFlushLagMillis").value(CounterAggregator.flushLagMillis());
+        writer.endObject();
+        writer.flush();
+    }
+
+    // displayMetrics is displaying request and API call latency histograms
+    // (see Metrics) and rejected login counters of the instance that served
+    // the request in Prometheus text format
+    // make sure to authenticate admin in outer function
+    public void displayMetrics(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/plain; version=0.0.4");
+        PrintWriter out = resp.getWriter();
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        Metrics.writePrometheus(out);
+        // rejected admin logins (see LoginGuard)
+        out.print("# HELP clicktracker_login_throttled_total Login attempts rejected by rate limits.\n");
+        out.print("# TYPE clicktracker_login_throttled_total counter\n");
+        out.print("clicktracker_login_throttled_total " + LoginGuard.throttled() + "\n");
+        out.print("# HELP clicktracker_login_rejected_total Password checks rejected by full login executor.\n");
+        out.print("# TYPE clicktracker_login_rejected_total counter\n");
+        out.print("clicktracker_login_rejected_total " + LoginGuard.rejected() + "\n");
+        out.flush();
+    }
+
+    // displayStartup is displaying startup stage timings in millis and
+    // latency of the first request (see Bootstrap) of the instance that
+    // served the request.
+    // make sure to authenticate admin in outer function
+    public void displayStartup(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json");
+        PrintWriter out = resp.getWriter();
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        WarmupServlet.writeTimings(out, Bootstrap.timings());
         out.flush();
-        return;
     }
 
     //
@@ -210,7 +746,6 @@ public class AdminServlet extends HttpServlet {
     @Override
     public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         resp.setContentType("application/json");
-        PrintWriter out = resp.getWriter();
 
         Boolean ok = checkCredentials(req);
         if (!ok) {
@@ -218,6 +753,18 @@ public class AdminServlet extends HttpServlet {
             return;
         }
 
+        String url = Utilities.getURLEnding(req);
+        if (url.equals("migrate-counters")) { // move legacy counters into sharded counters
+            migrateCounters(req, resp);
+            return;
+        } else if (url.equals("bulk")) { // create/update many campaigns at once
+            bulkCampaigns(req, resp);
+            return;
+        } else if (url.equals("archive-clicks")) { // move old raw clicks into archive
+            archiveClicks(req, resp);
+            return;
+        }
+
         // parse parameters from POST request
         // if parameters are missing, return bad request (json)
         String campaignName = req.getParameter("name");
@@ -262,20 +809,140 @@ public class AdminServlet extends HttpServlet {
 
         List<Long> platforms = Utilities.getPlatforms(plat);
 
+        // optional redirect targets per platform, redirectURL is the fallback
+        Map<String, String> platformRedirects = null;
+        String paramRedirects = req.getParameter("platformRedirects");
+        if (paramRedirects != null) {
+            platformRedirects = parsePlatformRedirects(paramRedirects);
+            if (platformRedirects == null) {
+                handleBadRequest(resp, PLATFORM_REDIRECTS_ERROR);
+                return;
+            }
+            platformRedirects.values().removeAll(Collections.singleton(""));
+        }
+
         Boolean active = Boolean.parseBoolean(paramActive);
         Date createdAt = new Date();
 
-        // if everything is all right save campaign to database
-        Campaign c = new Campaign(campaignName, redirectURL, platforms, active, createdAt);
-        ObjectifyService.ofy().save().entity(c).now();
+        // if everything is all right save campaign to database, campaign index
+        // and version stamp of created campaigns are updated in the same
+        // transaction (see CampaignIndex, CampaignCache.bumpVersion)
+        final Campaign c = new Campaign(campaignName, redirectURL, platforms, active, createdAt);
+        c.platformRedirects = platformRedirects;
+        ObjectifyService.ofy().transact(new VoidWork() {
+            public void vrun() {
+                ObjectifyService.ofy().save().entity(c).now();
+                CampaignIndex.update(Collections.<Campaign> emptyList(), Collections.singletonList(c));
+                CampaignCache.bumpVersion(Collections.singletonList(c.id));
+            }
+        });
         Long cID = c.id;
+        CampaignCache.added(cID);
 
         // return created campaign id
         resp.setStatus(HttpServletResponse.SC_CREATED);
-        JsonObject json = new JsonObject();
-        json.add("id", new Gson().toJsonTree(cID));
-        out.print(json);
-        out.flush();
+        JsonOutput.writeCreated(resp.getWriter(), cID);
+    }
+
+    // migrateCounters runs (or resumes) migration of legacy Counter rows into
+    // sharded counters (see CounterMigration). Migration runs until time budget
+    // of the request is used, admin should repeat the request until done == true
+    //url: /api/v1/admin/campaign/migrate-counters?batchSize=500
+    //
+    // make sure to authenticate admin in outer function
+    public void migrateCounters(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        int batchSize = 500;
+        String batchParam = req.getParameter("batchSize");
+        if (batchParam != null) {
+            Long size = Utilities.stringToLong(batchParam);
+            if (size == null || size < 1 || size > 1000) {
+                handleBadRequest(resp, "batchSize should be number between 1 and 1000");
+                return;
+            }
+            batchSize = size.intValue();
+        }
+
+        // GAE request deadline is 60s, leave enough time for the response
+        MigrationState state = CounterMigration.run(batchSize, 30 * 1000);
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        JsonOutput.writeProgress(resp.getWriter(), "migrated", state);
+    }
+
+    // archiveClicks runs (or resumes) archiving of raw clicks older than
+    // olderThanDays (see ClickArchive). Archiving runs until time budget of
+    // the request is used, admin (or a periodic job) should repeat the request
+    // until done == true. First runs re-save clicks stored before createdAt was
+    // indexed (see ClickIndexBackfill), archived is 0 until they are done.
+    //url: /api/v1/admin/campaign/archive-clicks?olderThanDays=90
+    //
+    // make sure to authenticate admin in outer function
+    public void archiveClicks(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        long days = ClickArchive.AGE_DAYS;
+        String daysParam = req.getParameter("olderThanDays");
+        if (daysParam != null) {
+            Long value = Utilities.stringToLong(daysParam);
+            if (value == null || value < 1 || value > 36500) {
+                handleBadRequest(resp, "olderThanDays should be number between 1 and 36500");
+                return;
+            }
+            days = value;
+        }
+
+        // GAE request deadline is 60s, leave enough time for the response
+        Date cutoff = new Date(System.currentTimeMillis() - days * 24 * 60 * 60 * 1000);
+        MigrationState state = ClickArchive.run(cutoff, 30 * 1000);
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        JsonOutput.writeProgress(resp.getWriter(), "archived", state);
+    }
+
+    // bulkCampaigns creates and updates many campaigns at once (see
+    // CampaignBulk), request body is json array of operations. Response holds
+    // result of every operation, in the same order, ex:
+    //      {"results":[{"index":0,"status":201,"id":123},{"index":1,"status":400,"message":"..."}]}
+    //url: /api/v1/admin/campaign/bulk
+    //
+    // make sure to authenticate admin in outer function
+    public void bulkCampaigns(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        JsonElement body;
+        try {
+            body = new JsonParser().parse(req.getReader());
+        } catch (JsonParseException ex) {
+            body = null;
+        }
+        if (body == null || !body.isJsonArray()) {
+            handleBadRequest(resp, "request body should be json array of operations");
+            return;
+        }
+        JsonArray operations = body.getAsJsonArray();
+        if (operations.size() < 1 || operations.size() > CampaignBulk.MAX_OPERATIONS) {
+            handleBadRequest(resp, "number of operations should be between 1 and " + CampaignBulk.MAX_OPERATIONS);
+            return;
+        }
+
+        List<CampaignBulk.Result> results = CampaignBulk.apply(operations);
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        JsonWriter writer = JsonOutput.newWriter(resp.getWriter());
+        writer.beginObject();
+        writer.name("results");
+        writer.beginArray();
+        for (CampaignBulk.Result r : results) {
+            writer.beginObject();
+            writer.name("index").value(r.index);
+            writer.name("status").value(r.status);
+            if (r.id != null) {
+                writer.name("id").value(r.id);
+            }
+            if (r.message != null) {
+                writer.name("message").value(r.message);
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
     }
 
     // handling campaign delete request
@@ -297,15 +964,22 @@ public class AdminServlet extends HttpServlet {
         }
 
         // check if campaign id actually exist
-        Campaign c = ObjectifyService.ofy().load().type(Campaign.class).id(campaignID).now();
+        final Campaign c = ObjectifyService.ofy().load().type(Campaign.class).id(campaignID).now();
         if (c == null) {
             handleNotFound(resp, "This campaign could not be found");
             return;
         }
 
-        // everything is ok delete campaign id = campaignID
+        // everything is ok delete campaign id = campaignID (and remove it
+        // from campaign index in the same transaction)
+        ObjectifyService.ofy().transact(new VoidWork() {
+            public void vrun() {
+                ObjectifyService.ofy().delete().entity(c).now();
+                CampaignIndex.update(Collections.singletonList(c), Collections.<Campaign> emptyList());
+            }
+        });
         resp.setStatus(HttpServletResponse.SC_OK);
-        ObjectifyService.ofy().delete().entity(c).now();
+        CampaignCache.invalidate(campaignID);
     }
 
     // handling admin campaign updates
@@ -343,12 +1017,69 @@ public class AdminServlet extends HttpServlet {
             campaign.active = Boolean.parseBoolean(active);
         }
 
-        // saving campaign to db
-        ObjectifyService.ofy().save().entity(campaign).now();
+        // platform redirect targets are merged with existing ones, empty url
+        // removes the target
+        String newRedirects = req.getParameter("platformRedirects");
+        if (newRedirects != null) {
+            Map<String, String> redirects = parsePlatformRedirects(newRedirects);
+            if (redirects == null) {
+                handleBadRequest(resp, PLATFORM_REDIRECTS_ERROR);
+                return;
+            }
+            if (campaign.platformRedirects == null) {
+                campaign.platformRedirects = new HashMap<String, String>();
+            }
+            for (Map.Entry<String, String> target : redirects.entrySet()) {
+                if (target.getValue().isEmpty()) {
+                    campaign.platformRedirects.remove(target.getKey());
+                } else {
+                    campaign.platformRedirects.put(target.getKey(), target.getValue());
+                }
+            }
+        }
+
+        // hot campaigns need more counter shards, number of shards could
+        // only grow
+        String counterShards = req.getParameter("counterShards");
+        if (counterShards != null) {
+            Long numShards = Utilities.stringToLong(counterShards);
+            if (numShards == null || numShards < 1 || numShards > MAX_COUNTER_SHARDS) {
+                handleBadRequest(resp, "counterShards should be number between 1 and " + MAX_COUNTER_SHARDS);
+                return;
+            }
+            String counterName = ShardedCounter.campaignCounter(campaignID);
+            if (!ShardedCounter.setShards(counterName, numShards.intValue())) {
+                handleBadRequest(resp, "counterShards could not be lower than current number of shards");
+                return;
+            }
+        }
+
+        // saving campaign to db, stored version is moved in campaign index
+        // (see CampaignIndex) in the same transaction
+        final Campaign updated = campaign;
+        ObjectifyService.ofy().transact(new VoidWork() {
+            public void vrun() {
+                Campaign stored = ObjectifyService.ofy().load().type(Campaign.class).id(updated.id).now();
+                ObjectifyService.ofy().save().entity(updated).now();
+                CampaignIndex.update(Collections.singletonList(stored), Collections.singletonList(updated));
+            }
+        });
+        CampaignCache.invalidate(campaignID);
 
         // after successful patch return campaign data back to admin
-        out.print(new Gson().toJson(campaign));
-        out.flush();
+        JsonOutput.writeCampaign(out, campaign);
+    }
+
+    // parsePlatformRedirects parses platformRedirects parameter (see
+    // Utilities.getPlatformRedirects)
+    // returns: platform id => url, null if parameter is not valid or platform
+    // does not exist
+    private Map<String, String> parsePlatformRedirects(String param) throws IOException {
+        try {
+            return Utilities.getPlatformRedirects(new JsonParser().parse(param));
+        } catch (JsonParseException ex) {
+            return null;
+        }
     }
 
     // helper function for handling status code 404 not found:
@@ -357,12 +1088,7 @@ public class AdminServlet extends HttpServlet {
         resp.setContentType("application/json");
         resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
 
-        PrintWriter out = resp.getWriter();
-        Gson gson = new Gson();
-        JsonObject msg = new JsonObject();
-        msg.add("message", gson.toJsonTree(errorMsg));
-        out.print(new Gson().toJson(msg));
-        out.flush();
+        JsonOutput.writeMessage(resp.getWriter(), errorMsg);
     }
 
     // helper function fot handling status code 400
@@ -371,12 +1097,7 @@ public class AdminServlet extends HttpServlet {
         resp.setContentType("application/json");
         resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 
-        PrintWriter out = resp.getWriter();
-        Gson gson = new Gson();
-        JsonObject msg = new JsonObject();
-        msg.add("message", gson.toJsonTree(errorMsg));
-        out.print(msg);
-        out.flush();
+        JsonOutput.writeMessage(resp.getWriter(), errorMsg);
     }
 
     // handling forbidden error message, when admin cookie session is not
@@ -385,17 +1106,17 @@ public class AdminServlet extends HttpServlet {
         resp.setContentType("application/json");
         resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
 
-        PrintWriter out = resp.getWriter();
-        JsonObject json = new JsonObject();
-        Gson gson = new Gson();
-        json.add("message", gson.toJsonTree("Forbidden"));
-        out.print(json);
-        out.flush();
+        JsonOutput.writeMessage(resp.getWriter(), "Forbidden");
     }
 
     // checkAuthenticaion checks if admin sent data are valid
     // ex. (username, password) combination
     public Boolean checkCredentials(HttpServletRequest req) throws IOException {
+        // token mode: token is verified in memory, no session or Admin load
+        if (AdminTokens.enabled()) {
+            return AdminTokens.verify(AdminTokens.fromHeader(req.getHeader("Authorization"))) != null;
+        }
+
         HttpSession session = req.getSession(false);
         if (session == null) {
             return false;
@@ -0,0 +1,301 @@
+package com.clicktracker;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.clicktracker.model.Admin;
+import com.clicktracker.model.RevokedToken;
+import com.clicktracker.model.TokenSecret;
+import com.google.common.io.BaseEncoding;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+
+// AdminTokens issues and verifies signed admin tokens, used instead of http
+// sessions when auth mode is TOKEN. Login returns token, admin sends it with
+// every request:
+//      Authorization: Bearer {adminID}.{expiresAt}.{id}.{signature}
+// signature is HMAC-SHA256 of the rest of the token (see TokenSecret).
+//
+// Tokens are verified in memory, without session or Admin loads. Ids of
+// active admins and ids of revoked tokens (see RevokedToken) are loaded
+// together with the key and reloaded every refreshSeconds off the request
+// path (see CacheRefresher), deactivated admins and tokens revoked on other
+// instances are rejected after the next reload. Tokens revoked on this
+// instance are rejected immediately. Requests load the state only when it's
+// missing, or when it was not reloaded for 3 refresh intervals (no refresher
+// ran meanwhile). Rows of expired revoked tokens are deleted on reload.
+//
+// Configuration via system properties in appengine-web.xml:
+//      clicktracker.adminAuth.mode:           SESSION (default) or TOKEN
+//      clicktracker.adminAuth.tokenHours:     token lifetime
+//      clicktracker.adminAuth.refreshSeconds: reload interval
+public class AdminTokens {
+    private static final Logger log = Logger.getLogger(AdminTokens.class.getName());
+
+    public enum Mode {
+        SESSION, TOKEN
+    }
+
+    private static volatile Mode mode = Mode
+            .valueOf(System.getProperty("clicktracker.adminAuth.mode", "SESSION").toUpperCase());
+
+    private static final long TOKEN_HOURS = Long.getLong("clicktracker.adminAuth.tokenHours", 24L);
+    private static final long REFRESH_SECONDS = Long.getLong("clicktracker.adminAuth.refreshSeconds", 30L);
+    // older state could accept tokens revoked long ago on other instances
+    private static final long MAX_AGE_MILLIS = 3 * REFRESH_SECONDS * 1000;
+    // expired revoked tokens deleted by one reload
+    private static final int PURGE_LIMIT = 500;
+
+    private static final String ALGORITHM = "HmacSHA256";
+    // id of the only TokenSecret row
+    private static final Long SECRET_ID = 1L;
+    private static final BaseEncoding BASE64 = BaseEncoding.base64Url().omitPadding();
+    private static final SecureRandom random = new SecureRandom();
+
+    private static volatile State state = null;
+    private static final AtomicBoolean refreshing = new AtomicBoolean();
+
+    // Token is newly issued token
+    public static class Token {
+        public final String value;
+        public final Date expiresAt;
+
+        Token(String value, Date expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // State is immutable snapshot of the key, active admins and revoked
+    // tokens (id => expiry millis)
+    private static class State {
+        final SecretKeySpec key;
+        final Set<Long> activeAdmins;
+        final Map<String, Long> revoked;
+        final long loadedAt;
+
+        State(SecretKeySpec key, Set<Long> activeAdmins, Map<String, Long> revoked, long loadedAt) {
+            this.key = key;
+            this.activeAdmins = activeAdmins;
+            this.revoked = revoked;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    // enabled checks if admins are authenticated with tokens instead of
+    // sessions
+    public static boolean enabled() {
+        return mode == Mode.TOKEN;
+    }
+
+    // issue signs new token of the admin. Caller must have Objectify context.
+    public static Token issue(Long adminID) {
+        byte[] id = new byte[16];
+        random.nextBytes(id);
+        long expiresAt = System.currentTimeMillis() + TOKEN_HOURS * 60 * 60 * 1000;
+        String payload = adminID + "." + expiresAt + "." + BASE64.encode(id);
+        return new Token(payload + "." + sign(state().key, payload), new Date(expiresAt));
+    }
+
+    // verify checks signature and expiry of the token, revoked tokens and
+    // tokens of inactive admins are not valid
+    // returns: admin id, null if token is not valid
+    public static Long verify(String token) {
+        String[] parts = parse(token);
+        if (parts == null || Long.parseLong(parts[1]) <= System.currentTimeMillis()) {
+            return null;
+        }
+        State s = state();
+        String payload = parts[0] + "." + parts[1] + "." + parts[2];
+        // constant time comparison, signature could not be guessed byte by byte
+        if (!MessageDigest.isEqual(sign(s.key, payload).getBytes(StandardCharsets.US_ASCII),
+                parts[3].getBytes(StandardCharsets.US_ASCII))) {
+            return null;
+        }
+        Long adminID = Long.valueOf(parts[0]);
+        if (s.revoked.containsKey(parts[2]) || !s.activeAdmins.contains(adminID)) {
+            return null;
+        }
+        return adminID;
+    }
+
+    // revoke revokes valid token (logout)
+    // returns: false if token is not valid
+    public static boolean revoke(String token) {
+        if (verify(token) == null) {
+            return false;
+        }
+        String[] parts = parse(token);
+        long expiresAt = Long.parseLong(parts[1]);
+        ObjectifyService.ofy().save().entity(new RevokedToken(parts[2], new Date(expiresAt))).now();
+
+        State s = state();
+        Map<String, Long> revoked = new HashMap<String, Long>(s.revoked);
+        revoked.put(parts[2], expiresAt);
+        state = new State(s.key, s.activeAdmins, Collections.unmodifiableMap(revoked), s.loadedAt);
+        return true;
+    }
+
+    // fromHeader returns token from Authorization header
+    // returns: null if header is missing or it's not bearer token
+    public static String fromHeader(String header) {
+        if (header == null || !header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return null;
+        }
+        return header.substring(7).trim();
+    }
+
+    // parse splits token into adminID, expiresAt, id and signature
+    // returns: null if token is malformed
+    private static String[] parse(String token) {
+        if (token == null) {
+            return null;
+        }
+        String[] parts = token.split("\\.");
+        if (parts.length != 4 || !parts[0].matches("[0-9]{1,18}") || !parts[1].matches("[0-9]{1,18}")) {
+            return null;
+        }
+        return parts;
+    }
+
+    private static String sign(SecretKeySpec key, String payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return BASE64.encode(mac.doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException ex) {
+            // HmacSHA256 is supported by every JVM
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // state returns current snapshot, loads it when it's missing or too old
+    // (see CacheRefresher). Caller must have Objectify context.
+    private static State state() {
+        State s = state;
+        if (s == null || System.currentTimeMillis() - s.loadedAt >= MAX_AGE_MILLIS) {
+            return load();
+        }
+        return s;
+    }
+
+    // refreshIfDue reloads the state when tokens are enabled and the state is
+    // older than refreshSeconds. Only one thread reloads the state. Called by
+    // CacheRefresher, never on request path. Caller must have Objectify
+    // context.
+    public static void refreshIfDue() {
+        State s = state;
+        if (!enabled() || (s != null && System.currentTimeMillis() - s.loadedAt < REFRESH_SECONDS * 1000)) {
+            return;
+        }
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refresh();
+        } catch (RuntimeException ex) {
+            // keep the old state, try again on next check
+            log.log(Level.WARNING, "could not reload admin tokens state", ex);
+        } finally {
+            refreshing.set(false);
+        }
+    }
+
+    // refresh reloads key, active admins and revoked tokens and deletes rows
+    // of expired revoked tokens. Caller must have Objectify context.
+    public static void refresh() {
+        load();
+        purgeExpired();
+    }
+
+    // purgeExpired deletes at most PURGE_LIMIT rows of revoked tokens which
+    // expired, the rest is deleted by next reloads
+    // returns: number of deleted rows
+    static int purgeExpired() {
+        List<Key<RevokedToken>> expired = ObjectifyService.ofy().load().type(RevokedToken.class)
+                .filter("expiresAt <", new Date()).limit(PURGE_LIMIT).keys().list();
+        if (!expired.isEmpty()) {
+            ObjectifyService.ofy().delete().keys(expired).now();
+        }
+        return expired.size();
+    }
+
+    private static State load() {
+        long now = System.currentTimeMillis();
+        SecretKeySpec key = new SecretKeySpec(BASE64.decode(loadSecret()), ALGORITHM);
+        Set<Long> activeAdmins = new HashSet<Long>();
+        for (Admin admin : ObjectifyService.ofy().load().type(Admin.class)) {
+            if (Boolean.TRUE.equals(admin.active)) {
+                activeAdmins.add(admin.id);
+            }
+        }
+        // tokens revoked here stay revoked even if the query does not see
+        // them yet (queries are eventually consistent)
+        Map<String, Long> revoked = new HashMap<String, Long>();
+        State old = state;
+        if (old != null) {
+            for (Map.Entry<String, Long> r : old.revoked.entrySet()) {
+                if (r.getValue() > now) {
+                    revoked.put(r.getKey(), r.getValue());
+                }
+            }
+        }
+        for (RevokedToken r : ObjectifyService.ofy().load().type(RevokedToken.class)
+                .filter("expiresAt >", new Date(now))) {
+            revoked.put(r.id, r.expiresAt.getTime());
+        }
+        State loaded = new State(key, Collections.unmodifiableSet(activeAdmins), Collections.unmodifiableMap(revoked),
+                now);
+        state = loaded;
+        return loaded;
+    }
+
+    // loadSecret returns shared key, key is generated in transaction when it
+    // does not exist yet, that way all instances use the same key
+    private static String loadSecret() {
+        TokenSecret secret = ObjectifyService.ofy().load().type(TokenSecret.class).id(SECRET_ID).now();
+        if (secret != null) {
+            return secret.secret;
+        }
+        return ObjectifyService.ofy().transact(new Work<String>() {
+            public String run() {
+                TokenSecret existing = ObjectifyService.ofy().load().type(TokenSecret.class).id(SECRET_ID).now();
+                if (existing != null) {
+                    return existing.secret;
+                }
+                byte[] key = new byte[32];
+                random.nextBytes(key);
+                TokenSecret created = new TokenSecret(SECRET_ID, BASE64.encode(key));
+                ObjectifyService.ofy().save().entity(created).now();
+                return created.secret;
+            }
+        });
+    }
+
+    // setMode changes auth mode (used in tests)
+    public static void setMode(Mode newMode) {
+        mode = newMode;
+    }
+
+    // clear removes loaded state (used in tests, since datastore is recreated
+    // for every test)
+    public static void clear() {
+        state = null;
+    }
+}
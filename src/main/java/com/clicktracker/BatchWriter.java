@@ -0,0 +1,148 @@
+package com.clicktracker;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.util.Closeable;
+
+// BatchWriter writes deltas of write-behind aggregations (counter shards,
+// visitor sketches and click rollups, see CounterAggregator.flush). Instead
+// of one transaction per row, up to GROUPS_PER_TRANSACTION rows are updated
+// in one cross-group transaction with one batch get and one batch put, and
+// the transactions run in parallel on several threads. That way a flush of
+// thousands of active campaigns takes a few round trips instead of thousands.
+public class BatchWriter {
+    private static final Logger log = Logger.getLogger(BatchWriter.class.getName());
+
+    // datastore limit of entity groups in one cross-group transaction
+    static final int GROUPS_PER_TRANSACTION = 25;
+
+    // Write is read-modify-write of one row
+    public interface Write {
+        // key returns key of the updated row
+        Key<?> key();
+
+        // apply returns entity to be saved, current is stored row or null.
+        // It could be called several times when transaction is retried, so it
+        // must not change anything else.
+        Object apply(Object current);
+
+        // restore puts the delta back to pending deltas, it's written on
+        // next flush
+        void restore();
+    }
+
+    // write writes all writes in transactions of GROUPS_PER_TRANSACTION rows
+    // on threads threads, rows of failed transactions are restored. Threads
+    // are taken from workers or, when workers is null, started for the
+    // current request (see Bootstrap.parallel). Caller must have Objectify
+    // context.
+    // returns: number of written rows
+    public static int write(List<Write> writes, int threads, ExecutorService workers) {
+        if (writes.isEmpty()) {
+            return 0;
+        }
+        final List<List<Write>> batches = new ArrayList<List<Write>>();
+        for (int i = 0; i < writes.size(); i += GROUPS_PER_TRANSACTION) {
+            batches.add(writes.subList(i, Math.min(writes.size(), i + GROUPS_PER_TRANSACTION)));
+        }
+
+        // every thread writes every threads-th batch
+        final AtomicInteger written = new AtomicInteger();
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        final int step = Math.max(1, Math.min(threads, batches.size()));
+        for (int t = 0; t < step; t++) {
+            final int first = t;
+            tasks.add(new Runnable() {
+                public void run() {
+                    for (int i = first; i < batches.size(); i += step) {
+                        written.addAndGet(writeBatch(batches.get(i)));
+                    }
+                }
+            });
+        }
+        if (tasks.size() == 1) {
+            tasks.get(0).run();
+        } else if (workers == null) {
+            Bootstrap.parallel(tasks);
+        } else {
+            run(tasks, workers);
+        }
+        return written.get();
+    }
+
+    // run runs tasks on workers, every task with its own Objectify context,
+    // and waits for all of them
+    private static void run(List<Runnable> tasks, ExecutorService workers) {
+        List<Callable<Void>> callables = new ArrayList<Callable<Void>>();
+        for (final Runnable task : tasks) {
+            callables.add(new Callable<Void>() {
+                public Void call() {
+                    try (Closeable session = ObjectifyService.begin()) {
+                        task.run();
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : workers.invokeAll(callables)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            // batches restore their own writes, nothing else could fail
+            log.log(Level.WARNING, "batch write failed", ex.getCause());
+        }
+    }
+
+    // writeBatch writes batch of rows in one transaction
+    // returns: number of written rows, 0 if the batch was restored
+    private static int writeBatch(final List<Write> batch) {
+        try {
+            ObjectifyService.ofy().transact(new VoidWork() {
+                public void vrun() {
+                    List<Key<Object>> keys = new ArrayList<Key<Object>>();
+                    for (Write w : batch) {
+                        keys.add(key(w));
+                    }
+                    Map<Key<Object>, Object> stored = ObjectifyService.ofy().load().keys(keys);
+                    // writes of the same row are applied one after another
+                    Map<Key<Object>, Object> updated = new LinkedHashMap<Key<Object>, Object>();
+                    for (Write w : batch) {
+                        Key<Object> key = key(w);
+                        Object current = updated.containsKey(key) ? updated.get(key) : stored.get(key);
+                        updated.put(key, w.apply(current));
+                    }
+                    ObjectifyService.ofy().save().entities(updated.values()).now();
+                }
+            });
+            return batch.size();
+        } catch (RuntimeException ex) {
+            log.log(Level.WARNING, "could not write batch of " + batch.size() + " rows, first " + batch.get(0).key(),
+                    ex);
+            for (Write w : batch) {
+                w.restore();
+            }
+            return 0;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Key<Object> key(Write w) {
+        return (Key<Object>) w.key();
+    }
+}
@@ -0,0 +1,169 @@
+package com.clicktracker;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.ThreadManager;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+// Bootstrap times instance startup (see OfyHelper) and warmup (see
+// WarmupServlet) stage by stage, timings are logged and displayed to admin
+// (/api/v1/admin/campaign/startup), together with latency of the first api
+// request served by the instance. That way it's visible how long a new
+// instance needs until it serves fast requests.
+//
+// Independent startup tasks run in parallel on request threads (see
+// parallel), flushes of task requests use the same (see BatchWriter).
+public class Bootstrap {
+    private static final Logger log = Logger.getLogger(Bootstrap.class.getName());
+
+    // stage name => millis, in order the stages finished
+    private static final Map<String, Long> stages = new LinkedHashMap<String, Long>();
+    private static volatile long startedAt = 0L;
+    private static final AtomicBoolean firstRequest = new AtomicBoolean();
+    // campaign used by warmup request, one of preloaded active campaigns
+    private static volatile Long warmupCampaign = null;
+
+    private final long start = System.nanoTime();
+    private long stageStart = start;
+
+    // begin starts timing of the startup, previous timings are dropped
+    public static Bootstrap begin() {
+        synchronized (stages) {
+            stages.clear();
+        }
+        startedAt = System.currentTimeMillis();
+        firstRequest.set(false);
+        return new Bootstrap();
+    }
+
+    // stage records time since the previous stage (or begin) under name
+    public void stage(String name) {
+        long now = System.nanoTime();
+        record(name, now - stageStart);
+        stageStart = now;
+    }
+
+    // done records total time since begin and logs all timings
+    public void done() {
+        record("total", System.nanoTime() - start);
+        log.info("instance started: " + timings());
+    }
+
+    private static void record(String name, long nanos) {
+        synchronized (stages) {
+            stages.put(name, nanos / 1000000);
+        }
+    }
+
+    // timed runs task and records its time as a stage, used for stages that
+    // happen outside of startup (ex. warmup)
+    public static void timed(String name, Runnable task) {
+        long start = System.nanoTime();
+        task.run();
+        record(name, System.nanoTime() - start);
+    }
+
+    // requestServed records latency of the first api request served after
+    // startup (see MetricsFilter), later requests are ignored
+    public static void requestServed(long nanos) {
+        if (startedAt == 0L || !firstRequest.compareAndSet(false, true)) {
+            return;
+        }
+        record("firstRequestAt", (System.currentTimeMillis() - startedAt) * 1000000);
+        record("firstRequest", nanos);
+    }
+
+    // setWarmupCampaign sets campaign redirected by warmup request (see
+    // WarmupServlet), null if there is no active campaign
+    public static void setWarmupCampaign(Long campaignID) {
+        warmupCampaign = campaignID;
+    }
+
+    public static Long warmupCampaign() {
+        return warmupCampaign;
+    }
+
+    // timings returns copy of recorded stage timings in millis
+    public static Map<String, Long> timings() {
+        synchronized (stages) {
+            return new LinkedHashMap<String, Long>(stages);
+        }
+    }
+
+    // parallel runs tasks at once, every task on its own request thread with
+    // its own Objectify context, and waits for all of them. Request threads
+    // are only available while serving a request, tasks run one by one on
+    // the calling thread when threads could not be created.
+    // throws: the first exception thrown by a task
+    public static void parallel(List<Runnable> tasks) {
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        List<Thread> threads = new ArrayList<Thread>();
+        List<Runnable> inline = new ArrayList<Runnable>();
+        ThreadFactory factory = requestThreadFactory();
+        for (final Runnable task : tasks) {
+            Thread thread = null;
+            if (factory != null) {
+                try {
+                    thread = factory.newThread(new Runnable() {
+                        public void run() {
+                            try (Closeable session = ObjectifyService.begin()) {
+                                task.run();
+                            } catch (RuntimeException ex) {
+                                failure.compareAndSet(null, ex);
+                            }
+                        }
+                    });
+                    thread.start();
+                } catch (RuntimeException ex) {
+                    log.log(Level.INFO, "request thread could not be started, running task inline", ex);
+                    factory = null;
+                    thread = null;
+                }
+            }
+            if (thread != null) {
+                threads.add(thread);
+            } else {
+                inline.add(task);
+            }
+        }
+        // calling thread has its own Objectify context already
+        for (Runnable task : inline) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                failure.compareAndSet(null, ex);
+            }
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    // requestThreadFactory returns factory of threads bound to the current
+    // request
+    // returns: null if request threads are not available (not in request)
+    private static ThreadFactory requestThreadFactory() {
+        try {
+            return ThreadManager.currentRequestThreadFactory();
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.clicktracker;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+// CacheRefresher refreshes in-memory snapshots read on the redirect path, ex.
+// bloom filter of campaign ids (see CampaignCache) and user agent rules (see
+// PlatformClassifier), and admin token state (see AdminTokens). Refreshes are
+// datastore scans, so they never run on redirect or admin requests. Dedup
+// sketches of the next sub-window are prepared as well (see ClickDeduplicator):
+// - background refresher checks every checkSeconds which snapshots are due
+//   (see start()), or
+// - when background threads are not available (auto scaled GAE instances),
+//   task requests served by the instance refresh due snapshots (see
+//   ClickQueue.PersistTask).
+//
+// Redirect path only reads the snapshots. Snapshots which were not refreshed
+// for a long time are not trusted (see CampaignCache.get), that way instance
+// without refresher is slower, but never wrong.
+//
+// Check interval could be changed via system property in appengine-web.xml:
+//      clicktracker.cacheRefresher.checkSeconds
+public class CacheRefresher {
+    private static final Logger log = Logger.getLogger(CacheRefresher.class.getName());
+
+    static final long CHECK_SECONDS = Long.getLong("clicktracker.cacheRefresher.checkSeconds", 10L);
+
+    private static volatile ScheduledExecutorService refresher = null;
+
+    // refreshDue refreshes all snapshots which are older than their refresh
+    // interval, snapshots refreshed by another thread are skipped. Caller must
+    // have Objectify context.
+    public static void refreshDue() {
+        ClickDeduplicator.prepare(System.currentTimeMillis());
+        try {
+            CampaignCache.refreshBloomFilterIfDue();
+            AdminTokens.refreshIfDue();
+        } catch (RuntimeException ex) {
+            // keep the old snapshots, try again on next check
+            log.log(Level.WARNING, "could not refresh caches", ex);
+        }
+        // PlatformClassifier logs its own failures
+        PlatformClassifier.refreshIfDue();
+    }
+
+    // running checks if background refresher is running on this instance
+    public static boolean running() {
+        return refresher != null;
+    }
+
+    // start starts background refresher. If background threads are not
+    // supported on this instance, snapshots are refreshed by task requests.
+    public static synchronized void start() {
+        if (refresher != null) {
+            return;
+        }
+        ThreadFactory factory = Utilities.backgroundThreadFactory();
+        if (factory == null) {
+            log.info("background threads are not available, caches are refreshed by task requests");
+            return;
+        }
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(factory);
+        try {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    // runnable must not throw, otherwise next checks are cancelled
+                    try (Closeable session = ObjectifyService.begin()) {
+                        refreshDue();
+                    } catch (RuntimeException ex) {
+                        log.log(Level.WARNING, "cache refresh failed", ex);
+                    }
+                }
+            }, CHECK_SECONDS, CHECK_SECONDS, TimeUnit.SECONDS);
+        } catch (RuntimeException ex) {
+            // auto scaled instances fail when the background thread is created
+            log.log(Level.INFO, "background refresher could not be started, caches are refreshed by task requests",
+                    ex);
+            executor.shutdownNow();
+            return;
+        }
+        refresher = executor;
+    }
+
+    // shutdown stops background refresher
+    public static synchronized void shutdown() {
+        ScheduledExecutorService executor = refresher;
+        refresher = null;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
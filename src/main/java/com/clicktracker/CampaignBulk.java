@@ -0,0 +1,313 @@
+package com.clicktracker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.clicktracker.model.Campaign;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.googlecode.objectify.ObjectifyService;
+
+// CampaignBulk applies many campaign create/update operations at once, used by
+// campaign management tools (see AdminServlet, /api/v1/admin/campaign/bulk).
+// Operations are json objects with the same fields as POST/PUT parameters:
+//      [{"op": "create", "name": "c1", "redirectURL": "http://...", "active": true,
+//        "platforms": "iphone,android", "platformRedirects": {"iphone": "http://..."}},
+//       {"op": "update", "id": 123, "active": false}]
+//
+// All operations are validated first, invalid ones are reported and skipped.
+// Campaigns to update are loaded with one batch get, platforms are resolved
+// once per distinct value and valid campaigns are written in chunks of
+// CHUNK_SIZE via save().entities(). Campaign index (see CampaignIndex) is
+// updated once for all written campaigns.
+//
+// NOTE: campaigns are not written in the same transaction as their index
+// entries, since transaction could touch only 25 entity groups. If the
+// entries could not be written the index is dropped and rebuilt on next
+// listing. Updates are not isolated from concurrent single campaign updates
+// (last write wins).
+public class CampaignBulk {
+    private static final Logger log = Logger.getLogger(CampaignBulk.class.getName());
+
+    // max number of operations per request
+    public static final int MAX_OPERATIONS = 1000;
+    // datastore accepts at most 500 entities per batch write
+    static final int CHUNK_SIZE = 500;
+
+    // Result is outcome of one operation, status is http status of the same
+    // single campaign request (201 created, 200 updated, 400, 404 or 500)
+    public static class Result {
+        public final int index;
+        public final int status;
+        public Long id;
+        public String message;
+
+        Result(int index, int status) {
+            this.index = index;
+            this.status = status;
+        }
+    }
+
+    // Operation is validated operation, stored is null for created campaigns
+    private static class Operation {
+        final int index;
+        final Campaign campaign;
+        final Campaign stored;
+
+        Operation(int index, Campaign campaign, Campaign stored) {
+            this.index = index;
+            this.campaign = campaign;
+            this.stored = stored;
+        }
+    }
+
+    // apply validates and applies operations. Caller must have Objectify context.
+    // returns: result per operation, in the same order as operations
+    public static List<Result> apply(JsonArray operations) throws IOException {
+        Result[] results = new Result[operations.size()];
+
+        // campaigns to update are loaded with one batch get
+        List<Long> ids = new ArrayList<Long>();
+        for (JsonElement op : operations) {
+            Long id = updateID(op);
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        Map<Long, Campaign> existing = ObjectifyService.ofy().load().type(Campaign.class).ids(ids);
+
+        Map<String, List<Long>> platforms = new HashMap<String, List<Long>>();
+        Set<Long> updated = new HashSet<Long>();
+        List<Operation> valid = new ArrayList<Operation>();
+        for (int i = 0; i < operations.size(); i++) {
+            try {
+                valid.add(validate(i, operations.get(i), existing, updated, platforms));
+            } catch (InvalidOperation ex) {
+                results[i] = new Result(i, ex.status);
+                results[i].message = ex.getMessage();
+            }
+        }
+
+        List<Campaign> removed = new ArrayList<Campaign>();
+        List<Campaign> added = new ArrayList<Campaign>();
+        for (int from = 0; from < valid.size(); from += CHUNK_SIZE) {
+            List<Operation> chunk = valid.subList(from, Math.min(valid.size(), from + CHUNK_SIZE));
+            List<Campaign> campaigns = new ArrayList<Campaign>(chunk.size());
+            for (Operation op : chunk) {
+                campaigns.add(op.campaign);
+            }
+            try {
+                ObjectifyService.ofy().save().entities(campaigns).now();
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "could not save " + campaigns.size() + " campaigns", ex);
+                for (Operation op : chunk) {
+                    results[op.index] = new Result(op.index, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    results[op.index].message = "campaign could not be saved";
+                }
+                continue;
+            }
+            List<Long> createdIDs = new ArrayList<Long>();
+            for (Operation op : chunk) {
+                if (op.stored == null) {
+                    createdIDs.add(op.campaign.id);
+                }
+            }
+            try {
+                // other instances add created campaigns to their bloom filters
+                // on next version check (see CampaignCache)
+                CampaignCache.bumpVersion(createdIDs);
+            } catch (RuntimeException ex) {
+                // campaigns are visible after next bloom filter rebuild
+                log.log(Level.WARNING, "could not bump campaign version", ex);
+            }
+            for (Operation op : chunk) {
+                boolean created = op.stored == null;
+                results[op.index] = new Result(op.index,
+                        created ? HttpServletResponse.SC_CREATED : HttpServletResponse.SC_OK);
+                results[op.index].id = op.campaign.id;
+                if (created) {
+                    CampaignCache.added(op.campaign.id);
+                } else {
+                    removed.add(op.stored);
+                    CampaignCache.invalidate(op.campaign.id);
+                }
+                added.add(op.campaign);
+            }
+        }
+        updateIndex(removed, added);
+
+        List<Result> list = new ArrayList<Result>(results.length);
+        Collections.addAll(list, results);
+        return list;
+    }
+
+    private static void updateIndex(List<Campaign> removed, List<Campaign> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+        try {
+            CampaignIndex.update(removed, added);
+        } catch (RuntimeException ex) {
+            log.log(Level.WARNING, "could not update campaign index, dropping it", ex);
+            try {
+                CampaignIndex.drop();
+            } catch (RuntimeException dropEx) {
+                log.log(Level.SEVERE, "could not drop campaign index, rebuild it manually", dropEx);
+            }
+        }
+    }
+
+    // updateID returns id of the campaign updated by the operation
+    // returns: null if operation is not a valid update
+    private static Long updateID(JsonElement op) {
+        if (!op.isJsonObject() || !"update".equals(string(op.getAsJsonObject(), "op"))) {
+            return null;
+        }
+        String id = string(op.getAsJsonObject(), "id");
+        return id != null && id.matches("[0-9]{1,18}") ? Long.valueOf(id) : null;
+    }
+
+    // validate checks the operation and returns campaign that should be saved
+    private static Operation validate(int index, JsonElement element, Map<Long, Campaign> existing,
+            Set<Long> updated, Map<String, List<Long>> platforms) throws IOException, InvalidOperation {
+        if (!element.isJsonObject()) {
+            throw new InvalidOperation("operation should be json object");
+        }
+        JsonObject op = element.getAsJsonObject();
+        String type = string(op, "op");
+        if ("create".equals(type)) {
+            Campaign c = new Campaign();
+            c.name = required(op, "name");
+            c.redirectURL = required(op, "redirectURL");
+            c.active = Boolean.parseBoolean(required(op, "active"));
+            c.platforms = platforms(required(op, "platforms"), platforms);
+            c.createdAt = new Date();
+            if (op.has("platformRedirects")) {
+                c.platformRedirects = platformRedirects(op);
+                c.platformRedirects.values().removeAll(Collections.singleton(""));
+            }
+            return new Operation(index, c, null);
+        } else if ("update".equals(type)) {
+            Long id = updateID(op);
+            if (id == null) {
+                throw new InvalidOperation("id should be campaign id");
+            }
+            Campaign stored = existing.get(id);
+            if (stored == null) {
+                throw new InvalidOperation(HttpServletResponse.SC_NOT_FOUND, "This campaign does not exist");
+            }
+            // every update is made on the stored version, repeated updates
+            // would overwrite each other
+            if (!updated.add(id)) {
+                throw new InvalidOperation("campaign should be updated only once per request");
+            }
+            // stored version is kept for campaign index, changes are made on a copy
+            Campaign c = copy(stored);
+            if (op.has("name")) {
+                c.name = required(op, "name");
+            }
+            if (op.has("redirectURL")) {
+                c.redirectURL = required(op, "redirectURL");
+            }
+            if (op.has("active")) {
+                c.active = Boolean.parseBoolean(required(op, "active"));
+            }
+            if (op.has("platforms")) {
+                c.platforms = platforms(required(op, "platforms"), platforms);
+            }
+            // platform redirect targets are merged with existing ones, empty
+            // url removes the target
+            if (op.has("platformRedirects")) {
+                Map<String, String> redirects = platformRedirects(op);
+                Map<String, String> merged = new HashMap<String, String>();
+                if (c.platformRedirects != null) {
+                    merged.putAll(c.platformRedirects);
+                }
+                for (Map.Entry<String, String> target : redirects.entrySet()) {
+                    if (target.getValue().isEmpty()) {
+                        merged.remove(target.getKey());
+                    } else {
+                        merged.put(target.getKey(), target.getValue());
+                    }
+                }
+                c.platformRedirects = merged;
+            }
+            return new Operation(index, c, stored);
+        }
+        throw new InvalidOperation("op should be create or update");
+    }
+
+    // platforms resolves platforms once per distinct value
+    private static List<Long> platforms(String value, Map<String, List<Long>> resolved)
+            throws IOException, InvalidOperation {
+        if (!resolved.containsKey(value)) {
+            resolved.put(value, Utilities.getPlatforms(value));
+        }
+        List<Long> ids = resolved.get(value);
+        if (ids == null) {
+            throw new InvalidOperation("platforms do not exist: " + value);
+        }
+        return new ArrayList<Long>(ids);
+    }
+
+    private static Map<String, String> platformRedirects(JsonObject op) throws IOException, InvalidOperation {
+        Map<String, String> redirects = Utilities.getPlatformRedirects(op.get("platformRedirects"));
+        if (redirects == null) {
+            throw new InvalidOperation("platformRedirects should be json object of existing platform => url");
+        }
+        return redirects;
+    }
+
+    // required returns non empty string field of the operation
+    private static String required(JsonObject op, String field) throws InvalidOperation {
+        String value = string(op, field);
+        if (value == null || value.isEmpty()) {
+            throw new InvalidOperation(field + " should be provided and not empty");
+        }
+        return value;
+    }
+
+    // string returns primitive field as string (numbers and booleans are
+    // accepted as well)
+    // returns: null if field is missing or it's not primitive
+    private static String string(JsonObject op, String field) {
+        JsonElement value = op.get(field);
+        if (value == null || !value.isJsonPrimitive()) {
+            return null;
+        }
+        return value.getAsString();
+    }
+
+    private static Campaign copy(Campaign stored) {
+        Campaign c = new Campaign(stored.name, stored.redirectURL, stored.platforms, stored.active, stored.createdAt);
+        c.id = stored.id;
+        c.platformRedirects = stored.platformRedirects;
+        return c;
+    }
+
+    // InvalidOperation is thrown when operation could not be applied
+    private static class InvalidOperation extends Exception {
+        final int status;
+
+        InvalidOperation(String message) {
+            this(HttpServletResponse.SC_BAD_REQUEST, message);
+        }
+
+        InvalidOperation(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package com.clicktracker;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.clicktracker.model.Campaign;
+import com.clicktracker.model.CampaignVersion;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.gson.JsonObject;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+
+import org.apache.commons.lang3.StringUtils;
+
+// CampaignCache is in-process read-through cache for campaigns used on the
+// redirect path (ClickTrackerServlet).
+//
+// Campaigns almost never change, so there is no need to go to the datastore
+// (or memcache via @Cache annotation) for every click. Only fields needed for
+// redirecting are stored, that way the cache stays small.
+//
+// Entries are evicted when the cache grows over maxSize or when they are older
+// than ttlSeconds. AdminServlet invalidates entries when campaign is created,
+// updated or deleted. Other app engine instances do not see that invalidation,
+// so TTL is an upper bound for serving stale campaign on those instances.
+//
+// IDs of missing campaigns are cached for negativeTtlSeconds. Besides that,
+// bloom filter of all existing campaign ids is built at startup (see OfyHelper)
+// and rebuilt every bloomRefreshSeconds off the redirect path (see
+// CacheRefresher). Campaign creation bumps version stamp (see bumpVersion),
+// which is checked by every refresher run, that way campaigns created on other
+// instances are added to the filter within a few seconds. Filter is not used
+// when the stamp was not checked for 3 refresher intervals (no refresher ran
+// meanwhile) or when the stamp moved too far to tell which campaigns are
+// missing, until the filter is rebuilt.
+//
+// Values could be changed via system properties in appengine-web.xml:
+//      clicktracker.campaignCache.maxSize
+//      clicktracker.campaignCache.ttlSeconds
+//      clicktracker.campaignCache.negativeTtlSeconds
+//      clicktracker.campaignCache.bloomRefreshSeconds
+public class CampaignCache {
+    private static final long MAX_SIZE = Long.getLong("clicktracker.campaignCache.maxSize", 10000L);
+    private static final long TTL_SECONDS = Long.getLong("clicktracker.campaignCache.ttlSeconds", 300L);
+
+    private static final long NEGATIVE_TTL_SECONDS = Long.getLong("clicktracker.campaignCache.negativeTtlSeconds", 30L);
+    private static final long BLOOM_REFRESH_SECONDS = Long.getLong("clicktracker.campaignCache.bloomRefreshSeconds",
+            60L);
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+    // filter with older version check could reject campaigns created long ago
+    // on other instances
+    private static final long BLOOM_MAX_AGE_MILLIS = 3 * CacheRefresher.CHECK_SECONDS * 1000;
+
+    // id of the only CampaignVersion row and number of created campaign ids
+    // kept in it
+    private static final Long VERSION_ID = 1L;
+    private static final int VERSION_CREATED = 1000;
+
+    private static final Logger log = Logger.getLogger(CampaignCache.class.getName());
+
+    private static final Cache<Long, CachedCampaign> cache = CacheBuilder.newBuilder().maximumSize(MAX_SIZE)
+            .expireAfterWrite(TTL_SECONDS, TimeUnit.SECONDS).recordStats().build();
+
+    // ids of campaigns that do not exist
+    private static final Cache<Long, Boolean> missing = CacheBuilder.newBuilder().maximumSize(10 * MAX_SIZE)
+            .expireAfterWrite(NEGATIVE_TTL_SECONDS, TimeUnit.SECONDS).build();
+
+    // bloom filter of all existing campaign ids, null until it's built (see
+    // refreshBloomFilter). Campaigns created on this instance after the filter
+    // was built are kept in recentlyAdded as well. bloomVersion is version
+    // stamp the filter is up to date with, bloomCheckedAt is time of the last
+    // stamp check.
+    private static volatile BloomFilter<Long> bloomFilter = null;
+    private static volatile long bloomBuiltAt = 0L;
+    private static volatile long bloomVersion = 0L;
+    private static volatile long bloomCheckedAt = 0L;
+    private static final Object bloomLock = new Object();
+    private static final AtomicBoolean refreshing = new AtomicBoolean();
+    private static final Cache<Long, Boolean> recentlyAdded = CacheBuilder.newBuilder()
+            .expireAfterWrite(10, TimeUnit.MINUTES).build();
+
+    private static final AtomicLong negativeHits = new AtomicLong();
+    private static final AtomicLong bloomRejects = new AtomicLong();
+
+    // CachedCampaign holds campaign fields needed for handling clicks.
+    // Object is immutable, so it can be shared between request threads.
+    //
+    // Platform redirect targets are compiled into arrays indexed by platform
+    // ordinal (see PlatformClassifier.ordinal), that way picking the target
+    // of the click is one array lookup. Arrays are null when the campaign has
+    // no platform targets.
+    public static class CachedCampaign {
+        public final Long id;
+        public final Boolean active;
+        public final String redirectURL;
+        // UTF-8 encoded body of tracker POST response: {"redirectURL": ...}
+        // encoded once per cached campaign instead of once per click
+        public final byte[] postResponse;
+
+        private final String[] platformRedirects;
+        private final byte[][] platformPostResponses;
+
+        public CachedCampaign(Campaign campaign) {
+            this.id = campaign.id;
+            this.active = campaign.active;
+            this.redirectURL = campaign.redirectURL;
+            this.postResponse = postResponse(campaign.redirectURL);
+
+            String[] redirects = null;
+            byte[][] responses = null;
+            if (campaign.platformRedirects != null) {
+                for (Map.Entry<String, String> target : campaign.platformRedirects.entrySet()) {
+                    if (target.getValue() == null || !StringUtils.isNumeric(target.getKey())) {
+                        continue;
+                    }
+                    int ordinal = PlatformClassifier.ordinal(Long.parseLong(target.getKey()));
+                    if (redirects == null || ordinal >= redirects.length) {
+                        int length = Math.max(ordinal + 1, redirects == null ? 0 : redirects.length);
+                        redirects = redirects == null ? new String[length] : Arrays.copyOf(redirects, length);
+                        responses = responses == null ? new byte[length][] : Arrays.copyOf(responses, length);
+                    }
+                    redirects[ordinal] = target.getValue();
+                    responses[ordinal] = postResponse(target.getValue());
+                }
+            }
+            this.platformRedirects = redirects;
+            this.platformPostResponses = responses;
+        }
+
+        // redirectURL returns redirect target for the platform with chosen
+        // ordinal, or redirectURL if the platform has no target
+        public String redirectURL(int platformOrdinal) {
+            String[] redirects = platformRedirects;
+            if (redirects == null || platformOrdinal < 0 || platformOrdinal >= redirects.length
+                    || redirects[platformOrdinal] == null) {
+                return redirectURL;
+            }
+            return redirects[platformOrdinal];
+        }
+
+        // postResponse returns encoded POST response for the platform with
+        // chosen ordinal, see redirectURL
+        public byte[] postResponse(int platformOrdinal) {
+            byte[][] responses = platformPostResponses;
+            if (responses == null || platformOrdinal < 0 || platformOrdinal >= responses.length
+                    || responses[platformOrdinal] == null) {
+                return postResponse;
+            }
+            return responses[platformOrdinal];
+        }
+
+        private static byte[] postResponse(String redirectURL) {
+            JsonObject json = new JsonObject();
+            json.addProperty("redirectURL", redirectURL);
+            return json.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    // get returns cached campaign with chosen campaignID. If the campaign is
+    // not cached yet it's loaded from the datastore and stored into cache.
+    //
+    // IDs that are known to be missing (negative cache) or that are not in
+    // the bloom filter of existing campaigns are answered without datastore
+    // lookup, that way 404 floods (scrapers, broken links) are served from
+    // memory.
+    //
+    // returns: null if campaign does not exist
+    public static CachedCampaign get(Long campaignID) {
+        CachedCampaign cached = cache.getIfPresent(campaignID);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (missing.getIfPresent(campaignID) != null) {
+            negativeHits.incrementAndGet();
+            return null;
+        }
+
+        BloomFilter<Long> bloom = bloomFilter;
+        if (bloom != null && System.currentTimeMillis() - bloomCheckedAt < BLOOM_MAX_AGE_MILLIS) {
+            if (!bloom.mightContain(campaignID) && recentlyAdded.getIfPresent(campaignID) == null) {
+                bloomRejects.incrementAndGet();
+                return null;
+            }
+        }
+
+        Campaign c = ObjectifyService.ofy().load().type(Campaign.class).id(campaignID).now();
+        // missing campaigns are cached only for a short time, otherwise newly
+        // created campaign would not be visible on other instances
+        if (c == null) {
+            missing.put(campaignID, Boolean.TRUE);
+            return null;
+        }
+
+        cached = new CachedCampaign(c);
+        cache.put(campaignID, cached);
+        return cached;
+    }
+
+    // preload stores already loaded campaigns into cache (startup, see
+    // OfyHelper), that way the first clicks of hot campaigns are served from
+    // memory
+    public static void preload(Collection<Campaign> campaigns) {
+        for (Campaign c : campaigns) {
+            cache.put(c.id, new CachedCampaign(c));
+        }
+    }
+
+    // added should be called when new campaign is created (see AdminServlet),
+    // campaign is added to bloom filter and removed from negative cache
+    public static void added(Long campaignID) {
+        if (campaignID == null) {
+            return;
+        }
+        recentlyAdded.put(campaignID, Boolean.TRUE);
+        BloomFilter<Long> bloom = bloomFilter;
+        if (bloom != null) {
+            // bloom filter is not thread safe for writes
+            synchronized (bloomLock) {
+                bloom.put(campaignID);
+            }
+        }
+        invalidate(campaignID);
+    }
+
+    // refreshBloomFilter builds bloom filter out of all campaign ids stored in
+    // the datastore (keys only query). Caller must have Objectify context.
+    public static void refreshBloomFilter() {
+        // version is loaded first, campaigns created meanwhile move the stamp
+        // and are added on next check instead of being missed
+        CampaignVersion version = loadVersion();
+        List<Long> ids = new ArrayList<Long>();
+        for (Key<Campaign> key : ObjectifyService.ofy().load().type(Campaign.class).keys()) {
+            ids.add(key.getId());
+        }
+
+        BloomFilter<Long> bloom = BloomFilter.create(Funnels.longFunnel(), Math.max(2 * ids.size(), 10000),
+                BLOOM_FALSE_POSITIVE_RATE);
+        for (Long id : ids) {
+            bloom.put(id);
+        }
+        // kind queries are eventually consistent, campaigns created just before
+        // the query might be missing in the result
+        for (Long id : recentlyAdded.asMap().keySet()) {
+            bloom.put(id);
+        }
+        if (version.created != null) {
+            for (Long id : version.created) {
+                bloom.put(id);
+            }
+        }
+
+        synchronized (bloomLock) {
+            bloomFilter = bloom;
+            bloomBuiltAt = System.currentTimeMillis();
+            bloomVersion = version.version;
+            bloomCheckedAt = bloomBuiltAt;
+        }
+    }
+
+    // checkVersion adds campaigns created on other instances since the last
+    // check to bloom filter (see bumpVersion). Filter is rebuilt when more
+    // campaigns were created than the stamp keeps. Called by CacheRefresher,
+    // never on the redirect path. Caller must have Objectify context.
+    static void checkVersion() {
+        if (bloomFilter == null) {
+            return;
+        }
+        CampaignVersion version = loadVersion();
+        long created = version.version - bloomVersion;
+        int kept = version.created == null ? 0 : version.created.size();
+        if (created > kept || created < 0) {
+            // filter is not used until it's rebuilt
+            bloomCheckedAt = 0L;
+            refreshBloomFilter();
+            return;
+        }
+        synchronized (bloomLock) {
+            BloomFilter<Long> bloom = bloomFilter;
+            if (bloom == null) {
+                return;
+            }
+            for (Long id : version.created.subList(kept - (int) created, kept)) {
+                bloom.put(id);
+                missing.invalidate(id);
+            }
+            bloomVersion = version.version;
+            bloomCheckedAt = System.currentTimeMillis();
+        }
+    }
+
+    // bumpVersion moves version stamp by created campaigns, other instances
+    // add them to their bloom filters on next check. Joins current
+    // transaction, if any. Caller must have Objectify context.
+    public static void bumpVersion(final List<Long> created) {
+        if (created.isEmpty()) {
+            return;
+        }
+        ObjectifyService.ofy().transact(new VoidWork() {
+            public void vrun() {
+                CampaignVersion version = loadVersion();
+                List<Long> ids = new ArrayList<Long>();
+                if (version.created != null) {
+                    ids.addAll(version.created);
+                }
+                ids.addAll(created);
+                if (ids.size() > VERSION_CREATED) {
+                    ids = new ArrayList<Long>(ids.subList(ids.size() - VERSION_CREATED, ids.size()));
+                }
+                ObjectifyService.ofy().save()
+                        .entity(new CampaignVersion(VERSION_ID, version.version + created.size(), ids)).now();
+            }
+        });
+    }
+
+    private static CampaignVersion loadVersion() {
+        CampaignVersion v = ObjectifyService.ofy().load().type(CampaignVersion.class).id(VERSION_ID).now();
+        if (v == null || v.version == null) {
+            return new CampaignVersion(VERSION_ID, 0L, null);
+        }
+        return v;
+    }
+
+    // refreshBloomFilterIfDue checks version stamp (see checkVersion) and
+    // rebuilds bloom filter when it's older than bloomRefreshSeconds, so
+    // campaigns created outside of the application become visible as well.
+    // Only one thread refreshes the filter. Called by CacheRefresher, never on
+    // the redirect path. Caller must have Objectify context.
+    public static void refreshBloomFilterIfDue() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (System.currentTimeMillis() - bloomBuiltAt < BLOOM_REFRESH_SECONDS * 1000) {
+                checkVersion();
+            } else {
+                refreshBloomFilter();
+            }
+        } catch (RuntimeException ex) {
+            // keep the old filter, try again on next check
+            log.log(Level.WARNING, "could not refresh campaign bloom filter", ex);
+        } finally {
+            refreshing.set(false);
+        }
+    }
+
+    // invalidate removes campaign from cache, should be called whenever the
+    // campaign is changed (see AdminServlet)
+    public static void invalidate(Long campaignID) {
+        if (campaignID == null) {
+            return;
+        }
+        cache.invalidate(campaignID);
+        missing.invalidate(campaignID);
+    }
+
+    // invalidateAll removes all cached campaigns (used in tests, since
+    // datastore is recreated for every test)
+    public static void invalidateAll() {
+        cache.invalidateAll();
+        missing.invalidateAll();
+        recentlyAdded.invalidateAll();
+        synchronized (bloomLock) {
+            bloomFilter = null;
+            bloomBuiltAt = 0L;
+            bloomVersion = 0L;
+            bloomCheckedAt = 0L;
+        }
+    }
+
+    // stats returns hit/miss counters of the cache
+    public static CacheStats stats() {
+        return cache.stats();
+    }
+
+    // negativeHits returns number of lookups answered from negative cache
+    public static long negativeHits() {
+        return negativeHits.get();
+    }
+
+    // bloomRejects returns number of lookups rejected by bloom filter
+    public static long bloomRejects() {
+        return bloomRejects.get();
+    }
+
+    // size returns number of cached campaigns
+    public static long size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,607 @@
+package com.clicktracker;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.clicktracker.model.Campaign;
+import com.clicktracker.model.CampaignIndexEntry;
+import com.clicktracker.model.CampaignIndexRow;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+
+// CampaignIndex is inverted index of campaigns used by admin listing
+// (/api/v1/admin/campaign/all?active=true&platforms=iphone,android). Instead
+// of loading all campaigns and checking their platforms one by one, sets of
+// campaign ids are intersected first and only matching campaigns are loaded.
+//
+// Index consists of rows (see CampaignIndexRow) holding sorted campaign ids:
+// - all: every campaign
+// - active: active campaigns (inactive ones are all minus active)
+// - platform-{platformID}: campaigns on the platform
+//
+// Datastore entity is limited to 1MB (~130k packed ids), so sets are split
+// into chunks of at most CHUNK_IDS ids, every chunk is its own row. First
+// chunk row of the set holds number of chunks, first chunks of all sets are
+// loaded in one batch get and further chunks of big sets in a second one.
+//
+// Campaign changes are not written into the sets directly: every changed
+// campaign gets its own entry row (see CampaignIndexEntry) in the same
+// transaction as the campaign (see AdminServlet), so admin writes do not
+// contend on the big shared set rows. Entries are applied on top of the sets
+// when the index is read, so the index is never out of sync with stored
+// campaigns, and they are compacted into the sets by task request (see
+// CompactTask). Entries are kept for KEEP_ENTRY_MILLIS after the change:
+// rebuild reads campaigns with eventually consistent query and compacts all
+// entries after the sets are written, that way campaigns changed meanwhile
+// are never missing.
+//
+// Missing index (campaigns created before the index existed, or index
+// dropped after failed update) is rebuilt by task request (see RebuildTask),
+// admin requests never wait for it: find() reports missing index and listing
+// falls back to campaign query meanwhile.
+public class CampaignIndex {
+    private static final Logger log = Logger.getLogger(CampaignIndex.class.getName());
+
+    static final String ALL = "all";
+    static final String ACTIVE = "active";
+
+    // ids per chunk row, 100k packed ids are 800kB
+    private static final int CHUNK_IDS = 100000;
+    private static volatile int chunkIDs = CHUNK_IDS;
+
+    // rebuild is queued at most once per REBUILD_RETRY_MILLIS by this
+    // instance, rebuild of many campaigns takes a while
+    private static final long REBUILD_RETRY_MILLIS = 5 * 60 * 1000L;
+    private static final AtomicLong rebuildQueuedAt = new AtomicLong();
+
+    // entries are compacted into sets right away, but kept for a minute, it's
+    // longer than campaign query needs to see the change
+    private static final long KEEP_ENTRY_MILLIS = 60 * 1000L;
+    private static volatile long keepEntryMillis = KEEP_ENTRY_MILLIS;
+    private static final AtomicLong compactionQueuedAt = new AtomicLong();
+
+    // platformRow returns name of the row holding campaigns on the platform
+    static String platformRow(Long platformID) {
+        return "platform-" + platformID;
+    }
+
+    // find returns sorted ids of campaigns on all chosen platforms (empty
+    // list => any platform) with chosen active flag (null => any). Missing
+    // index is queued for rebuild. Caller must have Objectify context.
+    //
+    // returns: null if the index does not exist yet
+    public static long[] find(List<Long> platformIDs, Boolean active) {
+        List<String> names = new ArrayList<String>();
+        names.add(ALL);
+        names.add(ACTIVE);
+        for (Long platformID : platformIDs) {
+            names.add(platformRow(platformID));
+        }
+        Map<String, long[]> rows = load(names);
+        if (!rows.containsKey(ALL)) {
+            queueRebuild();
+            return null;
+        }
+        rows = apply(rows, names, ObjectifyService.ofy().load().type(CampaignIndexEntry.class).list());
+
+        // intersect the smallest sets first, that way intermediate results
+        // stay small
+        List<long[]> sets = new ArrayList<long[]>();
+        for (Long platformID : platformIDs) {
+            sets.add(get(rows, platformRow(platformID)));
+        }
+        if (active != null && active) {
+            sets.add(get(rows, ACTIVE));
+        }
+        Collections.sort(sets, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return Integer.compare(a.length, b.length);
+            }
+        });
+
+        long[] result = sets.isEmpty() ? get(rows, ALL) : sets.get(0);
+        for (int i = 1; i < sets.size(); i++) {
+            result = intersect(result, sets.get(i));
+        }
+        if (active != null && !active) {
+            result = difference(result, get(rows, ACTIVE));
+        }
+        return result;
+    }
+
+    // update moves campaigns in the index: removed campaigns are taken out
+    // of all sets they were in, added ones are put into sets matching their
+    // current fields. Updated campaign is both removed (old version) and
+    // added (new version). Changes are stored as entry rows, one per
+    // campaign, even when the index does not exist yet. Caller should run it
+    // in the same transaction as campaign changes.
+    public static void update(Collection<Campaign> removed, Collection<Campaign> added) {
+        Map<Long, Campaign> before = byID(removed);
+        Map<Long, Campaign> after = byID(added);
+        Set<Long> ids = new HashSet<Long>(before.keySet());
+        ids.addAll(after.keySet());
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        Map<Long, CampaignIndexEntry> stored = ObjectifyService.ofy().load().type(CampaignIndexEntry.class).ids(ids);
+        Date now = new Date();
+        List<CampaignIndexEntry> entries = new ArrayList<CampaignIndexEntry>();
+        for (Long id : ids) {
+            List<String> sets = sets(after.get(id));
+            // sets of not compacted change still have to be cleaned up
+            Set<String> unset = new TreeSet<String>(sets(before.get(id)));
+            if (stored.containsKey(id) && stored.get(id).unset != null) {
+                unset.addAll(stored.get(id).unset);
+            }
+            unset.removeAll(sets);
+            entries.add(new CampaignIndexEntry(id, sets, new ArrayList<String>(unset), now));
+        }
+        ObjectifyService.ofy().save().entities(entries).now();
+        queueCompaction();
+    }
+
+    // compact applies all entries to the sets, one transaction per changed
+    // set, and deletes entries older than KEEP_ENTRY_MILLIS. Entries are
+    // kept when the index does not exist yet, rebuild compacts them. Caller
+    // must have Objectify context.
+    // returns: number of entries found
+    public static int compact() {
+        if (ObjectifyService.ofy().load().type(CampaignIndexRow.class).id(ALL).now() == null) {
+            return 0;
+        }
+        final List<CampaignIndexEntry> entries = ObjectifyService.ofy().load().type(CampaignIndexEntry.class).list();
+        Set<String> names = new TreeSet<String>();
+        for (CampaignIndexEntry e : entries) {
+            names.addAll(list(e.sets));
+            names.addAll(list(e.unset));
+        }
+        for (final String name : names) {
+            ObjectifyService.ofy().transact(new VoidWork() {
+                public void vrun() {
+                    List<String> set = Collections.singletonList(name);
+                    Map<String, long[]> rows = load(set);
+                    long[] old = rows.get(name);
+                    long[] ids = apply(rows, set, entries).get(name);
+                    if (old == null || !Arrays.equals(old, ids)) {
+                        ObjectifyService.ofy().save().entities(chunks(name, ids, old)).now();
+                    }
+                }
+            });
+        }
+
+        // entries changed meanwhile are kept, they are compacted next time
+        long deleteBefore = System.currentTimeMillis() - keepEntryMillis;
+        final List<CampaignIndexEntry> old = new ArrayList<CampaignIndexEntry>();
+        for (CampaignIndexEntry e : entries) {
+            if (e.updatedAt == null || e.updatedAt.getTime() <= deleteBefore) {
+                old.add(e);
+            }
+        }
+        for (int i = 0; i < old.size(); i += BatchWriter.GROUPS_PER_TRANSACTION) {
+            final List<CampaignIndexEntry> batch = old.subList(i,
+                    Math.min(old.size(), i + BatchWriter.GROUPS_PER_TRANSACTION));
+            ObjectifyService.ofy().transact(new VoidWork() {
+                public void vrun() {
+                    Map<Long, CampaignIndexEntry> current = ObjectifyService.ofy().load()
+                            .type(CampaignIndexEntry.class).ids(entryIDs(batch));
+                    List<CampaignIndexEntry> unchanged = new ArrayList<CampaignIndexEntry>();
+                    for (CampaignIndexEntry e : batch) {
+                        CampaignIndexEntry c = current.get(e.id);
+                        if (c != null && Objects.equals(c.updatedAt, e.updatedAt)) {
+                            unchanged.add(c);
+                        }
+                    }
+                    ObjectifyService.ofy().delete().entities(unchanged).now();
+                }
+            });
+        }
+        return entries.size();
+    }
+
+    // queueCompaction adds compaction task to the default push queue, unless
+    // this instance queued one recently. Task runs after entries could be
+    // deleted.
+    private static void queueCompaction() {
+        long now = System.currentTimeMillis();
+        long queuedAt = compactionQueuedAt.get();
+        if (now - queuedAt < keepEntryMillis / 2 || !compactionQueuedAt.compareAndSet(queuedAt, now)) {
+            return;
+        }
+        try {
+            QueueFactory.getDefaultQueue()
+                    .add(TaskOptions.Builder.withPayload(new CompactTask()).countdownMillis(keepEntryMillis));
+        } catch (RuntimeException ex) {
+            // entries are read together with the sets meanwhile, next change
+            // queues compaction again
+            log.log(Level.WARNING, "could not queue campaign index compaction", ex);
+            compactionQueuedAt.compareAndSet(now, queuedAt);
+        }
+    }
+
+    // CompactTask compacts entries into the sets on task request (see
+    // queueCompaction), it's queued again until no entries are left
+    static class CompactTask implements DeferredTask {
+        private static final long serialVersionUID = 1L;
+
+        public void run() {
+            if (compact() > 0) {
+                queueCompaction();
+            }
+        }
+    }
+
+    // queueRebuildIfMissing queues rebuild of the index if it does not exist
+    // yet (called on startup, see OfyHelper). Caller must have Objectify
+    // context.
+    public static void queueRebuildIfMissing() {
+        if (ObjectifyService.ofy().load().type(CampaignIndexRow.class).id(ALL).now() == null) {
+            queueRebuild();
+        }
+    }
+
+    // queueRebuild adds rebuild task to the default push queue, unless this
+    // instance queued one recently
+    private static void queueRebuild() {
+        long now = System.currentTimeMillis();
+        long queuedAt = rebuildQueuedAt.get();
+        if (now - queuedAt < REBUILD_RETRY_MILLIS || !rebuildQueuedAt.compareAndSet(queuedAt, now)) {
+            return;
+        }
+        try {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withPayload(new RebuildTask()));
+            log.info("campaign index is missing, rebuild queued");
+        } catch (RuntimeException ex) {
+            // try again on next use
+            log.log(Level.WARNING, "could not queue campaign index rebuild", ex);
+            rebuildQueuedAt.compareAndSet(now, queuedAt);
+        }
+    }
+
+    // RebuildTask rebuilds missing index on task request (see queueRebuild),
+    // index built meanwhile by another task is kept
+    static class RebuildTask implements DeferredTask {
+        private static final long serialVersionUID = 1L;
+
+        public void run() {
+            rebuildIfMissing();
+        }
+    }
+
+    // rebuildIfMissing builds the index if it does not exist yet. Caller must
+    // have Objectify context.
+    public static void rebuildIfMissing() {
+        if (ObjectifyService.ofy().load().type(CampaignIndexRow.class).id(ALL).now() == null) {
+            rebuild();
+        }
+    }
+
+    // rebuild builds the index out of all stored campaigns. Campaigns changed
+    // while the index is rebuilt (or not seen by campaign query yet) have
+    // entries, they are compacted into the sets once all sets are written.
+    // Caller must have Objectify context.
+    public static void rebuild() {
+        List<Campaign> campaigns = ObjectifyService.ofy().load().type(Campaign.class).list();
+        Map<String, List<Long>> memberships = memberships(campaigns);
+        // all and active rows are stored even when empty, missing all row
+        // means missing index
+        memberships.put(ALL, memberships.containsKey(ALL) ? memberships.get(ALL) : new ArrayList<Long>());
+        memberships.put(ACTIVE, memberships.containsKey(ACTIVE) ? memberships.get(ACTIVE) : new ArrayList<Long>());
+
+        List<CampaignIndexRow> rows = new ArrayList<CampaignIndexRow>();
+        for (Map.Entry<String, List<Long>> entry : memberships.entrySet()) {
+            rows.addAll(chunks(entry.getKey(), sorted(entry.getValue()), null));
+        }
+        // first chunk of all row is stored last, index exists only when all
+        // other rows are stored
+        CampaignIndexRow all = rows.remove(rows.indexOf(findRow(rows, ALL)));
+        ObjectifyService.ofy().save().entities(rows).now();
+        ObjectifyService.ofy().save().entity(all).now();
+        int entries = compact();
+        log.info("campaign index rebuilt out of " + campaigns.size() + " campaigns and " + entries + " changes");
+    }
+
+    // drop deletes all index rows, index is rebuilt on next use. Used when
+    // the index could not be updated together with campaigns (see
+    // CampaignBulk). Caller must have Objectify context.
+    public static void drop() {
+        ObjectifyService.ofy().delete().keys(ObjectifyService.ofy().load().type(CampaignIndexRow.class).keys().list())
+                .now();
+    }
+
+    // memberships returns row name => ids of campaigns which belong to the row
+    private static Map<String, List<Long>> memberships(Collection<Campaign> campaigns) {
+        Map<String, List<Long>> memberships = new HashMap<String, List<Long>>();
+        if (campaigns == null) {
+            return memberships;
+        }
+        for (Campaign c : campaigns) {
+            if (c == null || c.id == null) {
+                continue;
+            }
+            for (String name : sets(c)) {
+                addMember(memberships, name, c.id);
+            }
+        }
+        return memberships;
+    }
+
+    // sets returns names of sets the campaign belongs to, none for null
+    private static List<String> sets(Campaign c) {
+        List<String> sets = new ArrayList<String>();
+        if (c == null) {
+            return sets;
+        }
+        sets.add(ALL);
+        if (c.active != null && c.active) {
+            sets.add(ACTIVE);
+        }
+        if (c.platforms != null) {
+            for (Long platformID : c.platforms) {
+                if (!sets.contains(platformRow(platformID))) {
+                    sets.add(platformRow(platformID));
+                }
+            }
+        }
+        return sets;
+    }
+
+    private static Map<Long, Campaign> byID(Collection<Campaign> campaigns) {
+        Map<Long, Campaign> byID = new HashMap<Long, Campaign>();
+        if (campaigns != null) {
+            for (Campaign c : campaigns) {
+                if (c != null && c.id != null) {
+                    byID.put(c.id, c);
+                }
+            }
+        }
+        return byID;
+    }
+
+    private static List<Long> entryIDs(List<CampaignIndexEntry> entries) {
+        List<Long> ids = new ArrayList<Long>(entries.size());
+        for (CampaignIndexEntry e : entries) {
+            ids.add(e.id);
+        }
+        return ids;
+    }
+
+    private static List<String> list(List<String> names) {
+        return names == null ? Collections.<String> emptyList() : names;
+    }
+
+    // apply returns chosen sets with entries applied: campaigns are added to
+    // the sets they belong to and removed from the sets they left
+    private static Map<String, long[]> apply(Map<String, long[]> rows, Collection<String> names,
+            List<CampaignIndexEntry> entries) {
+        if (entries.isEmpty()) {
+            return rows;
+        }
+        Map<String, long[]> applied = new HashMap<String, long[]>(rows);
+        for (String name : names) {
+            List<Long> added = new ArrayList<Long>();
+            List<Long> removed = new ArrayList<Long>();
+            for (CampaignIndexEntry e : entries) {
+                if (list(e.sets).contains(name)) {
+                    added.add(e.id);
+                } else if (list(e.unset).contains(name)) {
+                    removed.add(e.id);
+                }
+            }
+            if (!added.isEmpty() || !removed.isEmpty()) {
+                applied.put(name, union(difference(get(rows, name), sorted(removed)), sorted(added)));
+            }
+        }
+        return applied;
+    }
+
+    private static void addMember(Map<String, List<Long>> memberships, String name, Long campaignID) {
+        List<Long> ids = memberships.get(name);
+        if (ids == null) {
+            ids = new ArrayList<Long>();
+            memberships.put(name, ids);
+        }
+        ids.add(campaignID);
+    }
+
+    // load returns set name => ids of the chosen sets, missing sets are left
+    // out. First chunks are loaded in one batch get, next chunks of big sets
+    // in a second one.
+    private static Map<String, long[]> load(List<String> names) {
+        Map<String, CampaignIndexRow> rows = ObjectifyService.ofy().load().type(CampaignIndexRow.class).ids(names);
+        List<String> more = new ArrayList<String>();
+        for (CampaignIndexRow row : rows.values()) {
+            for (int i = 1; i < row.chunks; i++) {
+                more.add(CampaignIndexRow.chunkID(row.id, i));
+            }
+        }
+        Map<String, CampaignIndexRow> chunks = more.isEmpty() ? Collections.<String, CampaignIndexRow> emptyMap()
+                : ObjectifyService.ofy().load().type(CampaignIndexRow.class).ids(more);
+
+        Map<String, long[]> sets = new HashMap<String, long[]>();
+        for (CampaignIndexRow row : rows.values()) {
+            List<long[]> parts = new ArrayList<long[]>();
+            int size = 0;
+            for (int i = 0; i < row.chunks; i++) {
+                CampaignIndexRow chunk = i == 0 ? row : chunks.get(CampaignIndexRow.chunkID(row.id, i));
+                // chunks are always stored together with the first one
+                long[] ids = chunk == null ? new long[0] : unpack(chunk.campaignIDs);
+                parts.add(ids);
+                size += ids.length;
+            }
+            // chunks hold increasing ranges of ids, concatenation is sorted
+            long[] ids = new long[size];
+            int n = 0;
+            for (long[] part : parts) {
+                System.arraycopy(part, 0, ids, n, part.length);
+                n += part.length;
+            }
+            sets.put(row.id, ids);
+        }
+        return sets;
+    }
+
+    // chunks splits sorted ids of the set into chunk rows. Chunks which hold
+    // the same ids in old version of the set (null => all are new) are not
+    // returned, ex. only the last chunk is written when campaign is created.
+    // Chunks over the new number of chunks are left in the datastore, they
+    // are never read and they are overwritten when the set grows again.
+    private static List<CampaignIndexRow> chunks(String name, long[] ids, long[] old) {
+        int size = chunkIDs;
+        int count = Math.max(1, (ids.length + size - 1) / size);
+        int oldCount = old == null ? -1 : Math.max(1, (old.length + size - 1) / size);
+        List<CampaignIndexRow> rows = new ArrayList<CampaignIndexRow>();
+        for (int i = 0; i < count; i++) {
+            int from = i * size;
+            int to = Math.min(ids.length, from + size);
+            // first chunk holds the number of chunks, it has to be written
+            // when the number changes
+            if (old != null && (i > 0 || count == oldCount) && to == Math.min(old.length, from + size)
+                    && Arrays.equals(Arrays.copyOfRange(ids, from, to), Arrays.copyOfRange(old, from, to))) {
+                continue;
+            }
+            CampaignIndexRow row = new CampaignIndexRow(CampaignIndexRow.chunkID(name, i),
+                    pack(Arrays.copyOfRange(ids, from, to)));
+            if (i == 0) {
+                row.chunks = count;
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static CampaignIndexRow findRow(List<CampaignIndexRow> rows, String id) {
+        for (CampaignIndexRow row : rows) {
+            if (row.id.equals(id)) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    // setChunkIDs changes number of ids per chunk row (used in tests)
+    public static void setChunkIDs(int ids) {
+        chunkIDs = ids;
+    }
+
+    // setKeepEntryMillis changes how long compacted entries are kept (used in
+    // tests)
+    public static void setKeepEntryMillis(long millis) {
+        keepEntryMillis = millis;
+    }
+
+    // clear restores default chunk size and entry age and forgets queued
+    // tasks (used in tests)
+    public static void clear() {
+        chunkIDs = CHUNK_IDS;
+        keepEntryMillis = KEEP_ENTRY_MILLIS;
+        rebuildQueuedAt.set(0);
+        compactionQueuedAt.set(0);
+    }
+
+    // get returns ids stored in the row, missing row is empty set
+    private static long[] get(Map<String, long[]> rows, String name) {
+        long[] ids = rows.get(name);
+        return ids == null ? new long[0] : ids;
+    }
+
+    // sorted returns sorted array of distinct ids
+    private static long[] sorted(List<Long> ids) {
+        long[] array = new long[ids.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ids.get(i);
+        }
+        Arrays.sort(array);
+        int n = 0;
+        for (int i = 0; i < array.length; i++) {
+            if (n == 0 || array[n - 1] != array[i]) {
+                array[n++] = array[i];
+            }
+        }
+        return Arrays.copyOf(array, n);
+    }
+
+    // intersect returns ids present in both sorted arrays
+    public static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    // union returns ids present in any of the sorted arrays
+    public static long[] union(long[] a, long[] b) {
+        long[] result = new long[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                result[n++] = a[i++];
+            } else if (i == a.length || a[i] > b[j]) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    // difference returns ids of sorted array a which are not in sorted array b
+    public static long[] difference(long[] a, long[] b) {
+        long[] result = new long[a.length];
+        int j = 0, n = 0;
+        for (int i = 0; i < a.length; i++) {
+            while (j < b.length && b[j] < a[i]) {
+                j++;
+            }
+            if (j == b.length || b[j] != a[i]) {
+                result[n++] = a[i];
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static byte[] pack(long[] ids) {
+        ByteBuffer buffer = ByteBuffer.allocate(ids.length * 8);
+        buffer.asLongBuffer().put(ids);
+        return buffer.array();
+    }
+
+    private static long[] unpack(byte[] bytes) {
+        if (bytes == null) {
+            return new long[0];
+        }
+        long[] ids = new long[bytes.length / 8];
+        ByteBuffer.wrap(bytes).asLongBuffer().get(ids);
+        return ids;
+    }
+}
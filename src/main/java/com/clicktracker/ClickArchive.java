@@ -0,0 +1,329 @@
+package com.clicktracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.clicktracker.model.Campaign;
+import com.clicktracker.model.Click;
+import com.clicktracker.model.ClickSegment;
+import com.clicktracker.model.MigrationState;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cmd.Query;
+
+// ClickArchive moves old raw clicks out of datastore into compact columnar
+// segment files (see ClickSegmentFormat) kept in segment store (see
+// SegmentStore), raw clicks are only read by exports and they are rarely
+// needed once they are old.
+//
+// Archiving goes campaign by campaign, clicks older than cutoff are written
+// into segments of at most segmentSize clicks of one UTC day. For every
+// segment:
+//      1. segment file is written to the store
+//      2. ClickSegment row is saved (purged == false), segment is visible to
+//         exports from now on
+//      3. archived clicks are deleted in batches, row is marked as purged
+// Segments which were not purged (instance died meanwhile) are purged at the
+// start of the next run, ids of their clicks are read from the segment file.
+// Progress is stored in MigrationState after every campaign, that way archiving
+// could be stopped and resumed at any time. Finished pass starts over on next
+// run, so archiving could be repeated periodically.
+//
+// Old clicks are found by createdAt index, clicks stored before createdAt was
+// indexed are re-saved first (see ClickIndexBackfill), nothing is archived
+// until the backfill is done.
+//
+// Exports read archived clicks of the time range first and clicks in datastore
+// after them (see ClickExport). Statistics are read from rollups and unique
+// visitor sketches, they do not depend on raw clicks.
+//
+// NOTE: clicks of segment which was not purged yet are exported twice.
+//
+// Configuration via system properties in appengine-web.xml:
+//      clicktracker.clickArchive.ageDays:     default age of archived clicks
+//      clicktracker.clickArchive.segmentSize: max clicks per segment
+//      clicktracker.clickArchive.store:       gs://bucket (empty bucket =>
+//                                             default bucket) or file:/dir
+public class ClickArchive {
+    private static final Logger log = Logger.getLogger(ClickArchive.class.getName());
+
+    static final String NAME = "click-archive";
+
+    public static final long AGE_DAYS = Long.getLong("clicktracker.clickArchive.ageDays", 90L);
+    private static final int SEGMENT_SIZE = Integer.getInteger("clicktracker.clickArchive.segmentSize", 20000);
+    private static final String STORE = System.getProperty("clicktracker.clickArchive.store", "gs://");
+
+    // datastore accepts at most 500 keys per batch delete
+    static final int DELETE_BATCH = 500;
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    // archive cursors look like a.{segmentID}.{offset}, web safe datastore
+    // cursors never contain dots
+    private static final String CURSOR_PREFIX = "a.";
+
+    private static volatile SegmentStore store = null;
+
+    // run archives clicks created before cutoff campaign by campaign until all
+    // campaigns are archived or timeBudgetMillis elapses (at least one segment
+    // is archived). Caller must have Objectify context.
+    // returns: archiving state after the last archived campaign, migrated is
+    // number of clicks archived in current pass
+    public static MigrationState run(Date cutoff, long timeBudgetMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeBudgetMillis;
+        MigrationState state = ObjectifyService.ofy().load().type(MigrationState.class).id(NAME).now();
+        if (state == null || state.done) {
+            state = new MigrationState(NAME);
+        }
+        // unindexed clicks would never be archived, backfill continues on
+        // next run when the time budget is used up
+        if (!ClickIndexBackfill.isDone()) {
+            ClickIndexBackfill.run(ClickIndexBackfill.BATCH_SIZE, Math.max(0, deadline - System.currentTimeMillis()));
+            if (!ClickIndexBackfill.isDone()) {
+                return state;
+            }
+        }
+        purgePending();
+
+        Query<Campaign> query = ObjectifyService.ofy().load().type(Campaign.class);
+        if (state.cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(state.cursor));
+        }
+        QueryResultIterator<Key<Campaign>> iterator = query.keys().iterator();
+        while (true) {
+            Cursor before = iterator.getCursor();
+            if (!iterator.hasNext()) {
+                state.cursor = null;
+                state.done = true;
+                break;
+            }
+            Long campaignID = iterator.next().getId();
+            if (!archiveCampaign(campaignID, cutoff, deadline, state)) {
+                // campaign is continued on next run
+                state.cursor = before.toWebSafeString();
+                break;
+            }
+            state.cursor = iterator.getCursor().toWebSafeString();
+            if (System.currentTimeMillis() >= deadline) {
+                break;
+            }
+        }
+        ObjectifyService.ofy().save().entity(state).now();
+        return state;
+    }
+
+    // archiveCampaign archives clicks of the campaign created before cutoff
+    // returns: false if deadline passed before all clicks were archived
+    private static boolean archiveCampaign(Long campaignID, Date cutoff, long deadline, MigrationState state)
+            throws IOException {
+        while (true) {
+            List<Click> clicks = ObjectifyService.ofy().load().type(Click.class).filter("campaignID", campaignID)
+                    .filter("createdAt <", cutoff).order("createdAt").limit(SEGMENT_SIZE).list();
+            if (clicks.isEmpty()) {
+                return true;
+            }
+            // segment holds clicks of one UTC day, exports find segments of
+            // time range by the first click
+            long dayEnd = ClickRollups.Granularity.DAY.bucketStart(clicks.get(0).createdAt.getTime()) + DAY;
+            int n = 0;
+            while (n < clicks.size() && clicks.get(n).createdAt.getTime() < dayEnd) {
+                n++;
+            }
+            boolean last = n == clicks.size() && clicks.size() < SEGMENT_SIZE;
+            List<Click> archived = clicks.subList(0, n);
+
+            ClickSegment segment = write(campaignID, archived);
+            List<Long> ids = new ArrayList<Long>(n);
+            for (Click c : archived) {
+                ids.add(c.id);
+            }
+            purge(segment, ids);
+            state.migrated += n;
+            // loaded clicks would pile up in the session cache otherwise
+            ObjectifyService.ofy().clear();
+
+            if (last) {
+                return true;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+        }
+    }
+
+    // write writes segment file and saves its ClickSegment row
+    private static ClickSegment write(Long campaignID, List<Click> clicks) throws IOException {
+        byte[] data = ClickSegmentFormat.encode(clicks);
+        SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+        day.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        ClickSegment segment = new ClickSegment();
+        segment.id = ObjectifyService.factory().allocateId(ClickSegment.class).getId();
+        segment.campaignID = campaignID;
+        segment.firstAt = clicks.get(0).createdAt;
+        segment.lastAt = clicks.get(clicks.size() - 1).createdAt;
+        segment.clicks = (long) clicks.size();
+        segment.bytes = (long) data.length;
+        segment.file = "clicks/" + campaignID + "/" + day.format(segment.firstAt) + "-" + segment.id + ".cts";
+        segment.purged = false;
+
+        store().write(segment.file, data);
+        ObjectifyService.ofy().save().entity(segment).now();
+        return segment;
+    }
+
+    // purge deletes archived clicks of the segment and marks it as purged
+    private static void purge(ClickSegment segment, List<Long> ids) {
+        for (int from = 0; from < ids.size(); from += DELETE_BATCH) {
+            ObjectifyService.ofy().delete().type(Click.class)
+                    .ids(ids.subList(from, Math.min(ids.size(), from + DELETE_BATCH))).now();
+        }
+        segment.purged = true;
+        ObjectifyService.ofy().save().entity(segment).now();
+    }
+
+    // purgePending purges segments which were written but their clicks were
+    // not deleted, segments which could not be read are left for the next run
+    private static void purgePending() {
+        List<ClickSegment> pending = ObjectifyService.ofy().load().type(ClickSegment.class).filter("purged", false)
+                .list();
+        for (ClickSegment segment : pending) {
+            try {
+                ClickSegmentFormat.Reader reader = new ClickSegmentFormat.Reader(store().read(segment.file),
+                        segment.campaignID);
+                List<Long> ids = new ArrayList<Long>(reader.size());
+                for (Click c = reader.next(); c != null; c = reader.next()) {
+                    ids.add(c.id);
+                }
+                purge(segment, ids);
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "could not purge clicks of segment " + segment.file, ex);
+            }
+        }
+    }
+
+    // segments returns archived segments of the campaign with clicks in
+    // from <= createdAt < to, ordered by the first click
+    static List<ClickSegment> segments(Long campaignID, Date from, Date to) {
+        // segments do not span UTC days, segment with clicks in the range
+        // starts at the same day as the range or later
+        Date dayStart = new Date(ClickRollups.Granularity.DAY.bucketStart(from.getTime()));
+        List<ClickSegment> segments = new ArrayList<ClickSegment>();
+        for (ClickSegment s : ObjectifyService.ofy().load().type(ClickSegment.class)
+                .filter("campaignID", campaignID).filter("firstAt >=", dayStart).filter("firstAt <", to)
+                .order("firstAt")) {
+            if (!s.lastAt.before(from)) {
+                segments.add(s);
+            }
+        }
+        // segments starting at the same millisecond are ordered by id, that
+        // way resumed export reads them in the same order
+        Collections.sort(segments, new Comparator<ClickSegment>() {
+            public int compare(ClickSegment a, ClickSegment b) {
+                int c = a.firstAt.compareTo(b.firstAt);
+                return c != 0 ? c : a.id.compareTo(b.id);
+            }
+        });
+        return segments;
+    }
+
+    // isCursor checks if export cursor points into archived clicks
+    static boolean isCursor(String cursor) {
+        return cursor != null && cursor.matches("a\\.[0-9]{1,18}\\.[0-9]{1,9}");
+    }
+
+    // Scan reads archived clicks of the campaign in time range segment by
+    // segment, only one segment file is held in memory
+    static class Scan {
+        private final List<ClickSegment> segments;
+        private final Date from;
+        private final Date to;
+        // current segment, its reader and number of clicks read from it
+        private int index = 0;
+        private ClickSegmentFormat.Reader reader = null;
+        private int offset = 0;
+
+        // Scan starts at archive cursor (see cursor) or at the beginning
+        // (cursor is null)
+        Scan(Long campaignID, Date from, Date to, String cursor) throws IOException {
+            this.segments = segments(campaignID, from, to);
+            this.from = from;
+            this.to = to;
+            if (cursor != null) {
+                String[] parts = cursor.substring(CURSOR_PREFIX.length()).split("\\.");
+                Long segmentID = Long.valueOf(parts[0]);
+                while (index < segments.size() && !segments.get(index).id.equals(segmentID)) {
+                    index++;
+                }
+                if (index == segments.size()) {
+                    throw new IOException("archived segment " + segmentID + " does not exist");
+                }
+                offset = Integer.parseInt(parts[1]);
+            }
+        }
+
+        // next returns next archived click in the time range
+        // returns: null after the last click
+        Click next() throws IOException {
+            while (index < segments.size()) {
+                if (reader == null) {
+                    ClickSegment s = segments.get(index);
+                    reader = new ClickSegmentFormat.Reader(store().read(s.file), s.campaignID);
+                    reader.skip(offset);
+                }
+                Click c = reader.next();
+                if (c == null) {
+                    reader = null;
+                    index++;
+                    offset = 0;
+                    continue;
+                }
+                offset++;
+                if (!c.createdAt.before(from) && c.createdAt.before(to)) {
+                    return c;
+                }
+            }
+            return null;
+        }
+
+        // cursor returns cursor of the position after the last returned click
+        String cursor() {
+            if (index == segments.size()) {
+                // any position in the last segment past its clicks
+                return segments.isEmpty() ? null
+                        : CURSOR_PREFIX + segments.get(index - 1).id + "." + segments.get(index - 1).clicks;
+            }
+            return CURSOR_PREFIX + segments.get(index).id + "." + offset;
+        }
+    }
+
+    // store returns segment store configured via system property
+    static SegmentStore store() {
+        SegmentStore s = store;
+        if (s == null) {
+            if (STORE.startsWith("file:")) {
+                s = new FileSegmentStore(new File(STORE.substring("file:".length())));
+            } else {
+                s = new GcsSegmentStore(STORE.startsWith("gs://") ? STORE.substring("gs://".length()) : STORE);
+            }
+            store = s;
+        }
+        return s;
+    }
+
+    // setStore replaces configured segment store (used in tests), null =>
+    // store configured via system property
+    public static void setStore(SegmentStore s) {
+        store = s;
+    }
+}
@@ -0,0 +1,198 @@
+package com.clicktracker;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.clicktracker.model.Click;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+// ClickDeduplicator suppresses repeated clicks of the same visitor (same
+// campaign + IP + User-Agent) within windowSeconds, ex. refresh storms and
+// bot retries. Duplicates are not counted into campaign click counters.
+//
+// Seen visitors are tracked in time-bucketed count-min sketches: the window
+// is split into BUCKETS sub-windows, every sub-window has its own sketch.
+// Sketch of the next sub-window is allocated ahead of time off the redirect
+// path (see prepare, called by ClickQueue flusher and CacheRefresher) and
+// swapped into the slot of the sketch which already left the window, so
+// redirects never clear sketches or wait for each other. When the sketch was
+// not prepared in time, the first click of the sub-window allocates it.
+// Visitor is seen while the click falls into the current sub-window or one of
+// BUCKETS - 1 previous ones, so the window is between windowSeconds minus one
+// sub-window and windowSeconds, never longer. That way memory stays fixed
+// (BUCKETS + 1 sketches of depth x sketchWidth ints) no matter how many distinct
+// visitors arrive. The price is that sketches
+// could report visitor as seen when it was not (hash collisions in all rows),
+// so the sketch width should be large compared to number of distinct
+// visitors per window (with default settings and 10k visitors per window
+// around 0.5% of first clicks are treated as duplicates).
+//
+// mode decides what happens with duplicates:
+// - DROP: click is not stored at all (saves the datastore write)
+// - MARK: click is stored with duplicate flag, but not counted
+// - OFF: deduplication is disabled
+//
+// Suppressed clicks are counted per campaign with sharded counters (see
+// ShardedCounter.duplicatesCounter) and displayed on admin campaign page.
+//
+// Settings could be changed via system properties in appengine-web.xml:
+//      clicktracker.dedup.mode
+//      clicktracker.dedup.windowSeconds
+//      clicktracker.dedup.sketchWidth
+public class ClickDeduplicator {
+    public enum Mode {
+        OFF, DROP, MARK
+    }
+
+    private static final int BUCKETS = 5;
+    private static final int DEPTH = 4;
+    private static final long WINDOW_MILLIS = Long.getLong("clicktracker.dedup.windowSeconds", 10L) * 1000;
+    private static final long BUCKET_MILLIS = Math.max(1, WINDOW_MILLIS / BUCKETS);
+    private static final int WIDTH = Integer.getInteger("clicktracker.dedup.sketchWidth", 1 << 15);
+
+    private static final HashFunction hash = Hashing.murmur3_128();
+
+    private static volatile Mode mode = Mode
+            .valueOf(System.getProperty("clicktracker.dedup.mode", "DROP").toUpperCase());
+
+    // current sub-window + BUCKETS - 1 previous ones + the next one (or the
+    // one which left the window, until the next one is prepared)
+    private static final AtomicReferenceArray<Sketch> sketches = new AtomicReferenceArray<Sketch>(BUCKETS + 1);
+    static {
+        for (int i = 0; i < sketches.length(); i++) {
+            sketches.set(i, new Sketch(-1));
+        }
+    }
+
+    private static final AtomicLong suppressed = new AtomicLong();
+
+    // Sketch is count-min sketch of visitors seen in one sub-window
+    private static class Sketch {
+        // number of the sub-window (time / BUCKET_MILLIS) the sketch counts
+        final long bucket;
+        final AtomicIntegerArray counts = new AtomicIntegerArray(DEPTH * WIDTH);
+
+        Sketch(long bucket) {
+            this.bucket = bucket;
+        }
+
+        // count returns estimated number of clicks with chosen visitor hash
+        int count(long h1, long h2) {
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                min = Math.min(min, counts.get(index(row, h1, h2)));
+            }
+            return min;
+        }
+
+        void add(long h1, long h2) {
+            for (int row = 0; row < DEPTH; row++) {
+                counts.incrementAndGet(index(row, h1, h2));
+            }
+        }
+
+        // index derives row hashes from two halves of 128 bit hash
+        private static int index(int row, long h1, long h2) {
+            long h = h1 + row * h2;
+            return row * WIDTH + (int) ((h & Long.MAX_VALUE) % WIDTH);
+        }
+    }
+
+    // filter checks if click is duplicate and handles it according to mode
+    // returns: false if click should be dropped
+    public static boolean filter(Click click) {
+        Mode m = mode;
+        if (m == Mode.OFF || click.campaignID == null) {
+            return true;
+        }
+        if (!seen(click, System.currentTimeMillis())) {
+            return true;
+        }
+
+        suppressed.incrementAndGet();
+        CounterAggregator.add(ShardedCounter.duplicatesCounter(click.campaignID), 1);
+        if (m == Mode.MARK) {
+            click.duplicate = true;
+            return true;
+        }
+        return false;
+    }
+
+    // seen checks if visitor of the click was seen within the window and
+    // adds the click to the current sub-window (time is passed in, so tests
+    // could move the clock)
+    public static boolean seen(Click click, long now) {
+        byte[] digest = hash.newHasher().putLong(click.campaignID)
+                .putString(click.ip == null ? "" : click.ip, StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(click.userAgent == null ? "" : click.userAgent, StandardCharsets.UTF_8).hash()
+                .asBytes();
+        long h1 = toLong(digest, 0);
+        long h2 = toLong(digest, 8);
+
+        long current = now / BUCKET_MILLIS;
+        Sketch currentSketch = sketch(current);
+        boolean seen = false;
+        for (int i = 0; i < sketches.length(); i++) {
+            Sketch s = sketches.get(i);
+            if (s.bucket > current - BUCKETS && s.bucket <= current && s.count(h1, h2) > 0) {
+                seen = true;
+                break;
+            }
+        }
+        currentSketch.add(h1, h2);
+        return seen;
+    }
+
+    // sketch returns sketch of the chosen sub-window, new sketch is swapped
+    // in when the slot still holds old sub-window (see prepare)
+    private static Sketch sketch(long bucket) {
+        int slot = (int) (bucket % sketches.length());
+        while (true) {
+            Sketch s = sketches.get(slot);
+            if (s.bucket >= bucket) {
+                return s;
+            }
+            Sketch fresh = new Sketch(bucket);
+            if (sketches.compareAndSet(slot, s, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    // prepare allocates sketches of the current and the next sub-window, if
+    // they do not exist yet, that way redirects find them ready. Slot of the
+    // next sub-window holds sketch which already left the window.
+    public static void prepare(long now) {
+        long current = now / BUCKET_MILLIS;
+        sketch(current);
+        sketch(current + 1);
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset + 7; i >= offset; i--) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    // setMode changes deduplication mode (used in tests)
+    public static void setMode(Mode newMode) {
+        mode = newMode;
+    }
+
+    // clear forgets all seen visitors (used in tests)
+    public static void clear() {
+        for (int i = 0; i < sketches.length(); i++) {
+            sketches.set(i, new Sketch(-1));
+        }
+    }
+
+    // suppressed returns number of duplicate clicks detected by this instance
+    public static long suppressed() {
+        return suppressed.get();
+    }
+}
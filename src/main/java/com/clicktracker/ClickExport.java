@@ -0,0 +1,266 @@
+package com.clicktracker;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import com.clicktracker.model.Click;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.gson.stream.JsonWriter;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cmd.Query;
+
+// ClickExport streams raw clicks of the campaign in chosen time range as
+// NDJSON (one json object per line) or CSV, ordered by click time (see
+// AdminServlet, /api/v1/admin/campaign/{id}/clicks).
+//
+// Clicks are read in chunks of chunkSize, every chunk is a separate query
+// starting at cursor of the previous one. Output is flushed and Objectify
+// session is cleared after every chunk, so memory used by the export does not
+// depend on number of clicks.
+//
+// After every chunk a checkpoint with the cursor is written, export could be
+// resumed from the last checkpoint the client received (dropped connection or
+// request deadline). End of the export is marked as well:
+//      NDJSON: {"cursor":"..."} and {"done":true} lines
+//      CSV:    #cursor,... and #done lines (data rows start with click id)
+//
+// Clicks moved to the archive (see ClickArchive) are read from segment files
+// before clicks in datastore, checkpoints of that part hold archive cursors.
+//
+// Clicks stored before createdAt was indexed are missing from the createdAt
+// index until they are re-saved (see ClickIndexBackfill). Until then exports
+// scan all clicks of the campaign (campaignID index) and filter them by time
+// in memory, that part is ordered by click id instead of click time and its
+// checkpoints hold scan cursors, so resumed export keeps scanning even when
+// the backfill finishes meanwhile.
+public class ClickExport {
+    public enum Format {
+        NDJSON, CSV
+    }
+
+    static final String CSV_HEADER = "id,createdAt,ip,userAgent,platformID,duplicate";
+
+    // scan cursors look like s.{web safe datastore cursor}, web safe datastore
+    // cursors never contain dots
+    private static final String SCAN_CURSOR_PREFIX = "s.";
+
+    // export writes clicks with from <= createdAt < to, starting at the cursor
+    // (null => beginning). Export stops at the end or when deadline (millis)
+    // passes. Caller must have Objectify context.
+    //
+    // returns: cursor of the last checkpoint, null if export is done
+    public static String export(Writer out, Format format, Long campaignID, Date from, Date to, String cursor,
+            int chunkSize, long deadline) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        JsonWriter json = null;
+        if (format == Format.NDJSON) {
+            // lenient writer accepts multiple top level values (one per line)
+            json = new JsonWriter(out);
+            json.setLenient(true);
+        } else if (cursor == null) {
+            out.write(CSV_HEADER);
+            out.write('\n');
+        }
+
+        // archived clicks are older than clicks in datastore, they go first
+        if (cursor == null || ClickArchive.isCursor(cursor)) {
+            ClickArchive.Scan scan = new ClickArchive.Scan(campaignID, from, to, cursor);
+            while (true) {
+                int count = 0;
+                Click c;
+                while (count < chunkSize && (c = scan.next()) != null) {
+                    write(out, json, c, dateFormat);
+                    count++;
+                }
+                if (count < chunkSize) {
+                    break;
+                }
+                cursor = scan.cursor();
+                writeCheckpoint(out, json, cursor);
+                out.flush();
+                if (System.currentTimeMillis() >= deadline) {
+                    return cursor;
+                }
+            }
+            cursor = null;
+        }
+
+        if (cursor == null ? !ClickIndexBackfill.isDone() : cursor.startsWith(SCAN_CURSOR_PREFIX)) {
+            return scan(out, json, campaignID, from, to, cursor, chunkSize, deadline, dateFormat);
+        }
+        while (true) {
+            Query<Click> query = ObjectifyService.ofy().load().type(Click.class).filter("campaignID", campaignID)
+                    .filter("createdAt >=", from).filter("createdAt <", to).order("createdAt").limit(chunkSize)
+                    .chunk(chunkSize);
+            if (cursor != null) {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            }
+            QueryResultIterator<Click> iterator = query.iterator();
+            int count = 0;
+            while (iterator.hasNext()) {
+                write(out, json, iterator.next(), dateFormat);
+                count++;
+            }
+            // loaded clicks would pile up in the session cache otherwise
+            ObjectifyService.ofy().clear();
+
+            if (count < chunkSize) {
+                writeDone(out, json);
+                out.flush();
+                return null;
+            }
+            cursor = iterator.getCursor().toWebSafeString();
+            writeCheckpoint(out, json, cursor);
+            out.flush();
+            if (System.currentTimeMillis() >= deadline) {
+                return cursor;
+            }
+        }
+    }
+
+    // scan writes clicks with from <= createdAt < to out of all clicks of the
+    // campaign, starting at scan cursor (null => beginning). Used until all
+    // clicks are indexed by createdAt (see ClickIndexBackfill).
+    //
+    // returns: cursor of the last checkpoint, null if export is done
+    private static String scan(Writer out, JsonWriter json, Long campaignID, Date from, Date to, String cursor,
+            int chunkSize, long deadline, SimpleDateFormat dateFormat) throws IOException {
+        while (true) {
+            Query<Click> query = ObjectifyService.ofy().load().type(Click.class).filter("campaignID", campaignID)
+                    .limit(chunkSize).chunk(chunkSize);
+            if (cursor != null) {
+                query = query.startAt(Cursor.fromWebSafeString(cursor.substring(SCAN_CURSOR_PREFIX.length())));
+            }
+            QueryResultIterator<Click> iterator = query.iterator();
+            int count = 0;
+            while (iterator.hasNext()) {
+                Click c = iterator.next();
+                count++;
+                if (c.createdAt != null && !c.createdAt.before(from) && c.createdAt.before(to)) {
+                    write(out, json, c, dateFormat);
+                }
+            }
+            // loaded clicks would pile up in the session cache otherwise
+            ObjectifyService.ofy().clear();
+
+            if (count < chunkSize) {
+                writeDone(out, json);
+                out.flush();
+                return null;
+            }
+            cursor = SCAN_CURSOR_PREFIX + iterator.getCursor().toWebSafeString();
+            writeCheckpoint(out, json, cursor);
+            out.flush();
+            if (System.currentTimeMillis() >= deadline) {
+                return cursor;
+            }
+        }
+    }
+
+    // validCursor checks cursor received from the client
+    public static boolean validCursor(String cursor) {
+        if (ClickArchive.isCursor(cursor)) {
+            return true;
+        }
+        if (cursor.startsWith(SCAN_CURSOR_PREFIX)) {
+            cursor = cursor.substring(SCAN_CURSOR_PREFIX.length());
+        }
+        try {
+            Cursor.fromWebSafeString(cursor);
+            return true;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    private static void write(Writer out, JsonWriter json, Click c, SimpleDateFormat dateFormat)
+            throws IOException {
+        if (json != null) {
+            writeJson(json, c, dateFormat);
+            out.write('\n');
+        } else {
+            writeCsv(out, c, dateFormat);
+        }
+    }
+
+    private static void writeJson(JsonWriter json, Click c, SimpleDateFormat dateFormat) throws IOException {
+        json.beginObject();
+        json.name("id").value(c.id);
+        if (c.createdAt != null) {
+            json.name("createdAt").value(dateFormat.format(c.createdAt));
+        }
+        json.name("ip").value(c.ip);
+        json.name("userAgent").value(c.userAgent);
+        json.name("platformID").value(c.platformID);
+        json.name("duplicate").value(c.duplicate != null && c.duplicate);
+        json.endObject();
+    }
+
+    private static void writeCsv(Writer out, Click c, SimpleDateFormat dateFormat) throws IOException {
+        out.write(String.valueOf(c.id));
+        out.write(',');
+        if (c.createdAt != null) {
+            out.write(dateFormat.format(c.createdAt));
+        }
+        out.write(',');
+        writeCsvField(out, c.ip);
+        out.write(',');
+        writeCsvField(out, c.userAgent);
+        out.write(',');
+        if (c.platformID != null) {
+            out.write(String.valueOf(c.platformID));
+        }
+        out.write(',');
+        out.write(c.duplicate != null && c.duplicate ? "true" : "false");
+        out.write('\n');
+    }
+
+    // writeCsvField writes field quoted when it contains separator, quote or
+    // new line (RFC 4180), null is written as empty field
+    static void writeCsvField(Writer out, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char ch = value.charAt(i);
+            quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    private static void writeCheckpoint(Writer out, JsonWriter json, String cursor) throws IOException {
+        if (json != null) {
+            json.beginObject();
+            json.name("cursor").value(cursor);
+            json.endObject();
+            out.write('\n');
+        } else {
+            out.write("#cursor,");
+            out.write(cursor);
+            out.write('\n');
+        }
+    }
+
+    private static void writeDone(Writer out, JsonWriter json) throws IOException {
+        if (json != null) {
+            json.beginObject();
+            json.name("done").value(true);
+            json.endObject();
+            out.write('\n');
+        } else {
+            out.write("#done\n");
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.clicktracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.clicktracker.model.Click;
+import com.clicktracker.model.MigrationState;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cmd.Query;
+
+// ClickIndexBackfill re-saves Click rows stored before createdAt was indexed,
+// datastore writes index entries only when the row is saved. Until the
+// backfill is done, queries filtered by createdAt miss the old clicks:
+// - exports scan clicks of the campaign and filter them by time in memory
+//   (see ClickExport)
+// - archiving runs the backfill before it archives anything (see
+//   ClickArchive)
+//
+// Rows are re-saved in batches in key order, progress is stored in
+// MigrationState after every batch, that way the backfill could be stopped
+// and resumed at any time (like CounterMigration). Re-saving a row which is
+// already indexed does not change it, so clicks stored meanwhile do no harm.
+public class ClickIndexBackfill {
+    static final String NAME = "click-index-backfill";
+
+    public static final int BATCH_SIZE = 500;
+
+    // once the backfill is done it stays done, no need to load the state again
+    private static volatile boolean done = false;
+
+    // run re-saves clicks in batches of batchSize rows until all rows are
+    // re-saved or timeBudgetMillis elapses (at least one batch is re-saved).
+    // Caller must have Objectify context.
+    // returns: backfill state after the last processed batch
+    public static MigrationState run(int batchSize, long timeBudgetMillis) {
+        long deadline = System.currentTimeMillis() + timeBudgetMillis;
+        MigrationState state = loadState();
+        while (!state.done) {
+            state = runBatch(state, batchSize);
+            if (System.currentTimeMillis() >= deadline) {
+                break;
+            }
+        }
+        return state;
+    }
+
+    // runBatch re-saves next batch of clicks and stores the progress
+    private static MigrationState runBatch(MigrationState state, int batchSize) {
+        Query<Click> query = ObjectifyService.ofy().load().type(Click.class).limit(batchSize).chunk(batchSize);
+        if (state.cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(state.cursor));
+        }
+
+        QueryResultIterator<Click> iterator = query.iterator();
+        List<Click> clicks = new ArrayList<Click>(batchSize);
+        while (iterator.hasNext()) {
+            clicks.add(iterator.next());
+        }
+        ObjectifyService.ofy().save().entities(clicks).now();
+        // loaded clicks would pile up in the session cache otherwise
+        ObjectifyService.ofy().clear();
+
+        state.migrated += clicks.size();
+        state.cursor = iterator.getCursor().toWebSafeString();
+        state.done = clicks.size() < batchSize;
+        ObjectifyService.ofy().save().entity(state).now();
+        if (state.done) {
+            done = true;
+        }
+        return state;
+    }
+
+    // isDone checks if all clicks were re-saved
+    public static boolean isDone() {
+        if (!done) {
+            done = loadState().done;
+        }
+        return done;
+    }
+
+    private static MigrationState loadState() {
+        MigrationState state = ObjectifyService.ofy().load().type(MigrationState.class).id(NAME).now();
+        if (state == null) {
+            state = new MigrationState(NAME);
+        }
+        return state;
+    }
+
+    // clearCache forgets cached done flag (used in tests, since datastore is
+    // recreated for every test)
+    public static void clearCache() {
+        done = false;
+    }
+}
@@ -0,0 +1,383 @@
+package com.clicktracker;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.clicktracker.model.Click;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+// ClickQueue is asynchronous click ingestion pipeline. Tracker servlet hands
+// clicks over to the bounded in-memory queue and redirects the user without
+// waiting for datastore writes. Queued clicks are persisted in batches via
+// ofy().save().entities(batch), counters are updated by CounterAggregator.
+//
+// Clicks are flushed:
+// - by background flusher every flushIntervalMillis (see start()), or
+// - when background threads are not available (auto scaled GAE instances)
+//   and the batch is full or flush interval elapsed, queued clicks are handed
+//   over to push task queue in batches (see PersistTask). Clicks and their
+//   counters are written by the task request, redirect only adds the task.
+//   Hand off is checked on every click and after every other api request
+//   served by the instance (see MetricsFilter), or
+// - on shutdown (see OfyHelper), that way queued clicks are drained.
+//
+// NOTE: without background flusher nothing runs between requests, clicks of
+// the last partial batch wait in memory until the instance serves the next
+// request. Auto scaled instances get no shutdown hook, so when such instance
+// is shut down after it stopped getting requests, those clicks (at most
+// batchSize, queued within flushIntervalMillis) are lost.
+//
+// When the queue is full, overflowPolicy decides what to do with the click:
+// - BLOCK: request thread waits until flusher frees up space
+// - DROP: click is dropped and counted (see dropped())
+// - SPILL: click is written synchronously on the request thread
+// Without background flusher the queue is handed over first, policy is used
+// only when the click still does not fit (task queue is not available).
+//
+// Settings could be changed via system properties in appengine-web.xml:
+//      clicktracker.clickQueue.capacity
+//      clicktracker.clickQueue.batchSize
+//      clicktracker.clickQueue.flushIntervalMillis
+//      clicktracker.clickQueue.overflowPolicy
+//      clicktracker.clickQueue.taskQueue
+public class ClickQueue {
+    private static final Logger log = Logger.getLogger(ClickQueue.class.getName());
+
+    public enum OverflowPolicy {
+        BLOCK, DROP, SPILL
+    }
+
+    private static final int CAPACITY = Integer.getInteger("clicktracker.clickQueue.capacity", 10000);
+    private static final int BATCH_SIZE = Integer.getInteger("clicktracker.clickQueue.batchSize", 500);
+    private static final long FLUSH_INTERVAL_MILLIS = Long.getLong("clicktracker.clickQueue.flushIntervalMillis",
+            1000L);
+    private static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy
+            .valueOf(System.getProperty("clicktracker.clickQueue.overflowPolicy", "SPILL").toUpperCase());
+    // push queue of handed over batches (see handOff)
+    private static final String TASK_QUEUE = System.getProperty("clicktracker.clickQueue.taskQueue", "default");
+
+    private static final BlockingQueue<Click> queue = new ArrayBlockingQueue<Click>(CAPACITY);
+    // flushLock ensures only one thread is writing counters at the time
+    private static final Object flushLock = new Object();
+    private static volatile ScheduledExecutorService flusher = null;
+    private static volatile long lastFlush = 0L;
+    // only one request thread hands the queue over, others just add clicks
+    private static final AtomicBoolean handingOff = new AtomicBoolean();
+
+    private static final AtomicLong accepted = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong spilled = new AtomicLong();
+    private static final AtomicLong flushed = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static final AtomicLong handedOff = new AtomicLong();
+
+    // add hands click over to the queue
+    // returns: false if click was dropped
+    public static boolean add(Click click) {
+        boolean ok = queue.offer(click);
+        if (!ok) {
+            ok = handleOverflow(click);
+        }
+        if (ok) {
+            accepted.incrementAndGet();
+        }
+
+        // there is no background flusher, clicks are handed over to task
+        // queue, request thread does not write them
+        if (flusher == null && (queue.size() >= BATCH_SIZE || flushDue())) {
+            handOff();
+        }
+        return ok;
+    }
+
+    // handleOverflow handles click that could not fit into the full queue
+    private static boolean handleOverflow(Click click) {
+        // without flusher nobody would free up the space
+        if (flusher == null) {
+            handOff();
+            if (queue.offer(click)) {
+                return true;
+            }
+        }
+        switch (OVERFLOW_POLICY) {
+        case BLOCK:
+            // queue could not be handed over, waiting would not help
+            if (flusher == null) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            try {
+                queue.put(click);
+                return true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+                return false;
+            }
+        case DROP:
+            dropped.incrementAndGet();
+            return false;
+        default: // SPILL
+            List<Click> single = new ArrayList<Click>();
+            single.add(click);
+            persist(single);
+            spilled.incrementAndGet();
+            return true;
+        }
+    }
+
+    private static boolean flushDue() {
+        return System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL_MILLIS;
+    }
+
+    // flush drains the queue and persists clicks in batches of BATCH_SIZE.
+    // Caller must have Objectify context (ObjectifyFilter or ObjectifyService.begin())
+    public static void flush() {
+        synchronized (flushLock) {
+            lastFlush = System.currentTimeMillis();
+            List<Click> batch = new ArrayList<Click>(BATCH_SIZE);
+            while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+                try {
+                    persist(batch);
+                    flushed.addAndGet(batch.size());
+                } catch (RuntimeException ex) {
+                    // datastore is not available, try again on next flush
+                    // (clicks that do not fit back into the queue are lost)
+                    log.log(Level.WARNING, "could not persist " + batch.size() + " clicks", ex);
+                    failed.addAndGet(batch.size());
+                    for (Click c : batch) {
+                        if (!queue.offer(c)) {
+                            dropped.incrementAndGet();
+                        }
+                    }
+                    return;
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    // handOffIfDue hands the queue over to task queue if there is no
+    // background flusher and flush interval elapsed, called after api
+    // requests (see MetricsFilter), so queued clicks do not wait for the next
+    // click
+    public static void handOffIfDue() {
+        if (flusher == null && !queue.isEmpty() && flushDue()) {
+            handOff();
+        }
+    }
+
+    // handOff drains the queue into push tasks of at most BATCH_SIZE clicks
+    // (see PersistTask), used when there is no background flusher. Click ids
+    // are allocated before the task is added, so retried task overwrites the
+    // same rows. Allocating ids and adding the task are the only RPCs made by
+    // the request thread.
+    static void handOff() {
+        if (!handingOff.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            lastFlush = System.currentTimeMillis();
+            List<Click> batch = new ArrayList<Click>(BATCH_SIZE);
+            while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+                try {
+                    allocateIDs(batch);
+                    QueueFactory.getQueue(TASK_QUEUE).add(TaskOptions.Builder.withPayload(new PersistTask(batch)));
+                    handedOff.addAndGet(batch.size());
+                } catch (RuntimeException ex) {
+                    // task queue is not available, try again on next hand off
+                    // (clicks that do not fit back into the queue are lost)
+                    log.log(Level.WARNING, "could not hand over " + batch.size() + " clicks", ex);
+                    failed.addAndGet(batch.size());
+                    for (Click c : batch) {
+                        if (!queue.offer(c)) {
+                            dropped.incrementAndGet();
+                        }
+                    }
+                    return;
+                }
+                batch = new ArrayList<Click>(BATCH_SIZE);
+            }
+        } finally {
+            handingOff.set(false);
+        }
+    }
+
+    // allocateIDs assigns datastore ids to clicks without id
+    private static void allocateIDs(List<Click> clicks) {
+        int missing = 0;
+        for (Click c : clicks) {
+            if (c.id == null) {
+                missing++;
+            }
+        }
+        if (missing == 0) {
+            return;
+        }
+        Iterator<Key<Click>> keys = ObjectifyService.factory().allocateIds(Click.class, missing).iterator();
+        for (Click c : clicks) {
+            if (c.id == null) {
+                c.id = keys.next().getId();
+            }
+        }
+    }
+
+    // PersistTask persists batch of handed over clicks in push task request
+    // (see handOff). Failed task is retried by the task queue: clicks have
+    // their ids already, so the retry overwrites the same rows. Task fails
+    // only when clicks could not be saved, clicks are counted only after they
+    // are saved, so the retry does not count them twice.
+    // Counters are flushed right away when the instance running the task has
+    // no background flusher, nobody else would flush them. For the same
+    // reason the task refreshes due caches (see CacheRefresher).
+    static class PersistTask implements DeferredTask {
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<Click> clicks;
+
+        PersistTask(List<Click> clicks) {
+            this.clicks = new ArrayList<Click>(clicks);
+        }
+
+        public void run() {
+            persist(clicks);
+            flushed.addAndGet(clicks.size());
+            // clicks are saved and counted, retry would count them again
+            try {
+                if (!CounterAggregator.running()) {
+                    CounterAggregator.flush();
+                }
+                if (!CacheRefresher.running()) {
+                    CacheRefresher.refreshDue();
+                }
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "could not flush counters after persisting clicks", ex);
+            }
+        }
+    }
+
+    // persist stores clicks into database and counts them into click counters
+    // (total and per platform), unique visitors and time rollups of their
+    // campaigns (all are written by CounterAggregator). Clicks marked as
+    // duplicates are stored, but not counted.
+    public static void persist(List<Click> clicks) {
+        ObjectifyService.ofy().save().entities(clicks).now();
+        for (Click c : clicks) {
+            if (c.duplicate == null || !c.duplicate) {
+                CounterAggregator.add(c.campaignID, 1);
+                CounterAggregator.add(ShardedCounter.platformCounter(c.campaignID, c.platformID), 1);
+                UniqueVisitorCounter.add(c);
+                ClickRollups.add(c);
+            }
+        }
+    }
+
+    // start starts background flusher. If background threads are not supported
+    // on this instance, clicks are handed over to task queue instead.
+    public static synchronized void start() {
+        if (flusher != null) {
+            return;
+        }
+        ThreadFactory factory = Utilities.backgroundThreadFactory();
+        if (factory == null) {
+            log.info("background threads are not available, handing clicks over to task queue");
+            return;
+        }
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(factory);
+        try {
+            scheduleFlushes(executor);
+        } catch (RuntimeException ex) {
+            // auto scaled instances fail when the background thread is created
+            log.log(Level.INFO, "background flusher could not be started, handing clicks over to task queue", ex);
+            executor.shutdownNow();
+            return;
+        }
+        flusher = executor;
+    }
+
+    private static void scheduleFlushes(ScheduledExecutorService executor) {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                // runnable must not throw, otherwise next flushes are cancelled
+                try (Closeable session = ObjectifyService.begin()) {
+                    // dedup sketch of the next sub-window is ready before
+                    // redirects need it
+                    ClickDeduplicator.prepare(System.currentTimeMillis());
+                    flush();
+                } catch (RuntimeException ex) {
+                    log.log(Level.WARNING, "click flush failed", ex);
+                }
+            }
+        }, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // shutdown stops background flusher and drains the queue
+    public static synchronized void shutdown() {
+        ScheduledExecutorService executor = flusher;
+        flusher = null;
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try (Closeable session = ObjectifyService.begin()) {
+            flush();
+        }
+    }
+
+    // clear removes all queued clicks without persisting them (used in tests)
+    public static void clear() {
+        queue.clear();
+        lastFlush = 0L;
+    }
+
+    // size returns number of clicks waiting to be persisted
+    public static int size() {
+        return queue.size();
+    }
+
+    public static long accepted() {
+        return accepted.get();
+    }
+
+    public static long dropped() {
+        return dropped.get();
+    }
+
+    public static long spilled() {
+        return spilled.get();
+    }
+
+    public static long flushed() {
+        return flushed.get();
+    }
+
+    public static long failed() {
+        return failed.get();
+    }
+
+    // handedOff returns number of clicks handed over to task queue
+    public static long handedOff() {
+        return handedOff.get();
+    }
+}
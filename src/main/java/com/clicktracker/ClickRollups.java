@@ -0,0 +1,299 @@
+package com.clicktracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.clicktracker.model.Click;
+import com.clicktracker.model.ClickRollup;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+
+// ClickRollups pre-aggregates clicks of every campaign into minute, hour and
+// day buckets (UTC), that way time based statistics are read from a few
+// rollup rows instead of scanning clicks.
+//
+// Consecutive buckets are stored together in one row: 60 minutes of an hour,
+// 24 hours of a day or 30 days (see Granularity.perRow), so 90 days of hours
+// are ~90 rows per shard instead of 2160.
+//
+// Ingested clicks are summed up in memory per bucket and the deltas are
+// written together with counters (see CounterAggregator.flush) into random
+// shard of the row (like ShardedCounter), one write per row, that way
+// instances flushing the same hot campaign do not contend on one row. Clicks
+// of the bucket are sum of its shards. Only rows with clicks are stored,
+// missing rows are reported as 0 clicks.
+//
+// Number of shards could only grow, since rows of removed shards would not
+// be read. It could be changed via system property in appengine-web.xml:
+//      clicktracker.clickRollups.shards
+public class ClickRollups {
+    private static final int SHARDS = Integer.getInteger("clicktracker.clickRollups.shards", 5);
+
+    // upper limit for number of buckets read by one query, ex. 1 day of
+    // minutes, 100 days of hours or 6 years of days (at most ~100 rows per
+    // shard, see stats)
+    public static final int MAX_BUCKETS = 2400;
+
+    public enum Granularity {
+        MINUTE("m", 60 * 1000L, 60), HOUR("h", 60 * 60 * 1000L, 24), DAY("d", 24 * 60 * 60 * 1000L, 30);
+
+        public final String code;
+        public final long millis;
+        // number of buckets stored in one row
+        public final int perRow;
+
+        Granularity(String code, long millis, int perRow) {
+            this.code = code;
+            this.millis = millis;
+            this.perRow = perRow;
+        }
+
+        // bucketStart returns start of the bucket containing chosen time,
+        // buckets are aligned to UTC epoch (days start at UTC midnight)
+        public long bucketStart(long time) {
+            return time - ((time % millis) + millis) % millis;
+        }
+
+        // rowStart returns start of the row holding the bucket containing
+        // chosen time, rows are aligned to UTC epoch as well (hours of a row
+        // are one UTC day)
+        public long rowStart(long time) {
+            long rowMillis = millis * perRow;
+            return time - ((time % rowMillis) + rowMillis) % rowMillis;
+        }
+
+        // parse returns granularity with chosen name (minute, hour, day)
+        // returns: null if name is not valid
+        public static Granularity parse(String name) {
+            for (Granularity g : values()) {
+                if (g.name().equalsIgnoreCase(name)) {
+                    return g;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Bucket holds number of clicks in bucket starting at start
+    public static class Bucket {
+        public final Date start;
+        public final long clicks;
+
+        public Bucket(Date start, long clicks) {
+            this.start = start;
+            this.clicks = clicks;
+        }
+    }
+
+    // BucketKey identifies bucket of the campaign
+    private static class BucketKey {
+        final Long campaignID;
+        final Granularity granularity;
+        final long start;
+
+        BucketKey(Long campaignID, Granularity granularity, long start) {
+            this.campaignID = campaignID;
+            this.granularity = granularity;
+            this.start = start;
+        }
+
+        // rowID returns id of the row holding the bucket (see ClickRollup.id)
+        String rowID() {
+            return ClickRollup.id(campaignID, granularity.code, granularity.rowStart(start));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BucketKey)) {
+                return false;
+            }
+            BucketKey other = (BucketKey) o;
+            return campaignID.equals(other.campaignID) && granularity == other.granularity && start == other.start;
+        }
+
+        @Override
+        public int hashCode() {
+            return (campaignID.hashCode() * 31 + granularity.hashCode()) * 31 + Long.valueOf(start).hashCode();
+        }
+    }
+
+    // bucket => clicks that were not written yet. Accumulators of buckets
+    // without new clicks are removed on flush (marked with CLOSED first, so
+    // no click is added to removed accumulator).
+    private static final ConcurrentMap<BucketKey, AtomicLong> pending = new ConcurrentHashMap<BucketKey, AtomicLong>();
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    // add counts click into minute, hour and day bucket of its campaign
+    public static void add(Click click) {
+        if (click.campaignID == null) {
+            return;
+        }
+        long time = click.createdAt == null ? System.currentTimeMillis() : click.createdAt.getTime();
+        for (Granularity g : Granularity.values()) {
+            add(new BucketKey(click.campaignID, g, g.bucketStart(time)), 1);
+        }
+    }
+
+    private static void add(BucketKey bucket, long clicks) {
+        while (true) {
+            AtomicLong accumulator = pending.get(bucket);
+            if (accumulator == null) {
+                AtomicLong newAccumulator = new AtomicLong();
+                accumulator = pending.putIfAbsent(bucket, newAccumulator);
+                if (accumulator == null) {
+                    accumulator = newAccumulator;
+                }
+            }
+            long current = accumulator.get();
+            if (current == CLOSED) {
+                // accumulator is being removed by flush, retry with new one
+                pending.remove(bucket, accumulator);
+                continue;
+            }
+            if (accumulator.compareAndSet(current, current + clicks)) {
+                return;
+            }
+        }
+    }
+
+    // flush writes accumulated clicks into rollup rows (used in tests, rollups
+    // are written together with counters, see CounterAggregator.flush).
+    // Caller must have Objectify context.
+    public static void flush() {
+        List<BatchWriter.Write> writes = new ArrayList<BatchWriter.Write>();
+        collect(writes);
+        BatchWriter.write(writes, 1, null);
+    }
+
+    // collect takes accumulated clicks as writes into random shard rows,
+    // buckets of the same row are written together. Only one thread should
+    // collect at the time (see CounterAggregator).
+    static void collect(List<BatchWriter.Write> writes) {
+        Map<String, RowWrite> rows = new LinkedHashMap<String, RowWrite>();
+        for (Map.Entry<BucketKey, AtomicLong> entry : pending.entrySet()) {
+            // bucket got no clicks since last flush, most likely it's an old
+            // bucket which is not needed anymore
+            if (entry.getValue().compareAndSet(0, CLOSED)) {
+                pending.remove(entry.getKey(), entry.getValue());
+                continue;
+            }
+            long delta = entry.getValue().getAndSet(0);
+            if (delta == 0) {
+                continue;
+            }
+            String rowID = entry.getKey().rowID();
+            RowWrite row = rows.get(rowID);
+            if (row == null) {
+                row = new RowWrite(rowID, entry.getKey());
+                rows.put(rowID, row);
+            }
+            row.add(entry.getKey(), delta);
+        }
+        writes.addAll(rows.values());
+    }
+
+    // RowWrite adds clicks of several buckets to random shard of their row
+    private static class RowWrite implements BatchWriter.Write {
+        private final String id;
+        private final Long campaignID;
+        private final Granularity granularity;
+        private final long rowStart;
+        private final Map<BucketKey, Long> deltas = new HashMap<BucketKey, Long>();
+
+        RowWrite(String rowID, BucketKey bucket) {
+            this.id = ClickRollup.shardID(rowID, ThreadLocalRandom.current().nextInt(SHARDS));
+            this.campaignID = bucket.campaignID;
+            this.granularity = bucket.granularity;
+            this.rowStart = granularity.rowStart(bucket.start);
+        }
+
+        void add(BucketKey bucket, long delta) {
+            deltas.put(bucket, delta);
+        }
+
+        public Key<?> key() {
+            return Key.create(ClickRollup.class, id);
+        }
+
+        public Object apply(Object current) {
+            ClickRollup row = (ClickRollup) current;
+            List<Long> clicks = new ArrayList<Long>(Collections.nCopies(granularity.perRow, 0L));
+            if (row != null && row.clicks != null) {
+                for (int i = 0; i < row.clicks.size() && i < clicks.size(); i++) {
+                    clicks.set(i, row.clicks.get(i));
+                }
+            }
+            for (Map.Entry<BucketKey, Long> delta : deltas.entrySet()) {
+                int i = (int) ((delta.getKey().start - rowStart) / granularity.millis);
+                clicks.set(i, clicks.get(i) + delta.getValue());
+            }
+            return new ClickRollup(id, campaignID, clicks);
+        }
+
+        public void restore() {
+            for (Map.Entry<BucketKey, Long> delta : deltas.entrySet()) {
+                ClickRollups.add(delta.getKey(), delta.getValue());
+            }
+        }
+    }
+
+    // stats returns clicks of the campaign in all buckets between from and
+    // to (both inclusive), buckets without clicks are included with 0 clicks.
+    // Shards of all rows holding the buckets are loaded in one batch get.
+    public static List<Bucket> stats(Long campaignID, Date from, Date to, Granularity granularity) {
+        List<Long> starts = new ArrayList<Long>();
+        List<Long> rowStarts = new ArrayList<Long>();
+        List<String> ids = new ArrayList<String>();
+        long last = granularity.bucketStart(to.getTime());
+        for (long start = granularity.bucketStart(from.getTime()); start <= last
+                && starts.size() < MAX_BUCKETS; start += granularity.millis) {
+            starts.add(start);
+            long rowStart = granularity.rowStart(start);
+            if (rowStarts.isEmpty() || rowStarts.get(rowStarts.size() - 1) != rowStart) {
+                rowStarts.add(rowStart);
+                String rowID = ClickRollup.id(campaignID, granularity.code, rowStart);
+                for (int shard = 0; shard < SHARDS; shard++) {
+                    ids.add(ClickRollup.shardID(rowID, shard));
+                }
+            }
+        }
+
+        // bucket start => sum of clicks of all shards
+        Map<String, ClickRollup> rows = ObjectifyService.ofy().load().type(ClickRollup.class).ids(ids);
+        Map<Long, Long> clicks = new HashMap<Long, Long>();
+        for (int r = 0; r < rowStarts.size(); r++) {
+            for (int j = r * SHARDS; j < (r + 1) * SHARDS; j++) {
+                ClickRollup row = rows.get(ids.get(j));
+                if (row == null || row.clicks == null) {
+                    continue;
+                }
+                for (int i = 0; i < row.clicks.size(); i++) {
+                    long start = rowStarts.get(r) + i * granularity.millis;
+                    Long sum = clicks.get(start);
+                    clicks.put(start, (sum == null ? 0L : sum) + row.clicks.get(i));
+                }
+            }
+        }
+
+        List<Bucket> buckets = new ArrayList<Bucket>(starts.size());
+        for (Long start : starts) {
+            Long sum = clicks.get(start);
+            buckets.add(new Bucket(new Date(start), sum == null ? 0L : sum));
+        }
+        return buckets;
+    }
+
+    // clear removes all accumulated clicks without writing them (used in tests)
+    public static void clear() {
+        pending.clear();
+    }
+}
@@ -0,0 +1,357 @@
+package com.clicktracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.clicktracker.model.Click;
+
+// ClickSegmentFormat encodes clicks of one campaign into compact columnar
+// segment file (see ClickArchive). Clicks are stored in blocks of BLOCK_SIZE
+// clicks, every block holds columns of its clicks one after another:
+//      ids:         varint
+//      createdAt:   zigzag varint delta from previous click (clicks are
+//                   ordered by time, deltas are small)
+//      ip:          varint index into ip dictionary (0 => null)
+//      userAgent:   varint index into user-agent dictionary (0 => null)
+//      platformID:  varint id + 1 (0 => null)
+//      duplicate:   one bit per click
+// IPs and user-agents are repeated a lot, they are stored once per segment in
+// dictionaries. Dictionaries and every block are deflated separately, blocks
+// could be skipped without inflating them (resumed exports).
+//
+// File layout (numbers are unsigned varints):
+//      "CTS" version clicks dictionary block...
+//      dictionary: rawLength deflatedLength bytes => ips count, strings...,
+//                  user-agents count, strings... (string is length, utf-8)
+//      block:      clicks rawLength deflatedLength bytes
+public class ClickSegmentFormat {
+    private static final byte[] MAGIC = { 'C', 'T', 'S' };
+    private static final int VERSION = 1;
+
+    static final int BLOCK_SIZE = 4096;
+
+    // encode encodes clicks (ordered by createdAt, createdAt is not null),
+    // campaign id is not stored since segment belongs to one campaign
+    public static byte[] encode(List<Click> clicks) {
+        Map<String, Integer> ips = new HashMap<String, Integer>();
+        Map<String, Integer> userAgents = new HashMap<String, Integer>();
+        List<String> ipList = new ArrayList<String>();
+        List<String> userAgentList = new ArrayList<String>();
+        int[] ipIndexes = new int[clicks.size()];
+        int[] userAgentIndexes = new int[clicks.size()];
+        for (int i = 0; i < clicks.size(); i++) {
+            ipIndexes[i] = index(clicks.get(i).ip, ips, ipList);
+            userAgentIndexes[i] = index(clicks.get(i).userAgent, userAgents, userAgentList);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC, 0, MAGIC.length);
+        writeVarint(out, VERSION);
+        writeVarint(out, clicks.size());
+
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        writeStrings(dictionary, ipList);
+        writeStrings(dictionary, userAgentList);
+        writeDeflated(out, dictionary.toByteArray());
+
+        for (int from = 0; from < clicks.size(); from += BLOCK_SIZE) {
+            int to = Math.min(clicks.size(), from + BLOCK_SIZE);
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            for (int i = from; i < to; i++) {
+                writeVarint(block, clicks.get(i).id);
+            }
+            long previous = 0;
+            for (int i = from; i < to; i++) {
+                long time = clicks.get(i).createdAt.getTime();
+                writeVarint(block, zigzag(time - previous));
+                previous = time;
+            }
+            for (int i = from; i < to; i++) {
+                writeVarint(block, ipIndexes[i]);
+            }
+            for (int i = from; i < to; i++) {
+                writeVarint(block, userAgentIndexes[i]);
+            }
+            for (int i = from; i < to; i++) {
+                Long platformID = clicks.get(i).platformID;
+                writeVarint(block, platformID == null ? 0 : platformID + 1);
+            }
+            byte[] duplicates = new byte[(to - from + 7) / 8];
+            for (int i = from; i < to; i++) {
+                Boolean duplicate = clicks.get(i).duplicate;
+                if (duplicate != null && duplicate) {
+                    duplicates[(i - from) / 8] |= 1 << ((i - from) % 8);
+                }
+            }
+            block.write(duplicates, 0, duplicates.length);
+
+            writeVarint(out, to - from);
+            writeDeflated(out, block.toByteArray());
+        }
+        return out.toByteArray();
+    }
+
+    // index returns dictionary index of the value, values are added to the
+    // dictionary on first use
+    private static int index(String value, Map<String, Integer> indexes, List<String> dictionary) {
+        if (value == null) {
+            return 0;
+        }
+        Integer index = indexes.get(value);
+        if (index == null) {
+            dictionary.add(value);
+            index = dictionary.size();
+            indexes.put(value, index);
+        }
+        return index;
+    }
+
+    private static void writeStrings(ByteArrayOutputStream out, List<String> values) {
+        writeVarint(out, values.size());
+        for (String value : values) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static void writeDeflated(ByteArrayOutputStream out, byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(raw.length / 4 + 16);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            deflated.write(buffer, 0, n);
+        }
+        deflater.end();
+        writeVarint(out, raw.length);
+        writeVarint(out, deflated.size());
+        out.write(deflated.toByteArray(), 0, deflated.size());
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    // Reader decodes clicks of the segment one block at a time, clicks are
+    // returned in the same order as they were encoded
+    public static class Reader {
+        private final Input in;
+        private final Long campaignID;
+        private final int size;
+        private final String[] ips;
+        private final String[] userAgents;
+
+        // clicks of the current block and position in it
+        private List<Click> block = new ArrayList<Click>();
+        private int position = 0;
+        // number of clicks which were not read or skipped yet
+        private int remaining;
+
+        // Reader reads segment of chosen campaign
+        // throws: IOException if data is not a valid segment
+        public Reader(byte[] data, Long campaignID) throws IOException {
+            this.in = new Input(data);
+            this.campaignID = campaignID;
+            for (byte b : MAGIC) {
+                if (in.readByte() != b) {
+                    throw new IOException("not a click segment");
+                }
+            }
+            long version = in.readVarint();
+            if (version != VERSION) {
+                throw new IOException("unsupported click segment version " + version);
+            }
+            this.size = (int) in.readVarint();
+            this.remaining = size;
+            Input dictionary = new Input(in.readDeflated());
+            this.ips = dictionary.readStrings();
+            this.userAgents = dictionary.readStrings();
+        }
+
+        // size returns number of clicks in the segment
+        public int size() {
+            return size;
+        }
+
+        // skip skips n clicks, whole blocks are skipped without inflating them
+        public void skip(int n) throws IOException {
+            n = Math.min(n, remaining + block.size() - position);
+            int inBlock = Math.min(n, block.size() - position);
+            position += inBlock;
+            n -= inBlock;
+            while (n > 0) {
+                int clicks = (int) in.readVarint();
+                remaining -= clicks;
+                if (n >= clicks) {
+                    in.skipDeflated();
+                    n -= clicks;
+                } else {
+                    readBlock(clicks);
+                    position = n;
+                    n = 0;
+                }
+            }
+        }
+
+        // next returns next click of the segment
+        // returns: null at the end of the segment
+        public Click next() throws IOException {
+            if (position == block.size()) {
+                if (remaining == 0) {
+                    return null;
+                }
+                int clicks = (int) in.readVarint();
+                remaining -= clicks;
+                readBlock(clicks);
+                position = 0;
+            }
+            return block.get(position++);
+        }
+
+        private void readBlock(int clicks) throws IOException {
+            Input columns = new Input(in.readDeflated());
+            List<Click> read = new ArrayList<Click>(clicks);
+            for (int i = 0; i < clicks; i++) {
+                Click c = new Click();
+                c.id = columns.readVarint();
+                c.campaignID = campaignID;
+                read.add(c);
+            }
+            long time = 0;
+            for (Click c : read) {
+                long delta = columns.readVarint();
+                time += (delta >>> 1) ^ -(delta & 1);
+                c.createdAt = new Date(time);
+            }
+            for (Click c : read) {
+                c.ip = lookup(ips, columns.readVarint());
+            }
+            for (Click c : read) {
+                c.userAgent = lookup(userAgents, columns.readVarint());
+            }
+            for (Click c : read) {
+                long platformID = columns.readVarint();
+                c.platformID = platformID == 0 ? null : platformID - 1;
+            }
+            byte[] duplicates = columns.readBytes((clicks + 7) / 8);
+            for (int i = 0; i < clicks; i++) {
+                read.get(i).duplicate = (duplicates[i / 8] & (1 << (i % 8))) != 0;
+            }
+            block = read;
+        }
+
+        private static String lookup(String[] dictionary, long index) throws IOException {
+            if (index > dictionary.length) {
+                throw new IOException("invalid dictionary index " + index);
+            }
+            return index == 0 ? null : dictionary[(int) index - 1];
+        }
+    }
+
+    // Input reads varints, strings and deflated sections from byte array,
+    // truncated data is reported as IOException
+    private static class Input {
+        private final byte[] data;
+        private int pos = 0;
+
+        Input(byte[] data) {
+            this.data = data;
+        }
+
+        byte readByte() throws IOException {
+            if (pos >= data.length) {
+                throw new IOException("click segment is truncated");
+            }
+            return data[pos++];
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("invalid varint in click segment");
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            if (length < 0 || length > data.length - pos) {
+                throw new IOException("click segment is truncated");
+            }
+            byte[] bytes = new byte[length];
+            System.arraycopy(data, pos, bytes, 0, length);
+            pos += length;
+            return bytes;
+        }
+
+        String[] readStrings() throws IOException {
+            String[] values = new String[(int) readVarint()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = new String(readBytes((int) readVarint()), StandardCharsets.UTF_8);
+            }
+            return values;
+        }
+
+        byte[] readDeflated() throws IOException {
+            int rawLength = (int) readVarint();
+            int deflatedLength = (int) readVarint();
+            if (deflatedLength < 0 || deflatedLength > data.length - pos) {
+                throw new IOException("click segment is truncated");
+            }
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, pos, deflatedLength);
+                byte[] raw = new byte[rawLength];
+                int n = 0;
+                while (n < rawLength && !inflater.finished()) {
+                    int inflated = inflater.inflate(raw, n, rawLength - n);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += inflated;
+                }
+                if (n != rawLength) {
+                    throw new IOException("click segment block is corrupted");
+                }
+                pos += deflatedLength;
+                return raw;
+            } catch (DataFormatException ex) {
+                throw new IOException("click segment block is corrupted", ex);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        void skipDeflated() throws IOException {
+            readVarint();
+            int deflatedLength = (int) readVarint();
+            if (deflatedLength < 0 || deflatedLength > data.length - pos) {
+                throw new IOException("click segment is truncated");
+            }
+            pos += deflatedLength;
+        }
+    }
+}
@@ -7,15 +7,13 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.googlecode.objectify.ObjectifyService;
-
 // custom imports
-import java.io.PrintWriter;
-import java.util.StringTokenizer;
-import com.clicktracker.model.Campaign;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.ServletOutputStream;
+import java.util.List;
+import java.util.ArrayList;
+import com.clicktracker.CampaignCache.CachedCampaign;
 import com.clicktracker.model.Click;
-import com.clicktracker.model.Counter;
-import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 
 // Handling click tracking and redirecting users
@@ -27,12 +25,27 @@ import com.google.gson.JsonObject;
 //
 public class ClickTrackerServlet extends HttpServlet {
 
-    final String mainWebsite = "http://www.outfit7.com";
+    static final String mainWebsite = "http://www.outfit7.com";
+
+    // response body of POST request on missing campaign never changes, so it's
+    // encoded only once
+    private static final byte[] POST_404_RESPONSE = postNotFoundResponse();
+
+    // false when the servlet only runs the redirect path without recording
+    // clicks (see WarmupServlet)
+    private final boolean recordClicks;
+
+    public ClickTrackerServlet() {
+        this(true);
+    }
+
+    ClickTrackerServlet(boolean recordClicks) {
+        this.recordClicks = recordClicks;
+    }
 
-    // Obviously querying database for every GET request is a terrible thing to do
-    // The proper way to handle that is via querying memcache or redis (in memory db),
-    // however Google app engine claims their datastore is caching entities
-    // by default that's why I left it like that. The same goes for post request
+    // Campaigns are served from in-process cache (see CampaignCache), that
+    // way hot campaigns are redirected without any datastore/memcache RPC.
+    // The same goes for post request
     @Override
     public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         Long campaignID = Utilities.getCampaignID(req);
@@ -40,7 +53,7 @@ public class ClickTrackerServlet extends HttpServlet {
             handleGet404(resp);
             return;
         }
-        Campaign c = getCampaign(campaignID);
+        CachedCampaign c = getCampaign(campaignID);
         // requested url does not exist, redirect to main page
         if (c == null) {
             handleGet404(resp);
@@ -52,12 +65,15 @@ public class ClickTrackerServlet extends HttpServlet {
             return;
         }
 
-        // store client click in db
-        storeClick(req);
-
-        //  redirect to url stored in db
+        //  redirect to url stored in db, campaign could have different url
+        //  for platform of the client (see PlatformClassifier)
+        int platform = PlatformClassifier.platformOrdinal(req.getHeader("User-Agent"));
         resp.setStatus(HttpServletResponse.SC_SEE_OTHER);
-        resp.sendRedirect(c.redirectURL);
+        resp.sendRedirect(c.redirectURL(platform));
+
+        // hand client click over to ingestion queue, redirect does not wait
+        // for datastore writes
+        queueClick(req, campaignID, PlatformClassifier.platformID(platform));
     }
 
     // same as get request
@@ -71,7 +87,7 @@ public class ClickTrackerServlet extends HttpServlet {
         }
 
         // check if id from url exists in database
-        Campaign c = getCampaign(campaignID);
+        CachedCampaign c = getCampaign(campaignID);
         if (c == null) {
             handlePost404(resp);
             return;
@@ -82,18 +98,13 @@ public class ClickTrackerServlet extends HttpServlet {
             return;
         }
 
-        // campaign exists in db, store client click into db
-        storeClick(req);
-
-        // return redirectURL
-        resp.setContentType("application/json");
-        resp.setStatus(HttpServletResponse.SC_OK);
+        // return redirectURL of client platform (response body is pre-encoded
+        // in cached campaign)
+        int platform = PlatformClassifier.platformOrdinal(req.getHeader("User-Agent"));
+        writeJson(resp, HttpServletResponse.SC_OK, c.postResponse(platform));
 
-        PrintWriter out = resp.getWriter();
-        JsonObject json = new JsonObject();
-        json.add("redirectURL", new Gson().toJsonTree(c.redirectURL));
-        out.print(json);
-        out.flush();
+        // campaign exists in db, hand client click over to ingestion queue
+        queueClick(req, campaignID, PlatformClassifier.platformID(platform));
     }
 
     // handles404 handles setting status and redirecting to main page
@@ -105,26 +116,51 @@ public class ClickTrackerServlet extends HttpServlet {
 
     // handles 404 response on click tracker post request
     private void handlePost404(HttpServletResponse resp) throws IOException {
+        writeJson(resp, HttpServletResponse.SC_NOT_FOUND, POST_404_RESPONSE);
+    }
+
+    // writeJson writes pre-encoded json body directly to the output stream,
+    // that way no writer/encoder is created for the response
+    private void writeJson(HttpServletResponse resp, int status, byte[] body) throws IOException {
         resp.setContentType("application/json");
-        resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        resp.setStatus(status);
+        resp.setContentLength(body.length);
 
-        PrintWriter out = resp.getWriter();
-        JsonObject json = new JsonObject();
-        Gson gson = new Gson();
-        json.add("message", gson.toJsonTree("This campaign does not exist"));
-        json.add("redirectURL", gson.toJsonTree(mainWebsite));
-        out.print(json);
+        ServletOutputStream out = resp.getOutputStream();
+        out.write(body);
         out.flush();
     }
 
+    // queueClick is helper function for handing click request over to
+    // asynchronous ingestion queue (see ClickQueue). Repeated clicks of the
+    // same visitor are dropped or marked before queueing (see ClickDeduplicator)
+    public void queueClick(HttpServletRequest req, Long campaignID, Long platformID) throws IOException {
+        if (!recordClicks) {
+            return;
+        }
+        Click click = createClick(req, campaignID, platformID);
+        if (!ClickDeduplicator.filter(click)) {
+            return;
+        }
+        ClickQueue.add(click);
+    }
+
     // storeClick is helper function for storing click request
-    // into database
+    // into database synchronously
     public void storeClick(HttpServletRequest req) throws IOException {
         final Long campaignID = Utilities.getCampaignID(req);
         if (campaignID == null) {
             return;
         }
+        Click click = createClick(req, campaignID, PlatformClassifier.platformID(req.getHeader("User-Agent")));
+        List<Click> clicks = new ArrayList<Click>();
+        clicks.add(click);
+        ClickQueue.persist(clicks);
+    }
 
+    // createClick parses click info from client request, platform is
+    // recognized by caller (see PlatformClassifier)
+    private Click createClick(HttpServletRequest req, Long campaignID, Long platformID) {
         String userAgent = req.getHeader("User-Agent"); // info about client device
         Date date = new Date();
 
@@ -134,40 +170,27 @@ public class ClickTrackerServlet extends HttpServlet {
         if (xfwh == null) {
             clientIP = req.getRemoteAddr();
         } else {
-            clientIP = new StringTokenizer(xfwh, ",").nextToken().trim();
+            // first address in the list is the client
+            int comma = xfwh.indexOf(',');
+            clientIP = (comma < 0 ? xfwh : xfwh.substring(0, comma)).trim();
         }
 
-        // TODO: Code bellow should be handled inside transaction
-        // ex: if one of the db actions fail the whole transaction should fail
-        // as well. So far I couldn't figure out how to build a transaction with
-        // GAE datastore so I am leaving it like that for now.
-
-        // store click info to database
         Click click = new Click(campaignID, clientIP, userAgent, date);
-        ObjectifyService.ofy().save().entity(click);
-
-        // add counter to counter table (GAE does not support PUT, so we have
-        // to delete old row and insert new counter row)
-        Counter counter = ObjectifyService.ofy().load().type(Counter.class).filter("campaignID", campaignID).first()
-                .now();
-
-        // if counter row does not exist add new row (that way we do not have
-        // to insert new counter on each campaign insert)
-        if (counter == null) {
-            Counter newCounter = new Counter(campaignID, 1L);
-            ObjectifyService.ofy().save().entity(newCounter).now();
-            return;
-        }
+        click.platformID = platformID;
+        return click;
+    }
 
-        // counter already exists, add one to numOfClick
-        // update is only possible via new save of the same entity
-        counter.numOfClicks = counter.numOfClicks + 1;
-        ObjectifyService.ofy().save().entity(counter);
+    // postNotFoundResponse encodes response body of POST request on missing
+    // campaign
+    private static byte[] postNotFoundResponse() {
+        JsonObject json = new JsonObject();
+        json.addProperty("message", "This campaign does not exist");
+        json.addProperty("redirectURL", mainWebsite);
+        return json.toString().getBytes(StandardCharsets.UTF_8);
     }
 
-    // getCampaign returns campaign object with chosen campaignID
-    private Campaign getCampaign(Long campaignID) {
-        Campaign c = ObjectifyService.ofy().load().type(Campaign.class).id(campaignID).now();
-        return c;
+    // getCampaign returns cached campaign object with chosen campaignID
+    private CachedCampaign getCampaign(Long campaignID) {
+        return CampaignCache.get(campaignID);
     }
 }
\ No newline at end of file
@@ -0,0 +1,310 @@
+package com.clicktracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.clicktracker.model.CounterShard;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+// CounterAggregator is write-behind aggregation of click counters. Instead of
+// updating sharded counter for every stored click, clicks are summed up in
+// per-instance accumulators (one per counter) and the deltas are written
+// periodically into random shards of the counters. That way thousands of
+// clicks per second on hot campaign turn into one counter write per flush.
+//
+// Flush writes deltas of counters, unique visitor sketches and click rollups
+// together in batch transactions on several threads (see BatchWriter), at
+// most maxWrites rows per flush. Deltas over the limit stay in memory and
+// the next flush follows right away.
+//
+// Flushes are scheduled with jittered intervals between maxLossWindow / 2
+// and maxLossWindow, so instances started together do not flush at the same
+// time. When instance dies without shutdown hook, counted clicks of the last
+// flush lag are lost (clicks itself are stored, see ClickQueue). Flush lag is
+// time since the last flush which wrote all deltas, it's about
+// maxLossWindowMillis while flushes keep up and it's displayed in queue stats
+// (/api/v1/admin/campaign/queue). Accumulators are drained on shutdown (see
+// OfyHelper).
+//
+// Without background flusher (auto scaled instances) counters are never
+// flushed on request threads, clicks are persisted by task requests (see
+// ClickQueue.PersistTask) which flush the counters right after the batch.
+//
+// Loss window, row limit and number of threads could be changed via system
+// properties in appengine-web.xml:
+//      clicktracker.counterAggregator.maxLossWindowMillis
+//      clicktracker.counterAggregator.maxWrites
+//      clicktracker.counterAggregator.threads
+//
+// NOTE: AtomicLong is used instead of LongAdder, since LongAdder is not
+// available in java 7 runtime.
+public class CounterAggregator {
+    private static final Logger log = Logger.getLogger(CounterAggregator.class.getName());
+
+    private static final long MAX_LOSS_WINDOW_MILLIS = Long
+            .getLong("clicktracker.counterAggregator.maxLossWindowMillis", 5000L);
+    private static final int MAX_WRITES = Integer.getInteger("clicktracker.counterAggregator.maxWrites", 2000);
+    private static final int THREADS = Integer.getInteger("clicktracker.counterAggregator.threads", 8);
+
+    // counter name => number of clicks that were not written yet.
+    // Accumulators of counters without new clicks are removed on flush
+    // (marked with CLOSED first, so no click is added to removed accumulator,
+    // see ClickRollups).
+    private static final ConcurrentMap<String, AtomicLong> pending = new ConcurrentHashMap<String, AtomicLong>();
+    private static final long CLOSED = Long.MIN_VALUE;
+    private static final Object flushLock = new Object();
+    private static volatile ScheduledExecutorService flusher = null;
+    // threads of batch transactions of background flusher
+    private static volatile ExecutorService workers = null;
+
+    private static final AtomicLong flushes = new AtomicLong();
+    private static final AtomicLong writes = new AtomicLong();
+    // start of the last flush which wrote all deltas
+    private static volatile long drainedAt = System.currentTimeMillis();
+
+    // add adds clicks to the accumulator of the campaign counter
+    public static void add(Long campaignID, long numOfClicks) {
+        add(ShardedCounter.campaignCounter(campaignID), numOfClicks);
+    }
+
+    // add adds delta to the accumulator of the counter with chosen name
+    public static void add(String name, long numOfClicks) {
+        while (true) {
+            AtomicLong accumulator = pending.get(name);
+            if (accumulator == null) {
+                AtomicLong newAccumulator = new AtomicLong();
+                accumulator = pending.putIfAbsent(name, newAccumulator);
+                if (accumulator == null) {
+                    accumulator = newAccumulator;
+                }
+            }
+            long clicks = accumulator.get();
+            if (clicks == CLOSED) {
+                // accumulator is being removed by flush, retry with new one
+                pending.remove(name, accumulator);
+                continue;
+            }
+            if (accumulator.compareAndSet(clicks, clicks + numOfClicks)) {
+                return;
+            }
+        }
+    }
+
+    // flush writes accumulated deltas to random shards of the counters,
+    // merges unique visitor sketches and writes click rollups (see
+    // UniqueVisitorCounter, ClickRollups), at most maxWrites rows. Caller must
+    // have Objectify context.
+    // returns: false if some deltas were left for the next flush
+    public static boolean flush() {
+        synchronized (flushLock) {
+            flushes.incrementAndGet();
+            long start = System.currentTimeMillis();
+            List<BatchWriter.Write> all = new ArrayList<BatchWriter.Write>();
+            collect(all);
+            UniqueVisitorCounter.collect(all);
+            ClickRollups.collect(all);
+
+            // random rows are left over, so no row waits for ever
+            List<BatchWriter.Write> batch = all;
+            if (all.size() > MAX_WRITES) {
+                Collections.shuffle(all);
+                batch = all.subList(0, MAX_WRITES);
+                for (BatchWriter.Write w : all.subList(MAX_WRITES, all.size())) {
+                    w.restore();
+                }
+            }
+            int written = BatchWriter.write(batch, THREADS, workers);
+            writes.addAndGet(written);
+            if (written < all.size()) {
+                return false;
+            }
+            drainedAt = start;
+            return true;
+        }
+    }
+
+    // collect takes accumulated deltas of counters as writes into random
+    // shards
+    private static void collect(List<BatchWriter.Write> writes) {
+        for (Map.Entry<String, AtomicLong> entry : pending.entrySet()) {
+            // counter got no clicks since last flush, campaign is not
+            // clicked anymore
+            if (entry.getValue().compareAndSet(0, CLOSED)) {
+                pending.remove(entry.getKey(), entry.getValue());
+                continue;
+            }
+            long delta = entry.getValue().getAndSet(0);
+            if (delta != 0) {
+                writes.add(new CounterWrite(entry.getKey(), delta));
+            }
+        }
+    }
+
+    // CounterWrite adds delta to random shard of the counter
+    private static class CounterWrite implements BatchWriter.Write {
+        private final String name;
+        private final long delta;
+        private final String shardID;
+
+        CounterWrite(String name, long delta) {
+            this.name = name;
+            this.delta = delta;
+            this.shardID = ShardedCounter.randomShardID(name);
+        }
+
+        public Key<?> key() {
+            return Key.create(CounterShard.class, shardID);
+        }
+
+        public Object apply(Object current) {
+            CounterShard s = (CounterShard) current;
+            return new CounterShard(shardID, (s == null ? 0L : s.count) + delta);
+        }
+
+        public void restore() {
+            add(name, delta);
+        }
+    }
+
+    // running checks if background flusher is running on this instance
+    public static boolean running() {
+        return flusher != null;
+    }
+
+    // pendingClicks returns number of counted clicks that were not written
+    // to datastore yet
+    public static long pendingClicks() {
+        long sum = 0;
+        for (AtomicLong accumulator : pending.values()) {
+            long clicks = accumulator.get();
+            if (clicks != CLOSED) {
+                sum += clicks;
+            }
+        }
+        return sum;
+    }
+
+    // flushLagMillis returns millis since the start of the last flush which
+    // wrote all deltas, deltas counted before that are written
+    public static long flushLagMillis() {
+        return System.currentTimeMillis() - drainedAt;
+    }
+
+    // size returns number of counters with accumulator
+    public static int size() {
+        return pending.size();
+    }
+
+    // start starts background flusher. If background threads are not supported
+    // on this instance, counters are flushed by click tasks instead (see
+    // ClickQueue.PersistTask).
+    public static synchronized void start() {
+        if (flusher != null) {
+            return;
+        }
+        ThreadFactory factory = Utilities.backgroundThreadFactory();
+        if (factory == null) {
+            log.info("background threads are not available, counters are flushed by click tasks");
+            return;
+        }
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(factory);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory);
+        try {
+            // threads are started now, so flushes do not fail on them
+            pool.prestartAllCoreThreads();
+            scheduleFlush(executor, jitteredDelay());
+        } catch (RuntimeException ex) {
+            // auto scaled instances fail when the background thread is created
+            log.log(Level.INFO, "background flusher could not be started, counters are flushed by click tasks", ex);
+            executor.shutdownNow();
+            pool.shutdownNow();
+            return;
+        }
+        workers = pool;
+        flusher = executor;
+    }
+
+    private static long jitteredDelay() {
+        return MAX_LOSS_WINDOW_MILLIS / 2 + ThreadLocalRandom.current().nextLong(MAX_LOSS_WINDOW_MILLIS / 2 + 1);
+    }
+
+    // scheduleFlush schedules next flush after delay, every flush schedules
+    // the next one, right away if deltas were left over
+    private static void scheduleFlush(final ScheduledExecutorService executor, long delay) {
+        executor.schedule(new Runnable() {
+            public void run() {
+                boolean drained = true;
+                try (Closeable session = ObjectifyService.begin()) {
+                    drained = flush();
+                } catch (RuntimeException ex) {
+                    log.log(Level.WARNING, "counter flush failed", ex);
+                }
+                try {
+                    scheduleFlush(executor, drained ? jitteredDelay() : 0L);
+                } catch (RejectedExecutionException ex) {
+                    // flusher is shut down, remaining deltas are written by shutdown()
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // shutdown stops background flusher and writes all accumulated deltas
+    public static synchronized void shutdown() {
+        ScheduledExecutorService executor = flusher;
+        ExecutorService pool = workers;
+        flusher = null;
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(MAX_LOSS_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // the last flush does not need worker threads
+        workers = null;
+        if (pool != null) {
+            pool.shutdown();
+        }
+        try (Closeable session = ObjectifyService.begin()) {
+            flush();
+        }
+    }
+
+    // clear removes all accumulated deltas, visitor sketches and rollups
+    // without writing them (used in tests)
+    public static void clear() {
+        pending.clear();
+        UniqueVisitorCounter.clear();
+        ClickRollups.clear();
+    }
+
+    public static long flushes() {
+        return flushes.get();
+    }
+
+    // writes returns number of rows written by flushes
+    public static long writes() {
+        return writes.get();
+    }
+}
@@ -0,0 +1,134 @@
+package com.clicktracker;
+
+import com.clicktracker.model.Counter;
+import com.clicktracker.model.MigrationState;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+
+// CounterMigration moves legacy Counter rows (one row per campaign, found via
+// campaignID index query) into sharded counters, which are addressed by key
+// derived from campaign id.
+//
+// Every legacy row is added to the sharded counter and deleted inside the
+// same (cross group) transaction, so running the migration again never
+// counts the row twice. Progress is stored in MigrationState after every
+// batch, that way the migration could be stopped and resumed at any time
+// while the tracker is serving traffic.
+//
+// Until the migration is done, clicks are read from both places (see
+// legacyClicks), after that only sharded counters are read.
+public class CounterMigration {
+    static final String NAME = "counter-migration";
+
+    // once the migration is done it stays done, no need to load the state again
+    private static volatile boolean done = false;
+
+    // run migrates legacy counters in batches of batchSize rows until all rows
+    // are migrated or timeBudgetMillis elapses (at least one batch is migrated).
+    // returns: migration state after the last processed batch
+    public static MigrationState run(int batchSize, long timeBudgetMillis) {
+        long deadline = System.currentTimeMillis() + timeBudgetMillis;
+        MigrationState state = loadState();
+        while (!state.done) {
+            state = runBatch(state, batchSize);
+            if (System.currentTimeMillis() >= deadline) {
+                break;
+            }
+        }
+        return state;
+    }
+
+    // runBatch migrates next batch of legacy rows and stores the progress
+    private static MigrationState runBatch(MigrationState state, int batchSize) {
+        Query<Counter> query = ObjectifyService.ofy().load().type(Counter.class).limit(batchSize);
+        if (state.cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(state.cursor));
+        }
+
+        QueryResultIterator<Counter> iterator = query.iterator();
+        int rows = 0;
+        while (iterator.hasNext()) {
+            migrate(iterator.next().id);
+            rows++;
+        }
+
+        state.migrated += rows;
+        state.cursor = iterator.getCursor().toWebSafeString();
+        state.done = rows < batchSize;
+        ObjectifyService.ofy().save().entity(state).now();
+        if (state.done) {
+            done = true;
+        }
+        return state;
+    }
+
+    // migrate adds clicks of legacy counter row to sharded counter and deletes
+    // the row
+    private static void migrate(final Long counterID) {
+        ObjectifyService.ofy().transact(new VoidWork() {
+            public void vrun() {
+                Counter counter = ObjectifyService.ofy().load().type(Counter.class).id(counterID).now();
+                // row was already migrated
+                if (counter == null) {
+                    return;
+                }
+                if (counter.campaignID != null && counter.numOfClicks != null && counter.numOfClicks > 0) {
+                    // joins current transaction
+                    ShardedCounter.increment(ShardedCounter.campaignCounter(counter.campaignID),
+                            counter.numOfClicks);
+                }
+                ObjectifyService.ofy().delete().entity(counter).now();
+            }
+        });
+    }
+
+    // legacyClicks returns number of clicks stored in legacy counter row of the
+    // campaign, or 0 when the migration is done.
+    //
+    // Index query is eventually consistent and could still return a row that
+    // was just migrated (its clicks are in the sharded counter already), so
+    // only the key is found via the index and the row is loaded by key, which
+    // is strongly consistent. Migrated rows are deleted, so they are not
+    // counted twice.
+    public static Long legacyClicks(Long campaignID) {
+        if (isDone()) {
+            return 0L;
+        }
+        Key<Counter> key = ObjectifyService.ofy().load().type(Counter.class).filter("campaignID", campaignID).keys()
+                .first().now();
+        if (key == null) {
+            return 0L;
+        }
+        Counter counter = ObjectifyService.ofy().load().key(key).now();
+        if (counter == null || counter.numOfClicks == null) {
+            return 0L;
+        }
+        return counter.numOfClicks;
+    }
+
+    // isDone checks if all legacy rows were migrated
+    public static boolean isDone() {
+        if (!done) {
+            done = loadState().done;
+        }
+        return done;
+    }
+
+    private static MigrationState loadState() {
+        MigrationState state = ObjectifyService.ofy().load().type(MigrationState.class).id(NAME).now();
+        if (state == null) {
+            state = new MigrationState(NAME);
+        }
+        return state;
+    }
+
+    // clearCache forgets cached done flag (used in tests, since datastore is
+    // recreated for every test)
+    public static void clearCache() {
+        done = false;
+    }
+}
@@ -0,0 +1,38 @@
+package com.clicktracker;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import com.google.common.io.Files;
+
+// FileSegmentStore keeps segment files in a directory on local filesystem,
+// names are relative paths in the directory
+public class FileSegmentStore implements SegmentStore {
+    private final File directory;
+
+    public FileSegmentStore(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void write(String name, byte[] data) throws IOException {
+        File file = new File(directory, name);
+        Files.createParentDirs(file);
+        // written to temporary file first, readers never see half written file
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(data, tmp);
+        if (!tmp.renameTo(file)) {
+            Files.move(tmp, file);
+        }
+    }
+
+    @Override
+    public byte[] read(String name) throws IOException {
+        File file = new File(directory, name);
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        return Files.toByteArray(file);
+    }
+}
@@ -0,0 +1,74 @@
+package com.clicktracker;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.appengine.api.appidentity.AppIdentityServiceFactory;
+import com.google.appengine.api.urlfetch.FetchOptions;
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
+
+// GcsSegmentStore keeps segment files in Google Cloud Storage bucket. Files
+// are uploaded and downloaded via GCS JSON API (URL Fetch), requests are
+// authorized with access token of the application service account, so no
+// extra client library or credentials are needed.
+public class GcsSegmentStore implements SegmentStore {
+    private static final List<String> SCOPES = Collections
+            .singletonList("https://www.googleapis.com/auth/devstorage.read_write");
+    private static final double DEADLINE_SECONDS = 30.0;
+
+    private final String bucket;
+
+    // GcsSegmentStore uses chosen bucket, empty bucket => default bucket of
+    // the application
+    public GcsSegmentStore(String bucket) {
+        this.bucket = bucket == null || bucket.isEmpty()
+                ? AppIdentityServiceFactory.getAppIdentityService().getDefaultGcsBucketName()
+                : bucket;
+    }
+
+    @Override
+    public void write(String name, byte[] data) throws IOException {
+        URL url = new URL("https://www.googleapis.com/upload/storage/v1/b/" + bucket + "/o?uploadType=media&name="
+                + URLEncoder.encode(name, "UTF-8"));
+        HTTPRequest request = request(url, HTTPMethod.POST);
+        request.setHeader(new HTTPHeader("Content-Type", "application/octet-stream"));
+        request.setPayload(data);
+        HTTPResponse response = URLFetchServiceFactory.getURLFetchService().fetch(request);
+        if (response.getResponseCode() != 200) {
+            throw new IOException("could not write " + name + " to gs://" + bucket + ", status "
+                    + response.getResponseCode());
+        }
+    }
+
+    @Override
+    public byte[] read(String name) throws IOException {
+        URL url = new URL("https://www.googleapis.com/storage/v1/b/" + bucket + "/o/"
+                + URLEncoder.encode(name, "UTF-8") + "?alt=media");
+        HTTPResponse response = URLFetchServiceFactory.getURLFetchService().fetch(request(url, HTTPMethod.GET));
+        if (response.getResponseCode() == 404) {
+            throw new FileNotFoundException("gs://" + bucket + "/" + name);
+        }
+        if (response.getResponseCode() != 200) {
+            throw new IOException("could not read " + name + " from gs://" + bucket + ", status "
+                    + response.getResponseCode());
+        }
+        return response.getContent();
+    }
+
+    private static HTTPRequest request(URL url, HTTPMethod method) {
+        HTTPRequest request = new HTTPRequest(url, method,
+                FetchOptions.Builder.withDeadline(DEADLINE_SECONDS).doNotFollowRedirects());
+        // tokens are cached by app identity service until they expire
+        String token = AppIdentityServiceFactory.getAppIdentityService().getAccessToken(SCOPES).getAccessToken();
+        request.setHeader(new HTTPHeader("Authorization", "Bearer " + token));
+        return request;
+    }
+}
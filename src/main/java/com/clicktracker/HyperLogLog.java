@@ -0,0 +1,148 @@
+package com.clicktracker;
+
+import java.util.Arrays;
+
+// HyperLogLog estimates number of distinct elements in a set using fixed
+// amount of memory (2^precision one byte registers). Sketches of different
+// days could be merged (register-wise max) into sketch of the whole range,
+// that's why unique visitors are stored as sketches instead of numbers.
+//
+// Standard error of the estimate is 1.04 / sqrt(2^precision), ex. 1.6% for
+// precision 12 (4 KiB per sketch). Sketches with few set registers (ex.
+// campaign days with a few hundred visitors) are serialized sparse, 3 bytes
+// per set register, see toBytes.
+//
+// Elements are added as 64 bit hashes, caller has to hash them with good
+// hash function (see UniqueVisitorCounter). HyperLogLog is not thread safe.
+public class HyperLogLog {
+    public static final int DEFAULT_PRECISION = 12;
+
+    // set in the first byte of sparse serialized sketch
+    private static final int SPARSE = 0x80;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("precision should be between 4 and 16");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    // add adds element with chosen 64 bit hash
+    public void add(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // guard bit limits the rank when the remaining bits are all zeros
+        long rest = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (registers[index] < rank) {
+            registers[index] = rank;
+        }
+    }
+
+    // merge adds all elements of other sketch into this one
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("sketches with different precision could not be merged");
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] < other.registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    // estimate returns estimated number of distinct elements
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        // small cardinalities are estimated better by linear counting
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    // toBytes serializes sketch: first byte is precision, registers follow.
+    // When less than third of registers is set, first byte is precision with
+    // SPARSE bit and only set registers follow as 2 byte index and 1 byte
+    // value.
+    public byte[] toBytes() {
+        int set = 0;
+        for (byte r : registers) {
+            if (r != 0) {
+                set++;
+            }
+        }
+        if (set * 3 >= registers.length) {
+            byte[] bytes = new byte[registers.length + 1];
+            bytes[0] = (byte) precision;
+            System.arraycopy(registers, 0, bytes, 1, registers.length);
+            return bytes;
+        }
+        byte[] bytes = new byte[set * 3 + 1];
+        bytes[0] = (byte) (precision | SPARSE);
+        int j = 1;
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] != 0) {
+                bytes[j++] = (byte) (i >>> 8);
+                bytes[j++] = (byte) i;
+                bytes[j++] = registers[i];
+            }
+        }
+        return bytes;
+    }
+
+    // fromBytes deserializes sketch serialized by toBytes
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        int first = bytes[0] & 0xff;
+        HyperLogLog hll = new HyperLogLog(first & ~SPARSE);
+        if ((first & SPARSE) == 0) {
+            if (bytes.length != hll.registers.length + 1) {
+                throw new IllegalArgumentException("invalid sketch length " + bytes.length);
+            }
+            System.arraycopy(bytes, 1, hll.registers, 0, hll.registers.length);
+            return hll;
+        }
+        if (bytes.length % 3 != 1) {
+            throw new IllegalArgumentException("invalid sparse sketch length " + bytes.length);
+        }
+        for (int j = 1; j < bytes.length; j += 3) {
+            int i = ((bytes[j] & 0xff) << 8) | (bytes[j + 1] & 0xff);
+            if (i >= hll.registers.length) {
+                throw new IllegalArgumentException("invalid sparse sketch register " + i);
+            }
+            hll.registers[i] = bytes[j + 2];
+        }
+        return hll;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof HyperLogLog)) {
+            return false;
+        }
+        HyperLogLog other = (HyperLogLog) o;
+        return precision == other.precision && Arrays.equals(registers, other.registers);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(registers);
+    }
+}
@@ -0,0 +1,190 @@
+package com.clicktracker;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+
+import com.clicktracker.model.Campaign;
+import com.clicktracker.model.Counter;
+import com.clicktracker.model.MigrationState;
+import com.clicktracker.model.Platform;
+import com.google.gson.stream.JsonWriter;
+
+// JsonOutput is json serialization shared by all servlets. Entities are
+// written by hand-written entity writers straight into the response writer,
+// so no Gson instance, reflection or intermediate JsonElement tree/String is
+// needed per request. Writers are stateless and could be used by concurrent
+// requests. They only write json (requests are parsed from parameters), so
+// they are not Gson type adapters and could not be registered for parsing.
+//
+// Output is the same as the output of the default Gson it replaces:
+// - entities (campaign, platform, counter) are written html safe (<, >, &, =
+//   and ' are escaped), fields in declaration order, null fields are left out
+//   and dates are formatted like Gson does (en_US, default style)
+// - message envelope {"message": "..."}, created campaign id, progress and
+//   stats objects are written without html escaping, like
+//   JsonObject.toString()
+//
+// NOTE: fields added to the entities have to be added to the writers as well,
+// otherwise they are not displayed.
+public class JsonOutput {
+    public static final EntityWriter<Campaign> CAMPAIGN = new CampaignWriter();
+    public static final EntityWriter<Platform> PLATFORM = new PlatformWriter();
+    public static final EntityWriter<Counter> COUNTER = new CounterWriter();
+
+    // EntityWriter writes one entity as json value, null entity as json null
+    public interface EntityWriter<T> {
+        void write(JsonWriter out, T value) throws IOException;
+    }
+
+    // Gson date format, DateFormat is not thread safe (see formatDate)
+    private static final DateFormat DATE_FORMAT = DateFormat.getDateTimeInstance(DateFormat.DEFAULT,
+            DateFormat.DEFAULT, Locale.US);
+
+    // newWriter returns html safe json writer for entities (see CAMPAIGN...)
+    public static JsonWriter newWriter(Writer out) {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setHtmlSafe(true);
+        return writer;
+    }
+
+    // newPlainWriter returns json writer for objects which are not entities
+    // (stats, progress), written without html escaping
+    public static JsonWriter newPlainWriter(Writer out) {
+        return new JsonWriter(out);
+    }
+
+    // writeMessage writes message envelope, ex. {"message":"Forbidden"}
+    public static void writeMessage(Writer out, String message) throws IOException {
+        JsonWriter writer = newPlainWriter(out);
+        writer.beginObject();
+        if (message != null) {
+            writer.name("message").value(message);
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    // writeCreated writes id of created entity, ex. {"id":123}
+    public static void writeCreated(Writer out, Long id) throws IOException {
+        JsonWriter writer = newPlainWriter(out);
+        writer.beginObject();
+        writer.name("id").value(id);
+        writer.endObject();
+        writer.flush();
+    }
+
+    // writeProgress writes progress of resumable job (see MigrationState),
+    // number of processed rows is written as name, ex. {"migrated":500,"done":false}
+    public static void writeProgress(Writer out, String name, MigrationState state) throws IOException {
+        JsonWriter writer = newPlainWriter(out);
+        writer.beginObject();
+        writer.name(name).value(state.migrated);
+        writer.name("done").value(state.done);
+        writer.endObject();
+        writer.flush();
+    }
+
+    // writeCampaign writes campaign as json object
+    public static void writeCampaign(Writer out, Campaign campaign) throws IOException {
+        JsonWriter writer = newWriter(out);
+        CAMPAIGN.write(writer, campaign);
+        writer.flush();
+    }
+
+    // writeCampaignFields writes fields of the campaign into already started
+    // json object, caller could add more fields afterwards
+    public static void writeCampaignFields(JsonWriter out, Campaign c) throws IOException {
+        if (c.id != null) {
+            out.name("id").value(c.id);
+        }
+        if (c.name != null) {
+            out.name("name").value(c.name);
+        }
+        if (c.redirectURL != null) {
+            out.name("redirectURL").value(c.redirectURL);
+        }
+        if (c.platforms != null) {
+            out.name("platforms");
+            out.beginArray();
+            for (Long platformID : c.platforms) {
+                out.value(platformID);
+            }
+            out.endArray();
+        }
+        if (c.platformRedirects != null) {
+            out.name("platformRedirects");
+            out.beginObject();
+            for (Map.Entry<String, String> target : c.platformRedirects.entrySet()) {
+                if (target.getValue() != null) {
+                    out.name(String.valueOf(target.getKey())).value(target.getValue());
+                }
+            }
+            out.endObject();
+        }
+        if (c.active != null) {
+            out.name("active").value(c.active);
+        }
+        if (c.createdAt != null) {
+            out.name("createdAt").value(formatDate(c.createdAt));
+        }
+    }
+
+    private static String formatDate(Date date) {
+        synchronized (DATE_FORMAT) {
+            return DATE_FORMAT.format(date);
+        }
+    }
+
+    private static class CampaignWriter implements EntityWriter<Campaign> {
+        public void write(JsonWriter out, Campaign c) throws IOException {
+            if (c == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeCampaignFields(out, c);
+            out.endObject();
+        }
+    }
+
+    private static class PlatformWriter implements EntityWriter<Platform> {
+        public void write(JsonWriter out, Platform p) throws IOException {
+            if (p == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            if (p.id != null) {
+                out.name("id").value(p.id);
+            }
+            if (p.name != null) {
+                out.name("name").value(p.name);
+            }
+            out.endObject();
+        }
+    }
+
+    private static class CounterWriter implements EntityWriter<Counter> {
+        public void write(JsonWriter out, Counter c) throws IOException {
+            if (c == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            if (c.id != null) {
+                out.name("id").value(c.id);
+            }
+            if (c.campaignID != null) {
+                out.name("campaignID").value(c.campaignID);
+            }
+            if (c.numOfClicks != null) {
+                out.name("numOfClicks").value(c.numOfClicks);
+            }
+            out.endObject();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.clicktracker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+// KeywordMatcher finds keywords (ASCII, case insensitive) in text in a single
+// pass, no matter how many keywords there are. Keywords are compiled into
+// Aho-Corasick automaton with full transition table, so matching is one array
+// lookup per character of the text (no regexes, no substring allocation).
+//
+// Every keyword has a value, find returns the lowest value of all keywords
+// found in the text. Values are used as priorities, ex. "windows phone" user
+// agents contain "android" as well, so windows phone keyword should get lower
+// value.
+//
+// Matcher is immutable, so it can be shared between request threads.
+public class KeywordMatcher {
+    public static final int NO_MATCH = -1;
+
+    private static final int ALPHABET = 128;
+
+    // state => character => next state
+    private final int[][] next;
+    // state => lowest value of keywords ending in that state, Integer.MAX_VALUE
+    // if no keyword ends there
+    private final int[] values;
+
+    // keywords and values should have the same size
+    public KeywordMatcher(List<String> keywords, List<Integer> values) {
+        if (keywords.size() != values.size()) {
+            throw new IllegalArgumentException("every keyword should have a value");
+        }
+
+        // trie of all keywords
+        List<int[]> trie = new ArrayList<int[]>();
+        List<Integer> ends = new ArrayList<Integer>();
+        trie.add(newState());
+        ends.add(Integer.MAX_VALUE);
+        for (int i = 0; i < keywords.size(); i++) {
+            String keyword = keywords.get(i).toLowerCase();
+            if (keyword.isEmpty() || values.get(i) < 0) {
+                throw new IllegalArgumentException("keyword should not be empty and value should not be negative");
+            }
+            int state = 0;
+            for (int j = 0; j < keyword.length(); j++) {
+                char ch = keyword.charAt(j);
+                if (ch >= ALPHABET) {
+                    throw new IllegalArgumentException("keyword should be ascii: " + keyword);
+                }
+                if (trie.get(state)[ch] < 0) {
+                    trie.get(state)[ch] = trie.size();
+                    trie.add(newState());
+                    ends.add(Integer.MAX_VALUE);
+                }
+                state = trie.get(state)[ch];
+            }
+            ends.set(state, Math.min(ends.get(state), values.get(i)));
+        }
+
+        // breadth first walk adds failure transitions, so that every state
+        // has transition for every character, and merges values of keywords
+        // which are suffixes of the current state
+        int[][] next = trie.toArray(new int[trie.size()][]);
+        int[] fail = new int[next.length];
+        int[] merged = new int[next.length];
+        for (int s = 0; s < next.length; s++) {
+            merged[s] = ends.get(s);
+        }
+        Deque<Integer> queue = new ArrayDeque<Integer>();
+        for (int ch = 0; ch < ALPHABET; ch++) {
+            if (next[0][ch] < 0) {
+                next[0][ch] = 0;
+            } else {
+                queue.add(next[0][ch]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            merged[state] = Math.min(merged[state], merged[fail[state]]);
+            for (int ch = 0; ch < ALPHABET; ch++) {
+                int child = next[state][ch];
+                if (child < 0) {
+                    next[state][ch] = next[fail[state]][ch];
+                } else {
+                    fail[child] = next[fail[state]][ch];
+                    queue.add(child);
+                }
+            }
+        }
+        this.next = next;
+        this.values = merged;
+    }
+
+    private static int[] newState() {
+        int[] state = new int[ALPHABET];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    // find returns the lowest value of keywords found in text
+    // returns: NO_MATCH if text contains no keyword
+    public int find(String text) {
+        int best = Integer.MAX_VALUE;
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (ch >= ALPHABET) {
+                // keywords are ascii, non ascii character breaks every match
+                state = 0;
+                continue;
+            }
+            if (ch >= 'A' && ch <= 'Z') {
+                ch += 'a' - 'A';
+            }
+            state = next[state][ch];
+            if (values[state] < best) {
+                best = values[state];
+                // nothing could beat the top priority
+                if (best == 0) {
+                    return 0;
+                }
+            }
+        }
+        return best == Integer.MAX_VALUE ? NO_MATCH : best;
+    }
+
+    // states returns number of states of the automaton
+    public int states() {
+        return next.length;
+    }
+}
@@ -0,0 +1,222 @@
+package com.clicktracker;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.mindrot.jbcrypt.BCrypt;
+
+// LoginGuard keeps admin logins from using up CPU needed by click redirects.
+// BCrypt password check is expensive on purpose, a burst of login attempts
+// would otherwise slow down every request on the instance.
+//
+// Login attempts take a token from bucket of the client ip and bucket of the
+// admin name (see TokenBucket), attempts are rejected before any datastore
+// or BCrypt work when either bucket is empty.
+//
+// Password checks run on small dedicated executor with bounded queue, checks
+// which do not fit into the queue or wait longer than waitMillis are
+// rejected. Only manual/basic scaled instances support background threads,
+// on other instances checks run on request thread and the same limits are
+// kept with semaphore (at most threads checks at once, at most queueSize
+// waiting).
+//
+// Configuration via system properties in appengine-web.xml:
+//      clicktracker.login.threads, clicktracker.login.queueSize,
+//      clicktracker.login.waitMillis
+//      clicktracker.login.ipBurst, clicktracker.login.ipPerMinute
+//      clicktracker.login.nameBurst, clicktracker.login.namePerMinute
+public class LoginGuard {
+    private static final Logger log = Logger.getLogger(LoginGuard.class.getName());
+
+    private static final int THREADS = Integer.getInteger("clicktracker.login.threads", 1);
+    private static final int QUEUE_SIZE = Integer.getInteger("clicktracker.login.queueSize", 8);
+    private static final long WAIT_MILLIS = Long.getLong("clicktracker.login.waitMillis", 5000L);
+    private static final int IP_BURST = Integer.getInteger("clicktracker.login.ipBurst", 10);
+    private static final int IP_PER_MINUTE = Integer.getInteger("clicktracker.login.ipPerMinute", 10);
+    private static final int NAME_BURST = Integer.getInteger("clicktracker.login.nameBurst", 5);
+    private static final int NAME_PER_MINUTE = Integer.getInteger("clicktracker.login.namePerMinute", 5);
+
+    // buckets of clients which did not try to log in for a while are dropped,
+    // new bucket is full anyway
+    private static final Cache<String, TokenBucket> ipBuckets = CacheBuilder.newBuilder().maximumSize(100000)
+            .expireAfterAccess(10, TimeUnit.MINUTES).build();
+    private static final Cache<String, TokenBucket> nameBuckets = CacheBuilder.newBuilder().maximumSize(10000)
+            .expireAfterAccess(10, TimeUnit.MINUTES).build();
+
+    // null until first password check, see executor()
+    private static ThreadPoolExecutor executor = null;
+    private static boolean executorStarted = false;
+    // used when background threads are not available
+    private static final Semaphore running = new Semaphore(THREADS);
+    private static final AtomicInteger waiting = new AtomicInteger();
+
+    private static final AtomicLong throttled = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+
+    // TokenBucket holds up to burst tokens and gets perMinute tokens per
+    // minute, every attempt takes one token
+    static class TokenBucket {
+        private final int burst;
+        private final double perNano;
+        private double tokens;
+        private long updatedAt;
+
+        TokenBucket(int burst, int perMinute, long now) {
+            this.burst = burst;
+            this.perNano = perMinute / (60 * 1e9);
+            this.tokens = burst;
+            this.updatedAt = now;
+        }
+
+        // take takes a token if there is one, now is System.nanoTime()
+        synchronized boolean take(long now) {
+            tokens = Math.min(burst, tokens + (now - updatedAt) * perNano);
+            updatedAt = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+
+    // allow takes a token from buckets of the client ip and admin name
+    // returns: false if login attempt should be rejected
+    public static boolean allow(String ip, String name) {
+        long now = System.nanoTime();
+        if (!bucket(ipBuckets, String.valueOf(ip), IP_BURST, IP_PER_MINUTE, now).take(now)
+                || !bucket(nameBuckets, String.valueOf(name), NAME_BURST, NAME_PER_MINUTE, now).take(now)) {
+            throttled.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private static TokenBucket bucket(Cache<String, TokenBucket> buckets, String key, int burst, int perMinute,
+            long now) {
+        TokenBucket bucket = buckets.getIfPresent(key);
+        if (bucket == null) {
+            buckets.asMap().putIfAbsent(key, new TokenBucket(burst, perMinute, now));
+            bucket = buckets.asMap().get(key);
+        }
+        return bucket;
+    }
+
+    // checkPassword runs BCrypt password check with bounded concurrency
+    // throws: Busy if the check was rejected, it should be retried later
+    public static boolean checkPassword(final String password, final String hash) throws Busy {
+        ThreadPoolExecutor e = executor();
+        if (e != null) {
+            Future<Boolean> result;
+            try {
+                result = e.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return BCrypt.checkpw(password, hash);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                rejected.incrementAndGet();
+                throw new Busy();
+            }
+            try {
+                return result.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                result.cancel(true);
+                rejected.incrementAndGet();
+                throw new Busy();
+            } catch (InterruptedException ex) {
+                result.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new Busy();
+            } catch (ExecutionException ex) {
+                // invalid hash
+                throw new IllegalArgumentException(ex.getCause());
+            }
+        }
+
+        // request thread, waiting checks are limited the same way as the queue
+        if (waiting.incrementAndGet() > QUEUE_SIZE + THREADS) {
+            waiting.decrementAndGet();
+            rejected.incrementAndGet();
+            throw new Busy();
+        }
+        boolean acquired = false;
+        try {
+            acquired = running.tryAcquire(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting.decrementAndGet();
+        }
+        if (!acquired) {
+            rejected.incrementAndGet();
+            throw new Busy();
+        }
+        try {
+            return BCrypt.checkpw(password, hash);
+        } finally {
+            running.release();
+        }
+    }
+
+    // executor returns password check executor, it's started on first use
+    // returns: null if background threads are not available
+    private static synchronized ThreadPoolExecutor executor() {
+        if (executorStarted) {
+            return executor;
+        }
+        executorStarted = true;
+        ThreadFactory factory = Utilities.backgroundThreadFactory();
+        if (factory == null) {
+            log.info("background threads are not available, checking passwords on request threads");
+            return null;
+        }
+        ThreadPoolExecutor e = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), factory);
+        try {
+            e.prestartAllCoreThreads();
+        } catch (RuntimeException ex) {
+            // auto scaled instances fail when the background thread is created
+            log.log(Level.INFO, "login executor could not be started, checking passwords on request threads", ex);
+            e.shutdownNow();
+            return null;
+        }
+        executor = e;
+        return e;
+    }
+
+    // throttled returns number of login attempts rejected by token buckets
+    public static long throttled() {
+        return throttled.get();
+    }
+
+    // rejected returns number of password checks rejected because too many
+    // checks were running or waiting
+    public static long rejected() {
+        return rejected.get();
+    }
+
+    // clear refills all buckets (used in tests)
+    public static void clear() {
+        ipBuckets.invalidateAll();
+        nameBuckets.invalidateAll();
+    }
+
+    // Busy is thrown when password check could not be run now
+    public static class Busy extends Exception {
+    }
+}
@@ -0,0 +1,162 @@
+package com.clicktracker;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Metrics holds per-instance latency histograms of served requests and of
+// API calls (datastore, memcache) issued while serving them. Requests are
+// timed by MetricsFilter, API calls by RpcMetrics.
+//
+// Request histograms are labeled by servlet, http method and route, API
+// call histograms additionally by service and call (ex. datastore_v3 Get),
+// that way we can see which endpoint is making the datastore round trips.
+// API calls made outside of requests (background flushers) are labeled with
+// servlet="background".
+//
+// Histograms are exposed in Prometheus text format on
+//      /api/v1/admin/campaign/metrics
+//
+// NOTE: metrics are kept per instance, every instance reports only requests
+// it served.
+public class Metrics {
+    // upper bounds of histogram buckets in microseconds
+    private static final long[] BUCKETS_MICROS = { 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000,
+            500000, 1000000, 2500000, 5000000, 10000000 };
+
+    // upper limit for number of label combinations per metric, routes are
+    // parsed from urls, so scrapers could create a lot of them
+    private static final int MAX_SERIES = 500;
+
+    private static final String REQUEST_METRIC = "clicktracker_http_request_duration_seconds";
+    private static final String RPC_METRIC = "clicktracker_rpc_duration_seconds";
+
+    private static final ConcurrentMap<String, Histogram> requests = new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentMap<String, Histogram> rpcs = new ConcurrentHashMap<String, Histogram>();
+
+    // labels of the request served by current thread, null outside of requests
+    private static final ThreadLocal<String> currentRequest = new ThreadLocal<String>();
+
+    // Histogram is cumulative latency histogram with fixed buckets
+    static class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_MICROS.length);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sumMicros = new AtomicLong();
+
+        void record(long micros) {
+            for (int i = 0; i < BUCKETS_MICROS.length; i++) {
+                if (micros <= BUCKETS_MICROS[i]) {
+                    buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+            count.incrementAndGet();
+            sumMicros.addAndGet(micros);
+        }
+    }
+
+    // requestLabels returns labels of request metrics
+    public static String requestLabels(String servlet, String method, String route) {
+        return "servlet=\"" + escape(servlet) + "\",method=\"" + escape(method) + "\",route=\"" + escape(route)
+                + "\"";
+    }
+
+    // beginRequest marks the current thread as serving request with chosen
+    // labels (see requestLabels), API calls are attributed to that request
+    public static void beginRequest(String labels) {
+        currentRequest.set(labels);
+    }
+
+    // endRequest records latency of the request served by current thread
+    public static void endRequest(long nanos) {
+        String labels = currentRequest.get();
+        currentRequest.remove();
+        if (labels != null) {
+            record(requests, labels, nanos);
+        }
+    }
+
+    // currentRequestLabels returns labels of the request served by current
+    // thread, or labels of background work
+    public static String currentRequestLabels() {
+        String labels = currentRequest.get();
+        if (labels == null) {
+            return requestLabels("background", "", "");
+        }
+        return labels;
+    }
+
+    // recordRpc records latency of API call made on behalf of request with
+    // chosen labels
+    public static void recordRpc(String requestLabels, String service, String call, long nanos) {
+        String labels = requestLabels + ",service=\"" + escape(service) + "\",call=\"" + escape(call) + "\"";
+        record(rpcs, labels, nanos);
+    }
+
+    private static void record(ConcurrentMap<String, Histogram> series, String labels, long nanos) {
+        Histogram h = series.get(labels);
+        if (h == null) {
+            if (series.size() >= MAX_SERIES) {
+                return;
+            }
+            Histogram newHistogram = new Histogram();
+            h = series.putIfAbsent(labels, newHistogram);
+            if (h == null) {
+                h = newHistogram;
+            }
+        }
+        h.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    // writePrometheus writes all histograms in Prometheus text format (0.0.4)
+    public static void writePrometheus(PrintWriter out) {
+        writeHistograms(out, REQUEST_METRIC, "Latency of served requests.", requests);
+        writeHistograms(out, RPC_METRIC, "Latency of API calls (datastore, memcache) made while serving requests.",
+                rpcs);
+    }
+
+    private static void writeHistograms(PrintWriter out, String name, String help,
+            ConcurrentMap<String, Histogram> series) {
+        out.print("# HELP " + name + " " + help + "\n");
+        out.print("# TYPE " + name + " histogram\n");
+        // sorted, so the output is stable between scrapes
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(series).entrySet()) {
+            String labels = entry.getKey();
+            Histogram h = entry.getValue();
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS_MICROS.length; i++) {
+                cumulative += h.buckets.get(i);
+                out.print(name + "_bucket{" + labels + ",le=\"" + seconds(BUCKETS_MICROS[i]) + "\"} " + cumulative
+                        + "\n");
+            }
+            long count = h.count.get();
+            out.print(name + "_bucket{" + labels + ",le=\"+Inf\"} " + count + "\n");
+            out.print(name + "_sum{" + labels + "} " + seconds(h.sumMicros.get()) + "\n");
+            out.print(name + "_count{" + labels + "} " + count + "\n");
+        }
+    }
+
+    private static String seconds(long micros) {
+        return String.valueOf(micros / 1000000.0);
+    }
+
+    // escape escapes label value as required by Prometheus text format
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // clear removes all recorded metrics (used in tests)
+    public static void clear() {
+        requests.clear();
+        rpcs.clear();
+        currentRequest.remove();
+    }
+}
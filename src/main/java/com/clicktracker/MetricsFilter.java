@@ -0,0 +1,88 @@
+package com.clicktracker;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+// MetricsFilter times every api request (see web.xml) and records it into
+// Metrics. Filter is mapped before ObjectifyFilter, so the time Objectify
+// spends completing pending async writes is counted as well.
+//
+// Requests are labeled by servlet, http method and route:
+//      /api/v1/campaign/5066549580791808   => tracker, GET, {id}
+//      /api/v1/admin/campaign/all          => admin, GET, all
+//      /api/v1/admin/auth/login            => auth, POST, login
+public class MetricsFilter implements Filter {
+    public void init(FilterConfig config) {
+    }
+
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletRequest req = (HttpServletRequest) request;
+        Metrics.beginRequest(Metrics.requestLabels(servletName(req), req.getMethod(), route(req)));
+        long start = System.nanoTime();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            long nanos = System.nanoTime() - start;
+            Metrics.endRequest(nanos);
+            // latency of the first request after startup (see Bootstrap)
+            Bootstrap.requestServed(nanos);
+            // queued clicks do not wait for the next click (see ClickQueue)
+            ClickQueue.handOffIfDue();
+        }
+    }
+
+    public void destroy() {
+    }
+
+    // servletName returns short name of the servlet serving the request
+    static String servletName(HttpServletRequest req) {
+        String path = req.getServletPath();
+        if ("/api/v1/campaign".equals(path)) {
+            return "tracker";
+        } else if ("/api/v1/admin/campaign".equals(path)) {
+            return "admin";
+        } else if ("/api/v1/admin/auth".equals(path)) {
+            return "auth";
+        }
+        return "other";
+    }
+
+    // route returns the part of the url after servlet path with ids
+    // replaced by {id}, so all requests on campaigns end up in the same
+    // histogram. Unknown urls are labeled as "other".
+    static String route(HttpServletRequest req) throws IOException {
+        String ending = Utilities.getURLEnding(req);
+        if (ending.isEmpty()) {
+            return "";
+        }
+        if (ending.length() > 64) {
+            return "other";
+        }
+        StringBuilder route = new StringBuilder();
+        for (String part : ending.split("/", -1)) {
+            if (route.length() > 0) {
+                route.append('/');
+            }
+            if (Utilities.stringToLong(part) != null) {
+                route.append("{id}");
+            } else if (part.matches("[a-z-]+")) {
+                route.append(part);
+            } else {
+                return "other";
+            }
+        }
+        return route.toString();
+    }
+}
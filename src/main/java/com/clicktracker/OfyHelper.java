@@ -16,7 +16,10 @@
 //[START all]
 package com.clicktracker;
 
+import com.googlecode.objectify.LoadResult;
 import com.googlecode.objectify.ObjectifyService;
+import com.google.appengine.api.LifecycleManager;
+import com.google.appengine.api.LifecycleManager.ShutdownHook;
 
 import javax.servlet.ServletContextListener;
 import javax.servlet.ServletContextEvent;
@@ -24,12 +27,26 @@ import javax.servlet.ServletContextEvent;
 // json imports
 import com.clicktracker.model.Campaign;
 import com.clicktracker.model.Platform;
+import com.clicktracker.model.PlatformVersion;
 import com.clicktracker.model.Click;
+import com.clicktracker.model.ClickSegment;
 import com.clicktracker.model.Counter;
+import com.clicktracker.model.CounterShard;
+import com.clicktracker.model.CounterConfig;
+import com.clicktracker.model.MigrationState;
+import com.clicktracker.model.UniqueVisitors;
+import com.clicktracker.model.ClickRollup;
+import com.clicktracker.model.CampaignIndexEntry;
+import com.clicktracker.model.CampaignIndexRow;
+import com.clicktracker.model.CampaignVersion;
 import com.clicktracker.model.Admin;
+import com.clicktracker.model.TokenSecret;
+import com.clicktracker.model.RevokedToken;
 import java.util.Date;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileNotFoundException;
@@ -41,28 +58,103 @@ import java.util.Properties;
  * required to let JSP's access Ofy.
  **/
 public class OfyHelper implements ServletContextListener {
+    // number of active campaigns loaded into campaign cache on startup
+    private static final int PRELOAD_CAMPAIGNS = Integer.getInteger("clicktracker.bootstrap.preloadCampaigns",
+            1000);
+
     public void contextInitialized(ServletContextEvent event) {
         // This will be invoked as part of a warmup request, or the first user request if no warmup
         // request.
+        // every stage is timed (see Bootstrap)
+        Bootstrap boot = Bootstrap.begin();
+        registerEntities();
+
+        // time datastore/memcache calls per request (see Metrics)
+        RpcMetrics.install();
+        boot.stage("entities");
+
+        ObjectifyService.begin();
+
+        // 1 admin, 2 platforms and one campaign is created when the
+        // software is started (if they do not exist already). Queries of all
+        // checks are started at once (Objectify loads are asynchronous until
+        // the result is used), active campaigns are preloaded into cache
+        // later.
+        LoadResult<Admin> admin = ObjectifyService.ofy().load().type(Admin.class).first();
+        List<Platform> platforms = ObjectifyService.ofy().load().type(Platform.class).list();
+        List<Campaign> campaigns = ObjectifyService.ofy().load().type(Campaign.class).filter("active", true)
+                .limit(PRELOAD_CAMPAIGNS).list();
+        registerAdmin(admin.now());
+        createPlatforms(platforms);
+        // platforms are looked up in memory (see PlatformRegistry)
+        PlatformRegistry.refresh();
+        createCampaign(campaigns);
+        boot.stage("seed");
+
+        // independent caches are built in parallel
+        Bootstrap.parallel(Arrays.<Runnable> asList(new Runnable() {
+            public void run() {
+                // campaigns created before the campaign index existed are
+                // indexed by task request (see CampaignIndex)
+                CampaignIndex.queueRebuildIfMissing();
+            }
+        }, new Runnable() {
+            public void run() {
+                // bloom filter of existing campaigns (see CampaignCache)
+                CampaignCache.refreshBloomFilter();
+            }
+        }, new Runnable() {
+            public void run() {
+                // user-agent => platform rules (see PlatformClassifier)
+                PlatformClassifier.refresh();
+            }
+        }));
+        boot.stage("caches");
+        // redirects of hot campaigns are served from memory right away
+        CampaignCache.preload(campaigns);
+        Bootstrap.setWarmupCampaign(campaigns.isEmpty() ? null : campaigns.get(0).id);
+        boot.stage("preload");
+
+        // start click ingestion and counter flushers and cache refresher, drain
+        // queued clicks and counters when the instance is shutting down
+        ClickQueue.start();
+        CounterAggregator.start();
+        CacheRefresher.start();
+        LifecycleManager.getInstance().setShutdownHook(new ShutdownHook() {
+            public void shutdown() {
+                drain();
+            }
+        });
+        boot.stage("workers");
+        boot.done();
+    }
+
+    // registerEntities registers all datastore entities of the application
+    // (also used by benchmarks)
+    public static void registerEntities() {
         // custom register
         ObjectifyService.register(Campaign.class);
+        ObjectifyService.register(CampaignVersion.class);
         ObjectifyService.register(Platform.class);
+        ObjectifyService.register(PlatformVersion.class);
         ObjectifyService.register(Click.class);
+        ObjectifyService.register(ClickSegment.class);
         ObjectifyService.register(Counter.class);
+        ObjectifyService.register(CounterShard.class);
+        ObjectifyService.register(CounterConfig.class);
+        ObjectifyService.register(MigrationState.class);
+        ObjectifyService.register(UniqueVisitors.class);
+        ObjectifyService.register(ClickRollup.class);
+        ObjectifyService.register(CampaignIndexRow.class);
+        ObjectifyService.register(CampaignIndexEntry.class);
         ObjectifyService.register(Admin.class);
-
-        ObjectifyService.begin();
-
-        // 1 admin, 2 platforms and one campaign is created when the
-        // software is started (if they do not exist already).
-        registerAdmin();
-        createPlatforms();
-        createCampaign();
+        ObjectifyService.register(TokenSecret.class);
+        ObjectifyService.register(RevokedToken.class);
     }
 
     // helper function for registering administrator of the click
     // tracking service
-    private void registerAdmin() {
+    private void registerAdmin(Admin ad) {
         // NOTE: the proper way of dealing with admins would be
         // adding the functionality to add, remove, update or disable them
         // via active table field.
@@ -71,7 +163,6 @@ public class OfyHelper implements ServletContextListener {
         //
         System.out.println("######### APPLICATION SETUP ##########");
 
-        Admin ad = ObjectifyService.ofy().load().type(Admin.class).first().now();
         System.out.println(ad);
 
         // If admin does not exist create one
@@ -103,16 +194,16 @@ public class OfyHelper implements ServletContextListener {
     }
 
     // createCampaign creates first campaign in the database,
-    // if no other campaign exist
-    private void createCampaign() {
+    // if no other campaign exist (active campaigns are already loaded)
+    private void createCampaign(List<Campaign> loaded) {
         System.out.println("#### Creating Campaign ####");
 
-        Campaign c = ObjectifyService.ofy().load().type(Campaign.class).first().now();
+        Campaign c = !loaded.isEmpty() ? loaded.get(0)
+                : ObjectifyService.ofy().load().type(Campaign.class).first().now();
         // if campaign does not exist in the database
         if (c == null) {
-            Platform iphone = ObjectifyService.ofy().load().type(Platform.class).filter("name", "iphone").first().now();
-            Platform android = ObjectifyService.ofy().load().type(Platform.class).filter("name", "android").first()
-                    .now();
+            Platform iphone = PlatformRegistry.byName("iphone");
+            Platform android = PlatformRegistry.byName("android");
 
             if (iphone == null) {
                 System.out.println("iphone does not exist in platform db");
@@ -132,24 +223,31 @@ public class OfyHelper implements ServletContextListener {
             p1.add(android.id);
             Campaign campaign = new Campaign(name, url, p1, active, date);
             ObjectifyService.ofy().save().entity(campaign).now();
+            CampaignIndex.update(Collections.<Campaign> emptyList(), Collections.singletonList(campaign));
         }
     }
 
     // create iphone, android rows in platforms table
-    private void createPlatforms() {
+    private void createPlatforms(List<Platform> p) {
         System.out.println("#### Add platforms to db ####");
-        List<Platform> p = ObjectifyService.ofy().load().type(Platform.class).list();
         // If there is no platform in the db, add two
         if (p.size() < 1) {
-            Platform p1 = new Platform("iphone");
-            Platform p2 = new Platform("android");
-            ObjectifyService.ofy().save().entity(p1).now();
-            ObjectifyService.ofy().save().entity(p2).now();
+            PlatformRegistry.save(new Platform("iphone"), new Platform("android"));
         }
     }
 
     public void contextDestroyed(ServletContextEvent event) {
-        // App Engine does not currently invoke this method.
+        // App Engine does not currently invoke this method, queued clicks are
+        // drained in shutdown hook instead (see contextInitialized).
+        drain();
+    }
+
+    // drain persists queued clicks and then writes accumulated counters
+    // (order matters, persisting clicks adds to the counters)
+    private static void drain() {
+        CacheRefresher.shutdown();
+        ClickQueue.shutdown();
+        CounterAggregator.shutdown();
     }
 }
 //[END all]
@@ -0,0 +1,266 @@
+package com.clicktracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.clicktracker.model.Platform;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+// PlatformClassifier maps User-Agent header of the click to the id of its
+// platform (see Platform), ex. "Mozilla/5.0 (iPhone; CPU iPhone OS 11_0 ...)"
+// => id of iphone platform.
+//
+// Rules are lists of keywords per platform name, all keywords are compiled
+// into one KeywordMatcher, so user agent is scanned only once. When keywords
+// of several platforms are found, the platform listed first wins. Platforms
+// without a rule are matched by their name. Rules could be changed via system
+// property (platform:keyword,keyword;platform:keyword...), ex:
+//      windows phone:windows phone;iphone:iphone,ipod,ipad;android:android
+//
+// Real user agents are heavy-tailed (few browser/os versions make most of the
+// traffic), so results are kept in bounded LRU cache. Platforms are loaded
+// at startup and reloaded from the datastore every refreshSeconds by
+// CacheRefresher (see PlatformRegistry), new platforms show up after that.
+// Redirect requests only read compiled rules, until rules are loaded every
+// user agent is unknown platform.
+//
+// Values could be changed via system properties in appengine-web.xml:
+//      clicktracker.platformClassifier.rules
+//      clicktracker.platformClassifier.cacheSize
+//      clicktracker.platformClassifier.refreshSeconds
+public class PlatformClassifier {
+    private static final Logger log = Logger.getLogger(PlatformClassifier.class.getName());
+
+    static final String DEFAULT_RULES = "windows phone:windows phone;iphone:iphone,ipod,ipad;android:android";
+    private static final String RULES = System.getProperty("clicktracker.platformClassifier.rules", DEFAULT_RULES);
+    private static final long CACHE_SIZE = Long.getLong("clicktracker.platformClassifier.cacheSize", 10000L);
+    private static final long REFRESH_SECONDS = Long.getLong("clicktracker.platformClassifier.refreshSeconds", 300L);
+
+    // longer user agents are classified, but not cached (they are most likely
+    // garbage and would only push real user agents out of the cache)
+    private static final int MAX_CACHED_LENGTH = 512;
+
+    // ordinal of unknown platform
+    public static final int NO_PLATFORM = -1;
+
+    // user agent => platform ordinal, cleared when reloaded platforms change
+    private static final Cache<String, Integer> cache = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE)
+            .recordStats().build();
+
+    private static volatile Rules rules = null;
+    private static final AtomicBoolean refreshing = new AtomicBoolean();
+
+    // platform id => ordinal. Ordinals are small numbers assigned to platforms
+    // in order they are seen and never reused, so they could be used as array
+    // indexes (see CampaignCache.CachedCampaign). platformIDs is copied on
+    // write, ordinal => id.
+    private static final ConcurrentMap<Long, Integer> ordinals = new ConcurrentHashMap<Long, Integer>();
+    private static volatile Long[] platformIDs = new Long[0];
+    private static final Object ordinalLock = new Object();
+
+    // Rules holds compiled matcher and ordinals of matched platforms (keyword
+    // value is index into platformOrdinals). Object is immutable.
+    private static class Rules {
+        final KeywordMatcher matcher;
+        final int[] platformOrdinals;
+        // platform name => id, rules were compiled for these platforms
+        final Map<String, Long> platforms;
+        final long builtAt;
+
+        Rules(KeywordMatcher matcher, int[] platformOrdinals, Map<String, Long> platforms) {
+            this.matcher = matcher;
+            this.platformOrdinals = platformOrdinals;
+            this.platforms = platforms;
+            this.builtAt = System.currentTimeMillis();
+        }
+    }
+
+    // platformID returns id of the platform of the user agent
+    // returns: null if platform could not be recognized
+    public static Long platformID(String userAgent) {
+        return platformID(platformOrdinal(userAgent));
+    }
+
+    // platformOrdinal returns ordinal of the platform of the user agent
+    // returns: NO_PLATFORM if platform could not be recognized
+    public static int platformOrdinal(String userAgent) {
+        if (userAgent == null || userAgent.isEmpty()) {
+            return NO_PLATFORM;
+        }
+        // platforms could not be loaded, nothing to cache
+        Rules r = rules();
+        if (r == null) {
+            return NO_PLATFORM;
+        }
+        Integer ordinal = cache.getIfPresent(userAgent);
+        if (ordinal == null) {
+            ordinal = classify(r, userAgent);
+            if (userAgent.length() <= MAX_CACHED_LENGTH) {
+                cache.put(userAgent, ordinal);
+            }
+        }
+        return ordinal;
+    }
+
+    // classify matches user agent against platform rules without the cache
+    // (used directly in benchmarks)
+    //
+    // returns: null if platform could not be recognized
+    public static Long classify(String userAgent) {
+        Rules r = rules();
+        if (r == null || userAgent == null) {
+            return null;
+        }
+        return platformID(classify(r, userAgent));
+    }
+
+    private static int classify(Rules r, String userAgent) {
+        int match = r.matcher.find(userAgent);
+        if (match == KeywordMatcher.NO_MATCH) {
+            return NO_PLATFORM;
+        }
+        return r.platformOrdinals[match];
+    }
+
+    // ordinal returns ordinal of the platform, new platforms get next free
+    // ordinal
+    public static int ordinal(Long platformID) {
+        if (platformID == null) {
+            return NO_PLATFORM;
+        }
+        Integer ordinal = ordinals.get(platformID);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        synchronized (ordinalLock) {
+            ordinal = ordinals.get(platformID);
+            if (ordinal == null) {
+                Long[] ids = Arrays.copyOf(platformIDs, platformIDs.length + 1);
+                ordinal = platformIDs.length;
+                ids[ordinal] = platformID;
+                platformIDs = ids;
+                ordinals.put(platformID, ordinal);
+            }
+            return ordinal;
+        }
+    }
+
+    // platformID returns id of the platform with chosen ordinal
+    // returns: null for NO_PLATFORM
+    public static Long platformID(int ordinal) {
+        Long[] ids = platformIDs;
+        if (ordinal < 0 || ordinal >= ids.length) {
+            return null;
+        }
+        return ids[ordinal];
+    }
+
+    // rules returns compiled rules snapshot, it is never loaded on request
+    // thread (see refreshIfDue)
+    // returns: null if platforms were not loaded yet
+    private static Rules rules() {
+        return rules;
+    }
+
+    // refreshIfDue reloads the rules when they were not loaded yet or they are
+    // older than refreshSeconds, called by CacheRefresher. Only one thread
+    // reloads the rules, others keep using the old ones. Caller must have
+    // Objectify context.
+    public static void refreshIfDue() {
+        Rules r = rules;
+        if (r != null && System.currentTimeMillis() - r.builtAt < REFRESH_SECONDS * 1000) {
+            return;
+        }
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refresh();
+        } catch (RuntimeException ex) {
+            // keep the old rules, try again on next check
+            log.log(Level.WARNING, "could not load platforms", ex);
+        } finally {
+            refreshing.set(false);
+        }
+    }
+
+    // refresh reloads platforms from datastore and compiles the rules. Caller
+    // must have Objectify context.
+    public static void refresh() {
+        PlatformRegistry.refresh();
+        Map<String, Long> platforms = new HashMap<String, Long>();
+        for (Platform p : PlatformRegistry.all()) {
+            if (p.name != null) {
+                platforms.put(p.name.toLowerCase(), p.id);
+            }
+        }
+        Rules old = rules;
+        rules = compile(RULES, platforms);
+        if (old == null || !old.platforms.equals(platforms)) {
+            cache.invalidateAll();
+        }
+    }
+
+    // compile builds matcher out of rules string, keywords of the n-th rule
+    // get value n. Platforms without a rule are appended as keywords with
+    // their own name.
+    private static Rules compile(String rulesString, Map<String, Long> platforms) {
+        List<String> keywords = new ArrayList<String>();
+        List<Integer> values = new ArrayList<Integer>();
+        List<Integer> platformOrdinals = new ArrayList<Integer>();
+        Map<String, Boolean> named = new HashMap<String, Boolean>();
+
+        for (String rule : rulesString.split(";")) {
+            int colon = rule.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = rule.substring(0, colon).trim().toLowerCase();
+            for (String keyword : rule.substring(colon + 1).split(",")) {
+                if (!keyword.trim().isEmpty()) {
+                    keywords.add(keyword.trim());
+                    values.add(platformOrdinals.size());
+                }
+            }
+            // rule of platform which does not exist still wins over lower
+            // rules, ex. windows phone is not android
+            platformOrdinals.add(ordinal(platforms.get(name)));
+            named.put(name, Boolean.TRUE);
+        }
+        for (Map.Entry<String, Long> p : platforms.entrySet()) {
+            if (!named.containsKey(p.getKey())) {
+                keywords.add(p.getKey());
+                values.add(platformOrdinals.size());
+                platformOrdinals.add(ordinal(p.getValue()));
+            }
+        }
+        int[] ordinalsOfRules = new int[platformOrdinals.size()];
+        for (int i = 0; i < ordinalsOfRules.length; i++) {
+            ordinalsOfRules[i] = platformOrdinals.get(i);
+        }
+        return new Rules(new KeywordMatcher(keywords, values), ordinalsOfRules, platforms);
+    }
+
+    // stats returns hit/miss counters of the cache
+    public static CacheStats stats() {
+        return cache.stats();
+    }
+
+    // clear removes loaded platforms and cached user agents (used in tests,
+    // since datastore is recreated for every test). Ordinals are kept, cached
+    // campaigns could still use them.
+    public static void clear() {
+        rules = null;
+        cache.invalidateAll();
+    }
+}
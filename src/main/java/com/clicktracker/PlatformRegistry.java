@@ -0,0 +1,156 @@
+package com.clicktracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.clicktracker.model.Platform;
+import com.clicktracker.model.PlatformVersion;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+
+// PlatformRegistry holds all platforms in memory, so platform lookups by name
+// or id (ex. ?platforms=iphone,android) do not touch the datastore. Platforms
+// are tiny, almost static set, they are loaded at startup (see OfyHelper).
+//
+// Platforms saved via save() bump version stamp (see PlatformVersion). Stamp
+// is checked every checkSeconds on request thread (single get by key, served
+// from memcache), platforms are reloaded only when it changed. Platforms
+// changed outside of the application (ex. datastore console) are picked up
+// when PlatformClassifier refreshes its rules, which reloads the registry.
+//
+// Check interval could be changed via system property in appengine-web.xml:
+//      clicktracker.platformRegistry.checkSeconds
+public class PlatformRegistry {
+    private static final Logger log = Logger.getLogger(PlatformRegistry.class.getName());
+
+    private static final long CHECK_SECONDS = Long.getLong("clicktracker.platformRegistry.checkSeconds", 60L);
+
+    // id of the only PlatformVersion row
+    private static final Long VERSION_ID = 1L;
+
+    private static volatile Platforms platforms = null;
+    private static final AtomicBoolean checking = new AtomicBoolean();
+
+    // Platforms is immutable snapshot of the platforms table
+    private static class Platforms {
+        // ordered by id
+        final List<Platform> all;
+        final Map<String, Platform> byName;
+        final Map<Long, Platform> byID;
+        final long version;
+        final long checkedAt;
+
+        Platforms(List<Platform> all, Map<String, Platform> byName, Map<Long, Platform> byID, long version) {
+            this.all = all;
+            this.byName = byName;
+            this.byID = byID;
+            this.version = version;
+            this.checkedAt = System.currentTimeMillis();
+        }
+
+        // checked returns the same snapshot with new check time
+        Platforms checked() {
+            return new Platforms(all, byName, byID, version);
+        }
+    }
+
+    // byName returns platform with chosen name (names are compared as stored,
+    // ex. "iphone")
+    // returns: null if platform does not exist
+    public static Platform byName(String name) {
+        return platforms().byName.get(name);
+    }
+
+    // byID returns platform with chosen id
+    // returns: null if platform does not exist
+    public static Platform byID(Long id) {
+        return platforms().byID.get(id);
+    }
+
+    // all returns all platforms ordered by id, list is read only
+    public static List<Platform> all() {
+        return platforms().all;
+    }
+
+    // platforms returns current snapshot, checks version stamp when the
+    // snapshot was not checked for checkSeconds. Only one thread checks the
+    // stamp, others use current snapshot.
+    private static Platforms platforms() {
+        Platforms p = platforms;
+        if (p == null) {
+            return load();
+        }
+        if (System.currentTimeMillis() - p.checkedAt < CHECK_SECONDS * 1000 || !checking.compareAndSet(false, true)) {
+            return p;
+        }
+        try {
+            if (loadVersion() == p.version) {
+                platforms = p.checked();
+            } else {
+                load();
+            }
+        } catch (RuntimeException ex) {
+            // keep the old platforms, try again on next lookup
+            log.log(Level.WARNING, "could not check platform version", ex);
+        } finally {
+            checking.set(false);
+        }
+        return platforms;
+    }
+
+    // refresh loads all platforms from datastore. Caller must have Objectify
+    // context.
+    public static void refresh() {
+        load();
+    }
+
+    private static Platforms load() {
+        // version is loaded first, platforms saved meanwhile cause one extra
+        // reload instead of being missed
+        long version = loadVersion();
+        List<Platform> all = ObjectifyService.ofy().load().type(Platform.class).list();
+        Map<String, Platform> byName = new HashMap<String, Platform>();
+        Map<Long, Platform> byID = new HashMap<Long, Platform>();
+        for (Platform p : all) {
+            byID.put(p.id, p);
+            // platform with the lowest id wins when names are repeated
+            if (p.name != null && !byName.containsKey(p.name)) {
+                byName.put(p.name, p);
+            }
+        }
+        Platforms loaded = new Platforms(Collections.unmodifiableList(new ArrayList<Platform>(all)),
+                Collections.unmodifiableMap(byName), Collections.unmodifiableMap(byID), version);
+        platforms = loaded;
+        return loaded;
+    }
+
+    // save saves platforms and bumps version stamp in the same transaction,
+    // other instances reload their platforms on next check
+    public static void save(final Platform... saved) {
+        ObjectifyService.ofy().transact(new VoidWork() {
+            public void vrun() {
+                long version = loadVersion();
+                ObjectifyService.ofy().save().entities(saved).now();
+                ObjectifyService.ofy().save().entity(new PlatformVersion(VERSION_ID, version + 1)).now();
+            }
+        });
+        refresh();
+    }
+
+    private static long loadVersion() {
+        PlatformVersion v = ObjectifyService.ofy().load().type(PlatformVersion.class).id(VERSION_ID).now();
+        return v == null || v.version == null ? 0L : v.version;
+    }
+
+    // clear removes loaded platforms (used in tests, since datastore is
+    // recreated for every test)
+    public static void clear() {
+        platforms = null;
+    }
+}
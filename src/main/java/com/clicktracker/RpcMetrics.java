@@ -0,0 +1,125 @@
+package com.clicktracker;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+
+// RpcMetrics times every API call (datastore, memcache, ...) of the
+// application. Objectify does not expose hooks for its loads, saves and
+// queries, but all of them end up as ApiProxy calls (datastore_v3 Get, Put,
+// Delete, RunQuery, Next, Commit ...), so RpcMetrics wraps the ApiProxy
+// delegate and records the calls into Metrics, labeled with the request
+// that issued them.
+//
+// Async calls are timed until the caller picks up the result (Future.get),
+// which is the time the request actually waited for them.
+public class RpcMetrics implements Delegate<Environment> {
+    private final Delegate<Environment> delegate;
+
+    RpcMetrics(Delegate<Environment> delegate) {
+        this.delegate = delegate;
+    }
+
+    // install wraps current ApiProxy delegate (call once at startup, see
+    // OfyHelper)
+    @SuppressWarnings("unchecked")
+    public static synchronized void install() {
+        Delegate<Environment> current = ApiProxy.getDelegate();
+        if (current == null || current instanceof RpcMetrics) {
+            return;
+        }
+        ApiProxy.setDelegate(new RpcMetrics(current));
+    }
+
+    public byte[] makeSyncCall(Environment env, String service, String call, byte[] request)
+            throws ApiProxyException {
+        String labels = Metrics.currentRequestLabels();
+        long start = System.nanoTime();
+        try {
+            return delegate.makeSyncCall(env, service, call, request);
+        } finally {
+            Metrics.recordRpc(labels, service, call, System.nanoTime() - start);
+        }
+    }
+
+    public Future<byte[]> makeAsyncCall(Environment env, String service, String call, byte[] request,
+            ApiConfig config) {
+        String labels = Metrics.currentRequestLabels();
+        long start = System.nanoTime();
+        return new TimedFuture(delegate.makeAsyncCall(env, service, call, request, config), labels, service, call,
+                start);
+    }
+
+    public void log(Environment env, LogRecord record) {
+        delegate.log(env, record);
+    }
+
+    public void flushLogs(Environment env) {
+        delegate.flushLogs(env);
+    }
+
+    public List<Thread> getRequestThreads(Environment env) {
+        return delegate.getRequestThreads(env);
+    }
+
+    // TimedFuture records API call latency the first time its result is read
+    private static class TimedFuture implements Future<byte[]> {
+        private final Future<byte[]> future;
+        private final String labels;
+        private final String service;
+        private final String call;
+        private final long start;
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        TimedFuture(Future<byte[]> future, String labels, String service, String call, long start) {
+            this.future = future;
+            this.labels = labels;
+            this.service = service;
+            this.call = call;
+            this.start = start;
+        }
+
+        private void record() {
+            if (recorded.compareAndSet(false, true)) {
+                Metrics.recordRpc(labels, service, call, System.nanoTime() - start);
+            }
+        }
+
+        public byte[] get() throws InterruptedException, ExecutionException {
+            try {
+                return future.get();
+            } finally {
+                record();
+            }
+        }
+
+        public byte[] get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            byte[] result = future.get(timeout, unit);
+            record();
+            return result;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return future.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.clicktracker;
+
+import java.io.IOException;
+
+// SegmentStore stores archived click segment files (see ClickArchive) by
+// name, ex. clicks/123/2017-10-01-456.cts
+//
+// Implementations:
+//      GcsSegmentStore:  Google Cloud Storage bucket (production)
+//      FileSegmentStore: directory on local filesystem (tests, dev server)
+public interface SegmentStore {
+    // write stores the file, existing file with the same name is replaced
+    void write(String name, byte[] data) throws IOException;
+
+    // read returns content of the file
+    // throws: FileNotFoundException if file does not exist
+    byte[] read(String name) throws IOException;
+}
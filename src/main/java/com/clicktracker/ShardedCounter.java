@@ -0,0 +1,176 @@
+package com.clicktracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.clicktracker.model.CounterConfig;
+import com.clicktracker.model.CounterShard;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+
+// ShardedCounter is counter split into N shard entities. Every increment
+// picks random shard and updates it inside transaction, that way concurrent
+// increments of the same counter are spread over multiple entity groups
+// (GAE datastore allows only ~1 write/s per entity group) and no increment
+// is lost. Current value of the counter is sum of all shards.
+//
+// Number of shards is stored per counter (see CounterConfig) and could only
+// grow, since shrinking would lose the clicks counted by removed shards.
+// Hot campaigns should get more shards via setShards().
+//
+// Default number of shards could be changed via system property:
+//      clicktracker.counter.defaultShards
+public class ShardedCounter {
+    private static final int DEFAULT_SHARDS = Integer.getInteger("clicktracker.counter.defaultShards", 10);
+
+    // number of shards per counter used when incrementing, so we do not have
+    // to load CounterConfig on every click. Other instances pick up new number
+    // of shards after the entry expires.
+    private static final Cache<String, Integer> numShardsCache = CacheBuilder.newBuilder().maximumSize(10000)
+            .expireAfterWrite(60, TimeUnit.SECONDS).build();
+
+    // campaignCounter returns name of the counter counting campaign clicks
+    public static String campaignCounter(Long campaignID) {
+        return "campaign-" + campaignID;
+    }
+
+    // duplicatesCounter returns name of the counter counting suppressed
+    // duplicate clicks of the campaign (see ClickDeduplicator)
+    public static String duplicatesCounter(Long campaignID) {
+        return "duplicates-" + campaignID;
+    }
+
+    // platformCounter returns name of the counter counting campaign clicks
+    // from one platform, clicks from unknown platforms are counted with null
+    // platformID (see PlatformClassifier)
+    public static String platformCounter(Long campaignID, Long platformID) {
+        return "platform-" + campaignID + "-" + (platformID == null ? "other" : String.valueOf(platformID));
+    }
+
+    // increment adds delta to random shard of the counter
+    public static void increment(String name, final long delta) {
+        final String shardID = randomShardID(name);
+
+        ObjectifyService.ofy().transact(new VoidWork() {
+            public void vrun() {
+                CounterShard s = ObjectifyService.ofy().load().type(CounterShard.class).id(shardID).now();
+                if (s == null) {
+                    s = new CounterShard(shardID, 0L);
+                }
+                s.count = s.count + delta;
+                ObjectifyService.ofy().save().entity(s).now();
+            }
+        });
+    }
+
+    // randomShardID returns id of random shard of the counter, increments of
+    // the counter could be written into it directly (see CounterAggregator)
+    static String randomShardID(String name) {
+        return shardID(name, ThreadLocalRandom.current().nextInt(getNumShards(name)));
+    }
+
+    // getCount returns sum of all shards of the counter
+    public static Long getCount(String name) {
+        return getCounts(Collections.singletonList(name)).get(name);
+    }
+
+    // getCounts returns sums of all shards of several counters, ex. all
+    // counters of a campaign. Configs and the default number of shards of
+    // all counters are loaded in one batch get, shards over the default
+    // (counters with more shards, see setShards) in a second one.
+    // returns: counter name => sum, in order of names
+    public static Map<String, Long> getCounts(List<String> names) {
+        List<Key<Object>> keys = new ArrayList<Key<Object>>();
+        for (String name : names) {
+            keys.add(Key.<Object> create(CounterConfig.class, name));
+            for (int i = 0; i < DEFAULT_SHARDS; i++) {
+                keys.add(Key.<Object> create(CounterShard.class, shardID(name, i)));
+            }
+        }
+        Map<Key<Object>, Object> loaded = ObjectifyService.ofy().load().keys(keys);
+
+        List<Key<Object>> moreShards = new ArrayList<Key<Object>>();
+        for (String name : names) {
+            CounterConfig config = (CounterConfig) loaded.get(Key.<Object> create(CounterConfig.class, name));
+            int numShards = config == null || config.numShards == null ? DEFAULT_SHARDS : config.numShards;
+            for (int i = DEFAULT_SHARDS; i < numShards; i++) {
+                moreShards.add(Key.<Object> create(CounterShard.class, shardID(name, i)));
+            }
+        }
+        if (!moreShards.isEmpty()) {
+            loaded = new HashMap<Key<Object>, Object>(loaded);
+            loaded.putAll(ObjectifyService.ofy().load().keys(moreShards));
+        }
+
+        // shard id => count, shard ids start with the counter name
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (String name : names) {
+            counts.put(name, 0L);
+        }
+        for (Object entity : loaded.values()) {
+            if (entity instanceof CounterShard) {
+                CounterShard s = (CounterShard) entity;
+                String name = s.id.substring(0, s.id.lastIndexOf('-'));
+                if (counts.containsKey(name)) {
+                    counts.put(name, counts.get(name) + s.count);
+                }
+            }
+        }
+        return counts;
+    }
+
+    // setShards changes number of shards of the counter. Number of shards
+    // could only grow.
+    // returns: false if numShards is smaller than current number of shards
+    public static boolean setShards(final String name, final int numShards) {
+        Boolean ok = ObjectifyService.ofy().transact(new Work<Boolean>() {
+            public Boolean run() {
+                if (numShards < loadNumShards(name)) {
+                    return false;
+                }
+                ObjectifyService.ofy().save().entity(new CounterConfig(name, numShards)).now();
+                return true;
+            }
+        });
+        numShardsCache.invalidate(name);
+        return ok;
+    }
+
+    // getNumShards returns (cached) number of shards of the counter
+    public static int getNumShards(String name) {
+        Integer numShards = numShardsCache.getIfPresent(name);
+        if (numShards == null) {
+            numShards = loadNumShards(name);
+            numShardsCache.put(name, numShards);
+        }
+        return numShards;
+    }
+
+    private static int loadNumShards(String name) {
+        CounterConfig config = ObjectifyService.ofy().load().type(CounterConfig.class).id(name).now();
+        if (config == null || config.numShards == null) {
+            return DEFAULT_SHARDS;
+        }
+        return config.numShards;
+    }
+
+    private static String shardID(String name, int shard) {
+        return name + "-" + shard;
+    }
+
+    // clearCache removes cached number of shards (used in tests, since
+    // datastore is recreated for every test)
+    public static void clearCache() {
+        numShardsCache.invalidateAll();
+    }
+}
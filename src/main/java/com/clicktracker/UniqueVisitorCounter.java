@@ -0,0 +1,310 @@
+package com.clicktracker;
+
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.clicktracker.model.Click;
+import com.clicktracker.model.UniqueVisitors;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+
+// UniqueVisitorCounter counts unique visitors (ip + user agent) per campaign
+// per day with HyperLogLog sketches, that way number of unique visitors of
+// any date range is computed by merging daily sketches instead of scanning
+// all clicks of the campaign.
+//
+// Ingested clicks are added to in-memory sketches (one per campaign and day)
+// which are merged into stored sketches (see model.UniqueVisitors) together
+// with counters (see CounterAggregator.flush). Every flush merges into random
+// shard of the campaign day, that way instances flushing the same hot
+// campaign do not contend on one row. Merging is idempotent, so visitors
+// counted by several instances or shards are counted only once.
+//
+// Once the day is closed (no flush writes into it anymore), shards of the
+// day are folded into shard 0 by task request (see FoldTask), that way range
+// query reads one sketch per day. Small sketches are stored sparse (see
+// HyperLogLog.toBytes).
+//
+// Number of shards could only grow, since rows of removed shards would not
+// be read. It could be changed via system property in appengine-web.xml:
+//      clicktracker.uniqueVisitors.shards
+public class UniqueVisitorCounter {
+    private static final Logger log = Logger.getLogger(UniqueVisitorCounter.class.getName());
+
+    // longest range that could be queried, every day is shards stored rows
+    // (see count)
+    public static final int MAX_DAYS = 366;
+
+    // day is folded when it ended at least this long ago, late flushes
+    // (restored writes) are merged into a shard and folded again later
+    private static final long FOLD_AFTER_MILLIS = 60 * 60 * 1000L;
+
+    private static final int SHARDS = Integer.getInteger("clicktracker.uniqueVisitors.shards", 10);
+
+    private static final HashFunction hash = Hashing.murmur3_128();
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // SimpleDateFormat is not thread safe
+    private static final ThreadLocal<DateFormat> dayFormat = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat format = new SimpleDateFormat("yyyyMMdd");
+            format.setTimeZone(UTC);
+            return format;
+        }
+    };
+
+    // campaign day ({campaignID}-{yyyyMMdd}) => visitors that were not
+    // merged into stored sketch yet
+    private static final ConcurrentMap<String, PendingSketch> pending = new ConcurrentHashMap<String, PendingSketch>();
+
+    private static class PendingSketch {
+        final Long campaignID;
+        // yyyyMMdd
+        final String day;
+        final HyperLogLog sketch = new HyperLogLog();
+        // set when sketch is taken by flush, adds have to create new sketch
+        boolean closed = false;
+
+        PendingSketch(Long campaignID, String day) {
+            this.campaignID = campaignID;
+            this.day = day;
+        }
+    }
+
+    // add adds visitor of the click to the sketch of the campaign and day
+    // of the click
+    public static void add(Click click) {
+        if (click.campaignID == null) {
+            return;
+        }
+        long visitor = hash.newHasher().putString(click.ip == null ? "" : click.ip, StandardCharsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(click.userAgent == null ? "" : click.userAgent, StandardCharsets.UTF_8).hash().asLong();
+        Date createdAt = click.createdAt == null ? new Date() : click.createdAt;
+        String day = day(createdAt);
+        String id = click.campaignID + "-" + day;
+
+        while (true) {
+            PendingSketch p = pendingSketch(id, click.campaignID, day);
+            synchronized (p) {
+                if (!p.closed) {
+                    p.sketch.add(visitor);
+                    return;
+                }
+            }
+            // sketch was just taken by flush, retry with new one
+            pending.remove(id, p);
+        }
+    }
+
+    // restore puts visitors of sketch that could not be stored back to
+    // pending sketches
+    private static void restore(String id, PendingSketch failed) {
+        while (true) {
+            PendingSketch p = pendingSketch(id, failed.campaignID, failed.day);
+            synchronized (p) {
+                if (!p.closed) {
+                    p.sketch.merge(failed.sketch);
+                    return;
+                }
+            }
+            pending.remove(id, p);
+        }
+    }
+
+    private static PendingSketch pendingSketch(String id, Long campaignID, String day) {
+        PendingSketch p = pending.get(id);
+        if (p == null) {
+            PendingSketch newSketch = new PendingSketch(campaignID, day);
+            p = pending.putIfAbsent(id, newSketch);
+            if (p == null) {
+                p = newSketch;
+            }
+        }
+        return p;
+    }
+
+    // flush merges pending sketches into stored ones (used in tests, sketches
+    // are merged together with counters, see CounterAggregator.flush).
+    // Caller must have Objectify context.
+    public static void flush() {
+        List<BatchWriter.Write> writes = new ArrayList<BatchWriter.Write>();
+        collect(writes);
+        BatchWriter.write(writes, 1, null);
+    }
+
+    // collect takes pending sketches as writes merging them into random
+    // shard rows of the campaign days
+    static void collect(List<BatchWriter.Write> writes) {
+        for (Map.Entry<String, PendingSketch> entry : pending.entrySet()) {
+            PendingSketch p = entry.getValue();
+            pending.remove(entry.getKey(), p);
+            synchronized (p) {
+                p.closed = true;
+            }
+            writes.add(new SketchWrite(entry.getKey(), p));
+        }
+    }
+
+    // SketchWrite merges visitors of pending sketch into random shard row
+    private static class SketchWrite implements BatchWriter.Write {
+        private final String key;
+        private final PendingSketch p;
+        private final String id;
+
+        SketchWrite(String key, PendingSketch p) {
+            this.key = key;
+            this.p = p;
+            this.id = UniqueVisitors.id(p.campaignID, p.day, ThreadLocalRandom.current().nextInt(SHARDS));
+        }
+
+        public Key<?> key() {
+            return Key.create(UniqueVisitors.class, id);
+        }
+
+        public Object apply(Object current) {
+            UniqueVisitors row = (UniqueVisitors) current;
+            HyperLogLog sketch = p.sketch;
+            if (row != null && row.sketch != null) {
+                sketch = HyperLogLog.fromBytes(row.sketch);
+                sketch.merge(p.sketch);
+            }
+            return new UniqueVisitors(id, p.campaignID, sketch.toBytes());
+        }
+
+        public void restore() {
+            UniqueVisitorCounter.restore(key, p);
+        }
+    }
+
+    // count returns estimated number of unique visitors of the campaign
+    // between from and to (inclusive days, UTC). Only stored daily sketches
+    // are read, shards of at most MAX_DAYS days in one batch. Closed days
+    // with several shard rows are queued to be folded.
+    public static long count(Long campaignID, Date from, Date to) {
+        List<String> days = new ArrayList<String>();
+        List<String> ids = new ArrayList<String>();
+        Calendar day = Calendar.getInstance(UTC);
+        day.setTime(from);
+        String last = day(to);
+        for (int i = 0; i < MAX_DAYS; i++) {
+            String d = day(day.getTime());
+            days.add(d);
+            for (int shard = 0; shard < SHARDS; shard++) {
+                ids.add(UniqueVisitors.id(campaignID, d, shard));
+            }
+            if (d.equals(last)) {
+                break;
+            }
+            day.add(Calendar.DATE, 1);
+        }
+
+        HyperLogLog merged = new HyperLogLog();
+        Map<String, UniqueVisitors> rows = ObjectifyService.ofy().load().type(UniqueVisitors.class).ids(ids);
+        String lastClosed = day(new Date(System.currentTimeMillis() - FOLD_AFTER_MILLIS - DAY_MILLIS));
+        ArrayList<String> unfolded = new ArrayList<String>();
+        for (int i = 0; i < days.size(); i++) {
+            int stored = 0;
+            for (int shard = 0; shard < SHARDS; shard++) {
+                UniqueVisitors row = rows.get(ids.get(i * SHARDS + shard));
+                if (row != null && row.sketch != null) {
+                    merged.merge(HyperLogLog.fromBytes(row.sketch));
+                    stored++;
+                }
+            }
+            if (stored > 1 && days.get(i).compareTo(lastClosed) <= 0) {
+                unfolded.add(days.get(i));
+            }
+        }
+        if (!unfolded.isEmpty()) {
+            queueFold(campaignID, unfolded);
+        }
+        return merged.estimate();
+    }
+
+    // queueFold adds task folding shards of chosen days to the default push
+    // queue, days are read from all shards meanwhile
+    private static void queueFold(Long campaignID, ArrayList<String> days) {
+        try {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withPayload(new FoldTask(campaignID, days)));
+        } catch (RuntimeException ex) {
+            log.log(Level.WARNING, "could not queue unique visitors fold of campaign " + campaignID, ex);
+        }
+    }
+
+    // fold merges all shards of the campaign day into shard 0 and deletes
+    // the others, in one transaction, so concurrent flushes are not lost.
+    // Caller must have Objectify context.
+    public static void fold(final Long campaignID, final String day) {
+        ObjectifyService.ofy().transact(new VoidWork() {
+            public void vrun() {
+                List<String> ids = new ArrayList<String>();
+                for (int shard = 0; shard < SHARDS; shard++) {
+                    ids.add(UniqueVisitors.id(campaignID, day, shard));
+                }
+                Map<String, UniqueVisitors> rows = ObjectifyService.ofy().load().type(UniqueVisitors.class).ids(ids);
+                if (rows.size() < 2) {
+                    return;
+                }
+                HyperLogLog merged = new HyperLogLog();
+                for (UniqueVisitors row : rows.values()) {
+                    if (row.sketch != null) {
+                        merged.merge(HyperLogLog.fromBytes(row.sketch));
+                    }
+                }
+                ObjectifyService.ofy().save().entity(new UniqueVisitors(ids.get(0), campaignID, merged.toBytes()));
+                ObjectifyService.ofy().delete().type(UniqueVisitors.class).ids(ids.subList(1, ids.size()));
+            }
+        });
+    }
+
+    // FoldTask folds shards of closed days of the campaign on task request
+    // (see queueFold)
+    static class FoldTask implements DeferredTask {
+        private static final long serialVersionUID = 1L;
+
+        private final Long campaignID;
+        private final ArrayList<String> days;
+
+        FoldTask(Long campaignID, ArrayList<String> days) {
+            this.campaignID = campaignID;
+            this.days = days;
+        }
+
+        public void run() {
+            for (String day : days) {
+                fold(campaignID, day);
+            }
+        }
+    }
+
+    // day returns day (UTC) of chosen date as yyyyMMdd
+    public static String day(Date date) {
+        return dayFormat.get().format(date);
+    }
+
+    // clear removes all pending sketches without storing them (used in tests)
+    public static void clear() {
+        pending.clear();
+    }
+}
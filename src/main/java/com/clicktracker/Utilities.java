@@ -5,19 +5,38 @@ import java.io.IOException;
 import org.apache.commons.lang3.StringUtils;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
 import com.clicktracker.model.Platform;
+import com.google.gson.JsonElement;
+import com.google.appengine.api.ThreadManager;
 
-import com.googlecode.objectify.ObjectifyService;
 
 // Utilities class contains useful methods used in all other servlets classes
 public class Utilities {
     // getURLEnding returns last part from requested url string
     public static String getURLEnding(HttpServletRequest req) throws IOException {
         // get id from request and remove first slash
-        String campaignID = req.getPathInfo().substring(1);
+        // (path info is missing when servlet root url is requested)
+        String pathInfo = req.getPathInfo();
+        if (pathInfo == null || pathInfo.length() < 1) {
+            return "";
+        }
+        String campaignID = pathInfo.substring(1);
         return campaignID;
     }
 
+    // getURLParts returns parts of the url after servlet path
+    // ex: /5066549580791808/uniques => ["5066549580791808", "uniques"]
+    public static String[] getURLParts(HttpServletRequest req) throws IOException {
+        return getURLEnding(req).split("/");
+    }
+
     // getCampaignID returns campaign id parsed from url, or null if that
     // is not possible
     public static Long getCampaignID(HttpServletRequest req) throws IOException {
@@ -40,7 +59,8 @@ public class Utilities {
     // - whole id of the platform (ex: 5066549580791808,6192449487634432) or
     // - name of the platform (ex: "iphone, android")
     //
-    // both inputs are checked against the database to ensure the input data is valid
+    // both inputs are checked against existing platforms to ensure the input data
+    // is valid, platforms are looked up in memory (see PlatformRegistry)
     //
     // returns: list of platform ids that are representing string argument
     // ex: argument: "android", returns [2132133] // id of platform with name == android
@@ -52,16 +72,16 @@ public class Utilities {
             // if platform is num admin provided platforms as string of platform ids
             Long id = stringToLong(platform);
             if (id != null) {
-                Platform p = ObjectifyService.ofy().load().type(Platform.class).id(id).now();
-                // check if platform actually exist in database
+                Platform p = PlatformRegistry.byID(id);
+                // check if platform actually exist
                 if (p != null) {
                     platformIDS.add(p.id);
                 }
 
                 // admin used platform names in query: platforms="iphone, android";
             } else {
-                Platform p = ObjectifyService.ofy().load().type(Platform.class).filter("name", platform).first().now();
-                // check if platform exist in db
+                Platform p = PlatformRegistry.byName(platform);
+                // check if platform exist
                 if (p != null) {
                     platformIDS.add(p.id);
                 }
@@ -74,4 +94,63 @@ public class Utilities {
             return null;
         }
     }
-}
\ No newline at end of file
+
+    // getPlatformRedirects handles parsing redirect targets per platform, json
+    // object of platform (name or id) => redirect url, ex:
+    //      {"iphone": "https://itunes.apple.com/app/id123", "android": "https://play.google.com/store/apps/details?id=com.app"}
+    //
+    // returns: platform id => url, null if json is not valid or platform
+    // does not exist
+    public static Map<String, String> getPlatformRedirects(JsonElement json) throws IOException {
+        if (json == null || !json.isJsonObject()) {
+            return null;
+        }
+
+        Map<String, String> redirects = new HashMap<String, String>();
+        for (Map.Entry<String, JsonElement> target : json.getAsJsonObject().entrySet()) {
+            if (!target.getValue().isJsonPrimitive()) {
+                return null;
+            }
+            List<Long> ids = getPlatforms(target.getKey());
+            if (ids == null || ids.size() != 1) {
+                return null;
+            }
+            redirects.put(String.valueOf(ids.get(0)), target.getValue().getAsString().trim());
+        }
+        return redirects;
+    }
+
+    // parseDay parses day (UTC) in yyyy-MM-dd format, used in date range
+    // queries ex: ?from=2017-10-01&to=2017-10-31
+    //
+    // returns: null if day could not be parsed
+    public static Date parseDay(String day) {
+        if (day == null) {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        ParsePosition position = new ParsePosition(0);
+        Date date = format.parse(day, position);
+        // trailing characters are not allowed
+        if (date == null || position.getIndex() != day.length()) {
+            return null;
+        }
+        return date;
+    }
+
+    // backgroundThreadFactory returns thread factory for threads that are
+    // allowed to outlive the request (GAE does not allow creating plain java
+    // threads). Only manual/basic scaled instances support background threads,
+    // on other instances creating a thread fails.
+    //
+    // returns: null if background threads are not available at all
+    public static ThreadFactory backgroundThreadFactory() {
+        try {
+            return ThreadManager.backgroundThreadFactory();
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+}
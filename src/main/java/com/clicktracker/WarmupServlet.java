@@ -0,0 +1,145 @@
+package com.clicktracker;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+// custom imports
+import com.clicktracker.model.Campaign;
+import com.google.gson.stream.JsonWriter;
+
+// WarmupServlet handles GAE warmup requests (/_ah/warmup), they are sent to
+// new instance before it gets user traffic. Loading the servlet context runs
+// startup (see OfyHelper), then GET and POST redirect of one preloaded
+// campaign are run through ClickTrackerServlet itself (without recording the
+// click) and json output is run once, so their classes are loaded and caches
+// are filled before the first click.
+//
+// Response is json object of startup stage timings in millis (see Bootstrap).
+public class WarmupServlet extends HttpServlet {
+    // user-agent of a common client, classified once during warmup
+    private static final String WARMUP_USER_AGENT = "Mozilla/5.0 (Linux; Android 7.0; SM-G930F) "
+            + "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/61.0.3163.98 Mobile Safari/537.36";
+
+    // redirects of warmup requests are not counted as clicks
+    private static final ClickTrackerServlet redirects = new ClickTrackerServlet(false);
+
+    @Override
+    public void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        Bootstrap.timed("warmup", new Runnable() {
+            public void run() {
+                try {
+                    warmUp(req, resp);
+                } catch (IOException ex) {
+                    // warmup response does not write anything
+                    throw new IllegalStateException(ex);
+                }
+            }
+        });
+
+        resp.setContentType("application/json");
+        resp.setStatus(HttpServletResponse.SC_OK);
+        PrintWriter out = resp.getWriter();
+        writeTimings(out, Bootstrap.timings());
+        out.flush();
+    }
+
+    // warmUp redirects preloaded campaign (nothing is run when there is no
+    // active campaign) and writes campaign json into memory
+    private static void warmUp(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Long campaignID = Bootstrap.warmupCampaign();
+        if (campaignID == null) {
+            return;
+        }
+        HttpServletRequest request = new WarmupRequest(req, campaignID);
+        WarmupResponse redirect = new WarmupResponse(resp);
+        redirects.doGet(request, redirect);
+        redirects.doPost(request, new WarmupResponse(resp));
+
+        Campaign c = new Campaign();
+        c.id = campaignID;
+        c.redirectURL = redirect.location;
+        JsonOutput.writeCampaign(new StringWriter(), c);
+    }
+
+    // WarmupRequest is click request of chosen campaign from common client
+    private static class WarmupRequest extends HttpServletRequestWrapper {
+        private final Long campaignID;
+
+        WarmupRequest(HttpServletRequest req, Long campaignID) {
+            super(req);
+            this.campaignID = campaignID;
+        }
+
+        @Override
+        public String getPathInfo() {
+            return "/" + campaignID;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return "User-Agent".equalsIgnoreCase(name) ? WARMUP_USER_AGENT : super.getHeader(name);
+        }
+    }
+
+    // WarmupResponse discards status, redirect and body of the click
+    // response, warmup response holds startup timings
+    private static class WarmupResponse extends HttpServletResponseWrapper {
+        // target of the redirect, null if there was no redirect
+        String location = null;
+
+        WarmupResponse(HttpServletResponse resp) {
+            super(resp);
+        }
+
+        @Override
+        public void setStatus(int status) {
+        }
+
+        @Override
+        public void setContentType(String type) {
+        }
+
+        @Override
+        public void setContentLength(int length) {
+        }
+
+        @Override
+        public void sendRedirect(String location) {
+            this.location = location;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+        }
+    }
+
+    // writeTimings writes stage => millis as json object, also used by admin
+    // startup statistics (see AdminServlet)
+    static void writeTimings(PrintWriter out, Map<String, Long> timings) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        for (Map.Entry<String, Long> stage : timings.entrySet()) {
+            writer.name(stage.getKey()).value(stage.getValue());
+        }
+        writer.endObject();
+        writer.flush();
+    }
+}
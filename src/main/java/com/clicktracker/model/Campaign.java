@@ -8,6 +8,7 @@ import com.googlecode.objectify.annotation.Cache;
 // custom imports
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 // Create table for storing campaigns
 @Entity
@@ -21,6 +22,10 @@ public class Campaign {
     public String redirectURL;
 
     public List<Long> platforms;
+    // redirect targets per platform (platform id => url), ex. app store url
+    // for iphone and play store url for android. Clicks from other platforms
+    // are redirected to redirectURL.
+    public Map<String, String> platformRedirects;
     // active field => an easy way to disable campaign links without deleting
     // campaign from the database
     @Index
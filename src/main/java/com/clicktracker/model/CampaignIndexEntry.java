@@ -0,0 +1,34 @@
+package com.clicktracker.model;
+
+import java.util.Date;
+import java.util.List;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+// CampaignIndexEntry holds change of one campaign which was not compacted
+// into campaign index sets yet (see CampaignIndex). Every campaign has its
+// own row, so campaign changes do not contend on shared index rows. Rows are
+// deleted once they are compacted.
+@Entity
+public class CampaignIndexEntry {
+    // campaign id
+    @Id
+    public Long id;
+    // names of sets the campaign belongs to, empty for deleted campaign
+    public List<String> sets;
+    // names of sets the campaign has to be removed from
+    public List<String> unset;
+    // time of the last change, used to find out if the row changed meanwhile
+    public Date updatedAt;
+
+    public CampaignIndexEntry() {
+    }
+
+    public CampaignIndexEntry(Long id, List<String> sets, List<String> unset, Date updatedAt) {
+        this.id = id;
+        this.sets = sets;
+        this.unset = unset;
+        this.updatedAt = updatedAt;
+    }
+}
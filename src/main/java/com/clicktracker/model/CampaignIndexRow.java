@@ -0,0 +1,34 @@
+package com.clicktracker.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+// CampaignIndexRow holds sorted ids of campaigns in one chunk of one set of
+// the campaign index, ex. all campaigns on one platform (see CampaignIndex).
+// Big sets are split into several chunk rows, so no row hits the entity size
+// limit. Rows are loaded by id, so no index is needed.
+@Entity
+public class CampaignIndexRow {
+    // name of the set for the first chunk: all, active, platform-{platformID},
+    // {name}/{chunk} for next chunks (see CampaignIndexRow.chunkID)
+    @Id
+    public String id;
+    // sorted campaign ids packed as 8 byte big endian longs, ids of chunk are
+    // bigger than ids of previous chunks
+    public byte[] campaignIDs;
+    // number of chunks of the set, only stored in the first chunk
+    public Integer chunks;
+
+    public CampaignIndexRow() {
+    }
+
+    public CampaignIndexRow(String id, byte[] campaignIDs) {
+        this.id = id;
+        this.campaignIDs = campaignIDs;
+    }
+
+    // chunkID returns id of the row holding chosen chunk of the set
+    public static String chunkID(String name, int chunk) {
+        return chunk == 0 ? name : name + "/" + chunk;
+    }
+}
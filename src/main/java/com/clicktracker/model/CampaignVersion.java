@@ -0,0 +1,31 @@
+package com.clicktracker.model;
+
+import java.util.List;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+// CampaignVersion is version stamp of created campaigns (single row). It's
+// bumped every time campaigns are created (see CampaignCache.bumpVersion),
+// so instances know when their bloom filter of campaign ids is missing
+// campaigns.
+@Entity
+@Cache
+public class CampaignVersion {
+    @Id
+    public Long id;
+    // number of campaigns created so far
+    public Long version;
+    // ids of the most recently created campaigns, the last one is the newest
+    public List<Long> created;
+
+    public CampaignVersion() {
+    }
+
+    public CampaignVersion(Long id, Long version, List<Long> created) {
+        this.id = id;
+        this.version = version;
+        this.created = created;
+    }
+}
@@ -5,11 +5,15 @@ import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Index;
 
 // custom imports
+import java.io.Serializable;
 import java.util.Date;
 
-// Create entity for storing client clicks
+// Create entity for storing client clicks, clicks are serializable since they
+// are handed over to task queue in batches (see ClickQueue)
 @Entity
-public class Click {
+public class Click implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     @Id
     public Long id;
     // id of the campaign
@@ -22,8 +26,16 @@ public class Click {
     // I believe the assignment expects just to log platform id depending on
     // the user-agent ??
     public String userAgent;
-    // when the click happened
+    // id of the platform recognized from user-agent (see PlatformClassifier),
+    // null if platform is not known
+    public Long platformID;
+    // when the click happened, indexed for exports of time ranges (see
+    // ClickExport and composite index in datastore-indexes.xml)
+    @Index
     public Date createdAt;
+    // repeated click of the same visitor within dedup window (see
+    // ClickDeduplicator), duplicates are not counted
+    public Boolean duplicate;
 
     public Click() {
     }
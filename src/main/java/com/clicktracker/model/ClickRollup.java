@@ -0,0 +1,44 @@
+package com.clicktracker.model;
+
+import java.util.List;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+// ClickRollup holds number of clicks of one shard of one campaign in a row of
+// consecutive time buckets, ex. 60 minutes of an hour (see
+// ClickRollups.Granularity). Every row is split into several shard rows, so
+// flushes of several instances do not contend on one row, clicks of all
+// shards are summed on read. Rows are loaded by id (see ClickRollup.shardID),
+// so no index is needed.
+@Entity
+public class ClickRollup {
+    // {campaignID}-{granularity}-{row start in epoch millis}-{shard}
+    @Id
+    public String id;
+    public Long campaignID;
+    // clicks of the buckets of the row in time order, missing buckets at the
+    // end have 0 clicks
+    public List<Long> clicks;
+
+    public ClickRollup() {
+    }
+
+    public ClickRollup(String id, Long campaignID, List<Long> clicks) {
+        this.id = id;
+        this.campaignID = campaignID;
+        this.clicks = clicks;
+    }
+
+    // id returns id of the row counting clicks of the campaign in buckets
+    // with chosen granularity code (m, h, d), starting at rowStart
+    public static String id(Long campaignID, String granularity, long rowStart) {
+        return campaignID + "-" + granularity + "-" + rowStart;
+    }
+
+    // shardID returns id of the shard row of the row with chosen id (see
+    // ClickRollup.id)
+    public static String shardID(String rowID, int shard) {
+        return rowID + "-" + shard;
+    }
+}
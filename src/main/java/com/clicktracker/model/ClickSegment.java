@@ -0,0 +1,36 @@
+package com.clicktracker.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+// custom imports
+import java.util.Date;
+
+// ClickSegment describes one archived segment of clicks (see ClickArchive),
+// clicks of one campaign from one UTC day stored in columnar format in the
+// segment store. Segments of a campaign are found via composite index
+// (campaignID, firstAt), see datastore-indexes.xml.
+@Entity
+public class ClickSegment {
+    @Id
+    public Long id;
+    @Index
+    public Long campaignID;
+    // createdAt of the first and the last click in the segment
+    @Index
+    public Date firstAt;
+    public Date lastAt;
+    // number of clicks in the segment
+    public Long clicks;
+    // size of the segment file in bytes
+    public Long bytes;
+    // name of the segment file in the segment store
+    public String file;
+    // false until archived clicks are deleted from datastore
+    @Index
+    public Boolean purged;
+
+    public ClickSegment() {
+    }
+}
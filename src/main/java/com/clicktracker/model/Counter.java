@@ -4,13 +4,18 @@ import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Index;
 
+// Counter is legacy click counter (one row per campaign), clicks are counted
+// by sharded counters now (see ShardedCounter). Existing rows are moved into
+// sharded counters by CounterMigration and deleted afterwards.
 @Entity
 public class Counter {
     @Index
     @Id
     public Long id;
     // id of the campaign
-    @Index
+    // NOTE: field is not indexed anymore, rows are never written again and
+    // index entries of the existing rows are kept until the rows are deleted
+    // by CounterMigration, so filtering by campaignID still works for them.
     public Long campaignID;
     // total number of clicks, we are storing total number of clicks
     // inside database, since Google Datastore does not support
@@ -24,4 +29,4 @@ public class Counter {
         this.campaignID = campaignID;
         this.numOfClicks = numOfClicks;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,24 @@
+package com.clicktracker.model;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+// CounterConfig stores number of shards of the sharded counter, key is the
+// counter name (ex: campaign-123). Counters without config use default number
+// of shards (see ShardedCounter).
+@Entity
+@Cache
+public class CounterConfig {
+    @Id
+    public String name;
+    public Integer numShards;
+
+    public CounterConfig() {
+    }
+
+    public CounterConfig(String name, Integer numShards) {
+        this.name = name;
+        this.numShards = numShards;
+    }
+}
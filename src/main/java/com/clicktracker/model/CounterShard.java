@@ -0,0 +1,23 @@
+package com.clicktracker.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+// CounterShard is one part of sharded counter (see ShardedCounter).
+// Key is derived from counter name and shard index, ex: campaign-123-4
+// that way shards are loaded by key and no index is needed.
+@Entity
+public class CounterShard {
+    @Id
+    public String id;
+    // number of clicks counted by this shard
+    public Long count;
+
+    public CounterShard() {
+    }
+
+    public CounterShard(String id, Long count) {
+        this.id = id;
+        this.count = count;
+    }
+}
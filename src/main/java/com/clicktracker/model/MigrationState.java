@@ -0,0 +1,28 @@
+package com.clicktracker.model;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+// Create entity for storing progress of data migrations, that way migration
+// could be resumed where it stopped (see CounterMigration)
+@Entity
+@Cache
+public class MigrationState {
+    @Id
+    public String name;
+    // web safe datastore cursor of the last processed row
+    public String cursor;
+    // number of migrated rows
+    public Long migrated;
+    public Boolean done;
+
+    public MigrationState() {
+    }
+
+    public MigrationState(String name) {
+        this.name = name;
+        this.migrated = 0L;
+        this.done = false;
+    }
+}
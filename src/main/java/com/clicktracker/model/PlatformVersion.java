@@ -0,0 +1,24 @@
+package com.clicktracker.model;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+// PlatformVersion is version stamp of the platforms table (single row). It's
+// bumped every time platforms are saved via PlatformRegistry, so instances
+// know when to reload their in-memory platforms.
+@Entity
+@Cache
+public class PlatformVersion {
+    @Id
+    public Long id;
+    public Long version;
+
+    public PlatformVersion() {
+    }
+
+    public PlatformVersion(Long id, Long version) {
+        this.id = id;
+        this.version = version;
+    }
+}
@@ -0,0 +1,28 @@
+package com.clicktracker.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+// custom imports
+import java.util.Date;
+
+// RevokedToken is admin token revoked before it expired (logout), see
+// AdminTokens. Rows of expired tokens are not needed anymore.
+@Entity
+public class RevokedToken {
+    // random id of the token
+    @Id
+    public String id;
+    // when the token expires
+    @Index
+    public Date expiresAt;
+
+    public RevokedToken() {
+    }
+
+    public RevokedToken(String id, Date expiresAt) {
+        this.id = id;
+        this.expiresAt = expiresAt;
+    }
+}
@@ -0,0 +1,24 @@
+package com.clicktracker.model;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+// TokenSecret is HMAC key used to sign admin tokens (see AdminTokens), one
+// row shared by all instances, it's generated on first use
+@Entity
+@Cache
+public class TokenSecret {
+    @Id
+    public Long id;
+    // base64 encoded key
+    public String secret;
+
+    public TokenSecret() {
+    }
+
+    public TokenSecret(Long id, String secret) {
+        this.id = id;
+        this.secret = secret;
+    }
+}
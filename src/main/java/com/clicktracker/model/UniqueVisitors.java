@@ -0,0 +1,35 @@
+package com.clicktracker.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+// UniqueVisitors holds HyperLogLog sketch of visitors (ip + user agent) of
+// one shard of one campaign on one day (UTC). Every day of the campaign is
+// split into several shard rows, so flushes of several instances do not
+// contend on one row, sketches of all shards are merged on read (see
+// UniqueVisitorCounter). Shards of closed days are folded into shard 0. Rows
+// are loaded by id (see UniqueVisitors.id), so no index is needed.
+@Entity
+public class UniqueVisitors {
+    // {campaignID}-{yyyyMMdd}-{shard}
+    @Id
+    public String id;
+    public Long campaignID;
+    // serialized HyperLogLog sketch (see HyperLogLog.toBytes)
+    public byte[] sketch;
+
+    public UniqueVisitors() {
+    }
+
+    public UniqueVisitors(String id, Long campaignID, byte[] sketch) {
+        this.id = id;
+        this.campaignID = campaignID;
+        this.sketch = sketch;
+    }
+
+    // id returns id of the shard row holding visitors of the campaign on
+    // chosen day (yyyyMMdd)
+    public static String id(Long campaignID, String day, int shard) {
+        return campaignID + "-" + day + "-" + shard;
+    }
+}
@@ -24,13 +24,22 @@ import java.io.PrintWriter;
 import java.io.IOException;
 
 import com.clicktracker.AdminAuthServlet;
+import com.clicktracker.AdminServlet;
+import com.clicktracker.AdminTokens;
+import com.clicktracker.LoginGuard;
 import com.clicktracker.AdminAuthServlet.Credentials;
 // custom imports
 import com.clicktracker.model.Campaign;
+import com.clicktracker.model.CampaignVersion;
 import com.clicktracker.model.Platform;
+import com.clicktracker.model.PlatformVersion;
 import com.clicktracker.model.Counter;
 import com.clicktracker.model.Click;
 import com.clicktracker.model.Admin;
+import com.clicktracker.model.RevokedToken;
+import com.clicktracker.model.TokenSecret;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 // AdminAuthTest is used to test AdminAuthServlet class that handles admin
 // login/logout functionality
@@ -50,10 +59,14 @@ public class AdminAuthTest {
         ObjectifyService.setFactory(new ObjectifyFactory());
         // register
         ObjectifyService.register(Platform.class);
+        ObjectifyService.register(PlatformVersion.class);
         ObjectifyService.register(Click.class);
         ObjectifyService.register(Counter.class);
         ObjectifyService.register(Campaign.class);
+        ObjectifyService.register(CampaignVersion.class);
         ObjectifyService.register(Admin.class);
+        ObjectifyService.register(TokenSecret.class);
+        ObjectifyService.register(RevokedToken.class);
     }
 
     @Before
@@ -68,6 +81,9 @@ public class AdminAuthTest {
 
     @After
     public void tearDown() {
+        AdminTokens.setMode(AdminTokens.Mode.SESSION);
+        AdminTokens.clear();
+        LoginGuard.clear();
         AsyncCacheFilter.complete();
         this.session.close();
         this.helper.tearDown();
@@ -169,4 +185,50 @@ public class AdminAuthTest {
         String data = responseWriter.toString();
         assertTrue(data.contains("Bad request"));
     }
-}
\ No newline at end of file
+
+    // in token mode login returns token which is accepted by admin api
+    // without session, logout revokes it
+    @Test
+    public void tokenLoginTest() throws IOException {
+        AdminTokens.setMode(AdminTokens.Mode.TOKEN);
+        SetupUtils.createAdmin();
+        Mockito.when(mockRequest.getPathInfo()).thenReturn("/login");
+        Mockito.when(mockRequest.getParameter("name")).thenReturn("admin");
+        Mockito.when(mockRequest.getParameter("password")).thenReturn("1234");
+        new AdminAuthServlet().doPost(mockRequest, mockResponse);
+        Mockito.verify(mockRequest, Mockito.never()).getSession(Mockito.anyBoolean());
+
+        JsonObject json = new JsonParser().parse(responseWriter.toString()).getAsJsonObject();
+        assertEquals("Successfully logged in", json.get("message").getAsString());
+        String token = json.get("token").getAsString();
+
+        HttpServletRequest apiRequest = Mockito.mock(HttpServletRequest.class);
+        assertTrue(!new AdminServlet().checkCredentials(apiRequest));
+        Mockito.when(apiRequest.getHeader("Authorization")).thenReturn("Bearer " + token);
+        assertTrue(new AdminServlet().checkCredentials(apiRequest));
+        Mockito.verify(apiRequest, Mockito.never()).getSession(Mockito.anyBoolean());
+
+        Mockito.when(mockRequest.getPathInfo()).thenReturn("/logout");
+        Mockito.when(mockRequest.getHeader("Authorization")).thenReturn("Bearer " + token);
+        new AdminAuthServlet().doPost(mockRequest, mockResponse);
+        assertTrue(responseWriter.toString().contains("Successfully logged out"));
+        assertTrue(!new AdminServlet().checkCredentials(apiRequest));
+    }
+
+    // repeated login attempts are rejected with 429 before password check
+    @Test
+    public void loginTest_throttled() throws IOException {
+        SetupUtils.createAdmin();
+        Mockito.when(mockRequest.getPathInfo()).thenReturn("/login");
+        Mockito.when(mockRequest.getRemoteAddr()).thenReturn("10.0.0.1");
+        Mockito.when(mockRequest.getParameter("name")).thenReturn("admin");
+        Mockito.when(mockRequest.getParameter("password")).thenReturn("321");
+        for (int i = 0; i < 5; i++) {
+            assertTrue(!new AdminAuthServlet().credentialsCheck(mockRequest, mockResponse).throttled);
+        }
+
+        new AdminAuthServlet().doPost(mockRequest, mockResponse);
+        Mockito.verify(mockResponse).setStatus(429);
+        assertTrue(responseWriter.toString().contains("Too many login attempts"));
+    }
+}
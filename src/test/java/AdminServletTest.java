@@ -22,18 +22,50 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import java.io.StringWriter;
+import java.io.StringReader;
+import java.io.BufferedReader;
 import java.io.PrintWriter;
 import java.io.IOException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import com.google.common.io.ByteStreams;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Arrays;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 import com.clicktracker.AdminServlet;
 // custom imports
+import com.clicktracker.CampaignCache;
+import com.clicktracker.CampaignIndex;
+import com.clicktracker.ShardedCounter;
+import com.clicktracker.CounterMigration;
+import com.clicktracker.UniqueVisitorCounter;
+import com.clicktracker.ClickRollups;
+import com.clicktracker.PlatformClassifier;
+import com.clicktracker.PlatformRegistry;
+import com.clicktracker.Utilities;
 import com.clicktracker.model.Campaign;
+import com.clicktracker.model.CampaignVersion;
 import com.clicktracker.model.Platform;
+import com.clicktracker.model.PlatformVersion;
 import com.clicktracker.model.Counter;
+import com.clicktracker.model.CounterShard;
+import com.clicktracker.model.UniqueVisitors;
+import com.clicktracker.model.ClickRollup;
+import com.clicktracker.model.CampaignIndexEntry;
+import com.clicktracker.model.CampaignIndexRow;
+import com.clicktracker.model.CounterConfig;
+import com.clicktracker.model.MigrationState;
 import com.clicktracker.model.Click;
+import com.clicktracker.model.ClickSegment;
 import com.clicktracker.model.Admin;
 
 // AdminServletTest class is used to test behaviour of AdminServlet methods
@@ -53,9 +85,19 @@ public class AdminServletTest {
         ObjectifyService.setFactory(new ObjectifyFactory());
         // register
         ObjectifyService.register(Platform.class);
+        ObjectifyService.register(PlatformVersion.class);
         ObjectifyService.register(Click.class);
+        ObjectifyService.register(ClickSegment.class);
         ObjectifyService.register(Counter.class);
+        ObjectifyService.register(CounterShard.class);
+        ObjectifyService.register(UniqueVisitors.class);
+        ObjectifyService.register(ClickRollup.class);
+        ObjectifyService.register(CampaignIndexRow.class);
+        ObjectifyService.register(CampaignIndexEntry.class);
+        ObjectifyService.register(CounterConfig.class);
+        ObjectifyService.register(MigrationState.class);
         ObjectifyService.register(Campaign.class);
+        ObjectifyService.register(CampaignVersion.class);
         ObjectifyService.register(Admin.class);
     }
 
@@ -71,6 +113,13 @@ public class AdminServletTest {
 
     @After
     public void tearDown() {
+        CampaignIndex.clear();
+        CampaignCache.invalidateAll();
+        ShardedCounter.clearCache();
+        CounterMigration.clearCache();
+        UniqueVisitorCounter.clear();
+        PlatformClassifier.clear();
+        PlatformRegistry.clear();
         AsyncCacheFilter.complete();
         this.session.close();
         this.helper.tearDown();
@@ -132,6 +181,65 @@ public class AdminServletTest {
         assertTrue(output.contains(c1.redirectURL));
     }
 
+    // unique visitors of the campaign in date range
+    // api/v1/admin/campaign/{campaignID}/uniques?from=&to=
+    @Test
+    public void doGet_uniques_Test() throws IOException {
+        Admin admin = SetupUtils.createAdmin();
+        List<Campaign> campaigns = SetupUtils.createTestCampaigns();
+        Campaign c1 = campaigns.get(0);
+        Date day = Utilities.parseDay("2017-10-02");
+        UniqueVisitorCounter.add(new Click(c1.id, "10.0.0.1", "Mozilla/5.0", day));
+        UniqueVisitorCounter.add(new Click(c1.id, "10.0.0.2", "Mozilla/5.0", day));
+        UniqueVisitorCounter.add(new Click(c1.id, "10.0.0.2", "Mozilla/5.0", day));
+        UniqueVisitorCounter.flush();
+
+        HttpSession session = Mockito.mock(HttpSession.class);
+        Mockito.when(mockRequest.getSession(false)).thenReturn(session);
+        Mockito.when(session.getAttribute("adminID")).thenReturn(admin.id);
+        Mockito.when(mockRequest.getPathInfo()).thenReturn("/" + c1.id + "/uniques");
+        Mockito.when(mockRequest.getParameter("from")).thenReturn("2017-10-01");
+        Mockito.when(mockRequest.getParameter("to")).thenReturn("2017-10-31");
+
+        new AdminServlet().doGet(mockRequest, mockResponse);
+        assertEquals("{\"id\":" + c1.id + ",\"from\":\"2017-10-01\",\"to\":\"2017-10-31\",\"uniques\":2}",
+                responseWriter.toString());
+
+        // invalid range
+        Mockito.when(mockRequest.getParameter("to")).thenReturn("2017-09-30");
+        new AdminServlet().doGet(mockRequest, mockResponse);
+        Mockito.verify(mockResponse).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+
+    // simulate /api/v1/admin/campaign/{id}/stats call
+    @Test
+    public void doGet_stats_Test() throws IOException {
+        Admin admin = SetupUtils.createAdmin();
+        List<Campaign> campaigns = SetupUtils.createTestCampaigns();
+        Campaign c1 = campaigns.get(0);
+        Date day = Utilities.parseDay("2017-10-02");
+        ClickRollups.add(new Click(c1.id, "10.0.0.1", "Mozilla/5.0", day));
+        ClickRollups.add(new Click(c1.id, "10.0.0.2", "Mozilla/5.0", new Date(day.getTime() + 60 * 60 * 1000)));
+        ClickRollups.flush();
+
+        HttpSession session = Mockito.mock(HttpSession.class);
+        Mockito.when(mockRequest.getSession(false)).thenReturn(session);
+        Mockito.when(session.getAttribute("adminID")).thenReturn(admin.id);
+        Mockito.when(mockRequest.getPathInfo()).thenReturn("/" + c1.id + "/stats");
+        Mockito.when(mockRequest.getParameter("from")).thenReturn("2017-10-01");
+        Mockito.when(mockRequest.getParameter("to")).thenReturn("2017-10-02");
+
+        new AdminServlet().doGet(mockRequest, mockResponse);
+        assertEquals("{\"id\":" + c1.id + ",\"from\":\"2017-10-01\",\"to\":\"2017-10-02\",\"granularity\":\"day\","
+                + "\"clicks\":2,\"buckets\":[{\"start\":\"2017-10-01T00:00Z\",\"clicks\":0},"
+                + "{\"start\":\"2017-10-02T00:00Z\",\"clicks\":2}]}", responseWriter.toString());
+
+        // too many buckets
+        Mockito.when(mockRequest.getParameter("granularity")).thenReturn("minute");
+        new AdminServlet().doGet(mockRequest, mockResponse);
+        Mockito.verify(mockResponse).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+
     // missing session test - admin is not logged in
     @Test
     public void doGet_notLoggedIn_Test() throws IOException {
@@ -242,6 +350,31 @@ public class AdminServletTest {
         }
     }
 
+    // testing click export endpoint, response is gzipped when client accepts it
+    @Test
+    public void exportClicks_gzip_Test() throws IOException {
+        Campaign c = SetupUtils.createTestCampaigns().get(0);
+        Date day = Utilities.parseDay("2017-10-01");
+        ObjectifyService.ofy().save().entities(new Click(c.id, "10.0.0.1", "Mozilla/5.0 (Android)", day),
+                new Click(c.id, "10.0.0.2", "Mozilla/5.0 (iPhone)", day)).now();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Mockito.when(mockResponse.getOutputStream()).thenReturn(SetupUtils.outputStream(bytes));
+        Mockito.when(mockRequest.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+        Mockito.when(mockRequest.getParameter("from")).thenReturn("2017-10-01");
+        Mockito.when(mockRequest.getParameter("to")).thenReturn("2017-10-01");
+        Mockito.when(mockRequest.getParameter("format")).thenReturn("csv");
+        new AdminServlet().exportClicks(mockRequest, mockResponse, c.id);
+
+        Mockito.verify(mockResponse).setHeader("Content-Encoding", "gzip");
+        String csv = new String(ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(bytes
+                .toByteArray()))), StandardCharsets.UTF_8);
+        String[] lines = csv.split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(csv.contains(",10.0.0.2,Mozilla/5.0 (iPhone),,false\n"));
+        assertEquals("#done", lines[3]);
+    }
+
     // testing if platforms in datastore are displayed when calling
     // displayAllPlatforms function
     @Test
@@ -257,6 +390,73 @@ public class AdminServletTest {
         assertTrue(output.contains("iphone"));
     }
 
+    // testing if campaigns are listed in pages and cursor of the last page
+    // is missing, with and without platform filter
+    @Test
+    public void displayAllCampaigns_pages_Test() throws IOException {
+        List<Campaign> campaigns = SetupUtils.createTestCampaigns();
+
+        JsonObject first = listPage("campaigns", "3", null, null);
+        JsonObject second = listPage("campaigns", "3", first.get("cursor").getAsString(), null);
+        assertEquals(3, first.getAsJsonArray("campaigns:").size());
+        assertEquals(1, second.getAsJsonArray("campaigns:").size());
+        assertTrue(!second.has("cursor"));
+        List<Long> ids = new ArrayList<Long>();
+        for (JsonElement c : first.getAsJsonArray("campaigns:")) {
+            ids.add(c.getAsJsonObject().get("id").getAsLong());
+        }
+        ids.add(second.getAsJsonArray("campaigns:").get(0).getAsJsonObject().get("id").getAsLong());
+        for (Campaign c : campaigns) {
+            assertTrue(ids.contains(c.id));
+        }
+
+        // android campaigns are c1, c2, c3 (see SetupUtils)
+        first = listPage("campaigns", "2", null, "android");
+        second = listPage("campaigns", "2", first.get("cursor").getAsString(), "android");
+        assertEquals(2, first.getAsJsonArray("campaigns:").size());
+        assertEquals(1, second.getAsJsonArray("campaigns:").size());
+        assertTrue(!second.has("cursor"));
+    }
+
+    // testing if invalid page parameters are rejected
+    @Test
+    public void displayAllCampaigns_invalidPage_Test() throws IOException {
+        SetupUtils.createTestCampaigns();
+        Mockito.when(mockRequest.getParameter("limit")).thenReturn("0");
+        new AdminServlet().displayAllCampaigns(mockRequest, mockResponse);
+        Mockito.when(mockRequest.getParameter("limit")).thenReturn("2");
+        Mockito.when(mockRequest.getParameter("cursor")).thenReturn("not a cursor");
+        new AdminServlet().displayAllCampaigns(mockRequest, mockResponse);
+        Mockito.verify(mockResponse, Mockito.times(2)).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+
+    // testing if platforms are listed in pages
+    @Test
+    public void displayAllPlatforms_pages_Test() throws IOException {
+        SetupUtils.createPlatforms();
+        JsonObject first = listPage("platforms", "1", null, null);
+        JsonObject second = listPage("platforms", "1", first.get("cursor").getAsString(), null);
+        assertEquals("android", first.getAsJsonArray("platforms:").get(0).getAsJsonObject().get("name").getAsString());
+        assertEquals("iphone", second.getAsJsonArray("platforms:").get(0).getAsJsonObject().get("name").getAsString());
+        assertTrue(!second.has("cursor"));
+    }
+
+    // listPage calls displayAllCampaigns or displayAllPlatforms with page
+    // parameters and returns parsed response
+    private JsonObject listPage(String listing, String limit, String cursor, String platforms) throws IOException {
+        StringWriter writer = new StringWriter();
+        Mockito.when(mockResponse.getWriter()).thenReturn(new PrintWriter(writer));
+        Mockito.when(mockRequest.getParameter("limit")).thenReturn(limit);
+        Mockito.when(mockRequest.getParameter("cursor")).thenReturn(cursor);
+        Mockito.when(mockRequest.getParameter("platforms")).thenReturn(platforms);
+        if (listing.equals("campaigns")) {
+            new AdminServlet().displayAllCampaigns(mockRequest, mockResponse);
+        } else {
+            new AdminServlet().displayAllPlatforms(mockRequest, mockResponse);
+        }
+        return new JsonParser().parse(writer.toString()).getAsJsonObject();
+    }
+
     // testing displayAllPlatforms function, check if specifying platform
     // query argument is working as intended
     @Test
@@ -398,6 +598,15 @@ public class AdminServletTest {
         // name & redirect url should be different
         assertNotEquals(c1Name, updatedCampaign.name);
         assertNotEquals(c1URL, updatedCampaign.redirectURL);
+
+        // campaign moved from android & iphone to iphone only, listing should
+        // see the change (see CampaignIndex)
+        Mockito.when(mockRequest.getParameter("platforms")).thenReturn("iphone");
+        new AdminServlet().doPut(mockRequest, mockResponse);
+        responseWriter.getBuffer().setLength(0);
+        Mockito.when(mockRequest.getParameter("platforms")).thenReturn("android");
+        new AdminServlet().displayAllCampaigns(mockRequest, mockResponse);
+        assertTrue(!responseWriter.toString().contains(newName));
     }
 
     // test if admin is able to create campaign
@@ -436,6 +645,107 @@ public class AdminServletTest {
         assertEquals(active, c.active);
     }
 
+    // test if admin is able to set redirect targets per platform on create
+    // and update them later
+    @Test
+    public void createCampaign_platformRedirects_Test() throws IOException {
+        Admin admin = SetupUtils.createAdmin();
+        List<Platform> platforms = SetupUtils.createPlatforms();
+        Platform android = platforms.get(0);
+        Platform iphone = platforms.get(1);
+
+        HttpSession session = Mockito.mock(HttpSession.class);
+        Mockito.when(mockRequest.getSession(false)).thenReturn(session);
+        Mockito.when(session.getAttribute("adminID")).thenReturn(admin.id);
+        Mockito.when(mockRequest.getParameter("name")).thenReturn("My app campaign");
+        Mockito.when(mockRequest.getParameter("redirectURL")).thenReturn("http://myapp.com");
+        Mockito.when(mockRequest.getParameter("active")).thenReturn("true");
+        Mockito.when(mockRequest.getParameter("platforms")).thenReturn("android,iphone");
+        Mockito.when(mockRequest.getParameter("platformRedirects")).thenReturn(
+                "{\"iphone\": \"https://itunes.apple.com/app/id1\", \"" + android.id + "\": \"https://play.google.com\"}");
+
+        new AdminServlet().doPost(mockRequest, mockResponse);
+        Campaign c = ObjectifyService.ofy().load().type(Campaign.class).first().now();
+        assertEquals(2, c.platformRedirects.size());
+        assertEquals("https://itunes.apple.com/app/id1", c.platformRedirects.get(String.valueOf(iphone.id)));
+        assertEquals("https://play.google.com", c.platformRedirects.get(String.valueOf(android.id)));
+
+        // empty url removes the target, other targets are kept
+        Mockito.when(mockRequest.getPathInfo()).thenReturn("/" + c.id);
+        Mockito.when(mockRequest.getParameter("platformRedirects")).thenReturn("{\"android\": \"\"}");
+        new AdminServlet().doPut(mockRequest, mockResponse);
+        c = ObjectifyService.ofy().load().type(Campaign.class).id(c.id).now();
+        assertEquals(1, c.platformRedirects.size());
+        assertEquals("https://itunes.apple.com/app/id1", c.platformRedirects.get(String.valueOf(iphone.id)));
+
+        // unknown platform
+        Mockito.when(mockRequest.getParameter("platformRedirects")).thenReturn("{\"symbian\": \"http://x.com\"}");
+        new AdminServlet().doPut(mockRequest, mockResponse);
+        Mockito.verify(mockResponse).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+
+    // test bulk create/update: valid operations are applied, invalid ones
+    // are reported per item and campaign index is updated
+    @Test
+    public void bulkCampaigns_Test() throws IOException {
+        Admin admin = SetupUtils.createAdmin();
+        List<Campaign> campaigns = SetupUtils.createTestCampaigns();
+        Campaign c4 = campaigns.get(3); // iphone only, active
+        CampaignIndex.rebuild();
+
+        HttpSession session = Mockito.mock(HttpSession.class);
+        Mockito.when(mockRequest.getSession(false)).thenReturn(session);
+        Mockito.when(session.getAttribute("adminID")).thenReturn(admin.id);
+        Mockito.when(mockRequest.getPathInfo()).thenReturn("/bulk");
+        String body = "[{\"op\": \"create\", \"name\": \"bulk 1\", \"redirectURL\": \"http://bulk1.com\", "
+                + "\"active\": true, \"platforms\": \"android\", "
+                + "\"platformRedirects\": {\"android\": \"https://play.google.com\"}},"
+                + "{\"op\": \"create\", \"name\": \"bulk 2\", \"redirectURL\": \"http://bulk2.com\", "
+                + "\"active\": false, \"platforms\": \"android,iphone\"},"
+                + "{\"op\": \"update\", \"id\": " + c4.id + ", \"platforms\": \"android\", \"active\": \"false\"},"
+                + "{\"op\": \"create\", \"redirectURL\": \"http://noname.com\", \"active\": true, "
+                + "\"platforms\": \"android\"},"
+                + "{\"op\": \"update\", \"id\": 123, \"name\": \"missing\"},"
+                + "{\"op\": \"create\", \"name\": \"x\", \"redirectURL\": \"http://x.com\", \"active\": true, "
+                + "\"platforms\": \"symbian\"}]";
+        Mockito.when(mockRequest.getReader()).thenReturn(new BufferedReader(new StringReader(body)));
+
+        new AdminServlet().doPost(mockRequest, mockResponse);
+        JsonArray results = new JsonParser().parse(responseWriter.toString()).getAsJsonObject()
+                .getAsJsonArray("results");
+        int[] statuses = { 201, 201, 200, 400, 404, 400 };
+        for (int i = 0; i < statuses.length; i++) {
+            assertEquals(statuses[i], results.get(i).getAsJsonObject().get("status").getAsInt());
+        }
+
+        Campaign bulk1 = ObjectifyService.ofy().load().type(Campaign.class)
+                .id(results.get(0).getAsJsonObject().get("id").getAsLong()).now();
+        assertEquals("bulk 1", bulk1.name);
+        assertEquals(1, bulk1.platformRedirects.size());
+        Campaign updated = ObjectifyService.ofy().load().type(Campaign.class).id(c4.id).now();
+        assertEquals(false, updated.active);
+        assertEquals(c4.name, updated.name);
+        assertEquals(6, ObjectifyService.ofy().load().type(Campaign.class).count());
+
+        // index: c1, c2, bulk 1 are active android campaigns (c4 is not
+        // active anymore), bulk 2 and updated c4 are inactive ones
+        Long android = campaigns.get(1).platforms.get(0);
+        Long iphone = c4.platforms.get(0);
+        assertEquals(3, CampaignIndex.find(Arrays.asList(android), true).length);
+        assertEquals(3, CampaignIndex.find(Arrays.asList(android), false).length);
+        assertEquals(1, CampaignIndex.find(Arrays.asList(iphone), true).length);
+    }
+
+    // bulk request body should be json array
+    @Test
+    public void bulkCampaigns_invalidBody_Test() throws IOException {
+        Mockito.when(mockRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{\"op\": \"create\"}")));
+        new AdminServlet().bulkCampaigns(mockRequest, mockResponse);
+        Mockito.when(mockRequest.getReader()).thenReturn(new BufferedReader(new StringReader("[")));
+        new AdminServlet().bulkCampaigns(mockRequest, mockResponse);
+        Mockito.verify(mockResponse, Mockito.times(2)).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+
     // testing createCampaign when we have missing parameter
     @Test
     public void createCampaign_missingParameter_Test() throws IOException {
@@ -0,0 +1,121 @@
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import java.util.Date;
+
+// custom imports
+import com.clicktracker.AdminTokens;
+import com.clicktracker.model.Admin;
+import com.clicktracker.model.RevokedToken;
+import com.clicktracker.model.TokenSecret;
+
+// AdminTokensTest is testing signed admin tokens
+public class AdminTokensTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    protected Closeable session;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(Admin.class);
+        ObjectifyService.register(TokenSecret.class);
+        ObjectifyService.register(RevokedToken.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        AdminTokens.clear();
+        AdminTokens.setMode(AdminTokens.Mode.SESSION);
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    // issued token is valid, modified or malformed tokens are not
+    @Test
+    public void verify_Test() {
+        Admin admin = SetupUtils.createAdmin();
+        AdminTokens.Token token = AdminTokens.issue(admin.id);
+        assertEquals(admin.id, AdminTokens.verify(token.value));
+        assertTrue(token.expiresAt.getTime() > System.currentTimeMillis());
+
+        // token of another admin with the same signature
+        String[] parts = token.value.split("\\.");
+        assertNull(AdminTokens.verify((admin.id + 1) + "." + parts[1] + "." + parts[2] + "." + parts[3]));
+        // expired token
+        assertNull(AdminTokens.verify(parts[0] + ".1." + parts[2] + "." + parts[3]));
+        assertNull(AdminTokens.verify("admin"));
+        assertNull(AdminTokens.verify(null));
+
+        // key is shared via datastore, tokens stay valid after reload
+        AdminTokens.clear();
+        assertEquals(admin.id, AdminTokens.verify(token.value));
+        assertEquals(admin.id, AdminTokens.verify(AdminTokens.fromHeader("Bearer " + token.value)));
+    }
+
+    // revoked tokens and tokens of deactivated admins are rejected
+    @Test
+    public void revoke_Test() {
+        Admin admin = SetupUtils.createAdmin();
+        AdminTokens.Token first = AdminTokens.issue(admin.id);
+        AdminTokens.Token second = AdminTokens.issue(admin.id);
+        assertTrue(AdminTokens.revoke(first.value));
+        assertFalse(AdminTokens.revoke(first.value));
+        assertNull(AdminTokens.verify(first.value));
+        assertEquals(admin.id, AdminTokens.verify(second.value));
+
+        // revocation is loaded from datastore on other instances
+        AdminTokens.clear();
+        assertNull(AdminTokens.verify(first.value));
+
+        // deactivated admin is seen after reload
+        admin.active = false;
+        ObjectifyService.ofy().save().entity(admin).now();
+        assertEquals(admin.id, AdminTokens.verify(second.value));
+        AdminTokens.refresh();
+        assertNull(AdminTokens.verify(second.value));
+    }
+
+    // state is reloaded by refresher only when it's due, reload deletes rows
+    // of expired revoked tokens
+    @Test
+    public void refreshIfDue_Test() {
+        Admin admin = SetupUtils.createAdmin();
+        AdminTokens.Token token = AdminTokens.issue(admin.id);
+        ObjectifyService.ofy().save().entities(new RevokedToken("expired", new Date(System.currentTimeMillis() - 1000)),
+                new RevokedToken("valid", new Date(System.currentTimeMillis() + 60000))).now();
+
+        // state was just loaded, deactivated admin is seen on next due reload
+        admin.active = false;
+        ObjectifyService.ofy().save().entity(admin).now();
+        AdminTokens.setMode(AdminTokens.Mode.TOKEN);
+        AdminTokens.refreshIfDue();
+        assertEquals(admin.id, AdminTokens.verify(token.value));
+        assertEquals(2, ObjectifyService.ofy().load().type(RevokedToken.class).count());
+
+        AdminTokens.refresh();
+        assertNull(AdminTokens.verify(token.value));
+        assertNull(ObjectifyService.ofy().load().type(RevokedToken.class).id("expired").now());
+        assertEquals(1, ObjectifyService.ofy().load().type(RevokedToken.class).count());
+    }
+}
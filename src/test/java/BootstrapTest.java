@@ -0,0 +1,127 @@
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// custom imports
+import com.clicktracker.Bootstrap;
+import com.clicktracker.model.Campaign;
+import com.clicktracker.model.CampaignVersion;
+
+// BootstrapTest is testing startup timings and parallel startup tasks
+public class BootstrapTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    protected Closeable session;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(Campaign.class);
+        ObjectifyService.register(CampaignVersion.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    // stages are recorded in order, total is recorded when startup is done
+    @Test
+    public void stage_Test() {
+        Bootstrap boot = Bootstrap.begin();
+        boot.stage("first");
+        boot.stage("second");
+        boot.done();
+        Map<String, Long> timings = Bootstrap.timings();
+        assertEquals(Arrays.asList("first", "second", "total"), new ArrayList<String>(timings.keySet()));
+        assertTrue(timings.get("total") >= timings.get("first"));
+
+        // next startup drops previous timings
+        Bootstrap.begin();
+        assertTrue(Bootstrap.timings().isEmpty());
+    }
+
+    // only the first request after startup is recorded
+    @Test
+    public void requestServed_Test() {
+        Bootstrap.begin();
+        Bootstrap.requestServed(5 * 1000000L);
+        Bootstrap.requestServed(9 * 1000000L);
+        Map<String, Long> timings = Bootstrap.timings();
+        assertEquals(Long.valueOf(5L), timings.get("firstRequest"));
+        assertTrue(timings.containsKey("firstRequestAt"));
+    }
+
+    // all tasks are run and could use datastore
+    @Test
+    public void parallel_Test() {
+        final AtomicInteger done = new AtomicInteger();
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int i = 0; i < 3; i++) {
+            final String name = "c" + i;
+            tasks.add(new Runnable() {
+                public void run() {
+                    Campaign c = new Campaign(name, "http://example.com", Collections.<Long> emptyList(), true,
+                            new Date());
+                    ObjectifyService.ofy().save().entity(c).now();
+                    done.incrementAndGet();
+                }
+            });
+        }
+        Bootstrap.parallel(tasks);
+        assertEquals(3, done.get());
+        assertEquals(3, ObjectifyService.ofy().load().type(Campaign.class).count());
+    }
+
+    // failure of one task is thrown after all tasks are finished
+    @Test
+    public void parallelFailure_Test() {
+        final AtomicInteger done = new AtomicInteger();
+        Runnable ok = new Runnable() {
+            public void run() {
+                done.incrementAndGet();
+            }
+        };
+        Runnable failing = new Runnable() {
+            public void run() {
+                throw new IllegalStateException("failed");
+            }
+        };
+        try {
+            Bootstrap.parallel(Arrays.asList(ok, failing, ok));
+            fail("failure was not thrown");
+        } catch (IllegalStateException ex) {
+            assertEquals("failed", ex.getMessage());
+        }
+        assertEquals(2, done.get());
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+}
@@ -0,0 +1,199 @@
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Date;
+
+// custom imports
+import com.clicktracker.CacheRefresher;
+import com.clicktracker.CampaignCache;
+import com.clicktracker.CampaignCache.CachedCampaign;
+import com.clicktracker.model.Campaign;
+import com.clicktracker.model.CampaignVersion;
+import com.clicktracker.model.Platform;
+import com.clicktracker.model.PlatformVersion;
+
+// CampaignCacheTest is testing in-process campaign cache used on redirect path
+public class CampaignCacheTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    protected Closeable session;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(Platform.class);
+        ObjectifyService.register(PlatformVersion.class);
+        ObjectifyService.register(Campaign.class);
+        ObjectifyService.register(CampaignVersion.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        CampaignCache.invalidateAll();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    // second lookup of the same campaign should be served from cache
+    @Test
+    public void get_Test() {
+        List<Campaign> campaigns = SetupUtils.createTestCampaigns();
+        Campaign c1 = campaigns.get(0);
+        long hits = CampaignCache.stats().hitCount();
+        long misses = CampaignCache.stats().missCount();
+
+        CachedCampaign cached = CampaignCache.get(c1.id);
+        assertEquals(c1.id, cached.id);
+        assertEquals(c1.redirectURL, cached.redirectURL);
+        assertEquals(c1.active, cached.active);
+        assertEquals(misses + 1, CampaignCache.stats().missCount());
+
+        CampaignCache.get(c1.id);
+        assertEquals(hits + 1, CampaignCache.stats().hitCount());
+    }
+
+    // preloaded campaigns are served from cache without datastore load
+    @Test
+    public void preload_Test() {
+        List<Campaign> campaigns = SetupUtils.createTestCampaigns();
+        CampaignCache.preload(campaigns);
+        long misses = CampaignCache.stats().missCount();
+
+        CachedCampaign cached = CampaignCache.get(campaigns.get(0).id);
+        assertEquals(campaigns.get(0).redirectURL, cached.redirectURL);
+        assertEquals(misses, CampaignCache.stats().missCount());
+    }
+
+    // missing campaign returns null
+    @Test
+    public void get_missingCampaign_Test() {
+        assertNull(CampaignCache.get(123456789L));
+    }
+
+    // after invalidation updated campaign should be loaded from datastore
+    @Test
+    public void invalidate_Test() {
+        List<Campaign> campaigns = SetupUtils.createTestCampaigns();
+        Campaign c1 = campaigns.get(0);
+        CampaignCache.get(c1.id);
+
+        c1.redirectURL = "http://www.changedurl.com";
+        ObjectifyService.ofy().save().entity(c1).now();
+        // stale value is still cached
+        assertEquals("http://www.myfirstcampaign.com", CampaignCache.get(c1.id).redirectURL);
+
+        CampaignCache.invalidate(c1.id);
+        assertEquals(c1.redirectURL, CampaignCache.get(c1.id).redirectURL);
+    }
+
+    // missing campaign is cached, until campaign is created via admin api
+    @Test
+    public void get_negativeCache_Test() {
+        List<Campaign> campaigns = SetupUtils.createTestCampaigns();
+        Long missingID = 987654321L;
+        assertNull(CampaignCache.get(missingID));
+
+        long negativeHits = CampaignCache.negativeHits();
+        assertNull(CampaignCache.get(missingID));
+        assertEquals(negativeHits + 1, CampaignCache.negativeHits());
+
+        Campaign c = new Campaign("new", "http://www.newcampaign.com", campaigns.get(0).platforms, true, new Date());
+        c.id = missingID;
+        ObjectifyService.ofy().save().entity(c).now();
+        // still cached as missing
+        assertNull(CampaignCache.get(missingID));
+
+        CampaignCache.added(missingID);
+        assertEquals(c.redirectURL, CampaignCache.get(missingID).redirectURL);
+    }
+
+    // ids that are not in the bloom filter are rejected without datastore lookup
+    @Test
+    public void get_bloomFilter_Test() {
+        List<Campaign> campaigns = SetupUtils.createTestCampaigns();
+        CampaignCache.refreshBloomFilter();
+
+        long rejects = CampaignCache.bloomRejects();
+        assertNull(CampaignCache.get(987654321L));
+        assertEquals(rejects + 1, CampaignCache.bloomRejects());
+
+        // existing campaigns pass the filter
+        for (Campaign c : campaigns) {
+            assertEquals(c.redirectURL, CampaignCache.get(c.id).redirectURL);
+        }
+
+        // newly created campaign is added to the filter
+        Campaign c = new Campaign("new", "http://www.newcampaign.com", campaigns.get(0).platforms, true, new Date());
+        ObjectifyService.ofy().save().entity(c).now();
+        CampaignCache.added(c.id);
+        assertEquals(c.redirectURL, CampaignCache.get(c.id).redirectURL);
+    }
+
+    // redirect path never builds the bloom filter, due filter is built by
+    // cache refresher
+    @Test
+    public void refreshDue_Test() {
+        SetupUtils.createTestCampaigns();
+        long rejects = CampaignCache.bloomRejects();
+        assertNull(CampaignCache.get(987654321L));
+        assertNull(CampaignCache.get(987654322L));
+        assertEquals(rejects, CampaignCache.bloomRejects());
+
+        CacheRefresher.refreshDue();
+        assertNull(CampaignCache.get(987654323L));
+        assertEquals(rejects + 1, CampaignCache.bloomRejects());
+    }
+
+    // campaigns created on other instances bump version stamp, refresher adds
+    // them to the filter on next check without waiting for rebuild
+    @Test
+    public void checkVersion_Test() {
+        List<Campaign> campaigns = SetupUtils.createTestCampaigns();
+        CacheRefresher.refreshDue();
+
+        // created on other instance: saved and stamped, not added locally
+        Campaign c = new Campaign("new", "http://www.newcampaign.com", campaigns.get(0).platforms, true, new Date());
+        ObjectifyService.ofy().save().entity(c).now();
+        CampaignCache.bumpVersion(Collections.singletonList(c.id));
+        long rejects = CampaignCache.bloomRejects();
+        assertNull(CampaignCache.get(c.id));
+        assertEquals(rejects + 1, CampaignCache.bloomRejects());
+
+        CacheRefresher.refreshDue();
+        assertEquals(c.redirectURL, CampaignCache.get(c.id).redirectURL);
+        assertNull(CampaignCache.get(987654321L));
+        assertEquals(rejects + 2, CampaignCache.bloomRejects());
+
+        // stamp moved by more campaigns than it keeps, filter is rebuilt
+        List<Long> ids = new ArrayList<Long>();
+        for (long id = 0; id < 1001; id++) {
+            ids.add(id + 1000000L);
+        }
+        CampaignCache.bumpVersion(ids);
+        CacheRefresher.refreshDue();
+        assertNull(CampaignCache.get(987654322L));
+        assertEquals(rejects + 3, CampaignCache.bloomRejects());
+        assertEquals(c.redirectURL, CampaignCache.get(c.id).redirectURL);
+    }
+}
@@ -0,0 +1,198 @@
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+// custom imports
+import com.clicktracker.CampaignIndex;
+import com.clicktracker.model.Campaign;
+import com.clicktracker.model.CampaignVersion;
+import com.clicktracker.model.CampaignIndexEntry;
+import com.clicktracker.model.CampaignIndexRow;
+import com.clicktracker.model.Platform;
+import com.clicktracker.model.PlatformVersion;
+
+// CampaignIndexTest is testing platform/active index of campaigns
+public class CampaignIndexTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+            new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+    protected Closeable session;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(Campaign.class);
+        ObjectifyService.register(CampaignVersion.class);
+        ObjectifyService.register(Platform.class);
+        ObjectifyService.register(PlatformVersion.class);
+        ObjectifyService.register(CampaignIndexRow.class);
+        ObjectifyService.register(CampaignIndexEntry.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        CampaignIndex.clear();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    private static long[] ids(Campaign... campaigns) {
+        long[] ids = new long[campaigns.length];
+        for (int i = 0; i < campaigns.length; i++) {
+            ids[i] = campaigns[i].id;
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    @Test
+    public void sets_Test() {
+        long[] a = { 1, 3, 5, 7 };
+        long[] b = { 3, 4, 5, 8 };
+        assertArrayEquals(new long[] { 3, 5 }, CampaignIndex.intersect(a, b));
+        assertArrayEquals(new long[] { 1, 3, 4, 5, 7, 8 }, CampaignIndex.union(a, b));
+        assertArrayEquals(new long[] { 1, 7 }, CampaignIndex.difference(a, b));
+        assertArrayEquals(new long[0], CampaignIndex.intersect(a, new long[0]));
+    }
+
+    // index is built out of existing campaigns by task queued on first use,
+    // platforms and active filters are intersected
+    @Test
+    public void find_Test() {
+        // test campaigns: c1 both (active), c2 android (active),
+        // c3 android (non active), c4 iphone (active)
+        List<Campaign> c = SetupUtils.createTestCampaigns();
+        Long android = c.get(1).platforms.get(0);
+        Long iphone = c.get(3).platforms.get(0);
+        List<Long> none = new ArrayList<Long>();
+
+        assertNull(CampaignIndex.find(none, null));
+        assertNull(CampaignIndex.find(none, true));
+        assertEquals(1, SetupUtils.runTasks());
+
+        assertArrayEquals(ids(c.get(0), c.get(1), c.get(2), c.get(3)), CampaignIndex.find(none, null));
+        assertArrayEquals(ids(c.get(0), c.get(1), c.get(2)), CampaignIndex.find(Arrays.asList(android), null));
+        assertArrayEquals(ids(c.get(0), c.get(1)), CampaignIndex.find(Arrays.asList(android), true));
+        assertArrayEquals(ids(c.get(2)), CampaignIndex.find(Arrays.asList(android), false));
+        assertArrayEquals(ids(c.get(0)), CampaignIndex.find(Arrays.asList(android, iphone), true));
+        assertArrayEquals(ids(), CampaignIndex.find(Arrays.asList(android, iphone), false));
+        assertArrayEquals(ids(), CampaignIndex.find(Arrays.asList(12345L), null));
+    }
+
+    // campaigns are moved between rows when they are created, updated or
+    // deleted
+    @Test
+    public void update_Test() {
+        List<Campaign> c = SetupUtils.createTestCampaigns();
+        Long android = c.get(1).platforms.get(0);
+        Long iphone = c.get(3).platforms.get(0);
+        CampaignIndex.rebuild();
+
+        // new campaign
+        Campaign c5 = new Campaign("Fifth", "http://www.fifth.com", Arrays.asList(iphone), true, new Date());
+        ObjectifyService.ofy().save().entity(c5).now();
+        CampaignIndex.update(Collections.<Campaign> emptyList(), Arrays.asList(c5));
+        assertArrayEquals(ids(c.get(0), c.get(3), c5), CampaignIndex.find(Arrays.asList(iphone), true));
+
+        // c2 moves from android to iphone and is disabled
+        Campaign old = c.get(1);
+        Campaign updated = new Campaign(old.name, old.redirectURL, Arrays.asList(iphone), false, old.createdAt);
+        updated.id = old.id;
+        CampaignIndex.update(Arrays.asList(old), Arrays.asList(updated));
+        assertArrayEquals(ids(c.get(0), c.get(2)), CampaignIndex.find(Arrays.asList(android), null));
+        assertArrayEquals(ids(updated), CampaignIndex.find(Arrays.asList(iphone), false));
+
+        // c1 is deleted
+        CampaignIndex.update(Arrays.asList(c.get(0)), Collections.<Campaign> emptyList());
+        assertArrayEquals(ids(updated, c.get(2), c.get(3), c5), CampaignIndex.find(new ArrayList<Long>(), null));
+        assertArrayEquals(ids(c.get(3), c5), CampaignIndex.find(Arrays.asList(iphone), true));
+    }
+
+    // big sets are split into chunk rows, changes are compacted into them
+    @Test
+    public void chunks_Test() {
+        CampaignIndex.setChunkIDs(2);
+        CampaignIndex.setKeepEntryMillis(0);
+        List<Campaign> c = SetupUtils.createTestCampaigns();
+        Long iphone = c.get(3).platforms.get(0);
+        CampaignIndex.rebuild();
+        assertArrayEquals(ids(c.get(0), c.get(1), c.get(2), c.get(3)),
+                CampaignIndex.find(new ArrayList<Long>(), null));
+        assertEquals(Integer.valueOf(2), row("all").chunks);
+
+        // set grows by one chunk
+        Campaign c5 = new Campaign("Fifth", "http://www.fifth.com", Arrays.asList(iphone), true, new Date());
+        ObjectifyService.ofy().save().entity(c5).now();
+        CampaignIndex.update(Collections.<Campaign> emptyList(), Arrays.asList(c5));
+        assertEquals(Integer.valueOf(2), row("all").chunks);
+        assertEquals(2, SetupUtils.runTasks());
+        assertEquals(Integer.valueOf(3), row("all").chunks);
+        assertEquals(0, ObjectifyService.ofy().load().type(CampaignIndexEntry.class).count());
+        assertArrayEquals(ids(c.get(0), c.get(1), c.get(2), c.get(3), c5),
+                CampaignIndex.find(new ArrayList<Long>(), null));
+        assertArrayEquals(ids(c.get(0), c.get(3), c5), CampaignIndex.find(Arrays.asList(iphone), true));
+
+        // set shrinks, chunk left over is not read
+        CampaignIndex.update(Arrays.asList(c.get(0), c.get(1)), Collections.<Campaign> emptyList());
+        assertEquals(2, CampaignIndex.compact());
+        assertEquals(Integer.valueOf(2), row("all").chunks);
+        assertArrayEquals(ids(c.get(2), c.get(3), c5), CampaignIndex.find(new ArrayList<Long>(), null));
+    }
+
+    // campaigns changed before the index is built are indexed, even when
+    // campaign query does not see them yet
+    @Test
+    public void rebuildChanged_Test() {
+        List<Campaign> c = SetupUtils.createTestCampaigns();
+        Long iphone = c.get(3).platforms.get(0);
+        // not stored yet, like campaign saved while the index is rebuilt
+        Campaign c5 = new Campaign("Fifth", "http://www.fifth.com", Arrays.asList(iphone), true, new Date());
+        c5.id = 12345L;
+        CampaignIndex.update(Collections.<Campaign> emptyList(), Arrays.asList(c5));
+        CampaignIndex.update(Arrays.asList(c.get(0)), Collections.<Campaign> emptyList());
+        assertNull(CampaignIndex.find(new ArrayList<Long>(), null));
+
+        CampaignIndex.rebuild();
+        assertArrayEquals(ids(c.get(1), c.get(2), c.get(3), c5), CampaignIndex.find(new ArrayList<Long>(), null));
+        assertArrayEquals(ids(c.get(3), c5), CampaignIndex.find(Arrays.asList(iphone), true));
+        // entries are kept for a while after they are compacted
+        assertArrayEquals(ids(c.get(1), c.get(2), c.get(3), c5), unpack(row("all").campaignIDs));
+        assertEquals(2, ObjectifyService.ofy().load().type(CampaignIndexEntry.class).count());
+    }
+
+    private static long[] unpack(byte[] bytes) {
+        long[] ids = new long[bytes.length / 8];
+        ByteBuffer.wrap(bytes).asLongBuffer().get(ids);
+        return ids;
+    }
+
+    private static CampaignIndexRow row(String id) {
+        return ObjectifyService.ofy().load().type(CampaignIndexRow.class).id(id).now();
+    }
+}
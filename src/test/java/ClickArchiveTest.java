@@ -0,0 +1,204 @@
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+// custom imports
+import com.clicktracker.ClickArchive;
+import com.clicktracker.ClickExport;
+import com.clicktracker.ClickIndexBackfill;
+import com.clicktracker.ClickSegmentFormat;
+import com.clicktracker.FileSegmentStore;
+import com.clicktracker.model.Campaign;
+import com.clicktracker.model.CampaignVersion;
+import com.clicktracker.model.Click;
+import com.clicktracker.model.ClickSegment;
+import com.clicktracker.model.MigrationState;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+// ClickArchiveTest is testing archiving of old clicks into segment files
+public class ClickArchiveTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    protected Closeable session;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    // 2017-10-01T00:00:00Z
+    private static final long START = 1506816000000L;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(Campaign.class);
+        ObjectifyService.register(CampaignVersion.class);
+        ObjectifyService.register(Click.class);
+        ObjectifyService.register(ClickSegment.class);
+        ObjectifyService.register(MigrationState.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+        ClickArchive.setStore(new FileSegmentStore(folder.getRoot()));
+    }
+
+    @After
+    public void tearDown() {
+        ClickArchive.setStore(null);
+        ClickIndexBackfill.clearCache();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    // campaign with 3 clicks on the first day, 2 on the second day and 1 on
+    // the third day
+    private Campaign createClicks() {
+        Campaign c = new Campaign("c1", "http://example.com", Collections.<Long> emptyList(), true, new Date());
+        ObjectifyService.ofy().save().entity(c).now();
+        List<Click> clicks = new ArrayList<Click>();
+        for (int i = 0; i < 3; i++) {
+            clicks.add(new Click(c.id, "10.0.0." + i, "Mozilla/5.0 (iPhone)", new Date(START + i * 1000)));
+        }
+        for (int i = 0; i < 2; i++) {
+            clicks.add(new Click(c.id, "10.0.0." + i, "Mozilla/5.0 (Android)", new Date(START + DAY + i * 1000)));
+        }
+        clicks.add(new Click(c.id, "10.0.0.9", "recent", new Date(START + 2 * DAY)));
+        ObjectifyService.ofy().save().entities(clicks).now();
+        return c;
+    }
+
+    // clicks older than cutoff are moved into one segment per day, newer
+    // clicks stay in datastore
+    @Test
+    public void run_Test() throws IOException {
+        Campaign c = createClicks();
+        MigrationState state = ClickArchive.run(new Date(START + 2 * DAY), 60 * 1000);
+        assertTrue(state.done);
+        assertEquals(Long.valueOf(5L), state.migrated);
+
+        List<Click> left = ObjectifyService.ofy().load().type(Click.class).list();
+        assertEquals(1, left.size());
+        assertEquals("recent", left.get(0).userAgent);
+
+        List<ClickSegment> segments = ObjectifyService.ofy().load().type(ClickSegment.class).order("firstAt")
+                .list();
+        assertEquals(2, segments.size());
+        assertEquals(c.id, segments.get(0).campaignID);
+        assertEquals(Long.valueOf(3L), segments.get(0).clicks);
+        assertEquals(new Date(START + 2000), segments.get(0).lastAt);
+        assertTrue(segments.get(1).purged);
+        assertTrue(new File(folder.getRoot(), segments.get(1).file).length() == segments.get(1).bytes);
+
+        // next pass finds nothing to archive
+        state = ClickArchive.run(new Date(START + 2 * DAY), 60 * 1000);
+        assertTrue(state.done);
+        assertEquals(Long.valueOf(0L), state.migrated);
+        assertEquals(2, ObjectifyService.ofy().load().type(ClickSegment.class).count());
+    }
+
+    // clicks stored before createdAt was indexed are re-saved first, then
+    // archived with the others
+    @Test
+    public void unindexed_Test() throws IOException {
+        Campaign c = createClicks();
+        Entity legacy = new Entity("Click");
+        legacy.setProperty("campaignID", c.id);
+        legacy.setProperty("userAgent", "legacy");
+        legacy.setUnindexedProperty("createdAt", new Date(START + 500));
+        DatastoreServiceFactory.getDatastoreService().put(legacy);
+
+        MigrationState state = ClickArchive.run(new Date(START + 2 * DAY), 60 * 1000);
+        assertTrue(ClickIndexBackfill.isDone());
+        assertTrue(state.done);
+        assertEquals(Long.valueOf(6L), state.migrated);
+        List<Click> left = ObjectifyService.ofy().load().type(Click.class).list();
+        assertEquals(1, left.size());
+        assertEquals("recent", left.get(0).userAgent);
+    }
+
+    // clicks of segment which was written but not purged are deleted on next
+    // run
+    @Test
+    public void purgePending_Test() throws IOException {
+        Campaign c = createClicks();
+        List<Click> clicks = ObjectifyService.ofy().load().type(Click.class)
+                .filter("createdAt <", new Date(START + DAY)).order("createdAt").list();
+        ClickSegment segment = new ClickSegment();
+        segment.campaignID = c.id;
+        segment.firstAt = clicks.get(0).createdAt;
+        segment.lastAt = clicks.get(2).createdAt;
+        segment.clicks = 3L;
+        segment.file = "pending.cts";
+        segment.purged = false;
+        new FileSegmentStore(folder.getRoot()).write(segment.file, ClickSegmentFormat.encode(clicks));
+        ObjectifyService.ofy().save().entity(segment).now();
+
+        // nothing is older than cutoff, only pending segment is purged
+        MigrationState state = ClickArchive.run(new Date(START), 60 * 1000);
+        assertEquals(Long.valueOf(0L), state.migrated);
+        assertEquals(3, ObjectifyService.ofy().load().type(Click.class).count());
+        assertTrue(ObjectifyService.ofy().load().entity(segment).now().purged);
+    }
+
+    // export reads archived clicks first, checkpoints inside the archive
+    // could be resumed
+    @Test
+    public void export_Test() throws IOException {
+        Campaign c = createClicks();
+        ClickArchive.run(new Date(START + 2 * DAY), 60 * 1000);
+
+        StringWriter out = new StringWriter();
+        assertNull(ClickExport.export(out, ClickExport.Format.NDJSON, c.id, new Date(START + 1000),
+                new Date(START + 3 * DAY), null, 2, Long.MAX_VALUE));
+        String[] lines = out.toString().split("\n");
+        // 5 clicks, 2 checkpoints in archive, done
+        assertEquals(8, lines.length);
+        JsonObject first = new JsonParser().parse(lines[0]).getAsJsonObject();
+        assertEquals("10.0.0.1", first.get("ip").getAsString());
+        assertEquals("2017-10-01T00:00:01.000Z", first.get("createdAt").getAsString());
+        assertEquals("Mozilla/5.0 (Android)", new JsonParser().parse(lines[3]).getAsJsonObject().get("userAgent")
+                .getAsString());
+        assertEquals("recent", new JsonParser().parse(lines[6]).getAsJsonObject().get("userAgent").getAsString());
+
+        // resume after the first checkpoint
+        String cursor = new JsonParser().parse(lines[2]).getAsJsonObject().get("cursor").getAsString();
+        assertTrue(ClickExport.validCursor(cursor));
+        out = new StringWriter();
+        assertNull(ClickExport.export(out, ClickExport.Format.CSV, c.id, new Date(START + 1000),
+                new Date(START + 3 * DAY), cursor, 10, Long.MAX_VALUE));
+        lines = out.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertFalse(lines[0].startsWith("id,"));
+        assertTrue(lines[0].contains(",2017-10-02T00:00:00.000Z,10.0.0.0,"));
+        assertEquals("#done", lines[3]);
+    }
+}
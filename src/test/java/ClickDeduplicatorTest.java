@@ -0,0 +1,136 @@
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import java.util.Date;
+import java.util.List;
+
+// custom imports
+import com.clicktracker.ClickDeduplicator;
+import com.clicktracker.ClickQueue;
+import com.clicktracker.CounterAggregator;
+import com.clicktracker.ShardedCounter;
+import com.clicktracker.model.Click;
+import com.clicktracker.model.CounterConfig;
+import com.clicktracker.model.CounterShard;
+import com.clicktracker.model.UniqueVisitors;
+import com.clicktracker.model.ClickRollup;
+
+// ClickDeduplicatorTest is testing suppression of repeated clicks
+public class ClickDeduplicatorTest {
+    // clicks are handed over to task queue, tasks are run by SetupUtils.runTasks()
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+            new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+    protected Closeable session;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(Click.class);
+        ObjectifyService.register(CounterShard.class);
+        ObjectifyService.register(UniqueVisitors.class);
+        ObjectifyService.register(ClickRollup.class);
+        ObjectifyService.register(CounterConfig.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+        // other tests prepare sketches of the real clock (see CacheRefresher)
+        ClickDeduplicator.clear();
+    }
+
+    @After
+    public void tearDown() {
+        ClickDeduplicator.setMode(ClickDeduplicator.Mode.DROP);
+        ClickDeduplicator.clear();
+        ClickQueue.clear();
+        CounterAggregator.clear();
+        ShardedCounter.clearCache();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    // visitor is identified by campaign, ip and user agent and forgotten
+    // once the window passes
+    @Test
+    public void seen_Test() {
+        long now = 1500000000000L;
+        Click click = new Click(1L, "203.0.113.7", "Mozilla/5.0", new Date());
+        assertFalse(ClickDeduplicator.seen(click, now));
+        assertTrue(ClickDeduplicator.seen(click, now + 1000));
+        assertTrue(ClickDeduplicator.seen(click, now + 5000));
+
+        // other campaign, ip or user agent is another visitor
+        assertFalse(ClickDeduplicator.seen(new Click(2L, "203.0.113.7", "Mozilla/5.0", new Date()), now + 5000));
+        assertFalse(ClickDeduplicator.seen(new Click(1L, "203.0.113.8", "Mozilla/5.0", new Date()), now + 5000));
+        assertFalse(ClickDeduplicator.seen(new Click(1L, "203.0.113.7", null, new Date()), now + 5000));
+
+        // default window is 10s, last click was at now + 5s
+        assertFalse(ClickDeduplicator.seen(click, now + 5000 + 13000));
+    }
+
+    // window is never longer than windowSeconds, even when the first click
+    // was at the start of its sub-window
+    @Test
+    public void seenWindow_Test() {
+        // start of 2s sub-window
+        long now = 1500000000000L;
+        Click first = new Click(1L, "203.0.113.7", "Mozilla/5.0", new Date());
+        Click second = new Click(1L, "203.0.113.8", "Mozilla/5.0", new Date());
+        assertFalse(ClickDeduplicator.seen(first, now));
+        assertFalse(ClickDeduplicator.seen(second, now));
+
+        assertTrue(ClickDeduplicator.seen(first, now + 9999));
+        assertFalse(ClickDeduplicator.seen(second, now + 10000));
+    }
+
+    // sketches prepared ahead of time do not shorten the window
+    @Test
+    public void prepare_Test() {
+        long now = 1500000000000L;
+        Click click = new Click(1L, "203.0.113.7", "Mozilla/5.0", new Date());
+        assertFalse(ClickDeduplicator.seen(click, now));
+        for (long t = now; t < now + 10000; t += 1000) {
+            ClickDeduplicator.prepare(t);
+        }
+        assertTrue(ClickDeduplicator.seen(click, now + 9999));
+        ClickDeduplicator.prepare(now + 12000);
+        assertFalse(ClickDeduplicator.seen(click, now + 20000));
+    }
+
+    // marked duplicates are stored, but not counted
+    @Test
+    public void mark_Test() {
+        ClickDeduplicator.setMode(ClickDeduplicator.Mode.MARK);
+        for (int i = 0; i < 3; i++) {
+            Click click = new Click(1L, "203.0.113.7", "Mozilla/5.0", new Date());
+            assertTrue(ClickDeduplicator.filter(click));
+            assertEquals(i > 0, click.duplicate != null && click.duplicate);
+            ClickQueue.add(click);
+        }
+        ClickQueue.flush();
+        SetupUtils.runTasks();
+        CounterAggregator.flush();
+
+        List<Click> clicks = ObjectifyService.ofy().load().type(Click.class).list();
+        assertEquals(3, clicks.size());
+        assertEquals(Long.valueOf(1L), ShardedCounter.getCount(ShardedCounter.campaignCounter(1L)));
+        assertEquals(Long.valueOf(2L), ShardedCounter.getCount(ShardedCounter.duplicatesCounter(1L)));
+    }
+}
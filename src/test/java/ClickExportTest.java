@@ -0,0 +1,172 @@
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+// custom imports
+import com.clicktracker.ClickExport;
+import com.clicktracker.ClickIndexBackfill;
+import com.clicktracker.model.Click;
+import com.clicktracker.model.ClickSegment;
+import com.clicktracker.model.MigrationState;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+// ClickExportTest is testing streaming export of raw clicks
+public class ClickExportTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    protected Closeable session;
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    // 2017-10-01T00:00:00Z
+    private static final long START = 1506816000000L;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(Click.class);
+        ObjectifyService.register(ClickSegment.class);
+        ObjectifyService.register(MigrationState.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        ClickIndexBackfill.clearCache();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    // 5 clicks of campaign 1 on the first day, one click on the next day and
+    // one click of another campaign, all clicks are indexed by createdAt
+    private void createClicks() {
+        List<Click> clicks = new ArrayList<Click>();
+        String userAgent = "Mozilla/5.0 (KHTML, like \"Gecko\")";
+        for (int i = 0; i < 5; i++) {
+            clicks.add(new Click(1L, "10.0.0." + i, userAgent, new Date(START + i * 1000)));
+        }
+        clicks.add(new Click(1L, "10.0.0.9", "next day", new Date(START + DAY)));
+        clicks.add(new Click(2L, "10.0.0.9", "other campaign", new Date(START)));
+        ObjectifyService.ofy().save().entities(clicks).now();
+        ClickIndexBackfill.run(ClickIndexBackfill.BATCH_SIZE, Long.MAX_VALUE);
+    }
+
+    // export in chunks of 2 writes checkpoint after every full chunk, export
+    // resumed from a checkpoint continues after it
+    @Test
+    public void ndjson_Test() throws IOException {
+        createClicks();
+        StringWriter out = new StringWriter();
+        assertNull(ClickExport.export(out, ClickExport.Format.NDJSON, 1L, new Date(START), new Date(START + DAY),
+                null, 2, Long.MAX_VALUE));
+
+        String[] lines = out.toString().split("\n");
+        // 5 clicks, 2 checkpoints, done
+        assertEquals(8, lines.length);
+        JsonObject first = new JsonParser().parse(lines[0]).getAsJsonObject();
+        assertEquals("10.0.0.0", first.get("ip").getAsString());
+        assertEquals("2017-10-01T00:00:00.000Z", first.get("createdAt").getAsString());
+        assertTrue(new JsonParser().parse(lines[2]).getAsJsonObject().has("cursor"));
+        assertEquals("{\"done\":true}", lines[7]);
+
+        // resume after the second checkpoint
+        String cursor = new JsonParser().parse(lines[5]).getAsJsonObject().get("cursor").getAsString();
+        out = new StringWriter();
+        ClickExport.export(out, ClickExport.Format.NDJSON, 1L, new Date(START), new Date(START + DAY), cursor, 2,
+                Long.MAX_VALUE);
+        lines = out.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("10.0.0.4", new JsonParser().parse(lines[0]).getAsJsonObject().get("ip").getAsString());
+    }
+
+    // export stops at the first checkpoint after deadline and returns its cursor
+    @Test
+    public void csv_deadline_Test() throws IOException {
+        createClicks();
+        StringWriter out = new StringWriter();
+        String cursor = ClickExport.export(out, ClickExport.Format.CSV, 1L, new Date(START),
+                new Date(START + 2 * DAY), null, 2, 0L);
+        String[] lines = out.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("id,createdAt,ip,userAgent,platformID,duplicate", lines[0]);
+        // user agent with separator and quotes is quoted
+        assertTrue(lines[1]
+                .endsWith(",2017-10-01T00:00:00.000Z,10.0.0.0,\"Mozilla/5.0 (KHTML, like \"\"Gecko\"\")\",,false"));
+        assertEquals("#cursor," + cursor, lines[3]);
+
+        // header is written only at the beginning of the export
+        out = new StringWriter();
+        assertNull(ClickExport.export(out, ClickExport.Format.CSV, 1L, new Date(START), new Date(START + 2 * DAY),
+                cursor, 10, Long.MAX_VALUE));
+        lines = out.toString().split("\n");
+        assertEquals(5, lines.length);
+        assertTrue(lines[3].contains("next day"));
+        assertEquals("#done", lines[4]);
+    }
+
+    // clicks stored before createdAt was indexed are exported by scan until
+    // they are re-saved, scan cursor is resumed by scan after the backfill
+    @Test
+    public void unindexed_Test() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            Entity legacy = new Entity("Click");
+            legacy.setProperty("campaignID", 1L);
+            legacy.setProperty("ip", "10.0.0." + i);
+            legacy.setUnindexedProperty("createdAt", new Date(START + i * DAY));
+            DatastoreServiceFactory.getDatastoreService().put(legacy);
+        }
+
+        StringWriter out = new StringWriter();
+        String cursor = ClickExport.export(out, ClickExport.Format.NDJSON, 1L, new Date(START),
+                new Date(START + 2 * DAY), null, 1, 0L);
+        assertTrue(cursor.startsWith("s."));
+        assertTrue(ClickExport.validCursor(cursor));
+
+        ClickIndexBackfill.run(ClickIndexBackfill.BATCH_SIZE, Long.MAX_VALUE);
+        assertTrue(ClickIndexBackfill.isDone());
+        assertNull(ClickExport.export(out, ClickExport.Format.NDJSON, 1L, new Date(START), new Date(START + 2 * DAY),
+                cursor, 1, Long.MAX_VALUE));
+        // clicks of the first 2 days, scanned in id order
+        int clicks = 0;
+        for (String line : out.toString().split("\n")) {
+            if (new JsonParser().parse(line).getAsJsonObject().has("ip")) {
+                clicks++;
+            }
+        }
+        assertEquals(2, clicks);
+
+        // backfilled clicks are found by createdAt index
+        out = new StringWriter();
+        assertNull(ClickExport.export(out, ClickExport.Format.NDJSON, 1L, new Date(START), new Date(START + 2 * DAY),
+                null, 10, Long.MAX_VALUE));
+        String[] lines = out.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("10.0.0.0", new JsonParser().parse(lines[0]).getAsJsonObject().get("ip").getAsString());
+        assertEquals("10.0.0.1", new JsonParser().parse(lines[1]).getAsJsonObject().get("ip").getAsString());
+    }
+}
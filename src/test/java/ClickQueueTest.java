@@ -0,0 +1,117 @@
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import java.util.List;
+import java.util.Date;
+
+// custom imports
+import com.clicktracker.ClickQueue;
+import com.clicktracker.CounterAggregator;
+import com.clicktracker.ShardedCounter;
+import com.clicktracker.model.Campaign;
+import com.clicktracker.model.CampaignVersion;
+import com.clicktracker.model.Platform;
+import com.clicktracker.model.PlatformVersion;
+import com.clicktracker.model.Counter;
+import com.clicktracker.model.CounterShard;
+import com.clicktracker.model.UniqueVisitors;
+import com.clicktracker.model.ClickRollup;
+import com.clicktracker.model.CounterConfig;
+import com.clicktracker.model.Click;
+
+// ClickQueueTest is testing asynchronous click ingestion queue
+public class ClickQueueTest {
+    // clicks are handed over to task queue, tasks are run by SetupUtils.runTasks()
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+            new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+    protected Closeable session;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(Platform.class);
+        ObjectifyService.register(PlatformVersion.class);
+        ObjectifyService.register(Click.class);
+        ObjectifyService.register(Counter.class);
+        ObjectifyService.register(CounterShard.class);
+        ObjectifyService.register(UniqueVisitors.class);
+        ObjectifyService.register(ClickRollup.class);
+        ObjectifyService.register(CounterConfig.class);
+        ObjectifyService.register(Campaign.class);
+        ObjectifyService.register(CampaignVersion.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        ClickQueue.clear();
+        CounterAggregator.clear();
+        ShardedCounter.clearCache();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    // queued clicks should be persisted in one batch and counted per campaign
+    @Test
+    public void flush_Test() {
+        List<Campaign> campaigns = SetupUtils.createTestCampaigns();
+        Campaign c1 = campaigns.get(0);
+        Campaign c2 = campaigns.get(1);
+
+        // first click is handed over to task queue, since flush is due
+        long handedOff = ClickQueue.handedOff();
+        assertTrue(ClickQueue.add(new Click(c1.id, "127.0.0.1", "test", new Date())));
+        assertEquals(0, ClickQueue.size());
+        assertEquals(handedOff + 1, ClickQueue.handedOff());
+        // request thread did not write the click, the task does
+        assertEquals(0, ObjectifyService.ofy().load().type(Click.class).count());
+        assertEquals(1, SetupUtils.runTasks());
+
+        // the rest are waiting in the queue until the next flush
+        for (int i = 0; i < 5; i++) {
+            ClickQueue.add(new Click(c1.id, "127.0.0.1", "test", new Date()));
+        }
+        ClickQueue.add(new Click(c2.id, "127.0.0.1", "test", new Date()));
+        assertEquals(6, ClickQueue.size());
+
+        ClickQueue.flush();
+        assertEquals(0, ClickQueue.size());
+
+        List<Click> clicks = ObjectifyService.ofy().load().type(Click.class).filter("campaignID", c1.id).list();
+        assertEquals(6, clicks.size());
+
+        CounterAggregator.flush();
+        assertEquals(Long.valueOf(6L), ShardedCounter.getCount(ShardedCounter.campaignCounter(c1.id)));
+        assertEquals(Long.valueOf(1L), ShardedCounter.getCount(ShardedCounter.campaignCounter(c2.id)));
+    }
+
+    // ids are allocated before clicks are handed over, retried task does not
+    // store them twice
+    @Test
+    public void handOffRetry_Test() {
+        List<Campaign> campaigns = SetupUtils.createTestCampaigns();
+        assertTrue(ClickQueue.add(new Click(campaigns.get(0).id, "127.0.0.1", "test", new Date())));
+        assertEquals(0, ClickQueue.size());
+        assertEquals(1, SetupUtils.runTasks(2));
+        assertEquals(1, ObjectifyService.ofy().load().type(Click.class).count());
+    }
+}
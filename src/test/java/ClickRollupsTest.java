@@ -0,0 +1,152 @@
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import java.util.Date;
+import java.util.List;
+
+// custom imports
+import com.clicktracker.ClickRollups;
+import com.clicktracker.ClickRollups.Bucket;
+import com.clicktracker.ClickRollups.Granularity;
+import com.clicktracker.CounterAggregator;
+import com.clicktracker.Utilities;
+import com.clicktracker.model.Click;
+import com.clicktracker.model.ClickRollup;
+
+// ClickRollupsTest is testing minute/hour/day click rollups
+public class ClickRollupsTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    protected Closeable session;
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(ClickRollup.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        CounterAggregator.clear();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    private static void click(Long campaignID, long time) {
+        ClickRollups.add(new Click(campaignID, "10.0.0.1", "Mozilla/5.0", new Date(time)));
+    }
+
+    @Test
+    public void bucketStart_Test() {
+        long day = Utilities.parseDay("2017-10-02").getTime();
+        assertEquals(day + 3 * HOUR + 7 * MINUTE, Granularity.MINUTE.bucketStart(day + 3 * HOUR + 7 * MINUTE + 59999));
+        assertEquals(day + 3 * HOUR, Granularity.HOUR.bucketStart(day + 3 * HOUR + 7 * MINUTE));
+        assertEquals(day, Granularity.DAY.bucketStart(day + 23 * HOUR));
+        // before epoch
+        assertEquals(-24 * HOUR, Granularity.DAY.bucketStart(-1));
+
+        assertEquals(Granularity.HOUR, Granularity.parse("Hour"));
+        assertNull(Granularity.parse("week"));
+    }
+
+    // clicks are counted into all granularities, flushes add to stored rows
+    // and empty buckets are reported as zeros
+    @Test
+    public void stats_Test() {
+        long day = Utilities.parseDay("2017-10-02").getTime();
+        click(1L, day + 10 * MINUTE);
+        click(1L, day + 10 * MINUTE + 5000);
+        click(1L, day + 2 * HOUR);
+        click(2L, day + 10 * MINUTE);
+        ClickRollups.flush();
+        click(1L, day + 10 * MINUTE);
+        click(1L, day + 24 * HOUR);
+        ClickRollups.flush();
+
+        List<Bucket> minutes = ClickRollups.stats(1L, new Date(day), new Date(day + 15 * MINUTE - 1),
+                Granularity.MINUTE);
+        assertEquals(15, minutes.size());
+        assertEquals(3, minutes.get(10).clicks);
+        assertEquals(0, minutes.get(11).clicks);
+        assertEquals(day + 10 * MINUTE, minutes.get(10).start.getTime());
+
+        List<Bucket> hours = ClickRollups.stats(1L, new Date(day), new Date(day + 3 * HOUR), Granularity.HOUR);
+        assertEquals(4, hours.size());
+        assertEquals(3, hours.get(0).clicks);
+        assertEquals(0, hours.get(1).clicks);
+        assertEquals(1, hours.get(2).clicks);
+
+        List<Bucket> days = ClickRollups.stats(1L, new Date(day - 24 * HOUR), new Date(day + 24 * HOUR),
+                Granularity.DAY);
+        assertEquals(3, days.size());
+        assertEquals(0, days.get(0).clicks);
+        assertEquals(4, days.get(1).clicks);
+        assertEquals(1, days.get(2).clicks);
+
+        assertEquals(1, ClickRollups.stats(2L, new Date(day), new Date(day), Granularity.DAY).get(0).clicks);
+
+        // idle buckets are dropped from memory, later clicks still add up
+        ClickRollups.flush();
+        click(1L, day + 10 * MINUTE);
+        ClickRollups.flush();
+        assertEquals(5, ClickRollups.stats(1L, new Date(day), new Date(day), Granularity.DAY).get(0).clicks);
+    }
+
+    // buckets of one row are written together, a 90 days hourly query is
+    // accepted and reads one row per day and shard
+    @Test
+    public void statsRows_Test() {
+        long day = Utilities.parseDay("2017-10-02").getTime();
+        click(1L, day + 23 * HOUR);
+        click(1L, day + 24 * HOUR);
+        click(1L, day + 24 * HOUR + 59 * MINUTE);
+        click(1L, day + 89 * 24 * HOUR + 5 * HOUR);
+        ClickRollups.flush();
+
+        // 3 minute rows (hours), 3 hour rows (days), 2 day rows (30 days)
+        assertEquals(8, ObjectifyService.ofy().load().type(ClickRollup.class).count());
+
+        Date to = new Date(day + 90 * 24 * HOUR - 1);
+        List<Bucket> hours = ClickRollups.stats(1L, new Date(day), to, Granularity.HOUR);
+        assertEquals(90 * 24, hours.size());
+        assertTrue(hours.size() <= ClickRollups.MAX_BUCKETS);
+        assertEquals(1, hours.get(23).clicks);
+        assertEquals(2, hours.get(24).clicks);
+        assertEquals(1, hours.get(89 * 24 + 5).clicks);
+        assertEquals(day + 89 * 24 * HOUR + 5 * HOUR, hours.get(89 * 24 + 5).start.getTime());
+
+        List<Bucket> days = ClickRollups.stats(1L, new Date(day), to, Granularity.DAY);
+        assertEquals(90, days.size());
+        assertEquals(1, days.get(0).clicks);
+        assertEquals(2, days.get(1).clicks);
+        assertEquals(1, days.get(89).clicks);
+
+        List<Bucket> minutes = ClickRollups.stats(1L, new Date(day + 24 * HOUR), new Date(day + 25 * HOUR - 1),
+                Granularity.MINUTE);
+        assertEquals(60, minutes.size());
+        assertEquals(1, minutes.get(0).clicks);
+        assertEquals(1, minutes.get(59).clicks);
+    }
+}
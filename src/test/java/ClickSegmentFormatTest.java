@@ -0,0 +1,95 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+// custom imports
+import com.clicktracker.ClickSegmentFormat;
+import com.clicktracker.model.Click;
+
+// ClickSegmentFormatTest is testing columnar encoding of archived clicks
+public class ClickSegmentFormatTest {
+    // 2017-10-01T00:00:00Z
+    private static final long START = 1506816000000L;
+
+    // 10000 clicks from 50 visitors, every 10th click of known platform and
+    // every 7th one duplicate
+    private List<Click> clicks() {
+        List<Click> clicks = new ArrayList<Click>();
+        for (int i = 0; i < 10000; i++) {
+            Click c = new Click(1L, "10.0.0." + (i % 50), "Mozilla/5.0 (Linux; Android " + (i % 50) + ")",
+                    new Date(START + i * 1500L));
+            c.id = 5629499534213120L + i * 31L;
+            c.platformID = i % 10 == 0 ? 5066549580791808L : null;
+            c.duplicate = i % 7 == 0;
+            clicks.add(c);
+        }
+        return clicks;
+    }
+
+    // clicks are decoded as encoded, segment is much smaller than raw values
+    @Test
+    public void roundTrip_Test() throws IOException {
+        List<Click> clicks = clicks();
+        clicks.get(3).ip = null;
+        clicks.get(4).userAgent = null;
+        byte[] data = ClickSegmentFormat.encode(clicks);
+
+        ClickSegmentFormat.Reader reader = new ClickSegmentFormat.Reader(data, 7L);
+        assertEquals(clicks.size(), reader.size());
+        for (Click expected : clicks) {
+            Click c = reader.next();
+            assertEquals(expected.id, c.id);
+            assertEquals(Long.valueOf(7L), c.campaignID);
+            assertEquals(expected.createdAt, c.createdAt);
+            assertEquals(expected.ip, c.ip);
+            assertEquals(expected.userAgent, c.userAgent);
+            assertEquals(expected.platformID, c.platformID);
+            assertEquals(expected.duplicate, c.duplicate);
+        }
+        assertNull(reader.next());
+
+        int raw = 0;
+        for (Click c : clicks) {
+            raw += 8 + 8 + 8 + 1 + (c.ip == null ? 0 : c.ip.length())
+                    + (c.userAgent == null ? 0 : c.userAgent.length());
+        }
+        assertTrue(data.length * 10 < raw);
+    }
+
+    // skipped clicks are not returned, whole blocks are skipped
+    @Test
+    public void skip_Test() throws IOException {
+        List<Click> clicks = clicks();
+        ClickSegmentFormat.Reader reader = new ClickSegmentFormat.Reader(ClickSegmentFormat.encode(clicks), 1L);
+        reader.skip(5000);
+        assertEquals(clicks.get(5000).id, reader.next().id);
+        reader.skip(10);
+        assertEquals(clicks.get(5011).id, reader.next().id);
+        reader.skip(100000);
+        assertNull(reader.next());
+    }
+
+    // truncated or foreign data is reported as IOException
+    @Test
+    public void invalid_Test() throws IOException {
+        byte[] data = ClickSegmentFormat.encode(clicks());
+        for (byte[] invalid : Arrays.asList(Arrays.copyOf(data, data.length / 2), "not a segment".getBytes())) {
+            try {
+                ClickSegmentFormat.Reader reader = new ClickSegmentFormat.Reader(invalid, 1L);
+                while (reader.next() != null) {
+                }
+                fail("invalid segment was read");
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+    }
+}
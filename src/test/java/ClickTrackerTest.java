@@ -1,5 +1,6 @@
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
 import com.googlecode.objectify.ObjectifyFactory;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.cache.AsyncCacheFilter;
@@ -22,20 +23,39 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.StringWriter;
 import java.io.PrintWriter;
 import java.io.IOException;
+import java.io.ByteArrayOutputStream;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 
 import com.clicktracker.ClickTrackerServlet;
+import com.clicktracker.WarmupServlet;
+import com.clicktracker.Bootstrap;
 // custom imports
+import com.clicktracker.CampaignCache;
+import com.clicktracker.ShardedCounter;
+import com.clicktracker.ClickQueue;
+import com.clicktracker.CounterAggregator;
+import com.clicktracker.ClickDeduplicator;
+import com.clicktracker.PlatformClassifier;
+import com.clicktracker.PlatformRegistry;
 import com.clicktracker.model.Campaign;
+import com.clicktracker.model.CampaignVersion;
 import com.clicktracker.model.Platform;
+import com.clicktracker.model.PlatformVersion;
 import com.clicktracker.model.Counter;
+import com.clicktracker.model.CounterShard;
+import com.clicktracker.model.UniqueVisitors;
+import com.clicktracker.model.ClickRollup;
+import com.clicktracker.model.CounterConfig;
 import com.clicktracker.model.Click;
 
 // ClickTrackerTest is used to test ClickTrackerServlet in com. folder
 public class ClickTrackerTest {
-    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    // clicks are handed over to task queue, tasks are run by SetupUtils.runTasks()
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+            new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
     protected Closeable session;
 
     private HttpServletRequest mockRequest;
@@ -44,15 +64,23 @@ public class ClickTrackerTest {
     // call responseWriter.toString() to get servlet response
     private StringWriter responseWriter = new StringWriter();
     private PrintWriter printWriter = new PrintWriter(responseWriter);
+    // call responseBytes.toString("UTF-8") to get response written to output stream
+    private ByteArrayOutputStream responseBytes = new ByteArrayOutputStream();
 
     @BeforeClass
     public static void setupBeforeClass() {
         ObjectifyService.setFactory(new ObjectifyFactory());
         // register
         ObjectifyService.register(Platform.class);
+        ObjectifyService.register(PlatformVersion.class);
         ObjectifyService.register(Click.class);
         ObjectifyService.register(Counter.class);
+        ObjectifyService.register(CounterShard.class);
+        ObjectifyService.register(UniqueVisitors.class);
+        ObjectifyService.register(ClickRollup.class);
+        ObjectifyService.register(CounterConfig.class);
         ObjectifyService.register(Campaign.class);
+        ObjectifyService.register(CampaignVersion.class);
     }
 
     @Before
@@ -63,10 +91,19 @@ public class ClickTrackerTest {
         mockRequest = Mockito.mock(HttpServletRequest.class);
         mockResponse = Mockito.mock(HttpServletResponse.class);
         Mockito.when(mockResponse.getWriter()).thenReturn(printWriter);
+        Mockito.when(mockResponse.getOutputStream()).thenReturn(SetupUtils.outputStream(responseBytes));
     }
 
     @After
     public void tearDown() {
+        CampaignCache.invalidateAll();
+        ShardedCounter.clearCache();
+        ClickQueue.clear();
+        Bootstrap.setWarmupCampaign(null);
+        CounterAggregator.clear();
+        ClickDeduplicator.clear();
+        PlatformClassifier.clear();
+        PlatformRegistry.clear();
         AsyncCacheFilter.complete();
         this.session.close();
         this.helper.tearDown();
@@ -78,6 +115,8 @@ public class ClickTrackerTest {
         Platform p2 = new Platform("iphone");
         ObjectifyService.ofy().save().entity(p1).now();
         ObjectifyService.ofy().save().entity(p2).now();
+        // platform rules are loaded at startup (see OfyHelper)
+        PlatformClassifier.refresh();
         List<Long> platforms = new ArrayList<Long>();
         platforms.add(p1.id);
         platforms.add(p2.id);
@@ -101,6 +140,34 @@ public class ClickTrackerTest {
         assertEquals(c.redirectURL, argumentCaptor.getValue());
     }
 
+    // clients are redirected to the target of their platform, clients from
+    // platforms without target to redirectURL
+    @Test
+    public void doGet_platformRedirect_Test() throws IOException {
+        createTestCampaign();
+        Campaign c = ObjectifyService.ofy().load().type(Campaign.class).first().now();
+        Platform iphone = ObjectifyService.ofy().load().type(Platform.class).filter("name", "iphone").first().now();
+        c.platformRedirects = new HashMap<String, String>();
+        c.platformRedirects.put(String.valueOf(iphone.id), "https://itunes.apple.com/app/id1");
+        ObjectifyService.ofy().save().entity(c).now();
+        Mockito.when(mockRequest.getPathInfo()).thenReturn("/" + String.valueOf(c.id));
+
+        Mockito.when(mockRequest.getHeader("User-Agent")).thenReturn("Mozilla/5.0 (iPhone; CPU iPhone OS 11_0)");
+        new ClickTrackerServlet().doGet(mockRequest, mockResponse);
+        Mockito.when(mockRequest.getHeader("User-Agent")).thenReturn("Mozilla/5.0 (Linux; Android 7.0)");
+        new ClickTrackerServlet().doGet(mockRequest, mockResponse);
+
+        ArgumentCaptor<String> argumentCaptor = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(mockResponse, Mockito.times(2)).sendRedirect(argumentCaptor.capture());
+        assertEquals("https://itunes.apple.com/app/id1", argumentCaptor.getAllValues().get(0));
+        assertEquals(c.redirectURL, argumentCaptor.getAllValues().get(1));
+
+        // POST returns the same target
+        Mockito.when(mockRequest.getHeader("User-Agent")).thenReturn("Mozilla/5.0 (iPhone; CPU iPhone OS 11_0)");
+        new ClickTrackerServlet().doPost(mockRequest, mockResponse);
+        assertEquals("{\"redirectURL\":\"https://itunes.apple.com/app/id1\"}", responseBytes.toString("UTF-8"));
+    }
+
     // testing client get request on the campaign id that do not exist
     // client should be redirected to default redirect url (outfit7.com);
     @Test
@@ -124,13 +191,17 @@ public class ClickTrackerTest {
         Campaign c = ObjectifyService.ofy().load().type(Campaign.class).first().now();
         Mockito.when(mockRequest.getPathInfo()).thenReturn("/" + String.valueOf(c.id));
 
-        // simulate client click
+        // simulate client click, clicks are persisted asynchronously via ClickQueue
         new ClickTrackerServlet().doPost(mockRequest, mockResponse);
+        ClickQueue.flush();
+        SetupUtils.runTasks();
 
-        String data = responseWriter.toString();
+        String data = responseBytes.toString("UTF-8");
         // check if post mockRequest mockResponse contains redirectURL and campaign url
         assertTrue(data.contains("redirectURL"));
         assertTrue(data.contains(c.redirectURL));
+        assertEquals("{\"redirectURL\":\"" + c.redirectURL + "\"}", data);
+        Mockito.verify(mockResponse).setContentLength(data.length());
 
         // Sleeping for one second prevents test to fail randomly
         // Adding clicks in db occurs in async way which leads us to situation
@@ -151,7 +222,12 @@ public class ClickTrackerTest {
 
         // creating new post mockRequest, check if number of clicks match
         // 2 == 2
+        // (click comes from another device, otherwise it would be suppressed
+        // as duplicate)
+        Mockito.when(mockRequest.getHeader("User-Agent")).thenReturn("another device");
         new ClickTrackerServlet().doPost(mockRequest, mockResponse);
+        ClickQueue.flush();
+        SetupUtils.runTasks();
 
         // same as above
         try {
@@ -167,8 +243,40 @@ public class ClickTrackerTest {
 
         // check if counter numbers match with expected number of clicks
         // ie: 2 == 2
-        Counter counter = ObjectifyService.ofy().load().type(Counter.class).filter("campaignID", c.id).first().now();
-        assertEquals(expectedNumOfClicks, counter.numOfClicks);
+        // counters are written by CounterAggregator
+        CounterAggregator.flush();
+        Long numOfClicks = ShardedCounter.getCount(ShardedCounter.campaignCounter(c.id));
+        assertEquals(expectedNumOfClicks, numOfClicks);
+    }
+
+    // repeated clicks of the same visitor should be suppressed and counted
+    // as duplicates
+    @Test
+    public void doPost_duplicate() throws IOException {
+        createTestCampaign();
+        Campaign c = ObjectifyService.ofy().load().type(Campaign.class).first().now();
+        Mockito.when(mockRequest.getPathInfo()).thenReturn("/" + String.valueOf(c.id));
+        Mockito.when(mockRequest.getHeader("User-Agent")).thenReturn("Mozilla/5.0 (Linux; Android 7.0)");
+        Mockito.when(mockRequest.getHeader("X-Forwarded-For")).thenReturn("203.0.113.7");
+
+        // refresh storm: every request is redirected, only first one is stored
+        for (int i = 0; i < 3; i++) {
+            new ClickTrackerServlet().doPost(mockRequest, mockResponse);
+        }
+        ClickQueue.flush();
+        SetupUtils.runTasks();
+        CounterAggregator.flush();
+
+        List<Click> clicks = ObjectifyService.ofy().load().type(Click.class).filter("campaignID", c.id).list();
+        assertEquals(1, clicks.size());
+        assertEquals(Long.valueOf(1L), ShardedCounter.getCount(ShardedCounter.campaignCounter(c.id)));
+        assertEquals(Long.valueOf(2L), ShardedCounter.getCount(ShardedCounter.duplicatesCounter(c.id)));
+
+        // platform is recognized from user-agent and counted
+        Platform android = ObjectifyService.ofy().load().type(Platform.class).filter("name", "android").first().now();
+        assertEquals(android.id, clicks.get(0).platformID);
+        assertEquals(Long.valueOf(1L), ShardedCounter.getCount(ShardedCounter.platformCounter(c.id, android.id)));
+        assertEquals(Long.valueOf(0L), ShardedCounter.getCount(ShardedCounter.platformCounter(c.id, null)));
     }
 
     // check post request on campaign id that does not exist
@@ -182,8 +290,9 @@ public class ClickTrackerTest {
             assertTrue(false); // click should not be registered
         }
 
-        String data = responseWriter.toString();
+        String data = responseBytes.toString("UTF-8");
         assertTrue(data.contains("http://www.outfit7.com"));
+        assertEquals("{\"message\":\"This campaign does not exist\",\"redirectURL\":\"http://www.outfit7.com\"}", data);
     }
 
     // check if storeClick function is counting clicks correctly
@@ -210,18 +319,38 @@ public class ClickTrackerTest {
         assertEquals(clicks, numOfClicks);
 
         // check if number of clicks in counter is the same as expected
-        Counter counter = ObjectifyService.ofy().load().type(Counter.class).filter("campaignID", c.id).first().now();
-        assertEquals(clicks, counter.numOfClicks);
+        // counters are written by CounterAggregator
+        CounterAggregator.flush();
+        String counterName = ShardedCounter.campaignCounter(c.id);
+        assertEquals(clicks, ShardedCounter.getCount(counterName));
 
         // simulate another click, check if numbers match
         new ClickTrackerServlet().storeClick(mockRequest);
+        CounterAggregator.flush();
         clicks++;
-        assertEquals(clicks, counter.numOfClicks);
+        assertEquals(clicks, ShardedCounter.getCount(counterName));
 
         // count number of clicks in click table again and compare it with counter
         List<Click> clicksArr2 = ObjectifyService.ofy().load().type(Click.class).list();
         Long numOfClicks2 = new Long(clicksArr2.size());
-        assertEquals(numOfClicks2, counter.numOfClicks);
+        assertEquals(numOfClicks2, ShardedCounter.getCount(counterName));
     }
 
-}
\ No newline at end of file
+    // warmup request runs redirect of preloaded campaign without recording
+    // the click, without preloaded campaign nothing is redirected
+    @Test
+    public void warmup_Test() throws IOException {
+        new WarmupServlet().doGet(mockRequest, mockResponse);
+
+        createTestCampaign();
+        Campaign c = ObjectifyService.ofy().load().type(Campaign.class).first().now();
+        Bootstrap.setWarmupCampaign(c.id);
+        new WarmupServlet().doGet(mockRequest, mockResponse);
+        ClickQueue.flush();
+        SetupUtils.runTasks();
+
+        Mockito.verify(mockResponse, Mockito.never()).sendRedirect(Mockito.anyString());
+        assertEquals(0, ObjectifyService.ofy().load().type(Click.class).count());
+        assertTrue(responseWriter.toString().startsWith("{"));
+    }
+}
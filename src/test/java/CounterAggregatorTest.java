@@ -0,0 +1,110 @@
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+// custom imports
+import com.clicktracker.CounterAggregator;
+import com.clicktracker.ShardedCounter;
+import com.clicktracker.model.CounterShard;
+import com.clicktracker.model.UniqueVisitors;
+import com.clicktracker.model.ClickRollup;
+import com.clicktracker.model.CounterConfig;
+
+// CounterAggregatorTest is testing write-behind aggregation of click counters
+public class CounterAggregatorTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    protected Closeable session;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(CounterShard.class);
+        ObjectifyService.register(UniqueVisitors.class);
+        ObjectifyService.register(ClickRollup.class);
+        ObjectifyService.register(CounterConfig.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        CounterAggregator.clear();
+        ShardedCounter.clearCache();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    // clicks are written only on flush, one write per campaign
+    @Test
+    public void flush_Test() {
+        for (int i = 0; i < 1000; i++) {
+            CounterAggregator.add(1L, 1);
+        }
+        CounterAggregator.add(2L, 3);
+        assertEquals(1003L, CounterAggregator.pendingClicks());
+        assertEquals(Long.valueOf(0L), ShardedCounter.getCount(ShardedCounter.campaignCounter(1L)));
+
+        long writes = CounterAggregator.writes();
+        CounterAggregator.flush();
+        assertEquals(writes + 2, CounterAggregator.writes());
+        assertEquals(0L, CounterAggregator.pendingClicks());
+        assertEquals(Long.valueOf(1000L), ShardedCounter.getCount(ShardedCounter.campaignCounter(1L)));
+        assertEquals(Long.valueOf(3L), ShardedCounter.getCount(ShardedCounter.campaignCounter(2L)));
+
+        // nothing to write
+        CounterAggregator.flush();
+        assertEquals(writes + 2, CounterAggregator.writes());
+    }
+
+    // accumulators of counters without clicks since the last flush are
+    // removed, later clicks of the same counter are still written
+    @Test
+    public void flush_prune_Test() {
+        CounterAggregator.add(1L, 2);
+        CounterAggregator.add(2L, 1);
+        CounterAggregator.flush();
+        assertEquals(2, CounterAggregator.size());
+
+        CounterAggregator.add(2L, 1);
+        CounterAggregator.flush();
+        assertEquals(1, CounterAggregator.size());
+        CounterAggregator.flush();
+        assertEquals(0, CounterAggregator.size());
+
+        CounterAggregator.add(1L, 3);
+        CounterAggregator.flush();
+        assertEquals(Long.valueOf(5L), ShardedCounter.getCount(ShardedCounter.campaignCounter(1L)));
+        assertEquals(Long.valueOf(2L), ShardedCounter.getCount(ShardedCounter.campaignCounter(2L)));
+    }
+
+    // deltas of many counters are written in several batch transactions
+    @Test
+    public void flush_batches_Test() {
+        for (long campaignID = 1; campaignID <= 60; campaignID++) {
+            CounterAggregator.add(campaignID, campaignID);
+        }
+        long writes = CounterAggregator.writes();
+        assertTrue(CounterAggregator.flush());
+        assertEquals(writes + 60, CounterAggregator.writes());
+        assertTrue(CounterAggregator.flushLagMillis() < 60 * 1000L);
+        for (long campaignID = 1; campaignID <= 60; campaignID++) {
+            assertEquals(Long.valueOf(campaignID), ShardedCounter.getCount(ShardedCounter.campaignCounter(campaignID)));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+// custom imports
+import com.clicktracker.CounterMigration;
+import com.clicktracker.ShardedCounter;
+import com.clicktracker.model.Counter;
+import com.clicktracker.model.CounterShard;
+import com.clicktracker.model.CounterConfig;
+import com.clicktracker.model.MigrationState;
+
+// CounterMigrationTest is testing migration of legacy Counter rows into
+// sharded counters
+public class CounterMigrationTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    protected Closeable session;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(Counter.class);
+        ObjectifyService.register(CounterShard.class);
+        ObjectifyService.register(CounterConfig.class);
+        ObjectifyService.register(MigrationState.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        CounterMigration.clearCache();
+        ShardedCounter.clearCache();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    // migration runs in batches and could be resumed, migrated clicks are
+    // added to clicks counted by sharded counters in the meantime
+    @Test
+    public void run_Test() {
+        for (long campaignID = 1; campaignID <= 5; campaignID++) {
+            ObjectifyService.ofy().save().entity(new Counter(campaignID, campaignID * 10)).now();
+        }
+        // clicks counted after sharded counters were introduced
+        ShardedCounter.increment(ShardedCounter.campaignCounter(1L), 3);
+
+        // every run migrates one batch, since time budget is 0
+        MigrationState state = CounterMigration.run(2, 0);
+        assertEquals(Long.valueOf(2L), state.migrated);
+        assertFalse(state.done);
+        assertFalse(CounterMigration.isDone());
+
+        state = CounterMigration.run(2, 0);
+        assertEquals(Long.valueOf(4L), state.migrated);
+        assertFalse(state.done);
+
+        state = CounterMigration.run(2, 0);
+        assertEquals(Long.valueOf(5L), state.migrated);
+        assertTrue(state.done);
+        assertTrue(CounterMigration.isDone());
+
+        // legacy rows are gone, clicks are in sharded counters
+        assertEquals(0, ObjectifyService.ofy().load().type(Counter.class).count());
+        assertEquals(Long.valueOf(13L), ShardedCounter.getCount(ShardedCounter.campaignCounter(1L)));
+        for (long campaignID = 2; campaignID <= 5; campaignID++) {
+            assertEquals(Long.valueOf(campaignID * 10), ShardedCounter.getCount(ShardedCounter.campaignCounter(campaignID)));
+            assertEquals(Long.valueOf(0L), CounterMigration.legacyClicks(campaignID));
+        }
+
+        // running migration again does not count rows twice
+        state = CounterMigration.run(2, 0);
+        assertEquals(Long.valueOf(13L), ShardedCounter.getCount(ShardedCounter.campaignCounter(1L)));
+    }
+
+    // during the migration clicks of migrated rows are read from sharded
+    // counters only, rows are read by key (not from possibly stale query)
+    @Test
+    public void legacyClicks_Test() {
+        // legacy rows were written when campaignID was still indexed
+        for (long campaignID = 1; campaignID <= 2; campaignID++) {
+            Entity legacy = new Entity("Counter");
+            legacy.setProperty("campaignID", campaignID);
+            legacy.setProperty("numOfClicks", campaignID * 10);
+            DatastoreServiceFactory.getDatastoreService().put(legacy);
+        }
+        assertEquals(Long.valueOf(10L), CounterMigration.legacyClicks(1L));
+
+        // one row is migrated
+        assertFalse(CounterMigration.run(1, 0).done);
+        long migrated = ShardedCounter.getCount(ShardedCounter.campaignCounter(1L)) > 0 ? 1L : 2L;
+        long left = 3 - migrated;
+        assertEquals(Long.valueOf(migrated * 10), ShardedCounter.getCount(ShardedCounter.campaignCounter(migrated)));
+        assertEquals(Long.valueOf(0L), CounterMigration.legacyClicks(migrated));
+        assertEquals(Long.valueOf(left * 10), CounterMigration.legacyClicks(left));
+    }
+}
@@ -0,0 +1,78 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import com.google.common.hash.Hashing;
+
+// custom imports
+import com.clicktracker.HyperLogLog;
+
+// HyperLogLogTest is testing unique elements estimation
+public class HyperLogLogTest {
+
+    private static long hash(long element) {
+        return Hashing.murmur3_128().hashLong(element).asLong();
+    }
+
+    // estimate should be within a few standard errors (1.6%) of the real
+    // number of unique elements, repeated elements are not counted
+    @Test
+    public void estimate_Test() {
+        HyperLogLog hll = new HyperLogLog();
+        assertEquals(0, hll.estimate());
+        for (int repeat = 0; repeat < 3; repeat++) {
+            for (long i = 0; i < 100; i++) {
+                hll.add(hash(i));
+            }
+        }
+        assertEquals(100, hll.estimate(), 3);
+
+        for (long i = 100; i < 100000; i++) {
+            hll.add(hash(i));
+        }
+        assertEquals(100000, hll.estimate(), 100000 * 0.05);
+    }
+
+    // merged sketch should estimate union of both sets
+    @Test
+    public void merge_Test() {
+        HyperLogLog day1 = new HyperLogLog();
+        HyperLogLog day2 = new HyperLogLog();
+        for (long i = 0; i < 20000; i++) {
+            day1.add(hash(i));
+        }
+        // half of day2 visitors visited on day1 as well
+        for (long i = 10000; i < 30000; i++) {
+            day2.add(hash(i));
+        }
+        day1.merge(day2);
+        assertEquals(30000, day1.estimate(), 30000 * 0.05);
+    }
+
+    // sketch should survive serialization
+    @Test
+    public void bytes_Test() {
+        HyperLogLog hll = new HyperLogLog();
+        for (long i = 0; i < 5000; i++) {
+            hll.add(hash(i));
+        }
+        byte[] bytes = hll.toBytes();
+        assertEquals(4097, bytes.length);
+
+        HyperLogLog copy = HyperLogLog.fromBytes(bytes);
+        assertEquals(hll, copy);
+        assertEquals(hll.estimate(), copy.estimate());
+        assertTrue(copy.estimate() > 0);
+
+        // few set registers are serialized sparse
+        HyperLogLog small = new HyperLogLog();
+        for (long i = 0; i < 100; i++) {
+            small.add(hash(i));
+        }
+        bytes = small.toBytes();
+        assertTrue(bytes.length <= 3 * 100 + 1);
+        assertEquals(small, HyperLogLog.fromBytes(bytes));
+        assertEquals(1, new HyperLogLog().toBytes().length);
+        assertEquals(new HyperLogLog(), HyperLogLog.fromBytes(new HyperLogLog().toBytes()));
+    }
+}
@@ -0,0 +1,125 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.clicktracker.JsonOutput;
+import com.clicktracker.model.Campaign;
+import com.clicktracker.model.Counter;
+import com.clicktracker.model.MigrationState;
+import com.clicktracker.model.Platform;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+// JsonOutputTest checks that shared entity writers write the same bytes as the
+// default Gson did before
+public class JsonOutputTest {
+
+    // campaign with all fields set, html characters in urls and unicode name
+    @Test
+    public void campaign_Test() throws IOException {
+        Campaign c = new Campaign("Kampanja \"čšž\" <b>", "http://example.com/?a=1&b='2'", Arrays.asList(1L, 2L),
+                true, new Date(1508200000000L));
+        c.id = 5629499534213120L;
+        Map<String, String> redirects = new LinkedHashMap<String, String>();
+        redirects.put("1", "https://play.google.com/store/apps/details?id=com.app&hl=en");
+        redirects.put("2", "https://itunes.apple.com/app/id123");
+        c.platformRedirects = redirects;
+
+        assertEquals(new Gson().toJson(c), write(JsonOutput.CAMPAIGN, c));
+        StringWriter out = new StringWriter();
+        JsonOutput.writeCampaign(out, c);
+        assertEquals(new Gson().toJson(c), out.toString());
+    }
+
+    // null fields are left out
+    @Test
+    public void campaign_nullFields_Test() throws IOException {
+        Campaign c = new Campaign();
+        c.name = "only name";
+        assertEquals(new Gson().toJson(c), write(JsonOutput.CAMPAIGN, c));
+        c.platforms = Arrays.asList(3L, null);
+        assertEquals(new Gson().toJson(c), write(JsonOutput.CAMPAIGN, c));
+    }
+
+    // campaign with extra fields, as displayed by campaign GET request
+    @Test
+    public void campaignFields_Test() throws IOException {
+        Campaign c = new Campaign("c", "http://example.com/?a=1", Arrays.asList(1L), false, new Date());
+        c.id = 1L;
+        Gson gson = new Gson();
+        JsonElement tree = gson.toJsonTree(c);
+        tree.getAsJsonObject().addProperty("clicks", 10L);
+
+        StringWriter out = new StringWriter();
+        JsonWriter writer = JsonOutput.newWriter(out);
+        writer.beginObject();
+        JsonOutput.writeCampaignFields(writer, c);
+        writer.name("clicks").value(10L);
+        writer.endObject();
+        writer.flush();
+        assertEquals(gson.toJson(tree), out.toString());
+    }
+
+    @Test
+    public void platformAndCounter_Test() throws IOException {
+        Platform p = new Platform("windows phone");
+        p.id = 42L;
+        assertEquals(new Gson().toJson(p), write(JsonOutput.PLATFORM, p));
+        assertEquals(new Gson().toJson(new Platform()), write(JsonOutput.PLATFORM, new Platform()));
+
+        Counter c = new Counter(42L, 1000L);
+        c.id = 7L;
+        assertEquals(new Gson().toJson(c), write(JsonOutput.COUNTER, c));
+    }
+
+    // message envelope is not html escaped, like JsonObject.toString()
+    @Test
+    public void message_Test() throws IOException {
+        String message = "platformRedirects should be json object of existing platform => url, ex. {\"iphone\": "
+                + "\"https://itunes.apple.com/app/id123\"}";
+        JsonObject json = new JsonObject();
+        json.add("message", new Gson().toJsonTree(message));
+
+        StringWriter out = new StringWriter();
+        JsonOutput.writeMessage(out, message);
+        assertEquals(json.toString(), out.toString());
+    }
+
+    // created campaign id and job progress are written like the JsonObject
+    // responses they replace
+    @Test
+    public void createdAndProgress_Test() throws IOException {
+        JsonObject created = new JsonObject();
+        created.addProperty("id", 5629499534213120L);
+        StringWriter out = new StringWriter();
+        JsonOutput.writeCreated(out, 5629499534213120L);
+        assertEquals(created.toString(), out.toString());
+        assertEquals("{\"id\":5629499534213120}", out.toString());
+
+        MigrationState state = new MigrationState("counters");
+        state.migrated = 500L;
+        JsonObject progress = new JsonObject();
+        progress.addProperty("archived", state.migrated);
+        progress.addProperty("done", state.done);
+        out = new StringWriter();
+        JsonOutput.writeProgress(out, "archived", state);
+        assertEquals(progress.toString(), out.toString());
+    }
+
+    private static <T> String write(JsonOutput.EntityWriter<T> entityWriter, T value) throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = JsonOutput.newWriter(out);
+        entityWriter.write(writer, value);
+        writer.flush();
+        return out.toString();
+    }
+}
@@ -0,0 +1,46 @@
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Test;
+
+// custom imports
+import com.clicktracker.LoginGuard;
+import org.mindrot.jbcrypt.BCrypt;
+
+// LoginGuardTest is testing login rate limits and bounded password checks
+public class LoginGuardTest {
+    @After
+    public void tearDown() {
+        LoginGuard.clear();
+    }
+
+    // admin name allows 5 attempts in a burst, other names are not affected
+    @Test
+    public void allowName_Test() {
+        long throttled = LoginGuard.throttled();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(LoginGuard.allow("10.0.0." + i, "admin"));
+        }
+        assertFalse(LoginGuard.allow("10.0.0.9", "admin"));
+        assertTrue(LoginGuard.allow("10.0.0.9", "other"));
+        assertTrue(LoginGuard.throttled() > throttled);
+    }
+
+    // client ip allows 10 attempts in a burst, other clients are not affected
+    @Test
+    public void allowIP_Test() {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(LoginGuard.allow("10.0.0.1", "admin" + i));
+        }
+        assertFalse(LoginGuard.allow("10.0.0.1", "admin"));
+        assertTrue(LoginGuard.allow("10.0.0.2", "admin"));
+    }
+
+    // password check gives the same answer as BCrypt
+    @Test
+    public void checkPassword_Test() throws LoginGuard.Busy {
+        String hash = BCrypt.hashpw("1234", BCrypt.gensalt(4));
+        assertTrue(LoginGuard.checkPassword("1234", hash));
+        assertFalse(LoginGuard.checkPassword("4321", hash));
+    }
+}
@@ -0,0 +1,120 @@
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+// import testing packages
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.StringWriter;
+import java.io.PrintWriter;
+
+// custom imports
+import com.clicktracker.Metrics;
+import com.clicktracker.MetricsFilter;
+import com.clicktracker.RpcMetrics;
+import com.clicktracker.model.Platform;
+import com.clicktracker.model.PlatformVersion;
+
+// MetricsTest is testing request and datastore call latency metrics
+public class MetricsTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    protected Closeable session;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        ObjectifyService.register(Platform.class);
+        ObjectifyService.register(PlatformVersion.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+        RpcMetrics.install();
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.clear();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    private HttpServletRequest request(String method, String servletPath, String pathInfo) {
+        HttpServletRequest req = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(req.getMethod()).thenReturn(method);
+        Mockito.when(req.getServletPath()).thenReturn(servletPath);
+        Mockito.when(req.getPathInfo()).thenReturn(pathInfo);
+        return req;
+    }
+
+    private String prometheus() {
+        StringWriter writer = new StringWriter();
+        Metrics.writePrometheus(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    // request latency and datastore calls issued by the request should be
+    // recorded with labels of the request
+    @Test
+    public void filter_Test() throws Exception {
+        HttpServletRequest req = request("GET", "/api/v1/campaign", "/5066549580791808");
+        HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
+        new MetricsFilter().doFilter(req, resp, new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                Platform p = new Platform("android");
+                ObjectifyService.ofy().save().entity(p).now();
+            }
+        });
+
+        String labels = "servlet=\"tracker\",method=\"GET\",route=\"{id}\"";
+        String out = prometheus();
+        assertTrue(out.contains("# TYPE clicktracker_http_request_duration_seconds histogram\n"));
+        assertTrue(out.contains("clicktracker_http_request_duration_seconds_count{" + labels + "} 1\n"));
+        assertTrue(out.contains("clicktracker_http_request_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} 1\n"));
+        assertTrue(out.contains("clicktracker_rpc_duration_seconds_count{" + labels
+                + ",service=\"datastore_v3\",call=\"Put\"} 1\n"));
+
+        // calls outside of requests are attributed to background work
+        ObjectifyService.ofy().save().entity(new Platform("iphone")).now();
+        assertTrue(prometheus().contains("clicktracker_rpc_duration_seconds_count{servlet=\"background\",method=\"\","
+                + "route=\"\",service=\"datastore_v3\",call=\"Put\"} 1\n"));
+    }
+
+    // ids should be replaced in routes, unknown urls grouped together
+    @Test
+    public void route_Test() throws Exception {
+        HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
+        String[][] cases = { { "/api/v1/admin/campaign", "/all", "admin", "all" },
+                { "/api/v1/admin/campaign", "/123/uniques", "admin", "{id}/uniques" },
+                { "/api/v1/admin/campaign", null, "admin", "" },
+                { "/api/v1/admin/auth", "/login", "auth", "login" },
+                { "/api/v1/campaign", "/<script>", "tracker", "other" } };
+        for (String[] c : cases) {
+            new MetricsFilter().doFilter(request("POST", c[0], c[1]), resp, new FilterChain() {
+                public void doFilter(ServletRequest request, ServletResponse response) {
+                }
+            });
+            String labels = "servlet=\"" + c[2] + "\",method=\"POST\",route=\"" + c[3] + "\"";
+            assertTrue(labels, prometheus().contains("clicktracker_http_request_duration_seconds_count{" + labels
+                    + "} 1\n"));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import java.util.Arrays;
+import java.util.List;
+
+// custom imports
+import com.clicktracker.KeywordMatcher;
+import com.clicktracker.PlatformClassifier;
+import com.clicktracker.PlatformRegistry;
+import com.clicktracker.model.Platform;
+import com.clicktracker.model.PlatformVersion;
+
+// PlatformClassifierTest is testing user-agent => platform classification
+public class PlatformClassifierTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    protected Closeable session;
+
+    static final String IPHONE = "Mozilla/5.0 (iPhone; CPU iPhone OS 11_0 like Mac OS X) AppleWebKit/604.1.38 "
+            + "(KHTML, like Gecko) Version/11.0 Mobile/15A372 Safari/604.1";
+    static final String ANDROID = "Mozilla/5.0 (Linux; Android 7.0; SM-G930V Build/NRD90M) AppleWebKit/537.36 "
+            + "(KHTML, like Gecko) Chrome/59.0.3071.125 Mobile Safari/537.36";
+    static final String WINDOWS_PHONE = "Mozilla/5.0 (Mobile; Windows Phone 8.1; Android 4.0; ARM; Trident/7.0; "
+            + "Touch; rv:11.0; IEMobile/11.0; NOKIA; Lumia 635) like iPhone OS 7_0_3 Mac OS X AppleWebKit/537 "
+            + "(KHTML, like Gecko) Mobile Safari/537";
+    static final String DESKTOP = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) "
+            + "Chrome/61.0.3163.100 Safari/537.36";
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(Platform.class);
+        ObjectifyService.register(PlatformVersion.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        PlatformClassifier.clear();
+        PlatformRegistry.clear();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    // overlapping keywords are all found, lowest value wins
+    @Test
+    public void keywordMatcher_Test() {
+        List<String> keywords = Arrays.asList("he", "she", "hers", "his");
+        KeywordMatcher matcher = new KeywordMatcher(keywords, Arrays.asList(3, 2, 1, 0));
+        assertEquals(2, matcher.find("uSHE"));
+        assertEquals(1, matcher.find("ushers"));
+        assertEquals(3, matcher.find("the"));
+        assertEquals(0, matcher.find("this and hers"));
+        assertEquals(KeywordMatcher.NO_MATCH, matcher.find("hérs"));
+        assertEquals(KeywordMatcher.NO_MATCH, matcher.find(""));
+    }
+
+    @Test
+    public void platformID_Test() {
+        List<Platform> platforms = SetupUtils.createPlatforms();
+        Platform android = platforms.get(0);
+        Platform iphone = platforms.get(1);
+        // platform without a rule is matched by its name
+        Platform blackberry = new Platform("BlackBerry");
+        ObjectifyService.ofy().save().entity(blackberry).now();
+
+        // rules are never loaded on request thread, only by refresher
+        assertNull(PlatformClassifier.platformID(IPHONE));
+        PlatformClassifier.refreshIfDue();
+        assertEquals(iphone.id, PlatformClassifier.platformID(IPHONE));
+        assertEquals(android.id, PlatformClassifier.platformID(ANDROID));
+        assertEquals(blackberry.id, PlatformClassifier.platformID("BlackBerry9700/5.0.0.351 Profile/MIDP-2.1"));
+        // windows phone pretends to be android and iphone
+        assertNull(PlatformClassifier.platformID(WINDOWS_PHONE));
+        assertNull(PlatformClassifier.platformID(DESKTOP));
+        assertNull(PlatformClassifier.platformID(""));
+        assertNull(PlatformClassifier.platformID(null));
+
+        // repeated user agents are served from the cache
+        long hits = PlatformClassifier.stats().hitCount();
+        assertEquals(iphone.id, PlatformClassifier.platformID(IPHONE));
+        assertNull(PlatformClassifier.platformID(DESKTOP));
+        assertEquals(hits + 2, PlatformClassifier.stats().hitCount());
+    }
+}
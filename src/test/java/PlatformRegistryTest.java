@@ -0,0 +1,79 @@
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+// custom imports
+import com.clicktracker.PlatformRegistry;
+import com.clicktracker.Utilities;
+import com.clicktracker.model.Platform;
+import com.clicktracker.model.PlatformVersion;
+
+// PlatformRegistryTest is testing in-memory platform lookups
+public class PlatformRegistryTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    protected Closeable session;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(Platform.class);
+        ObjectifyService.register(PlatformVersion.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        PlatformRegistry.clear();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    // platforms are looked up in memory once loaded, platforms saved via
+    // registry bump the version and are visible immediately
+    @Test
+    public void lookup_Test() throws IOException {
+        Platform android = new Platform("android");
+        Platform iphone = new Platform("iphone");
+        PlatformRegistry.save(android, iphone);
+        assertEquals(Long.valueOf(1L), ObjectifyService.ofy().load().type(PlatformVersion.class).id(1L).now().version);
+
+        assertEquals(android.id, PlatformRegistry.byName("android").id);
+        assertEquals(iphone.id, PlatformRegistry.byID(iphone.id).id);
+        assertEquals(Arrays.asList(iphone.id, android.id), Utilities.getPlatforms("iphone, android"));
+        assertNull(PlatformRegistry.byName("windows"));
+        assertEquals(2, PlatformRegistry.all().size());
+
+        // deleted directly in datastore, registry still answers from memory
+        // until the next reload
+        ObjectifyService.ofy().delete().entity(iphone).now();
+        assertEquals(iphone.id, PlatformRegistry.byName("iphone").id);
+
+        Platform windows = new Platform("windows phone");
+        PlatformRegistry.save(windows);
+        List<Platform> all = PlatformRegistry.all();
+        assertEquals(2, all.size());
+        assertNull(PlatformRegistry.byName("iphone"));
+        assertEquals(windows.id, PlatformRegistry.byName("windows phone").id);
+    }
+}
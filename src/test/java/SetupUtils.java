@@ -1,9 +1,18 @@
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
 import com.googlecode.objectify.ObjectifyService;
 
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Arrays;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import javax.servlet.ServletOutputStream;
 
 // custom imports
 import com.clicktracker.model.Campaign;
@@ -60,4 +69,47 @@ public class SetupUtils {
         platforms.add(p2);
         return platforms;
     }
-}
\ No newline at end of file
+
+    // helper function for capturing response written to servlet output stream
+    // ex: Mockito.when(mockResponse.getOutputStream()).thenReturn(outputStream(bytes));
+    public static ServletOutputStream outputStream(final ByteArrayOutputStream bytes) {
+        return new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                bytes.write(b);
+            }
+        };
+    }
+
+    // helper function for running deferred tasks waiting in the default
+    // queue on the test thread (automatic task execution is disabled in
+    // tests), ex. click batches handed over by ClickQueue
+    // returns: number of tasks run
+    public static int runTasks() {
+        return runTasks(1);
+    }
+
+    // runTasks runs every queued task attempts times, like task queue
+    // retrying task which failed after it did its work
+    public static int runTasks(int attempts) {
+        LocalTaskQueue taskQueue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+        int run = 0;
+        List<TaskStateInfo> tasks = taskQueue.getQueueStateInfo().get("default").getTaskInfo();
+        while (!tasks.isEmpty()) {
+            for (TaskStateInfo task : tasks) {
+                for (int i = 0; i < attempts; i++) {
+                    try (ObjectInputStream in = new ObjectInputStream(
+                            new ByteArrayInputStream(task.getBodyAsBytes()))) {
+                        ((DeferredTask) in.readObject()).run();
+                    } catch (IOException | ClassNotFoundException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+                taskQueue.deleteTask("default", task.getTaskName());
+                run++;
+            }
+            tasks = taskQueue.getQueueStateInfo().get("default").getTaskInfo();
+        }
+        return run;
+    }
+}
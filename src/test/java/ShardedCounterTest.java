@@ -0,0 +1,144 @@
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// custom imports
+import com.clicktracker.ShardedCounter;
+import com.clicktracker.model.CounterShard;
+import com.clicktracker.model.CounterConfig;
+
+// ShardedCounterTest is testing sharded click counters
+public class ShardedCounterTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    protected Closeable session;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(CounterShard.class);
+        ObjectifyService.register(CounterConfig.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        ShardedCounter.clearCache();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    @Test
+    public void increment_Test() {
+        String name = ShardedCounter.campaignCounter(1L);
+        assertEquals(Long.valueOf(0L), ShardedCounter.getCount(name));
+
+        ShardedCounter.increment(name, 1);
+        ShardedCounter.increment(name, 5);
+        assertEquals(Long.valueOf(6L), ShardedCounter.getCount(name));
+    }
+
+    // number of shards could only grow, already counted clicks stay in
+    // the sum after the counter gets more shards
+    @Test
+    public void setShards_Test() {
+        String name = ShardedCounter.campaignCounter(1L);
+        int numShards = ShardedCounter.getNumShards(name);
+        ShardedCounter.increment(name, 3);
+
+        assertFalse(ShardedCounter.setShards(name, numShards - 1));
+        assertEquals(numShards, ShardedCounter.getNumShards(name));
+
+        assertTrue(ShardedCounter.setShards(name, numShards * 2));
+        assertEquals(numShards * 2, ShardedCounter.getNumShards(name));
+        ShardedCounter.increment(name, 2);
+        assertEquals(Long.valueOf(5L), ShardedCounter.getCount(name));
+    }
+
+    // counts of several counters are loaded at once, shards over the
+    // default number of shards are counted as well
+    @Test
+    public void getCounts_Test() {
+        String campaign = ShardedCounter.campaignCounter(1L);
+        String platform = ShardedCounter.platformCounter(1L, null);
+        String empty = ShardedCounter.duplicatesCounter(1L);
+        int numShards = ShardedCounter.getNumShards(campaign);
+        assertTrue(ShardedCounter.setShards(campaign, numShards * 4));
+        for (int i = 0; i < 20; i++) {
+            ShardedCounter.increment(campaign, 1);
+        }
+        ShardedCounter.increment(platform, 7);
+
+        Map<String, Long> counts = ShardedCounter.getCounts(Arrays.asList(campaign, platform, empty));
+        assertEquals(Arrays.asList(campaign, platform, empty), new ArrayList<String>(counts.keySet()));
+        assertEquals(Long.valueOf(20L), counts.get(campaign));
+        assertEquals(Long.valueOf(7L), counts.get(platform));
+        assertEquals(Long.valueOf(0L), counts.get(empty));
+    }
+
+    // concurrent increments (more increments than shards, so transactions
+    // collide on the same shards) should not lose any click
+    @Test
+    public void increment_concurrent_Test() throws InterruptedException {
+        final String name = ShardedCounter.campaignCounter(1L);
+
+        final int numThreads = 8;
+        final int incrementsPerThread = 25;
+        // datastore stubs are bound to the test thread environment
+        final ApiProxy.Environment env = ApiProxy.getCurrentEnvironment();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        final AtomicInteger errors = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    ApiProxy.setEnvironmentForCurrentThread(env);
+                    try (Closeable session = ObjectifyService.begin()) {
+                        start.await();
+                        for (int j = 0; j < incrementsPerThread; j++) {
+                            ShardedCounter.increment(name, 1);
+                        }
+                    } catch (Exception ex) {
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        start.countDown();
+        done.await();
+        assertEquals(0, errors.get());
+        assertEquals(Long.valueOf(numThreads * incrementsPerThread), ShardedCounter.getCount(name));
+    }
+}
@@ -0,0 +1,129 @@
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cache.AsyncCacheFilter;
+import com.googlecode.objectify.util.Closeable;
+import com.google.common.hash.Hashing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import java.util.Date;
+
+// custom imports
+import com.clicktracker.CounterAggregator;
+import com.clicktracker.HyperLogLog;
+import com.clicktracker.UniqueVisitorCounter;
+import com.clicktracker.Utilities;
+import com.clicktracker.model.Click;
+import com.clicktracker.model.CounterConfig;
+import com.clicktracker.model.CounterShard;
+import com.clicktracker.model.UniqueVisitors;
+import com.clicktracker.model.ClickRollup;
+
+// UniqueVisitorCounterTest is testing unique visitors per campaign and day
+public class UniqueVisitorCounterTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+            new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+    protected Closeable session;
+
+    @BeforeClass
+    public static void setupBeforeClass() {
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        // register
+        ObjectifyService.register(CounterShard.class);
+        ObjectifyService.register(CounterConfig.class);
+        ObjectifyService.register(UniqueVisitors.class);
+        ObjectifyService.register(ClickRollup.class);
+    }
+
+    @Before
+    public void setUp() {
+        this.session = ObjectifyService.begin();
+        this.helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        CounterAggregator.clear();
+        AsyncCacheFilter.complete();
+        this.session.close();
+        this.helper.tearDown();
+    }
+
+    private static void visit(Long campaignID, String ip, String day) {
+        Date date = new Date(Utilities.parseDay(day).getTime() + 12 * 60 * 60 * 1000);
+        UniqueVisitorCounter.add(new Click(campaignID, ip, "Mozilla/5.0", date));
+    }
+
+    // visitors are counted per day, ranges merge daily sketches and count
+    // visitors that came on several days only once
+    @Test
+    public void count_Test() {
+        for (int i = 0; i < 100; i++) {
+            visit(1L, "10.0.0." + i, "2017-10-01");
+            visit(1L, "10.0.0." + i, "2017-10-01");
+        }
+        // first flush stores the sketch, second merges into it
+        UniqueVisitorCounter.flush();
+        for (int i = 50; i < 150; i++) {
+            visit(1L, "10.0.0." + i, "2017-10-01");
+            visit(1L, "10.0.0." + i, "2017-10-03");
+        }
+        // other campaign
+        visit(2L, "10.0.0.1", "2017-10-02");
+        UniqueVisitorCounter.flush();
+
+        Date oct1 = Utilities.parseDay("2017-10-01");
+        Date oct2 = Utilities.parseDay("2017-10-02");
+        Date oct3 = Utilities.parseDay("2017-10-03");
+        assertEquals(150, UniqueVisitorCounter.count(1L, oct1, oct1), 3);
+        assertEquals(0, UniqueVisitorCounter.count(1L, oct2, oct2));
+        assertEquals(100, UniqueVisitorCounter.count(1L, oct2, oct3), 3);
+        assertEquals(150, UniqueVisitorCounter.count(1L, oct1, oct3), 3);
+        assertEquals(1, UniqueVisitorCounter.count(2L, oct1, oct3));
+
+        // every flush stores into one shard row of the campaign day
+        int rows = ObjectifyService.ofy().load().type(UniqueVisitors.class).count();
+        assertTrue(rows >= 3 && rows <= 4);
+    }
+
+    // counting closed day with several shard rows folds them into one row,
+    // days which could still be flushed into are not folded
+    @Test
+    public void fold_Test() {
+        HyperLogLog first = new HyperLogLog();
+        HyperLogLog second = new HyperLogLog();
+        for (int i = 0; i < 100; i++) {
+            first.add(Hashing.murmur3_128().hashLong(i).asLong());
+            second.add(Hashing.murmur3_128().hashLong(i + 50).asLong());
+        }
+        String today = UniqueVisitorCounter.day(new Date());
+        for (String day : new String[] { "20171001", today }) {
+            ObjectifyService.ofy().save().entities(new UniqueVisitors(UniqueVisitors.id(1L, day, 0), 1L,
+                    first.toBytes()), new UniqueVisitors(UniqueVisitors.id(1L, day, 3), 1L, second.toBytes())).now();
+        }
+
+        Date oct1 = Utilities.parseDay("2017-10-01");
+        assertEquals(150, UniqueVisitorCounter.count(1L, oct1, oct1), 3);
+        assertEquals(150, UniqueVisitorCounter.count(1L, new Date(), new Date()), 3);
+        assertEquals(1, SetupUtils.runTasks());
+
+        assertEquals(150, UniqueVisitorCounter.count(1L, oct1, oct1), 3);
+        assertNull(ObjectifyService.ofy().load().type(UniqueVisitors.class).id(UniqueVisitors.id(1L, "20171001", 3))
+                .now());
+        // folded sketch is small enough to be stored sparse
+        UniqueVisitors folded = ObjectifyService.ofy().load().type(UniqueVisitors.class)
+                .id(UniqueVisitors.id(1L, "20171001", 0)).now();
+        assertTrue(folded.sketch.length < 1000);
+        assertEquals(3, ObjectifyService.ofy().load().type(UniqueVisitors.class).count());
+        assertEquals(0, SetupUtils.runTasks());
+    }
+}
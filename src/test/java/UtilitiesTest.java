@@ -9,6 +9,7 @@ import com.googlecode.objectify.util.Closeable;
 import org.mockito.Mockito;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import org.junit.Test;
 import org.junit.After;
 import org.junit.Before;
@@ -21,6 +22,8 @@ import java.util.ArrayList;
 
 // custom imports
 import com.clicktracker.model.Platform;
+import com.clicktracker.model.PlatformVersion;
+import com.clicktracker.PlatformRegistry;
 import com.clicktracker.Utilities;
 
 // UtilitiesTest is testing utility functions inside Utilities.java file.
@@ -33,6 +36,7 @@ public class UtilitiesTest {
         ObjectifyService.setFactory(new ObjectifyFactory());
         // register database
         ObjectifyService.register(Platform.class);
+        ObjectifyService.register(PlatformVersion.class);
     }
 
     @Before
@@ -43,6 +47,7 @@ public class UtilitiesTest {
 
     @After
     public void tearDown() {
+        PlatformRegistry.clear();
         AsyncCacheFilter.complete();
         this.session.close();
         this.helper.tearDown();
@@ -143,4 +148,14 @@ public class UtilitiesTest {
             assertEquals(platforms7.get(i), plat7.get(i));
         }
     }
-}
\ No newline at end of file
+
+    // parseDay accepts only valid yyyy-MM-dd days (UTC)
+    @Test
+    public void parseDay_Test() {
+        assertEquals(1506816000000L, Utilities.parseDay("2017-10-01").getTime());
+        assertNull(Utilities.parseDay(null));
+        assertNull(Utilities.parseDay("2017-13-01"));
+        assertNull(Utilities.parseDay("2017-10-01x"));
+        assertNull(Utilities.parseDay("01.10.2017"));
+    }
+}